@@ -0,0 +1,88 @@
+package com.hsj.camera;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Devices {@link USBMonitor} reported by onAttach and not by onDetach yet, by UsbDevice#getDeviceId
+ * which unlike the device key differs for two cameras of the same model and for every re-attach.
+ * The attach/detach broadcasts and the poll both feed it, whichever sees a change first reports it.
+ * No Android classes, so the diffing runs in local unit tests.
+ *
+ * @param <T> UsbDevice, any type in tests
+ */
+final class AttachedDevices<T> {
+    private final Map<Integer, T> mDevices = new HashMap<>();
+    /**
+     * System#nanoTime each tracked device was seen attached, until its first onConnect
+     */
+    private final Map<Integer, Long> mAttachNanos = new HashMap<>();
+
+    /**
+     * start tracking a device reported by USB_DEVICE_ATTACHED
+     *
+     * @return false if it is tracked already, e.g. the poll was first
+     */
+    synchronized boolean attach(final int id, final T device, final long attachNanos) {
+        if (mDevices.containsKey(id)) return false;
+        mDevices.put(id, device);
+        mAttachNanos.put(id, attachNanos);
+        return true;
+    }
+
+    /**
+     * stop tracking a device reported by USB_DEVICE_DETACHED
+     *
+     * @return false if it was not tracked, e.g. the poll reported the detach already
+     */
+    synchronized boolean detach(final int id) {
+        mAttachNanos.remove(id);
+        return mDevices.remove(id) != null;
+    }
+
+    /**
+     * @return when the device was seen attached, -1 if it is not tracked or was connected since
+     */
+    synchronized long takeAttachNanos(final int id) {
+        final Long attachNanos = mAttachNanos.remove(id);
+        return attachNanos != null ? attachNanos : -1;
+    }
+
+    synchronized void clear() {
+        mDevices.clear();
+        mAttachNanos.clear();
+    }
+
+    /**
+     * diff the connected devices against the tracked ones and track the connected ones from now on
+     *
+     * @param current  connected devices by id, in the order to report them
+     * @param nanos    attach time of the new devices
+     * @param attached receives the devices of current that were not tracked
+     * @param detached receives the tracked devices missing from current
+     * @param kept     receives the devices of current that were tracked already
+     */
+    synchronized void update(final Map<Integer, T> current, final long nanos,
+                             final List<T> attached, final List<T> detached, final List<T> kept) {
+        final Iterator<Map.Entry<Integer, T>> it = mDevices.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<Integer, T> entry = it.next();
+            if (!current.containsKey(entry.getKey())) {
+                detached.add(entry.getValue());
+                mAttachNanos.remove(entry.getKey());
+                it.remove();
+            }
+        }
+        for (final Map.Entry<Integer, T> entry : current.entrySet()) {
+            if (mDevices.containsKey(entry.getKey())) {
+                kept.add(entry.getValue());
+            } else {
+                mDevices.put(entry.getKey(), entry.getValue());
+                mAttachNanos.put(entry.getKey(), nanos);
+                attached.add(entry.getValue());
+            }
+        }
+    }
+}
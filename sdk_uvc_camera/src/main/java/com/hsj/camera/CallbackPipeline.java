@@ -0,0 +1,31 @@
+package com.hsj.camera;
+
+/**
+ * Calls {@link IFrameCallback#onFrame} on its own thread, independent of
+ * {@link UVCCamera#setFrameCallback} and of the other branches.
+ */
+public final class CallbackPipeline extends Pipeline {
+
+    public CallbackPipeline() {
+        this(DEFAULT_DEPTH, DROP_OLDEST);
+    }
+
+    /**
+     * @param depth      frames queued, 1..{@link #MAX_DEPTH}
+     * @param dropPolicy {@link #DROP_NEWEST} or {@link #DROP_OLDEST}
+     */
+    public CallbackPipeline(final int depth, final int dropPolicy) {
+        super(TYPE_CALLBACK, depth, dropPolicy, 0);
+    }
+
+    /**
+     * @param callback    null to stop calling back
+     * @param pixelFormat PIXEL_FORMAT_XXX of the frames passed to callback
+     */
+    public synchronized boolean setFrameCallback(final IFrameCallback callback, final int pixelFormat) {
+        if (mNativePtr != 0) return nativeSetFrameCallback(mNativePtr, callback, pixelFormat) == UVCCamera.ACTION_SUCCESS;
+        return false;
+    }
+
+    private static native int nativeSetFrameCallback(final long id_pipeline, final IFrameCallback callback, final int pixelFormat);
+}
@@ -0,0 +1,30 @@
+package com.hsj.camera;
+
+/**
+ * Converts frames to a pixel format on its own thread and chains the converted frames,
+ * e.g. to feed several {@link CallbackPipeline}s in the same pixel format with one conversion.
+ */
+public final class ConvertPipeline extends Pipeline {
+
+    private final int mPixelFormat;
+
+    /**
+     * @param pixelFormat {@link UVCCamera#PIXEL_FORMAT_RAW} ... {@link UVCCamera#PIXEL_FORMAT_I420}
+     */
+    public ConvertPipeline(final int pixelFormat) {
+        this(pixelFormat, DEFAULT_DEPTH, DROP_OLDEST);
+    }
+
+    /**
+     * @param depth      frames queued, 1..{@link #MAX_DEPTH}
+     * @param dropPolicy {@link #DROP_NEWEST} or {@link #DROP_OLDEST}
+     */
+    public ConvertPipeline(final int pixelFormat, final int depth, final int dropPolicy) {
+        super(TYPE_CONVERT, depth, dropPolicy, pixelFormat);
+        mPixelFormat = pixelFormat;
+    }
+
+    public int getPixelFormat() {
+        return mPixelFormat;
+    }
+}
@@ -0,0 +1,56 @@
+package com.hsj.camera;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hands every frame to each branch (and to the pipeline set with {@link #setPipeline}) without
+ * queueing or copying it; the branches keep their own reference, queue and drop policy.
+ */
+public final class DistributePipeline extends Pipeline {
+
+    public static final int MAX_BRANCHES = 8;
+
+    private final List<Pipeline> mBranches = new ArrayList<>();
+
+    public DistributePipeline() {
+        super(TYPE_DISTRIBUTE, DEFAULT_DEPTH, DROP_OLDEST, 0);
+    }
+
+    /**
+     * @return false if there are {@link #MAX_BRANCHES} branches already or branch is fed by a camera or another pipeline
+     */
+    public synchronized boolean addPipeline(final Pipeline branch) {
+        if (mNativePtr == 0 || branch == null || branch == this || !branch.attach()) return false;
+        if (nativeAddPipeline(mNativePtr, branch.mNativePtr, branch.mType) == UVCCamera.ACTION_SUCCESS) {
+            mBranches.add(branch);
+            return true;
+        }
+        branch.detach();
+        return false;
+    }
+
+    /**
+     * when this returns branch holds no frame of this pipeline anymore and can be released
+     */
+    public synchronized boolean removePipeline(final Pipeline branch) {
+        if (mNativePtr != 0 && mBranches.remove(branch)) {
+            nativeRemovePipeline(mNativePtr, branch.mNativePtr, branch.mType);
+            branch.detach();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void release() {
+        for (final Pipeline branch : new ArrayList<>(mBranches)) {
+            removePipeline(branch);
+        }
+        super.release();
+    }
+
+    private static native int nativeAddPipeline(final long id_pipeline, final long id_branch, final int branchType);
+
+    private static native int nativeRemovePipeline(final long id_pipeline, final long id_branch, final int branchType);
+}
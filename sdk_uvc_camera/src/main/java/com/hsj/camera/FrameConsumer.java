@@ -0,0 +1,224 @@
+package com.hsj.camera;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Frames of a {@link UVCCamera} leased by the app instead of pushed to {@link IFrameCallback}:
+ * {@link #acquire} a frame on any thread, process it, {@link #release} it.
+ * Each consumer has its own queue, pixel format and max rate, all consumers of a camera share one
+ * decode of each frame and a slow consumer only loses frames of its own queue, see {@link #getCounters}.
+ * Created by {@link UVCCamera#addFrameConsumer}, closed with {@link #close} or when the camera is closed.
+ */
+public final class FrameConsumer {
+
+    /**
+     * the queue keeps the newest frames, a new frame evicts the oldest queued one
+     */
+    public static final int POLICY_LATEST = 0;
+    /**
+     * bounded FIFO, a new frame is dropped while the queue is full
+     */
+    public static final int POLICY_FIFO = 1;
+
+    public static final int MAX_DEPTH = 16;
+    /**
+     * frames that can be leased at the same time besides the queued ones
+     */
+    public static final int MAX_LEASES = 2;
+
+    // counters, keep in sync with consumer_counter in UVCFrameConsumer.h
+    /**
+     * frames queued for this consumer
+     */
+    public static final int COUNTER_DELIVERED = 0;
+    /**
+     * queued frames evicted ({@link #POLICY_LATEST}) or new frames dropped ({@link #POLICY_FIFO})
+     * because the consumer did not acquire them fast enough
+     */
+    public static final int COUNTER_DROP_QUEUE_FULL = 1;
+    /**
+     * frames dropped because every buffer was leased
+     */
+    public static final int COUNTER_DROP_LEASES_HELD = 2;
+    /**
+     * frames skipped to keep the max fps of the consumer
+     */
+    public static final int COUNTER_SKIPPED_RATE = 3;
+    /**
+     * frames queued right now
+     */
+    public static final int COUNTER_QUEUED = 4;
+
+    /**
+     * A leased frame, valid until it is passed to {@link #release}.
+     * The instance and its buffer are reused for later leases.
+     */
+    public static final class Frame {
+        final int slot;
+        // FrameInfo values and the frame size
+        final long[] values = new long[FrameInfo.VALUES + 1];
+        final FrameInfo info = new FrameInfo();
+        ByteBuffer buffer;
+
+        Frame(final int slot) {
+            this.slot = slot;
+        }
+
+        /**
+         * direct ByteBuffer in the pixel format of the consumer, position 0 and limit the frame size
+         */
+        public ByteBuffer buffer() {
+            return buffer;
+        }
+
+        public FrameInfo info() {
+            return info;
+        }
+    }
+
+    private final UVCCamera mCamera;
+    private final int mPixelFormat;
+    // acquire/release run under the read lock so close can wait for them before the native object is deleted
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    private final Frame[] mFrames = new Frame[MAX_DEPTH + MAX_LEASES + 1];
+    long mNativePtr;
+
+    FrameConsumer(final UVCCamera camera, final long nativePtr, final int pixelFormat) {
+        mCamera = camera;
+        mNativePtr = nativePtr;
+        mPixelFormat = pixelFormat;
+    }
+
+    public int getPixelFormat() {
+        return mPixelFormat;
+    }
+
+    /**
+     * Deliver only a region of each frame, scaled to {@code outWidth x outHeight}.
+     * The region is cropped and scaled before the conversion to the pixel format of this consumer,
+     * so the conversion and the buffers only cover the delivered pixels.
+     * Sizes are rounded down to even. The buffers are rebuilt for the new size
+     * once every leased frame was released.
+     *
+     * @param x         left of the region
+     * @param y         top of the region
+     * @param width     width of the region, 0 together with height for the whole frame
+     * @param height    height of the region
+     * @param outWidth  width after scaling, 0 together with outHeight keeps the region size
+     * @param outHeight height after scaling
+     * @return false if the region is invalid or the consumer was closed
+     */
+    public boolean setRegion(final int x, final int y, final int width, final int height,
+                             final int outWidth, final int outHeight) {
+        mLock.readLock().lock();
+        try {
+            return mNativePtr != 0
+                    && nativeSetRegion(mNativePtr, x, y, width, height, outWidth, outHeight) == UVCCamera.ACTION_SUCCESS;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * lease the oldest queued frame
+     *
+     * @param timeoutMs wait at most this long for a frame, 0 does not wait, negative waits until a frame is queued
+     * @return null on timeout or when the consumer was closed
+     */
+    public Frame acquire(final long timeoutMs) {
+        mLock.readLock().lock();
+        try {
+            if (mNativePtr == 0) return null;
+            final int slot = nativeAcquire(mNativePtr,
+                    timeoutMs < 0 ? -1 : (int) Math.min(timeoutMs, Integer.MAX_VALUE));
+            if (slot < 0) return null;
+            Frame frame = mFrames[slot];
+            if (frame == null) {
+                frame = mFrames[slot] = new Frame(slot);
+            }
+            final ByteBuffer buffer = nativeGetFrame(mNativePtr, slot, frame.values);
+            if (buffer == null) {
+                nativeRelease(mNativePtr, slot);
+                return null;
+            }
+            buffer.clear();
+            buffer.limit((int) frame.values[FrameInfo.VALUES]);
+            System.arraycopy(frame.values, 0, frame.info.values, 0, FrameInfo.VALUES);
+            frame.buffer = buffer;
+            return frame;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * hand a leased frame back so its buffer can take a new frame
+     *
+     * @return false if the frame was not leased from this consumer or the consumer was closed
+     */
+    public boolean release(final Frame frame) {
+        mLock.readLock().lock();
+        try {
+            if (mNativePtr != 0 && frame != null && mFrames[frame.slot] == frame) {
+                return nativeRelease(mNativePtr, frame.slot) == UVCCamera.ACTION_SUCCESS;
+            }
+            return false;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return counters indexed by COUNTER_XXX, null if closed
+     */
+    public long[] getCounters() {
+        mLock.readLock().lock();
+        try {
+            return mNativePtr != 0 ? nativeGetCounters(mNativePtr) : null;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * stop leasing and free the buffers, threads waiting in {@link #acquire} return null.
+     * Frames still leased must not be used anymore.
+     */
+    public void close() {
+        mLock.readLock().lock();
+        try {
+            if (mNativePtr == 0) return;
+            nativeClose(mNativePtr);
+        } finally {
+            mLock.readLock().unlock();
+        }
+        final long nativePtr;
+        mLock.writeLock().lock();
+        try {
+            nativePtr = mNativePtr;
+            mNativePtr = 0;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        // no thread can reach the native consumer anymore, free it without holding mLock:
+        // UVCCamera#close calls #close while it holds the camera's monitor
+        if (nativePtr != 0) {
+            mCamera.removeFrameConsumer(this, nativePtr);
+        }
+    }
+
+    private static native int nativeAcquire(final long id_consumer, final int timeoutMs);
+
+    private static native ByteBuffer nativeGetFrame(final long id_consumer, final int slot, final long[] values);
+
+    private static native int nativeRelease(final long id_consumer, final int slot);
+
+    private static native int nativeClose(final long id_consumer);
+
+    private static native int nativeSetRegion(final long id_consumer, final int x, final int y,
+                                              final int width, final int height,
+                                              final int outWidth, final int outHeight);
+
+    private static native long[] nativeGetCounters(final long id_consumer);
+}
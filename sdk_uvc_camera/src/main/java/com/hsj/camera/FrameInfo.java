@@ -0,0 +1,66 @@
+package com.hsj.camera;
+
+/**
+ * Sequence number and timestamps of the frame handed to {@link IFrameInfoCallback#onFrame},
+ * one instance is reused for every frame and only valid during that call.
+ * Times are CLOCK_MONOTONIC nanoseconds, the clock of {@link System#nanoTime} on Android.
+ * Layout of {@link #values} is filled by UVCPreview#do_capture_callback, keep in sync with FRAME_INFO_VALUES
+ */
+public final class FrameInfo {
+    static final int VALUES = 6;
+
+    /**
+     * raw values filled by native code: sequence, pts, scr, capture ns, first payload ns, complete ns
+     */
+    final long[] values = new long[VALUES];
+
+    /**
+     * frame number of the stream, strictly increasing, skips over dropped frames
+     */
+    public long sequence() {
+        return values[0];
+    }
+
+    /**
+     * device clock when the device started capturing the frame (UVC payload header PTS), 0 if not sent
+     */
+    public long pts() {
+        return values[1];
+    }
+
+    /**
+     * device clock of the last source clock reference of the frame (UVC payload header SCR), 0 if not sent
+     */
+    public long scr() {
+        return values[2];
+    }
+
+    /**
+     * {@link #pts} mapped to CLOCK_MONOTONIC by the device clock estimate, see {@link UVCCamera#getClockEstimate},
+     * 0 if the device sends no PTS/SCR or the estimate has not converged yet
+     */
+    public long captureNanos() {
+        return values[3];
+    }
+
+    /**
+     * CLOCK_MONOTONIC when the first payload of the frame arrived
+     */
+    public long firstPayloadNanos() {
+        return values[4];
+    }
+
+    /**
+     * CLOCK_MONOTONIC when the last payload of the frame arrived
+     */
+    public long completeNanos() {
+        return values[5];
+    }
+
+    /**
+     * best known CLOCK_MONOTONIC capture time: {@link #captureNanos}, else {@link #firstPayloadNanos}
+     */
+    public long timestampNanos() {
+        return values[3] != 0 ? values[3] : values[4];
+    }
+}
@@ -0,0 +1,125 @@
+package com.hsj.camera;
+
+import java.util.Locale;
+
+/**
+ * Snapshot of the per stage latency histograms and drop counters of {@link UVCCamera},
+ * counted since startPreview, measured with CLOCK_MONOTONIC in nanoseconds.
+ * Layout of {@link #values} is the native UVCStats#snapshot, keep in sync with UVCStats.h
+ */
+public final class FrameStats {
+    /**
+     * first payload of a frame -> frame complete on USB
+     */
+    public static final int STAGE_USB = 0;
+    /**
+     * MJPEG decode
+     */
+    public static final int STAGE_DECODE = 1;
+    /**
+     * conversion for the preview Surface
+     */
+    public static final int STAGE_PREVIEW_CONVERT = 2;
+    /**
+     * copy to the preview or capture Surface
+     */
+    public static final int STAGE_COPY_SURFACE = 3;
+    /**
+     * conversion for the capture Surface or the IFrameCallback pixel format
+     */
+    public static final int STAGE_CAPTURE_CONVERT = 4;
+    /**
+     * {@link IFrameCallback#onFrame}
+     */
+    public static final int STAGE_CALLBACK = 5;
+    public static final int STAGE_NUM = 6;
+
+    public static final int DROP_POOL_EXHAUSTED = 0;
+    public static final int DROP_PREVIEW_QUEUE_FULL = 1;
+    public static final int DROP_CAPTURE_OVERWRITE = 2;
+    public static final int DROP_BROKEN_FRAME = 3;
+    /**
+     * every buffer of {@link UVCCamera#setCallbackBuffers} was still held, not released yet
+     */
+    public static final int DROP_CALLBACK_BUFFERS_HELD = 4;
+    public static final int DROP_NUM = 5;
+
+    /**
+     * bucket 0 counts < 1024ns, bucket i counts [2^(i+9), 2^(i+10))ns, the last one everything above
+     */
+    public static final int BUCKETS = 24;
+    private static final int BUCKET_SHIFT = 9;
+    private static final int STAGE_VALUES = 3 + BUCKETS;
+    static final int VALUES = STAGE_NUM * STAGE_VALUES + DROP_NUM;
+
+    private static final String[] STAGE_NAMES = {
+            "usb", "decode", "preview_convert", "copy_surface", "capture_convert", "callback"};
+    private static final String[] DROP_NAMES = {
+            "pool_exhausted", "preview_queue_full", "capture_overwrite", "broken_frame", "callback_buffers_held"};
+
+    /**
+     * raw values filled by native code, {count, sum ns, max ns, buckets} per stage, then drops per reason
+     */
+    final long[] values = new long[VALUES];
+
+    public long count(final int stage) {
+        return values[stage * STAGE_VALUES];
+    }
+
+    public long totalNanos(final int stage) {
+        return values[stage * STAGE_VALUES + 1];
+    }
+
+    public long maxNanos(final int stage) {
+        return values[stage * STAGE_VALUES + 2];
+    }
+
+    public long meanNanos(final int stage) {
+        final long count = count(stage);
+        return count > 0 ? totalNanos(stage) / count : 0;
+    }
+
+    public long bucket(final int stage, final int bucket) {
+        return values[stage * STAGE_VALUES + 3 + bucket];
+    }
+
+    /**
+     * upper bound of the histogram bucket holding the given percentile
+     *
+     * @param percentile 0-100
+     * @return nanoseconds, 0 if nothing was measured
+     */
+    public long percentileNanos(final int stage, final double percentile) {
+        final long count = count(stage);
+        if (count <= 0) return 0;
+        final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += bucket(stage, i);
+            if (seen >= rank) {
+                return 1L << (i + BUCKET_SHIFT + 1);
+            }
+        }
+        return maxNanos(stage);
+    }
+
+    public long drops(final int reason) {
+        return values[STAGE_NUM * STAGE_VALUES + reason];
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < STAGE_NUM; i++) {
+            if (count(i) == 0) continue;
+            sb.append(String.format(Locale.US, "%s:n=%d,mean=%dus,p99<%dus,max=%dus ",
+                    STAGE_NAMES[i], count(i), meanNanos(i) / 1000,
+                    percentileNanos(i, 99) / 1000, maxNanos(i) / 1000));
+        }
+        sb.append("drops:");
+        for (int i = 0; i < DROP_NUM; i++) {
+            sb.append(i == 0 ? "" : ",").append(DROP_NAMES[i]).append('=').append(drops(i));
+        }
+        return sb.toString();
+    }
+}
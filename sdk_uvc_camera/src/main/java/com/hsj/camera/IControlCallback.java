@@ -0,0 +1,17 @@
+package com.hsj.camera;
+
+/**
+ * Result of the writes of UVCCamera#setControlAsync and UVCCamera#setPanTiltAsync,
+ * set with UVCCamera#setControlCallback
+ */
+public interface IControlCallback {
+	/**
+	 * Called on the USB event thread once per value sent to the camera, a value replaced by a later
+	 * write of the same control before it was sent is not reported. Return quickly, the next
+	 * write of every control waits for this.
+	 * @param id control id as passed to setControlAsync, {@link UVCCamera#CTRL_PANTILT_ABS} for setPanTiltAsync
+	 * @param result 0 on success, negative UVC error otherwise
+	 * @param latencyNanos from the write call to the completion on the bus
+	 */
+	void onControlComplete(int id, int result, long latencyNanos);
+}
@@ -12,7 +12,8 @@ public interface IFrameCallback {
 	 * You can use both UVCCamera#startCapture and #setFrameCallback
 	 * but it is better to use either for better performance.
 	 * You can also pass pixel format type to UVCCamera#setFrameCallback for this method.
-	 * Some frames may drops if this method takes a time.
+	 * Some frames may drops if this method takes a time,
+	 * use UVCCamera#addFrameConsumer to process frames on other threads without blocking capture.
 	 * When you use some color format like NV21, this library never execute color space conversion,
 	 * just execute pixel format conversion. If you want to get same result as on screen, please try to
 	 * consider to get images via texture(SurfaceTexture) and read pixel buffer from it using OpenGL|ES2/3
@@ -0,0 +1,16 @@
+package com.hsj.camera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link IFrameCallback} with the sequence number and timestamps of the frame,
+ * set with UVCCamera#setFrameCallback(IFrameInfoCallback, int)
+ */
+public interface IFrameInfoCallback {
+	/**
+	 * Called like {@link IFrameCallback#onFrame}, no object is allocated per frame.
+	 * @param frame direct ByteBuffer from JNI layer
+	 * @param info reused for every frame, copy what you need before returning
+	 */
+	void onFrame(ByteBuffer frame, FrameInfo info);
+}
@@ -0,0 +1,123 @@
+package com.hsj.camera;
+
+/**
+ * A node of the pipeline graph fed by {@link UVCCamera#setPipeline}.
+ * One camera can feed several sinks (surfaces, callbacks in different pixel formats) through
+ * {@link DistributePipeline}; frames are shared by reference between the branches instead of copied
+ * and each buffered pipeline has its own queue, handler thread and drop policy, so a slow branch only
+ * drops frames of its own queue, see {@link #getDropped}.
+ * {@link #start} a pipeline before frames reach it and {@link #release} it once it is detached.
+ */
+public abstract class Pipeline {
+
+    // keep in sync with pipeline_type in IPipeline.h
+    static final int TYPE_CALLBACK = 200;
+    static final int TYPE_CONVERT = 300;
+    static final int TYPE_PREVIEW = 400;
+    static final int TYPE_DISTRIBUTE = 600;
+
+    /**
+     * a new frame is dropped while the queue is full
+     */
+    public static final int DROP_NEWEST = 0;
+    /**
+     * a new frame evicts the oldest queued one while the queue is full
+     */
+    public static final int DROP_OLDEST = 1;
+
+    public static final int MAX_DEPTH = 64;
+    public static final int DEFAULT_DEPTH = 4;
+
+    static {
+        // a pipeline can be built before any camera is opened
+        System.loadLibrary("camera");
+    }
+
+    final int mType;
+    long mNativePtr;
+    private Pipeline mNext;
+    // fed by a camera or another pipeline, a pipeline has one upstream at most
+    private boolean mAttached;
+
+    Pipeline(final int type, final int depth, final int dropPolicy, final int pixelFormat) {
+        mType = type;
+        mNativePtr = nativeCreate(type, depth, dropPolicy, pixelFormat);
+        if (mNativePtr == 0) {
+            throw new IllegalArgumentException("invalid depth/drop policy/pixel format");
+        }
+    }
+
+    public synchronized boolean start() {
+        if (mNativePtr != 0) return nativeStart(mNativePtr, mType) == UVCCamera.ACTION_SUCCESS;
+        return false;
+    }
+
+    public synchronized boolean stop() {
+        if (mNativePtr != 0) return nativeStop(mNativePtr, mType) == UVCCamera.ACTION_SUCCESS;
+        return false;
+    }
+
+    /**
+     * chain the frames this pipeline handled to next
+     *
+     * @param next null to unlink, when this returns the previous one holds no frame of this pipeline anymore
+     * @return false if next is fed by a camera or another pipeline already, or one of them was released
+     */
+    public synchronized boolean setPipeline(final Pipeline next) {
+        if (mNativePtr == 0 || next == this) return false;
+        if (next != null && next != mNext && !next.attach()) return false;
+        final boolean result = next != null
+                ? nativeSetPipeline(mNativePtr, mType, next.mNativePtr, next.mType) == UVCCamera.ACTION_SUCCESS
+                : nativeSetPipeline(mNativePtr, mType, 0, 0) == UVCCamera.ACTION_SUCCESS;
+        if (result) {
+            if (mNext != null && mNext != next) mNext.detach();
+            mNext = next;
+        } else if (next != null && next != mNext) {
+            next.detach();
+        }
+        return result;
+    }
+
+    /**
+     * @return frames dropped because the queue of this pipeline was full
+     */
+    public synchronized long getDropped() {
+        if (mNativePtr != 0) return nativeGetDropped(mNativePtr, mType);
+        return 0;
+    }
+
+    /**
+     * stop and free this pipeline, it has to be detached from its camera or upstream pipeline first
+     *
+     * @throws IllegalStateException if this pipeline is still fed
+     */
+    public synchronized void release() {
+        if (mNativePtr == 0) return;
+        if (mAttached) throw new IllegalStateException("pipeline is still attached");
+        setPipeline(null);
+        nativeDestroy(mNativePtr, mType);
+        mNativePtr = 0;
+    }
+
+    synchronized boolean attach() {
+        if (mNativePtr == 0 || mAttached) return false;
+        mAttached = true;
+        return true;
+    }
+
+    synchronized void detach() {
+        mAttached = false;
+    }
+
+    private static native long nativeCreate(final int type, final int depth, final int dropPolicy, final int pixelFormat);
+
+    private static native int nativeDestroy(final long id_pipeline, final int type);
+
+    private static native int nativeStart(final long id_pipeline, final int type);
+
+    private static native int nativeStop(final long id_pipeline, final int type);
+
+    private static native int nativeSetPipeline(final long id_pipeline, final int type, final long id_next, final int nextType);
+
+    private static native long nativeGetDropped(final long id_pipeline, final int type);
+}
@@ -0,0 +1,31 @@
+package com.hsj.camera;
+
+import android.view.Surface;
+
+/**
+ * Draws frames to a Surface on its own thread, RGBX or RGB565 depending on the format of the Surface.
+ */
+public final class PreviewPipeline extends Pipeline {
+
+    public PreviewPipeline() {
+        this(DEFAULT_DEPTH, DROP_OLDEST);
+    }
+
+    /**
+     * @param depth      frames queued, 1..{@link #MAX_DEPTH}
+     * @param dropPolicy {@link #DROP_NEWEST} or {@link #DROP_OLDEST}
+     */
+    public PreviewPipeline(final int depth, final int dropPolicy) {
+        super(TYPE_PREVIEW, depth, dropPolicy, 0);
+    }
+
+    /**
+     * @param surface null to stop drawing
+     */
+    public synchronized boolean setSurface(final Surface surface) {
+        if (mNativePtr != 0) return nativeSetSurface(mNativePtr, surface) == UVCCamera.ACTION_SUCCESS;
+        return false;
+    }
+
+    private static native int nativeSetSurface(final long id_pipeline, final Surface surface);
+}
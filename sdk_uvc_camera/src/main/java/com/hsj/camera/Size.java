@@ -1,11 +1,19 @@
 package com.hsj.camera;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
 
 import android.os.Parcel;
 import android.os.Parcelable;
 
 public final class Size implements Parcelable {
+    // frame rates listed at most for a continuous interval range
+    private static final int MAX_CONTINUOUS_RATES = 64;
+    // always listed when a wide continuous range covers them, the rates apps ask for
+    private static final float[] COMMON_RATES = {240, 120, 100, 90, 60, 50, 30, 25, 24, 20, 15, 10, 5};
+
     /**
      * native側のuvc_raw_format_tの値, こっちは主にlibuvc用
      * 9999 is still image
@@ -208,6 +216,45 @@ public final class Size implements Parcelable {
         }
     }
 
+    /**
+     * frame rates of a continuous range too wide to list every 1fps, highest first:
+     * both ends, the common rates within and whole rates in between, evenly spread on a log scale
+     *
+     * @return at most MAX_CONTINUOUS_RATES rates
+     */
+    private static float[] spreadFrameRates(final float min_fps, final float max_fps) {
+        final List<Float> rates = new ArrayList<>(MAX_CONTINUOUS_RATES);
+        addFrameRate(rates, max_fps);
+        addFrameRate(rates, min_fps);
+        for (final float rate : COMMON_RATES) {
+            if ((rate > min_fps) && (rate < max_fps)) {
+                addFrameRate(rates, rate);
+            }
+        }
+        final int fill = MAX_CONTINUOUS_RATES - rates.size();
+        final double range = Math.log(max_fps / min_fps);
+        for (int i = 1; i <= fill; i++) {
+            final double rate = max_fps * Math.exp(-range * i / (fill + 1));
+            addFrameRate(rates, rate >= 1.0 ? (float) Math.rint(rate) : (float) rate);
+        }
+        Collections.sort(rates, Collections.<Float>reverseOrder());
+        final int n = rates.size();
+        final float[] result = new float[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = rates.get(i);
+        }
+        return result;
+    }
+
+    // add rate unless a close one is listed already, e.g. 30 next to an end of 30.00003
+    private static void addFrameRate(final List<Float> rates, final float rate) {
+        final float tolerance = Math.min(0.5f, rate / 20);
+        for (final float r : rates) {
+            if (Math.abs(r - rate) < tolerance) return;
+        }
+        rates.add(rate);
+    }
+
     public void updateFrameRate() {
         final int n = frameIntervalType;
         if (n > 0) {
@@ -220,26 +267,25 @@ public final class Size implements Parcelable {
                 final int min = Math.min(intervals[0], intervals[1]);
                 final int max = Math.max(intervals[0], intervals[1]);
                 final int step = intervals[2];
-                if (step > 0) {
-                    int m = 0;
-                    for (int i = min; i <= max; i += step) {
-                        m++;
-                    }
-                    fps = new float[m];
-                    m = 0;
-                    for (int i = min; i <= max; i += step) {
-                        final float _fps = fps[m++] = 10000000.0f / i;
+                final int steps = step > 0 ? (max - min) / step + 1 : 0;
+                if ((steps > 0) && (steps <= MAX_CONTINUOUS_RATES)) {
+                    fps = new float[steps];
+                    for (int i = 0; i < steps; i++) {
+                        fps[i] = 10000000.0f / (min + i * step);
                     }
                 } else {
+                    // no or too fine granularity (often 1 = 100ns)
                     final float max_fps = 10000000.0f / min;
-                    int m = 0;
-                    for (float fps = 10000000.0f / min; fps <= max_fps; fps += 1.0f) {
-                        m++;
-                    }
-                    fps = new float[m];
-                    m = 0;
-                    for (float fps = 10000000.0f / min; fps <= max_fps; fps += 1.0f) {
-                        this.fps[m++] = fps;
+                    final float min_fps = 10000000.0f / max;
+                    final int m = (int) (max_fps - min_fps) + 1;
+                    if (m <= MAX_CONTINUOUS_RATES) {
+                        // every 1fps from the highest rate down
+                        fps = new float[m];
+                        for (int i = 0; i < m; i++) {
+                            fps[i] = max_fps - i;
+                        }
+                    } else {
+                        fps = spreadFrameRates(min_fps, max_fps);
                     }
                 }
             } catch (final Exception e) {
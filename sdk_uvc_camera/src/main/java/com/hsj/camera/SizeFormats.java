@@ -0,0 +1,58 @@
+package com.hsj.camera;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Walks the int array of UVCCamera#nativeGetFormats, see Parameters.h for the layout.
+ * No native calls, so it runs in local unit tests.
+ */
+final class SizeFormats {
+    private static final String TAG = "SizeFormats";
+    // layout of nativeGetFormats, FORMATS_VERSION in Parameters.h
+    static final int VERSION = 1;
+
+    private SizeFormats() {
+    }
+
+    /**
+     * @param type   format type, 4: uncompressed, 6: MJPEG, -1: all
+     * @param sizes  receives the frame sizes of the formats of type, null to skip
+     * @param stills receives their still image sizes, null to skip
+     */
+    static void parse(final int type, final int[] formats,
+                      final List<Size> sizes, final List<Size> stills) {
+        if (formats == null || formats.length < 2 || formats[0] != VERSION) return;
+        try {
+            int ix = 2;
+            for (int i = 0, formatNums = formats[1]; i < formatNums; i++) {
+                final int formatType = formats[ix];
+                final boolean match = (formatType == type) || (type == -1);
+                final int frameNums = formats[ix + 4];
+                ix += 5;
+                for (int j = 0; j < frameNums; j++) {
+                    final int width = formats[ix + 2];
+                    final int height = formats[ix + 3];
+                    final int intervalType = formats[ix + 5];
+                    ix += 6;
+                    if (match && sizes != null) {
+                        sizes.add(intervalType > 0
+                                ? new Size(formatType, 0, j, width, height, Arrays.copyOfRange(formats, ix, ix + intervalType))
+                                : new Size(formatType, 0, j, width, height, formats[ix], formats[ix + 1], formats[ix + 2]));
+                    }
+                    ix += intervalType > 0 ? intervalType : 3;
+                }
+                final int stillNums = formats[ix++];
+                for (int j = 0; j < stillNums; j++, ix += 2) {
+                    if (match && stills != null) {
+                        stills.add(new Size(UVCCamera.SIZE_TYPE_STILL_IMAGE, formatType, j, formats[ix], formats[ix + 1]));
+                    }
+                }
+                // compression patterns of the still images
+                ix += 1 + formats[ix];
+            }
+        } catch (final ArrayIndexOutOfBoundsException e) {
+            Logger.w(TAG, e);
+        }
+    }
+}
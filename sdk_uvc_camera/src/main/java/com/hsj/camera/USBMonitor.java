@@ -5,6 +5,7 @@ import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
@@ -36,6 +37,31 @@ public final class USBMonitor {
      */
     private final ConcurrentHashMap<UsbDevice, UsbControlBlock> mCtrlBlocks = new ConcurrentHashMap<>();
     private final SparseArray<WeakReference<UsbDevice>> mHasPermissions = new SparseArray<>();
+    /**
+     * devices that passed the filters and were reported by onAttach
+     */
+    private final AttachedDevices<UsbDevice> mAttachedDevices = new AttachedDevices<>();
+    /**
+     * {@link #getHotplugStats()} layout
+     */
+    private static final int HOTPLUG_ATTACH_BROADCAST = 0;
+    private static final int HOTPLUG_ATTACH_POLL = 1;
+    private static final int HOTPLUG_DETACH_POLL = 2;
+    private static final int HOTPLUG_CONNECTS = 3;
+    private static final int HOTPLUG_CONNECT_LAST_NS = 4;
+    private static final int HOTPLUG_CONNECT_MAX_NS = 5;
+    private final long[] mHotplugStats = new long[6];
+    /**
+     * poll interval until the first USB_DEVICE_ATTACHED broadcast arrived
+     */
+    public static final long POLL_INTERVAL_FALLBACK_MS = 2000;
+    /**
+     * poll interval once broadcasts are known to arrive, only to catch a missed one
+     */
+    public static final long POLL_INTERVAL_EVENT_DRIVEN_MS = 30000;
+    private volatile long mPollIntervalMs = POLL_INTERVAL_FALLBACK_MS;
+    private volatile boolean mPollIntervalFixed;
+    private volatile boolean mAttachBroadcastSeen;
 
     private final WeakReference<Context> mWeakContext;
     private final UsbManager mUsbManager;
@@ -151,12 +177,13 @@ public final class USBMonitor {
             if (context != null) {
                 mPermissionIntent = PendingIntent.getBroadcast(context, 0, new Intent(ACTION_USB_PERMISSION), 0);
                 final IntentFilter filter = new IntentFilter(ACTION_USB_PERMISSION);
-                // ACTION_USB_DEVICE_ATTACHED never comes on some devices so it should not be added here
+                // ACTION_USB_DEVICE_ATTACHED never comes on some devices, mDeviceCheckRunnable keeps polling for them
+                filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
                 filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
                 context.registerReceiver(mUsbReceiver, filter);
             }
-            // start connection check
-            mDeviceCounts = 0;
+            // start connection check, reports the devices already attached
+            clearAttachedDevices();
             // 1000ms -> 100ms
             mAsyncHandler.postDelayed(mDeviceCheckRunnable, 100);
         }
@@ -169,10 +196,10 @@ public final class USBMonitor {
      */
     public synchronized void unregister() throws IllegalStateException {
         // Removed Runnable for connection check
-        mDeviceCounts = 0;
         if (!destroyed) {
             mAsyncHandler.removeCallbacks(mDeviceCheckRunnable);
         }
+        clearAttachedDevices();
         if (mPermissionIntent != null) {
             final Context context = mWeakContext.get();
             try {
@@ -190,6 +217,38 @@ public final class USBMonitor {
         return !destroyed && (mPermissionIntent != null);
     }
 
+    /**
+     * Interval of the device list poll that catches the devices whose USB_DEVICE_ATTACHED
+     * broadcast never arrives. Without a call it is {@link #POLL_INTERVAL_FALLBACK_MS} until the first
+     * broadcast arrived and {@link #POLL_INTERVAL_EVENT_DRIVEN_MS} after that.
+     *
+     * @param intervalMs poll interval, 0 to rely on the broadcasts only, negative to restore the default
+     */
+    public void setPollInterval(final long intervalMs) {
+        if (destroyed) throw new IllegalStateException("already destroyed");
+        mPollIntervalFixed = intervalMs >= 0;
+        mPollIntervalMs = intervalMs >= 0 ? intervalMs
+                : (mAttachBroadcastSeen ? POLL_INTERVAL_EVENT_DRIVEN_MS : POLL_INTERVAL_FALLBACK_MS);
+        if (isRegistered()) {
+            // apply now instead of after the pending interval
+            mAsyncHandler.removeCallbacks(mDeviceCheckRunnable);
+            mAsyncHandler.post(mDeviceCheckRunnable);
+        }
+    }
+
+    /**
+     * Hotplug counters since this USBMonitor was created, the attach time is when the broadcast or the
+     * poll saw the device, a poll may see it up to one interval late
+     *
+     * @return {attaches seen by USB_DEVICE_ATTACHED, attaches found by the poll, detaches found by the poll,
+     * onConnect calls of attached devices, last attach -> onConnect ns, max attach -> onConnect ns}
+     */
+    public long[] getHotplugStats() {
+        synchronized (mHotplugStats) {
+            return mHotplugStats.clone();
+        }
+    }
+
     /**
      * set device filter
      *
@@ -293,25 +352,29 @@ public final class USBMonitor {
         final HashMap<String, UsbDevice> deviceList = getDeviceList(mUsbManager);
         final List<UsbDevice> result = new ArrayList<>();
         if (deviceList != null) {
-            if ((filters == null) || filters.isEmpty()) {
-                result.addAll(deviceList.values());
-            } else {
-                for (final UsbDevice device : deviceList.values()) {
-                    for (final DeviceFilter filter : filters) {
-                        if ((filter != null) && filter.matches(device)) {
-                            // when filter matches
-                            if (!filter.isExclude) {
-                                result.add(device);
-                            }
-                            break;
-                        }
-                    }
+            for (final UsbDevice device : deviceList.values()) {
+                if (matches(filters, device)) {
+                    result.add(device);
                 }
             }
         }
         return result;
     }
 
+    /**
+     * whether the device passes the filters, the first matching filter decides
+     */
+    private static boolean matches(final List<DeviceFilter> filters, final UsbDevice device) {
+        if ((filters == null) || filters.isEmpty()) return true;
+        for (final DeviceFilter filter : filters) {
+            if ((filter != null) && filter.matches(device)) {
+                // when filter matches
+                return !filter.isExclude;
+            }
+        }
+        return false;
+    }
+
     /**
      * return device list, return empty list if no device matched
      *
@@ -503,61 +566,138 @@ public final class USBMonitor {
                 }
             } else if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(action)) {
                 final UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
-                updatePermission(device, hasPermission(device));
-                processAttach(device);
+                if ((device != null) && matches(mDeviceFilters, device)) {
+                    final long attachNanos = System.nanoTime();
+                    if (!mAttachBroadcastSeen) {
+                        // broadcasts arrive on this device, the poll is only a safety net now
+                        mAttachBroadcastSeen = true;
+                        if (!mPollIntervalFixed) {
+                            mPollIntervalMs = POLL_INTERVAL_EVENT_DRIVEN_MS;
+                        }
+                    }
+                    if (trackAttached(device, attachNanos)) {
+                        countHotplug(HOTPLUG_ATTACH_BROADCAST);
+                        updatePermission(device, hasPermission(device));
+                        processAttach(device);
+                    }
+                }
             } else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(action)) {
                 // when device removed
                 final UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
                 if (device != null) {
+                    final boolean tracked = untrackAttached(device);
                     UsbControlBlock ctrlBlock = mCtrlBlocks.remove(device);
                     if (ctrlBlock != null) {
                         // cleanup
                         ctrlBlock.close();
                     }
-                    mDeviceCounts = 0;
-                    processDetach(device);
+                    // the poll may have reported the detach already
+                    if (tracked || (ctrlBlock != null)) {
+                        processDetach(device);
+                    }
                 }
             }
         }
     };
 
     /**
-     * number of connected & detected devices
-     */
-    private volatile int mDeviceCounts = 0;
-    /**
-     * periodically check connected devices and if it changed, call onAttach
+     * periodically diff the connected devices against the tracked ones, for the attach and detach
+     * broadcasts that did not arrive and for permissions granted outside of requestPermission
      */
     private final Runnable mDeviceCheckRunnable = new Runnable() {
         @Override
         public void run() {
             if (destroyed) return;
             final List<UsbDevice> devices = getDeviceList();
-            final int n = devices.size();
-            final int hasPermissionCounts;
-            final int m;
-            synchronized (mHasPermissions) {
-                hasPermissionCounts = mHasPermissions.size();
-                mHasPermissions.clear();
-                for (final UsbDevice device : devices) {
-                    hasPermission(device);
+            final long nanos = System.nanoTime();
+            final List<UsbDevice> attached = new ArrayList<>();
+            final List<UsbDevice> detached = new ArrayList<>();
+            final List<UsbDevice> kept = new ArrayList<>();
+            final LinkedHashMap<Integer, UsbDevice> current = new LinkedHashMap<>(devices.size());
+            for (final UsbDevice device : devices) {
+                current.put(device.getDeviceId(), device);
+            }
+            mAttachedDevices.update(current, nanos, attached, detached, kept);
+            for (final UsbDevice device : kept) {
+                if (!hasPermissionCached(device) && hasPermission(device)) {
+                    // granted meanwhile, report again like a new device
+                    attached.add(device);
                 }
-                m = mHasPermissions.size();
             }
-            if ((n > mDeviceCounts) || (m > hasPermissionCounts)) {
-                mDeviceCounts = n;
-                if (mOnDeviceConnectListener != null) {
-                    for (int i = 0; i < n; i++) {
-                        final UsbDevice device = devices.get(i);
-                        mAsyncHandler.post(() -> mOnDeviceConnectListener.onAttach(device));
-                    }
+            for (final UsbDevice device : detached) {
+                countHotplug(HOTPLUG_DETACH_POLL);
+                updatePermission(device, false);
+                final UsbControlBlock ctrlBlock = mCtrlBlocks.remove(device);
+                if (ctrlBlock != null) {
+                    ctrlBlock.close();
                 }
+                processDetach(device);
+            }
+            for (final UsbDevice device : attached) {
+                countHotplug(HOTPLUG_ATTACH_POLL);
+                hasPermission(device);
+                processAttach(device);
+            }
+            final long interval = mPollIntervalMs;
+            if (interval > 0) {
+                mAsyncHandler.postDelayed(this, interval);
             }
-            // confirm every 2 seconds
-            mAsyncHandler.postDelayed(this, 2000);
         }
     };
 
+    /**
+     * start tracking a device reported by USB_DEVICE_ATTACHED
+     *
+     * @return false if it is tracked already, e.g. the poll was first
+     */
+    private boolean trackAttached(final UsbDevice device, final long attachNanos) {
+        return mAttachedDevices.attach(device.getDeviceId(), device, attachNanos);
+    }
+
+    /**
+     * stop tracking a device reported by USB_DEVICE_DETACHED
+     *
+     * @return false if it was not tracked, e.g. the poll was first
+     */
+    private boolean untrackAttached(final UsbDevice device) {
+        final boolean tracked = mAttachedDevices.detach(device.getDeviceId());
+        updatePermission(device, false);
+        return tracked;
+    }
+
+    private void clearAttachedDevices() {
+        mAttachedDevices.clear();
+    }
+
+    private boolean hasPermissionCached(final UsbDevice device) {
+        synchronized (mHasPermissions) {
+            return mHasPermissions.get(getDeviceKey(device, true)) != null;
+        }
+    }
+
+    private void countHotplug(final int index) {
+        synchronized (mHotplugStats) {
+            mHotplugStats[index]++;
+        }
+    }
+
+    /**
+     * record attach -> onConnect for the first connect after the attach
+     */
+    private void recordConnectLatency(final UsbDevice device, final long connectNanos) {
+        final long attachNanos = mAttachedDevices.takeAttachNanos(device.getDeviceId());
+        if (attachNanos < 0) return;
+        final long latency = connectNanos - attachNanos;
+        synchronized (mHotplugStats) {
+            mHotplugStats[HOTPLUG_CONNECTS]++;
+            mHotplugStats[HOTPLUG_CONNECT_LAST_NS] = latency;
+            if (latency > mHotplugStats[HOTPLUG_CONNECT_MAX_NS]) {
+                mHotplugStats[HOTPLUG_CONNECT_MAX_NS] = latency;
+            }
+        }
+        Logger.v(TAG, "attach->onConnect " + (latency / 1000000) + "ms:" + device.getDeviceName());
+    }
+
     private void processAttach(final UsbDevice device) {
         if (destroyed) return;
         Logger.v(TAG, ">>processAttach");
@@ -586,6 +726,7 @@ public final class USBMonitor {
             } else {
                 createNew = false;
             }
+            recordConnectLatency(device, System.nanoTime());
             if (mOnDeviceConnectListener != null) {
                 mOnDeviceConnectListener.onConnect(device, ctrlBlock, createNew);
             }
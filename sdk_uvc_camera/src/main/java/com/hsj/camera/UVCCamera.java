@@ -1,6 +1,12 @@
 package com.hsj.camera;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.json.JSONArray;
@@ -33,6 +39,8 @@ public class UVCCamera {
 
     private static final String TAG = "UVCCamera";
     private static final String DEFAULT_USBFS = "/dev/bus/usb";
+    // largest stream cache file read back, a valid one is a few KB
+    private static final int MAX_STREAM_CACHE_BYTES = 64 * 1024;
     //Preview width and height
     public static final int DEFAULT_PREVIEW_WIDTH = 640;
     public static final int DEFAULT_PREVIEW_HEIGHT = 480;
@@ -43,6 +51,8 @@ public class UVCCamera {
     //Frame Format
     public static final int FRAME_FORMAT_YUYV = 0;
     public static final int FRAME_FORMAT_MJPEG = 1;
+    //Size#type of still image sizes, Size#frame_type is then the format type
+    public static final int SIZE_TYPE_STILL_IMAGE = 9999;
     //Pixel Format
     public static final int PIXEL_FORMAT_RAW = 0;
     public static final int PIXEL_FORMAT_YUV = 1;
@@ -50,6 +60,7 @@ public class UVCCamera {
     public static final int PIXEL_FORMAT_RGBX = 3;
     public static final int PIXEL_FORMAT_NV12 = 4;             //YUV420P
     public static final int PIXEL_FORMAT_NV21 = 5;             //YUV420SP
+    public static final int PIXEL_FORMAT_I420 = 6;             //YUV420P, Y then U then V plane
 
 //--------------------------------------------------------------------------------------------------
 
@@ -93,6 +104,9 @@ public class UVCCamera {
     public static final int PU_AVIDEO_LOCK = 0x80020000;        // D17: Analog Video Lock Status
     public static final int PU_CONTRAST_AUTO = 0x80040000;      // D18: Contrast, Auto
 
+    // value of a control that could not be read, see getControls/getControlLimits
+    public static final int CONTROL_VALUE_UNAVAILABLE = Integer.MIN_VALUE;
+
     // uvc_status_class from libuvc.h
     public static final int STATUS_CLASS_CONTROL = 0x10;
     public static final int STATUS_CLASS_CONTROL_CAMERA = 0x11;
@@ -125,17 +139,40 @@ public class UVCCamera {
         int FLIP_V = -1;
     }
 
+    //Which frame is dropped when the frame queue is full
+    public @interface FRAME_DROP {
+        int DROP_NEWEST = 0;
+        int DROP_OLDEST = 1;
+    }
+
+    //How an isochronous stream chooses its USB altsetting (bandwidth)
+    public @interface ALT_POLICY {
+        //smallest altsetting that fits the negotiated payload size * bandwidth, else the largest
+        int ALT_FIT = 0;
+        //always the largest altsetting
+        int ALT_MAX = 1;
+        //start like ALT_FIT, step up on packet errors and down while packets stay short
+        int ALT_ADAPTIVE = 2;
+    }
+
 //--------------------------------------------------------------------------------------------------
 
+    private static volatile File sStreamCacheDir;
     private USBMonitor.UsbControlBlock mCtrlBlock;
+    private final List<FrameConsumer> mFrameConsumers = new ArrayList<>();
+    private Pipeline mPipeline;
     //Feature flags supported by camera controls
     protected long mControlSupports;
     //Function flags supported by the processing unit
     protected long mProcSupports;
+    // CTRL_XXX / PU_XXX bits whose limits were copied into the fields below since open
+    private int mCtrlLimitsLoaded, mProcLimitsLoaded;
     protected int mCurrentFrameFormat = FRAME_FORMAT_MJPEG;
     protected int mCurrentWidth = DEFAULT_PREVIEW_WIDTH, mCurrentHeight = DEFAULT_PREVIEW_HEIGHT;
     protected float mCurrentBandwidthFactor = DEFAULT_BANDWIDTH;
     protected String mSupportedSize;
+    // formats, frame sizes, intervals and still sizes as returned by nativeGetFormats
+    protected int[] mFormats;
     protected List<Size> mCurrentSizeList;
     // these fields from here are accessed from native code and do not change name and remove
     protected long mNativePtr;
@@ -193,6 +230,32 @@ public class UVCCamera {
         mSupportedSize = null;
     }
 
+    /**
+     * Create a camera that shares the USB event thread and the MJPEG decode pool of the group,
+     * destroy it before the group
+     *
+     * @param group {@link UVCCameraGroup} not destroyed yet
+     */
+    public UVCCamera(UVCCameraGroup group) {
+        this();
+        if (group.mNativePtr == 0 || nativeSetGroup(mNativePtr, group.mNativePtr) != ACTION_SUCCESS) {
+            destroy();
+            throw new IllegalStateException("could not join the camera group");
+        }
+    }
+
+    /**
+     * Directory to keep what each camera answered at open, e.g. Context#getCacheDir
+     * the next open of the same camera probes the stream it used before instead of negotiating from scratch
+     * and #getSupportedSize returns the cached string instead of walking the descriptors again;
+     * a file written for other firmware is ignored
+     *
+     * @param dir null to disable
+     */
+    public static void setStreamCacheDir(final File dir) {
+        sStreamCacheDir = dir;
+    }
+
     /**
      * Connect to a UVC camera
      * USB permission is necessary before this method is called
@@ -212,13 +275,50 @@ public class UVCCamera {
             Logger.w(TAG, e);
             throw new UnsupportedOperationException("open failed:result=-1");
         }
-        if (mNativePtr != 0 && TextUtils.isEmpty(mSupportedSize)) {
-            mSupportedSize = nativeGetSupportedSize(mNativePtr);
+        loadStreamCache();
+        if (mNativePtr != 0 && mFormats == null) {
+            mFormats = nativeGetFormats(mNativePtr);
         }
         nativeSetPreviewSize(mNativePtr,
                 DEFAULT_PREVIEW_WIDTH, DEFAULT_PREVIEW_HEIGHT,
                 DEFAULT_PREVIEW_MIN_FPS, DEFAULT_PREVIEW_MAX_FPS,
                 DEFAULT_PREVIEW_MODE, DEFAULT_BANDWIDTH);
+        // the limits are read on first use of each control, see #updateLimits
+    }
+
+    /**
+     * Connect to a synthetic frame source instead of a UVC camera, for tests and benchmarks without hardware
+     * frames carry moving color bars and their frame number, controls are not available
+     *
+     * @param width       frame width
+     * @param height      frame height
+     * @param frameFormat {@link #FRAME_FORMAT_YUYV} or {@link #FRAME_FORMAT_MJPEG}
+     * @param fps         frames per second
+     */
+    public synchronized void openSynthetic(int width, int height, int frameFormat, int fps) throws UnsupportedOperationException {
+        final int result = mNativePtr != 0
+                ? nativeConnectSynthetic(mNativePtr, frameFormat, width, height, fps) : -1;
+        if (result != ACTION_SUCCESS) {
+            throw new UnsupportedOperationException("openSynthetic failed:result=" + result);
+        }
+        mCurrentFrameFormat = frameFormat;
+        mCurrentWidth = width;
+        mCurrentHeight = height;
+    }
+
+    /**
+     * Connect to a recorded UVC stream instead of a UVC camera, frames are fed through the same preview path
+     *
+     * @param path     file written by {@link #startRecording}
+     * @param realtime pace frames by their recorded timestamps, or deliver them as fast as possible
+     * @param loop     restart from the first frame at the end of the file
+     */
+    public synchronized void openReplay(String path, boolean realtime, boolean loop) throws UnsupportedOperationException {
+        final int result = mNativePtr != 0
+                ? nativeConnectReplay(mNativePtr, path, realtime, loop) : -1;
+        if (result != ACTION_SUCCESS) {
+            throw new UnsupportedOperationException("openReplay failed:result=" + result);
+        }
     }
 
     /**
@@ -243,13 +343,30 @@ public class UVCCamera {
         }
     }
 
+    /**
+     * set callback for the results of {@link #setControlAsync(int, int)} and {@link #setPanTiltAsync(int, int)},
+     * call after open
+     *
+     * @param callback null to remove
+     */
+    public void setControlCallback(final IControlCallback callback) {
+        if (mNativePtr != 0) {
+            nativeSetControlCallback(mNativePtr, callback);
+        }
+    }
+
     /**
      * Must call stopPreview() at before
      * Close and release UVC camera
      */
     private synchronized void close() {
         //stopPreview();
+        for (final FrameConsumer consumer : new ArrayList<>(mFrameConsumers)) {
+            consumer.close();
+        }
+        setPipeline(null);
         if (mNativePtr != 0) {
+            saveStreamCache();
             nativeRelease(mNativePtr);
             //Don't set 0
             //mNativePtr = 0;	
@@ -259,13 +376,64 @@ public class UVCCamera {
             mCtrlBlock = null;
         }
         mControlSupports = mProcSupports = 0;
+        mCtrlLimitsLoaded = mProcLimitsLoaded = 0;
         mCurrentFrameFormat = -1;
         mCurrentBandwidthFactor = 0;
         mSupportedSize = null;
+        mFormats = null;
         mCurrentSizeList = null;
         Logger.v(TAG, "close:finished");
     }
 
+    private File getStreamCacheFile() {
+        final File dir = sStreamCacheDir;
+        if (dir == null || mCtrlBlock == null) return null;
+        return new File(dir, mCtrlBlock.getVendorId() + "_" + mCtrlBlock.getProductId()
+                + "_" + Integer.toHexString(mCtrlBlock.getDeviceKeyWithSerial()) + ".cache");
+    }
+
+    private void loadStreamCache() {
+        final File file = getStreamCacheFile();
+        if (mNativePtr == 0 || file == null || !file.isFile()) return;
+        final long length = file.length();
+        if (length <= 0 || length > MAX_STREAM_CACHE_BYTES) return;
+        final byte[] blob = new byte[(int) length];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int offset = 0;
+            while (offset < blob.length) {
+                final int n = in.read(blob, offset, blob.length - offset);
+                if (n < 0) return;
+                offset += n;
+            }
+        } catch (IOException e) {
+            Logger.w(TAG, e);
+            return;
+        }
+        if (nativeSetStreamCache(mNativePtr, blob) != ACTION_SUCCESS) {
+            // written for other descriptors or by another build, rewritten at close
+            Logger.i(TAG, "stream cache ignored:" + file.getName());
+        }
+    }
+
+    private void saveStreamCache() {
+        final File file = getStreamCacheFile();
+        if (file == null) return;
+        final byte[] blob = nativeGetStreamCache(mNativePtr);
+        if (blob == null) return;
+        // replaced as a whole, a half written file must not survive a crash
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(blob);
+        } catch (IOException e) {
+            Logger.w(TAG, e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+        }
+    }
+
     public UsbDevice getDevice() {
         return mCtrlBlock != null ? mCtrlBlock.getDevice() : null;
     }
@@ -278,6 +446,12 @@ public class UVCCamera {
         return mCtrlBlock;
     }
 
+    /**
+     * supported formats and sizes as JSON, built on first call
+     * {@link #getSupportedSizeList()} needs no JSON
+     *
+     * @return String
+     */
     public synchronized String getSupportedSize() {
         return !TextUtils.isEmpty(mSupportedSize) ?
                 mSupportedSize : (mSupportedSize = nativeGetSupportedSize(mNativePtr));
@@ -323,6 +497,207 @@ public class UVCCamera {
         return false;
     }
 
+    /**
+     * Format of the preview Surface buffers, frames are converted straight into them,
+     * must be called before {@link UVCCamera#startPreview}
+     *
+     * @param format {@link android.graphics.PixelFormat#RGBA_8888}, {@link android.graphics.PixelFormat#RGBX_8888},
+     *               {@link android.graphics.PixelFormat#RGB_565} or {@link android.graphics.ImageFormat#YV12}
+     * @return true is success
+     */
+    public synchronized boolean setPreviewFormat(int format) {
+        if (mNativePtr != 0) {
+            return nativeSetPreviewFormat(mNativePtr, format) == ACTION_SUCCESS;
+        }
+        return false;
+    }
+
+    /**
+     * Hand the native receive buffer to the preview instead of copying every frame,
+     * must be called before {@link UVCCamera#startPreview}
+     *
+     * @param zeroCopy true to enable zero copy frame delivery
+     * @return true is success
+     */
+    public synchronized boolean setZeroCopy(boolean zeroCopy) {
+        if (mNativePtr != 0) {
+            return nativeSetZeroCopy(mNativePtr, zeroCopy) == ACTION_SUCCESS;
+        }
+        return false;
+    }
+
+    /**
+     * Set depth of the queue between the stream and the preview thread,
+     * must be called before {@link UVCCamera#startPreview}
+     *
+     * @param depth  1~64, default is 4
+     * @param policy {@link FRAME_DROP}
+     * @return true is success
+     */
+    public synchronized boolean setFrameQueue(int depth, @FRAME_DROP int policy) {
+        if (mNativePtr != 0) {
+            return nativeSetFrameQueue(mNativePtr, depth, policy) == ACTION_SUCCESS;
+        }
+        return false;
+    }
+
+    /**
+     * Set number of threads decoding MJPEG frames concurrently, frames are still previewed
+     * and delivered in order, must be called before {@link UVCCamera#startPreview}
+     *
+     * @param workers 1~8, default is 1 (decode on the preview thread)
+     * @return true is success
+     */
+    public synchronized boolean setDecodeWorkers(int workers) {
+        if (mNativePtr != 0) {
+            return nativeSetDecodeWorkers(mNativePtr, workers) == ACTION_SUCCESS;
+        }
+        return false;
+    }
+
+    /**
+     * Average bytes copied per frame between libuvc and the preview since startPreview
+     *
+     * @return bytes per frame, 0 when zero copy is enabled
+     */
+    public synchronized long getCopiedBytesPerFrame() {
+        if (mNativePtr != 0) {
+            return nativeGetCopiedBytesPerFrame(mNativePtr);
+        }
+        return 0;
+    }
+
+    /**
+     * Native frame pool counters since startPreview
+     *
+     * @return {hit, miss, realloc, high water mark of frames in use}, null if camera is closed
+     */
+    public synchronized long[] getFramePoolStats() {
+        if (mNativePtr != 0) {
+            return nativeGetFramePoolStats(mNativePtr);
+        }
+        return null;
+    }
+
+    /**
+     * Where the last open and startPreview spent their time, in ns
+     *
+     * @return {connect, negotiation of setPreviewSize, negotiation of startPreview, stream on,
+     * startPreview -> first frame, startPreview -> first frame drawn,
+     * 0: full negotiation / 1: cached stream probed / 2: setPreviewSize's negotiation reused},
+     * 0 for what did not happen (yet), null if camera is closed
+     */
+    public synchronized long[] getStartupTimes() {
+        if (mNativePtr != 0) {
+            return nativeGetStartupTimes(mNativePtr);
+        }
+        return null;
+    }
+
+    /**
+     * Latency histograms and drop counters since startPreview, cheap enough to poll periodically
+     *
+     * @return new snapshot, null if camera is closed
+     */
+    public synchronized FrameStats getStats() {
+        final FrameStats stats = new FrameStats();
+        return getStats(stats) ? stats : null;
+    }
+
+    /**
+     * Latency histograms and drop counters since startPreview, without allocation
+     *
+     * @param stats snapshot to overwrite
+     * @return false if camera is closed
+     */
+    public synchronized boolean getStats(final FrameStats stats) {
+        if (mNativePtr != 0) {
+            return nativeGetStats(mNativePtr, stats.values) == ACTION_SUCCESS;
+        }
+        return false;
+    }
+
+    /**
+     * Record the raw frames received from the camera (payload, PTS, SCR, sequence) for {@link #openReplay}
+     * frames are written on a separate thread, when it falls behind frames are dropped from the recording only
+     *
+     * @param path file to create
+     * @return true if recording started
+     */
+    public synchronized boolean startRecording(String path) {
+        if (mNativePtr != 0) {
+            return nativeStartRecording(mNativePtr, path) == ACTION_SUCCESS;
+        }
+        return false;
+    }
+
+    /**
+     * Stop recording, the index for seeking is written at the end of the file
+     *
+     * @return true if the recording was completely written
+     */
+    public synchronized boolean stopRecording() {
+        if (mNativePtr != 0) {
+            return nativeStopRecording(mNativePtr) == ACTION_SUCCESS;
+        }
+        return false;
+    }
+
+    /**
+     * Counters of the running recording
+     *
+     * @return {frames written, frames dropped, bytes written}, null if not recording
+     */
+    public synchronized long[] getRecordingStats() {
+        if (mNativePtr != 0) {
+            return nativeGetRecordingStats(mNativePtr);
+        }
+        return null;
+    }
+
+    /**
+     * Set how the USB stream is transferred, must be called before {@link UVCCamera#startPreview}
+     *
+     * @param transfers          transfers in flight, 1~16, 0 is default (5)
+     * @param packetsPerTransfer upper limit of packets per isochronous transfer, 1~256, 0 is default (32)
+     * @param policy             {@link ALT_POLICY}, ALT_FIT honors the bandwidth of setPreviewSize
+     * @return true is success
+     */
+    public synchronized boolean setTransferPlan(int transfers, int packetsPerTransfer, @ALT_POLICY int policy) {
+        if (mNativePtr != 0) {
+            return nativeSetTransferPlan(mNativePtr, transfers, packetsPerTransfer, policy) == ACTION_SUCCESS;
+        }
+        return false;
+    }
+
+    /**
+     * USB transfer counters since startPreview
+     *
+     * @return {altsetting, bytes per packet, transfers, packets per transfer, packets, error packets,
+     * short packets, altsetting switches}, null if camera is closed
+     */
+    public synchronized long[] getTransferStats() {
+        if (mNativePtr != 0) {
+            return nativeGetTransferStats(mNativePtr);
+        }
+        return null;
+    }
+
+    /**
+     * Device clock to CLOCK_MONOTONIC estimate used for {@link FrameInfo#captureNanos}, fitted on the
+     * SCR of the received frames since startPreview
+     *
+     * @return {samples in the fit window, dwClockFrequency reported by the device (0 if none),
+     * fitted device clock Hz (0 until converged), USB arrival jitter removed by the fit in ns},
+     * null if camera is closed
+     */
+    public synchronized long[] getClockEstimate() {
+        if (mNativePtr != 0) {
+            return nativeGetClockEstimate(mNativePtr);
+        }
+        return null;
+    }
+
     /**
      * Set preview size and preview mode
      *
@@ -396,7 +771,31 @@ public class UVCCamera {
      * @return List<Size>
      */
     public List<Size> getSupportedSizeList() {
-        return getSupportedSize((mCurrentFrameFormat > 0) ? 6 : 4, mSupportedSize);
+        return getSupportedSize((mCurrentFrameFormat > 0) ? 6 : 4, mFormats);
+    }
+
+    /**
+     * still image sizes of the current frame format, type is {@link #SIZE_TYPE_STILL_IMAGE}
+     *
+     * @return List<Size>, empty if the format has no still image frame descriptor
+     */
+    public List<Size> getSupportedStillSizeList() {
+        final List<Size> result = new ArrayList<>();
+        SizeFormats.parse((mCurrentFrameFormat > 0) ? 6 : 4, mFormats, null, result);
+        return result;
+    }
+
+    /**
+     * get Supported Size with the frame intervals of each size
+     *
+     * @param type    format type, 4: uncompressed, 6: MJPEG, -1: all
+     * @param formats as returned by nativeGetFormats
+     * @return List<Size>
+     */
+    public static List<Size> getSupportedSize(final int type, final int[] formats) {
+        final List<Size> result = new ArrayList<>();
+        SizeFormats.parse(type, formats, result, null);
+        return result;
     }
 
     /**
@@ -500,6 +899,129 @@ public class UVCCamera {
         }
     }
 
+    /**
+     * set frame callback that also gets the sequence number and timestamps of each frame
+     *
+     * @param callback    {@link IFrameInfoCallback}
+     * @param pixelFormat
+     */
+    public void setFrameCallback(final IFrameInfoCallback callback, final int pixelFormat) {
+        if (mNativePtr != 0) {
+            nativeSetFrameInfoCallback(mNativePtr, callback, pixelFormat, callback != null ? new FrameInfo() : null);
+        }
+    }
+
+    /**
+     * Deliver frames to the frame callback in {@code count} reusable direct ByteBuffers instead of
+     * allocating a new one per frame. A buffer passed to onFrame stays valid and is not written to
+     * until it is handed back with {@link #releaseFrame(ByteBuffer)}, so it can be processed on
+     * another thread. While every buffer is held, frames are dropped and counted as
+     * {@link FrameStats#DROP_CALLBACK_BUFFERS_HELD}. Setting another frame callback frees the buffers,
+     * buffers still held become invalid then.
+     *
+     * @param count 1..8, 0 (default) for a new ByteBuffer per frame that is only valid during onFrame
+     * @return false if count is out of range or the camera is not open
+     */
+    public synchronized boolean setCallbackBuffers(final int count) {
+        if (mNativePtr != 0) {
+            return nativeSetCallbackBuffers(mNativePtr, count) == ACTION_SUCCESS;
+        }
+        return false;
+    }
+
+    /**
+     * Hand only a region of each frame to the frame callback, scaled to {@code outWidth x outHeight}.
+     * The region is cropped and scaled before the conversion to the pixel format of the callback,
+     * so the conversion and the ByteBuffer only cover the delivered pixels.
+     * Sizes are rounded down to even. Frames the region does not fit into are not delivered.
+     *
+     * @param x         left of the region
+     * @param y         top of the region
+     * @param width     width of the region, 0 together with height for the whole frame
+     * @param height    height of the region
+     * @param outWidth  width after scaling, 0 together with outHeight keeps the region size
+     * @param outHeight height after scaling
+     * @return false if the region is invalid or the camera is not open
+     */
+    public synchronized boolean setFrameCallbackRegion(final int x, final int y, final int width, final int height,
+                                                       final int outWidth, final int outHeight) {
+        if (mNativePtr != 0) {
+            return nativeSetFrameCallbackRegion(mNativePtr, x, y, width, height, outWidth, outHeight) == ACTION_SUCCESS;
+        }
+        return false;
+    }
+
+    /**
+     * hand a buffer of {@link #setCallbackBuffers(int)} back, can be called from any thread
+     * but not after {@link #destroy()}; not synchronized so onFrame can call it while stopPreview waits
+     *
+     * @param frame the ByteBuffer passed to onFrame
+     * @return false if the buffer is not (anymore) one of the callback buffers
+     */
+    public boolean releaseFrame(final ByteBuffer frame) {
+        final long nativePtr = mNativePtr;
+        if (nativePtr != 0 && frame != null) {
+            frame.clear();
+            return nativeReleaseFrame(nativePtr, frame) == ACTION_SUCCESS;
+        }
+        return false;
+    }
+
+    /**
+     * Add a consumer that leases frames, see {@link FrameConsumer}.
+     * Consumers run independently of the frame callback and of each other, e.g. a 30fps preview
+     * and a 5fps analysis, and are closed with the camera.
+     *
+     * @param pixelFormat PIXEL_FORMAT_XXX of the leased frames
+     * @param depth       frames queued for the consumer, 1..{@link FrameConsumer#MAX_DEPTH}
+     * @param policy      {@link FrameConsumer#POLICY_LATEST} or {@link FrameConsumer#POLICY_FIFO}
+     * @param maxFps      frames per second converted for the consumer at most, 0 for every frame
+     * @return null on invalid arguments, if the camera is not open or already has 8 consumers
+     */
+    public synchronized FrameConsumer addFrameConsumer(final int pixelFormat, final int depth,
+                                                       final int policy, final int maxFps) {
+        if (mNativePtr != 0) {
+            final long consumerPtr = nativeAddFrameConsumer(mNativePtr, pixelFormat, depth, policy, maxFps);
+            if (consumerPtr != 0) {
+                final FrameConsumer consumer = new FrameConsumer(this, consumerPtr, pixelFormat);
+                mFrameConsumers.add(consumer);
+                return consumer;
+            }
+        }
+        return null;
+    }
+
+    // called by FrameConsumer#close once no thread uses the consumer anymore, without its lock held
+    synchronized void removeFrameConsumer(final FrameConsumer consumer, final long consumerPtr) {
+        if (mFrameConsumers.remove(consumer) && mNativePtr != 0) {
+            nativeRemoveFrameConsumer(mNativePtr, consumerPtr);
+        }
+    }
+
+    /**
+     * Feed the frames of this camera to a pipeline graph, see {@link Pipeline}.
+     * The graph runs besides the frame callback, the capture surface and the frame consumers.
+     *
+     * @param pipeline started root of the graph, usually a {@link DistributePipeline}, null to stop feeding;
+     *                 when this returns the previous root holds no frame of this camera anymore
+     * @return false if the camera is not open or pipeline is fed by another camera or pipeline
+     */
+    public synchronized boolean setPipeline(final Pipeline pipeline) {
+        if (pipeline == mPipeline) return true;
+        if (mNativePtr == 0) return false;
+        if (pipeline != null && !pipeline.attach()) return false;
+        final boolean result = pipeline != null
+                ? nativeSetPipeline(mNativePtr, pipeline.mNativePtr, pipeline.mType) == ACTION_SUCCESS
+                : nativeSetPipeline(mNativePtr, 0, 0) == ACTION_SUCCESS;
+        if (result) {
+            if (mPipeline != null) mPipeline.detach();
+            mPipeline = pipeline;
+        } else if (pipeline != null) {
+            pipeline.detach();
+        }
+        return result;
+    }
+
     /**
      * start preview
      */
@@ -516,7 +1038,7 @@ public class UVCCamera {
         if (mCtrlBlock != null) {
             nativeStopPreview(mNativePtr);
         }
-        setFrameCallback(null, 0);
+        setFrameCallback((IFrameCallback) null, 0);
     }
 
     /**
@@ -534,7 +1056,7 @@ public class UVCCamera {
     // wrong result may return when you call this just after camera open.
     // it is better to wait several hundreads millseconds.
     public boolean checkSupportFlag(final long flag) {
-        updateCameraParams();
+        updateSupports();
         if ((flag & 0x80000000) == 0x80000000) {
             return ((mProcSupports & flag) == (flag & 0x7ffffffF));
         } else {
@@ -542,6 +1064,98 @@ public class UVCCamera {
         }
     }
 
+    /**
+     * Read several controls at once. Values come from the native control cache, only the
+     * controls never read, changed without a status event or driven by an auto mode cost a transfer
+     *
+     * @param ids {@link #CTRL_FOCUS_ABS}, {@link #PU_BRIGHTNESS}... single value controls
+     * @return raw values in the order of ids, {@link #CONTROL_VALUE_UNAVAILABLE} for the ones that could not be read
+     */
+    public synchronized int[] getControls(final int[] ids) {
+        final int[] values = new int[ids.length];
+        if (mNativePtr == 0 || nativeGetControls(mNativePtr, ids, values) < 0) {
+            Arrays.fill(values, CONTROL_VALUE_UNAVAILABLE);
+        }
+        return values;
+    }
+
+    /**
+     * Set several controls at once, in order, raw values are clamped to the limits of each control
+     *
+     * @param ids    {@link #CTRL_FOCUS_ABS}, {@link #PU_BRIGHTNESS}... single value controls
+     * @param values raw values, same length as ids
+     * @return number of controls set
+     */
+    public synchronized int setControls(final int[] ids, final int[] values) {
+        if (mNativePtr != 0 && ids.length == values.length) {
+            return Math.max(nativeSetControls(mNativePtr, ids, values), 0);
+        }
+        return 0;
+    }
+
+    /**
+     * Limits of several controls, read from the camera once per connect
+     *
+     * @param ids {@link #CTRL_FOCUS_ABS}, {@link #PU_BRIGHTNESS}... single value controls
+     * @return min, max, def of each id, {@link #CONTROL_VALUE_UNAVAILABLE} for the controls without limits
+     */
+    public synchronized int[] getControlLimits(final int[] ids) {
+        final int[] limits = new int[ids.length * 3];
+        if (mNativePtr == 0 || nativeGetControlLimits(mNativePtr, ids, limits) < 0) {
+            Arrays.fill(limits, CONTROL_VALUE_UNAVAILABLE);
+        }
+        return limits;
+    }
+
+    /**
+     * Set a control without waiting for the camera, e.g. from a slider or joystick at the UI rate.
+     * At most one value per control is on the bus, values written meanwhile replace each other and
+     * only the last one is sent. Not synchronized, it does not wait for startPreview/stopPreview,
+     * but must not be called after {@link #destroy()}.
+     * The first call of each control after open reads its limits and blocks for that.
+     *
+     * @param id    {@link #CTRL_FOCUS_ABS}, {@link #PU_BRIGHTNESS}... single value controls
+     * @param value raw value, clamped to the limits of the control
+     * @return true if the value was queued, the result arrives at {@link IControlCallback}
+     */
+    public boolean setControlAsync(final int id, final int value) {
+        final long nativePtr = mNativePtr;
+        if (nativePtr != 0) {
+            return nativeSetControlAsync(nativePtr, id, value) == ACTION_SUCCESS;
+        }
+        return false;
+    }
+
+    /**
+     * Set pan and tilt in one asynchronous write, see {@link #setControlAsync(int, int)},
+     * {@link IControlCallback} gets {@link #CTRL_PANTILT_ABS} as id
+     *
+     * @param pan  raw pan, clamped to its limits
+     * @param tilt raw tilt, clamped to its limits
+     * @return true if the value was queued
+     */
+    public boolean setPanTiltAsync(final int pan, final int tilt) {
+        final long nativePtr = mNativePtr;
+        if (nativePtr != 0) {
+            return nativeSetPanTiltAsync(nativePtr, pan, tilt) == ACTION_SUCCESS;
+        }
+        return false;
+    }
+
+    /**
+     * Latency of the asynchronous writes of a control since open
+     *
+     * @param id control id as passed to {@link #setControlAsync(int, int)}
+     * @return {values sent, sum of request -> completion ns, max ns, values replaced before sending, failed writes},
+     * null if camera is closed or the control was never written asynchronously
+     */
+    public synchronized long[] getControlLatency(final int id) {
+        if (mNativePtr != 0) {
+            return nativeGetControlLatency(mNativePtr, id);
+        }
+        return null;
+    }
+
 //==================================================================================================
 
     public synchronized boolean setAutoFocus(final boolean autoFocus) {
@@ -554,7 +1168,7 @@ public class UVCCamera {
 
     public synchronized boolean getAutoFocus() {
         if (mNativePtr != 0) {
-            return nativeGetAutoFocus(mNativePtr) > ACTION_SUCCESS;
+            return nativeGetControl(mNativePtr, CTRL_FOCUS_AUTO) > ACTION_SUCCESS;
         } else {
             return false;
         }
@@ -567,6 +1181,7 @@ public class UVCCamera {
      */
     public synchronized void setFocus(final int focus) {
         if (mNativePtr != 0) {
+            updateLimits(CTRL_FOCUS_ABS);
             final float range = Math.abs(mFocusMax - mFocusMin);
             if (range > 0) {
                 nativeSetFocus(mNativePtr, (int) (focus / 100.f * range) + mFocusMin);
@@ -583,7 +1198,7 @@ public class UVCCamera {
     public synchronized int getFocus(final int focus_abs) {
         int result = 0;
         if (mNativePtr != 0) {
-            nativeUpdateFocusLimit(mNativePtr);
+            updateLimits(CTRL_FOCUS_ABS);
             final float range = Math.abs(mFocusMax - mFocusMin);
             if (range > 0) {
                 result = (int) ((focus_abs - mFocusMin) * 100.f / range);
@@ -598,7 +1213,7 @@ public class UVCCamera {
      * @return focus[%]
      */
     public synchronized int getFocus() {
-        return getFocus(nativeGetFocus(mNativePtr));
+        return getFocus(nativeGetControl(mNativePtr, CTRL_FOCUS_ABS));
     }
 
     /**
@@ -606,6 +1221,7 @@ public class UVCCamera {
      */
     public synchronized void resetFocus() {
         if (mNativePtr != 0) {
+            updateLimits(CTRL_FOCUS_ABS);
             nativeSetFocus(mNativePtr, mFocusDef);
         }
     }
@@ -630,7 +1246,7 @@ public class UVCCamera {
      */
     public synchronized boolean getAutoWhiteBalance() {
         if (mNativePtr != 0) {
-            return nativeGetAutoWhiteBalance(mNativePtr) > ACTION_SUCCESS;
+            return nativeGetControl(mNativePtr, PU_WB_TEMP_AUTO) > ACTION_SUCCESS;
         } else {
             return false;
         }
@@ -643,6 +1259,7 @@ public class UVCCamera {
      */
     public synchronized void setWhiteBalance(final int whiteBalance) {
         if (mNativePtr != 0) {
+            updateLimits(PU_WB_TEMP);
             final float range = Math.abs(mWhiteBalanceMax - mWhiteBalanceMin);
             if (range > 0) {
                 nativeSetWhiteBalance(mNativePtr, (int) (whiteBalance / 100.f * range) + mWhiteBalanceMin);
@@ -659,7 +1276,7 @@ public class UVCCamera {
     public synchronized int getWhiteBalance(final int whiteBalance_abs) {
         int result = 0;
         if (mNativePtr != 0) {
-            nativeUpdateWhiteBalanceLimit(mNativePtr);
+            updateLimits(PU_WB_TEMP);
             final float range = Math.abs(mWhiteBalanceMax - mWhiteBalanceMin);
             if (range > 0) {
                 result = (int) ((whiteBalance_abs - mWhiteBalanceMin) * 100.f / range);
@@ -674,7 +1291,7 @@ public class UVCCamera {
      * @return white balance[%]
      */
     public synchronized int getWhiteBalance() {
-        return getFocus(nativeGetWhiteBalance(mNativePtr));
+        return getWhiteBalance(nativeGetControl(mNativePtr, PU_WB_TEMP));
     }
 
     /**
@@ -682,6 +1299,7 @@ public class UVCCamera {
      */
     public synchronized void resetWhiteBalance() {
         if (mNativePtr != 0) {
+            updateLimits(PU_WB_TEMP);
             nativeSetWhiteBalance(mNativePtr, mWhiteBalanceDef);
         }
     }
@@ -693,6 +1311,7 @@ public class UVCCamera {
      */
     public synchronized void setBrightness(final int brightness) {
         if (mNativePtr != 0) {
+            updateLimits(PU_BRIGHTNESS);
             final float range = Math.abs(mBrightnessMax - mBrightnessMin);
             if (range > 0) {
                 nativeSetBrightness(mNativePtr, (int) (brightness / 100.f * range) + mBrightnessMin);
@@ -707,7 +1326,7 @@ public class UVCCamera {
     public synchronized int getBrightness(final int brightness_abs) {
         int result = 0;
         if (mNativePtr != 0) {
-            nativeUpdateBrightnessLimit(mNativePtr);
+            updateLimits(PU_BRIGHTNESS);
             final float range = Math.abs(mBrightnessMax - mBrightnessMin);
             if (range > 0) {
                 result = (int) ((brightness_abs - mBrightnessMin) * 100.f / range);
@@ -720,11 +1339,12 @@ public class UVCCamera {
      * @return brightness[%]
      */
     public synchronized int getBrightness() {
-        return getBrightness(nativeGetBrightness(mNativePtr));
+        return getBrightness(nativeGetControl(mNativePtr, PU_BRIGHTNESS));
     }
 
     public synchronized void resetBrightness() {
         if (mNativePtr != 0) {
+            updateLimits(PU_BRIGHTNESS);
             nativeSetBrightness(mNativePtr, mBrightnessDef);
         }
     }
@@ -738,7 +1358,7 @@ public class UVCCamera {
      */
     public synchronized void setContrast(final int contrast) {
         if (mNativePtr != 0) {
-            nativeUpdateContrastLimit(mNativePtr);
+            updateLimits(PU_CONTRAST);
             final float range = Math.abs(mContrastMax - mContrastMin);
             if (range > 0) {
                 nativeSetContrast(mNativePtr, (int) (contrast / 100.f * range) + mContrastMin);
@@ -755,6 +1375,7 @@ public class UVCCamera {
     public synchronized int getContrast(final int contrast_abs) {
         int result = 0;
         if (mNativePtr != 0) {
+            updateLimits(PU_CONTRAST);
             final float range = Math.abs(mContrastMax - mContrastMin);
             if (range > 0) {
                 result = (int) ((contrast_abs - mContrastMin) * 100.f / range);
@@ -769,7 +1390,7 @@ public class UVCCamera {
      * @return contrast[%]
      */
     public synchronized int getContrast() {
-        return getContrast(nativeGetContrast(mNativePtr));
+        return getContrast(nativeGetControl(mNativePtr, PU_CONTRAST));
     }
 
     /**
@@ -777,6 +1398,7 @@ public class UVCCamera {
      */
     public synchronized void resetContrast() {
         if (mNativePtr != 0) {
+            updateLimits(PU_CONTRAST);
             nativeSetContrast(mNativePtr, mContrastDef);
         }
     }
@@ -790,6 +1412,7 @@ public class UVCCamera {
      */
     public synchronized void setSharpness(final int sharpness) {
         if (mNativePtr != 0) {
+            updateLimits(PU_SHARPNESS);
             final float range = Math.abs(mSharpnessMax - mSharpnessMin);
             if (range > 0) {
                 nativeSetSharpness(mNativePtr, (int) (sharpness / 100.f * range) + mSharpnessMin);
@@ -806,7 +1429,7 @@ public class UVCCamera {
     public synchronized int getSharpness(final int sharpness_abs) {
         int result = 0;
         if (mNativePtr != 0) {
-            nativeUpdateSharpnessLimit(mNativePtr);
+            updateLimits(PU_SHARPNESS);
             final float range = Math.abs(mSharpnessMax - mSharpnessMin);
             if (range > 0) {
                 result = (int) ((sharpness_abs - mSharpnessMin) * 100.f / range);
@@ -821,7 +1444,7 @@ public class UVCCamera {
      * @return sharpness[%]
      */
     public synchronized int getSharpness() {
-        return getSharpness(nativeGetSharpness(mNativePtr));
+        return getSharpness(nativeGetControl(mNativePtr, PU_SHARPNESS));
     }
 
     /**
@@ -829,6 +1452,7 @@ public class UVCCamera {
      */
     public synchronized void resetSharpness() {
         if (mNativePtr != 0) {
+            updateLimits(PU_SHARPNESS);
             nativeSetSharpness(mNativePtr, mSharpnessDef);
         }
     }
@@ -842,6 +1466,7 @@ public class UVCCamera {
      */
     public synchronized void setGain(final int gain) {
         if (mNativePtr != 0) {
+            updateLimits(PU_GAIN);
             final float range = Math.abs(mGainMax - mGainMin);
             if (range > 0) {
                 nativeSetGain(mNativePtr, (int) (gain / 100.f * range) + mGainMin);
@@ -858,7 +1483,7 @@ public class UVCCamera {
     public synchronized int getGain(final int gain_abs) {
         int result = 0;
         if (mNativePtr != 0) {
-            nativeUpdateGainLimit(mNativePtr);
+            updateLimits(PU_GAIN);
             final float range = Math.abs(mGainMax - mGainMin);
             if (range > 0) {
                 result = (int) ((gain_abs - mGainMin) * 100.f / range);
@@ -873,7 +1498,7 @@ public class UVCCamera {
      * @return gain[%]
      */
     public synchronized int getGain() {
-        return getGain(nativeGetGain(mNativePtr));
+        return getGain(nativeGetControl(mNativePtr, PU_GAIN));
     }
 
     /**
@@ -881,6 +1506,7 @@ public class UVCCamera {
      */
     public synchronized void resetGain() {
         if (mNativePtr != 0) {
+            updateLimits(PU_GAIN);
             nativeSetGain(mNativePtr, mGainDef);
         }
     }
@@ -894,6 +1520,7 @@ public class UVCCamera {
      */
     public synchronized void setGamma(final int gamma) {
         if (mNativePtr != 0) {
+            updateLimits(PU_GAMMA);
             final float range = Math.abs(mGammaMax - mGammaMin);
             if (range > 0) {
                 nativeSetGamma(mNativePtr, (int) (gamma / 100.f * range) + mGammaMin);
@@ -910,7 +1537,7 @@ public class UVCCamera {
     public synchronized int getGamma(final int gamma_abs) {
         int result = 0;
         if (mNativePtr != 0) {
-            nativeUpdateGammaLimit(mNativePtr);
+            updateLimits(PU_GAMMA);
             final float range = Math.abs(mGammaMax - mGammaMin);
             if (range > 0) {
                 result = (int) ((gamma_abs - mGammaMin) * 100.f / range);
@@ -925,7 +1552,7 @@ public class UVCCamera {
      * @return gamma[%]
      */
     public synchronized int getGamma() {
-        return getGamma(nativeGetGamma(mNativePtr));
+        return getGamma(nativeGetControl(mNativePtr, PU_GAMMA));
     }
 
     /**
@@ -933,6 +1560,7 @@ public class UVCCamera {
      */
     public synchronized void resetGamma() {
         if (mNativePtr != 0) {
+            updateLimits(PU_GAMMA);
             nativeSetGamma(mNativePtr, mGammaDef);
         }
     }
@@ -946,6 +1574,7 @@ public class UVCCamera {
      */
     public synchronized void setSaturation(final int saturation) {
         if (mNativePtr != 0) {
+            updateLimits(PU_SATURATION);
             final float range = Math.abs(mSaturationMax - mSaturationMin);
             if (range > 0) {
                 nativeSetSaturation(mNativePtr, (int) (saturation / 100.f * range) + mSaturationMin);
@@ -962,7 +1591,7 @@ public class UVCCamera {
     public synchronized int getSaturation(final int saturation_abs) {
         int result = 0;
         if (mNativePtr != 0) {
-            nativeUpdateSaturationLimit(mNativePtr);
+            updateLimits(PU_SATURATION);
             final float range = Math.abs(mSaturationMax - mSaturationMin);
             if (range > 0) {
                 result = (int) ((saturation_abs - mSaturationMin) * 100.f / range);
@@ -977,7 +1606,7 @@ public class UVCCamera {
      * @return saturation[%]
      */
     public synchronized int getSaturation() {
-        return getSaturation(nativeGetSaturation(mNativePtr));
+        return getSaturation(nativeGetControl(mNativePtr, PU_SATURATION));
     }
 
     /**
@@ -985,6 +1614,7 @@ public class UVCCamera {
      */
     public synchronized void resetSaturation() {
         if (mNativePtr != 0) {
+            updateLimits(PU_SATURATION);
             nativeSetSaturation(mNativePtr, mSaturationDef);
         }
     }
@@ -998,6 +1628,7 @@ public class UVCCamera {
      */
     public synchronized void setHue(final int hue) {
         if (mNativePtr != 0) {
+            updateLimits(PU_HUE);
             final float range = Math.abs(mHueMax - mHueMin);
             if (range > 0) {
                 nativeSetHue(mNativePtr, (int) (hue / 100.f * range) + mHueMin);
@@ -1014,7 +1645,7 @@ public class UVCCamera {
     public synchronized int getHue(final int hue_abs) {
         int result = 0;
         if (mNativePtr != 0) {
-            nativeUpdateHueLimit(mNativePtr);
+            updateLimits(PU_HUE);
             final float range = Math.abs(mHueMax - mHueMin);
             if (range > 0) {
                 result = (int) ((hue_abs - mHueMin) * 100.f / range);
@@ -1029,7 +1660,7 @@ public class UVCCamera {
      * @return hue[%]
      */
     public synchronized int getHue() {
-        return getHue(nativeGetHue(mNativePtr));
+        return getHue(nativeGetControl(mNativePtr, PU_HUE));
     }
 
     /**
@@ -1037,7 +1668,8 @@ public class UVCCamera {
      */
     public synchronized void resetHue() {
         if (mNativePtr != 0) {
-            nativeSetHue(mNativePtr, mSaturationDef);
+            updateLimits(PU_HUE);
+            nativeSetHue(mNativePtr, mHueDef);
         }
     }
 
@@ -1060,7 +1692,7 @@ public class UVCCamera {
      * @return
      */
     public int getPowerlineFrequency() {
-        return nativeGetPowerlineFrequency(mNativePtr);
+        return nativeGetControl(mNativePtr, PU_POWER_LF);
     }
 
 //==================================================================================================
@@ -1072,6 +1704,7 @@ public class UVCCamera {
      */
     public synchronized void setZoom(final int zoom) {
         if (mNativePtr != 0) {
+            updateLimits(CTRL_ZOOM_ABS);
             final float range = Math.abs(mZoomMax - mZoomMin);
             if (range > 0) {
                 final int z = (int) (zoom / 100.f * range) + mZoomMin;
@@ -1088,7 +1721,7 @@ public class UVCCamera {
     public synchronized int getZoom(final int zoom_abs) {
         int result = 0;
         if (mNativePtr != 0) {
-            nativeUpdateZoomLimit(mNativePtr);
+            updateLimits(CTRL_ZOOM_ABS);
             final float range = Math.abs(mZoomMax - mZoomMin);
             if (range > 0) {
                 result = (int) ((zoom_abs - mZoomMin) * 100.f / range);
@@ -1101,7 +1734,7 @@ public class UVCCamera {
      * @return zoom[%]
      */
     public synchronized int getZoom() {
-        return getZoom(nativeGetZoom(mNativePtr));
+        return getZoom(nativeGetControl(mNativePtr, CTRL_ZOOM_ABS));
     }
 
     /**
@@ -1109,6 +1742,7 @@ public class UVCCamera {
      */
     public synchronized void resetZoom() {
         if (mNativePtr != 0) {
+            updateLimits(CTRL_ZOOM_ABS);
             nativeSetZoom(mNativePtr, mZoomDef);
         }
     }
@@ -1132,7 +1766,7 @@ public class UVCCamera {
      * @return exposure mode
      */
     public synchronized int getExposureMode() {
-        return nativeGetExposureMode(this.mNativePtr);
+        return nativeGetControl(this.mNativePtr, CTRL_AE);
     }
 
     /**
@@ -1153,15 +1787,42 @@ public class UVCCamera {
      * @return
      */
     public synchronized int getExposureLevel() {
-        return nativeGetExposure(this.mNativePtr);
+        return nativeGetControl(this.mNativePtr, CTRL_AE_ABS);
     }
 
 //==================================================================================================
 
+    // controls of the percent getters/setters, their limits go into the mXXXMin/Max/Def fields
+    private static final int[] LIMIT_IDS = {
+            PU_BRIGHTNESS, PU_CONTRAST, PU_SHARPNESS, PU_GAIN, PU_GAMMA, PU_SATURATION, PU_HUE,
+            CTRL_ZOOM_ABS, PU_WB_TEMP, CTRL_FOCUS_ABS, CTRL_AE_ABS, CTRL_AE, CTRL_AE_PRIORITY};
+
     /**
      * update Camera Params
+     * reads the supported controls and the limits of all controls in {@link #LIMIT_IDS} in one call,
+     * the getters and setters do not need this, they read the limits of their control on first use
      */
     public synchronized void updateCameraParams() {
+        updateSupports();
+        if (mNativePtr != 0) {
+            updateLimits(LIMIT_IDS);
+            if (BuildConfig.DEBUG) {
+                Logger.v(TAG, String.format("Brightness:min=%d,max=%d,def=%d", mBrightnessMin, mBrightnessMax, mBrightnessDef));
+                Logger.v(TAG, String.format("Contrast:min=%d,max=%d,def=%d", mContrastMin, mContrastMax, mContrastDef));
+                Logger.v(TAG, String.format("Sharpness:min=%d,max=%d,def=%d", mSharpnessMin, mSharpnessMax, mSharpnessDef));
+                Logger.v(TAG, String.format("Gain:min=%d,max=%d,def=%d", mGainMin, mGainMax, mGainDef));
+                Logger.v(TAG, String.format("Gamma:min=%d,max=%d,def=%d", mGammaMin, mGammaMax, mGammaDef));
+                Logger.v(TAG, String.format("Saturation:min=%d,max=%d,def=%d", mSaturationMin, mSaturationMax, mSaturationDef));
+                Logger.v(TAG, String.format("Hue:min=%d,max=%d,def=%d", mHueMin, mHueMax, mHueDef));
+                Logger.v(TAG, String.format("Zoom:min=%d,max=%d,def=%d", mZoomMin, mZoomMax, mZoomDef));
+                Logger.v(TAG, String.format("WhiteBalance:min=%d,max=%d,def=%d", mWhiteBalanceMin, mWhiteBalanceMax, mWhiteBalanceDef));
+                Logger.v(TAG, String.format("Focus:min=%d,max=%d,def=%d", mFocusMin, mFocusMax, mFocusDef));
+            }
+        }
+    }
+
+    // feature flags of the camera terminal and the processing unit, from the descriptors
+    private synchronized void updateSupports() {
         if (mNativePtr != 0) {
             if ((mControlSupports == 0) || (mProcSupports == 0)) {
                 // サポートしている機能フラグを取得
@@ -1171,36 +1832,9 @@ public class UVCCamera {
                 if (mProcSupports == 0) {
                     mProcSupports = nativeGetProcSupports(mNativePtr);
                 }
-                // 設定値を取得
-                if ((mControlSupports != 0) && (mProcSupports != 0)) {
-                    nativeUpdateBrightnessLimit(mNativePtr);
-                    nativeUpdateContrastLimit(mNativePtr);
-                    nativeUpdateSharpnessLimit(mNativePtr);
-                    nativeUpdateGainLimit(mNativePtr);
-                    nativeUpdateGammaLimit(mNativePtr);
-                    nativeUpdateSaturationLimit(mNativePtr);
-                    nativeUpdateHueLimit(mNativePtr);
-                    nativeUpdateZoomLimit(mNativePtr);
-                    nativeUpdateWhiteBalanceLimit(mNativePtr);
-                    nativeUpdateFocusLimit(mNativePtr);
-                    //增加曝光 add by hsj
-                    nativeUpdateExposureLimit(mNativePtr);
-                    nativeUpdateExposureModeLimit(mNativePtr);
-                    nativeUpdateExposurePriorityLimit(mNativePtr);
-                }
                 if (BuildConfig.DEBUG) {
                     dumpControls(mControlSupports);
                     dumpProc(mProcSupports);
-                    Logger.v(TAG, String.format("Brightness:min=%d,max=%d,def=%d", mBrightnessMin, mBrightnessMax, mBrightnessDef));
-                    Logger.v(TAG, String.format("Contrast:min=%d,max=%d,def=%d", mContrastMin, mContrastMax, mContrastDef));
-                    Logger.v(TAG, String.format("Sharpness:min=%d,max=%d,def=%d", mSharpnessMin, mSharpnessMax, mSharpnessDef));
-                    Logger.v(TAG, String.format("Gain:min=%d,max=%d,def=%d", mGainMin, mGainMax, mGainDef));
-                    Logger.v(TAG, String.format("Gamma:min=%d,max=%d,def=%d", mGammaMin, mGammaMax, mGammaDef));
-                    Logger.v(TAG, String.format("Saturation:min=%d,max=%d,def=%d", mSaturationMin, mSaturationMax, mSaturationDef));
-                    Logger.v(TAG, String.format("Hue:min=%d,max=%d,def=%d", mHueMin, mHueMax, mHueDef));
-                    Logger.v(TAG, String.format("Zoom:min=%d,max=%d,def=%d", mZoomMin, mZoomMax, mZoomDef));
-                    Logger.v(TAG, String.format("WhiteBalance:min=%d,max=%d,def=%d", mWhiteBalanceMin, mWhiteBalanceMax, mWhiteBalanceDef));
-                    Logger.v(TAG, String.format("Focus:min=%d,max=%d,def=%d", mFocusMin, mFocusMax, mFocusDef));
                 }
             }
         } else {
@@ -1208,6 +1842,113 @@ public class UVCCamera {
         }
     }
 
+    /**
+     * copy the limits of controls into their mXXXMin/Max/Def fields, once per open.
+     * Each control is read on its own, a camera without processing unit still gets the limits
+     * of its camera terminal controls and vice versa; the native side caches them per connect.
+     *
+     * @param ids controls of {@link #LIMIT_IDS}
+     */
+    private void updateLimits(final int... ids) {
+        if (mNativePtr == 0) return;
+        final int[] pending = new int[ids.length];
+        int n = 0;
+        for (final int id : ids) {
+            final int loaded = (id & 0x80000000) != 0 ? mProcLimitsLoaded : mCtrlLimitsLoaded;
+            if ((loaded & id & 0x7fffffff) == 0) {
+                pending[n++] = id;
+            }
+        }
+        if (n == 0) return;
+        final int[] request = n == pending.length ? pending : Arrays.copyOf(pending, n);
+        final int[] limits = new int[n * 3];
+        if (nativeGetControlLimits(mNativePtr, request, limits) < 0) return;
+        for (int i = 0; i < n; i++) {
+            final int id = request[i];
+            if ((id & 0x80000000) != 0) {
+                mProcLimitsLoaded |= id & 0x7fffffff;
+            } else {
+                mCtrlLimitsLoaded |= id;
+            }
+            if (limits[i * 3] != CONTROL_VALUE_UNAVAILABLE) {
+                setLimits(id, limits[i * 3], limits[i * 3 + 1], limits[i * 3 + 2]);
+            } else {
+                // no range, the percent setters do nothing; do not keep the previous camera's
+                setLimits(id, 0, 0, 0);
+            }
+        }
+    }
+
+    private void setLimits(final int id, final int min, final int max, final int def) {
+        switch (id) {
+            case PU_BRIGHTNESS:
+                mBrightnessMin = min;
+                mBrightnessMax = max;
+                mBrightnessDef = def;
+                break;
+            case PU_CONTRAST:
+                mContrastMin = min;
+                mContrastMax = max;
+                mContrastDef = def;
+                break;
+            case PU_SHARPNESS:
+                mSharpnessMin = min;
+                mSharpnessMax = max;
+                mSharpnessDef = def;
+                break;
+            case PU_GAIN:
+                mGainMin = min;
+                mGainMax = max;
+                mGainDef = def;
+                break;
+            case PU_GAMMA:
+                mGammaMin = min;
+                mGammaMax = max;
+                mGammaDef = def;
+                break;
+            case PU_SATURATION:
+                mSaturationMin = min;
+                mSaturationMax = max;
+                mSaturationDef = def;
+                break;
+            case PU_HUE:
+                mHueMin = min;
+                mHueMax = max;
+                mHueDef = def;
+                break;
+            case CTRL_ZOOM_ABS:
+                mZoomMin = min;
+                mZoomMax = max;
+                mZoomDef = def;
+                break;
+            case PU_WB_TEMP:
+                mWhiteBalanceMin = min;
+                mWhiteBalanceMax = max;
+                mWhiteBalanceDef = def;
+                break;
+            case CTRL_FOCUS_ABS:
+                mFocusMin = min;
+                mFocusMax = max;
+                mFocusDef = def;
+                break;
+            case CTRL_AE_ABS:
+                mExposureMin = min;
+                mExposureMax = max;
+                mExposureDef = def;
+                break;
+            case CTRL_AE:
+                mExposureModeMin = min;
+                mExposureModeMax = max;
+                mExposureModeDef = def;
+                break;
+            case CTRL_AE_PRIORITY:
+                mExposurePriorityMin = min;
+                mExposurePriorityMax = max;
+                mExposurePriorityDef = def;
+                break;
+        }
+    }
+
     private static final String[] SUPPORTS_CTRL = {
             "D0:  Scanning Mode",
             "D1:  Auto-Exposure Mode",
@@ -1302,8 +2043,14 @@ public class UVCCamera {
     //nativeDestroy is not static methods.
     private native void nativeDestroy(final long id_camera);
 
+    private static native int nativeSetGroup(final long id_camera, final long id_group);
+
     private native int nativeConnect(long id_camera, int venderId, int productId, int fileDescriptor, int busNum, int devAddr, String usbfs);
 
+    private static native int nativeConnectSynthetic(final long id_camera, final int frameFormat, final int width, final int height, final int fps);
+
+    private static native int nativeConnectReplay(final long id_camera, final String path, final boolean realtime, final boolean loop);
+
     private static native int nativeRelease(final long id_camera);
 
     private static native int nativeSetStatusCallback(final long mNativePtr, final IStatusCallback callback);
@@ -1314,6 +2061,14 @@ public class UVCCamera {
 
     private static native String nativeGetSupportedSize(final long id_camera);
 
+    private static native int[] nativeGetFormats(final long id_camera);
+
+    private static native int nativeSetStreamCache(final long id_camera, final byte[] blob);
+
+    private static native byte[] nativeGetStreamCache(final long id_camera);
+
+    private static native long[] nativeGetStartupTimes(final long id_camera);
+
     private static native int nativeStartPreview(final long id_camera);
 
     private static native int nativeStopPreview(final long id_camera);
@@ -1322,10 +2077,52 @@ public class UVCCamera {
 
     private static native int nativeSetPreviewFlip(final long id_camera, final int flipH);
 
+    private static native int nativeSetPreviewFormat(final long id_camera, final int format);
+
+    private static native int nativeSetZeroCopy(final long id_camera, final boolean zeroCopy);
+
+    private static native int nativeSetFrameQueue(final long id_camera, final int depth, final int policy);
+
+    private static native int nativeSetDecodeWorkers(final long id_camera, final int workers);
+
+    private static native long nativeGetCopiedBytesPerFrame(final long id_camera);
+
+    private static native long[] nativeGetFramePoolStats(final long id_camera);
+
+    private static native int nativeGetStats(final long id_camera, final long[] values);
+
+    private static native int nativeStartRecording(final long id_camera, final String path);
+
+    private static native int nativeStopRecording(final long id_camera);
+
+    private static native long[] nativeGetRecordingStats(final long id_camera);
+
+    private static native int nativeSetTransferPlan(final long id_camera, final int transfers, final int packets, final int altPolicy);
+
+    private static native long[] nativeGetTransferStats(final long id_camera);
+
+    private static native long[] nativeGetClockEstimate(final long id_camera);
+
     private static native int nativeSetPreviewDisplay(final long id_camera, final Surface surface);
 
     private static native int nativeSetFrameCallback(final long mNativePtr, final IFrameCallback callback, final int pixelFormat);
 
+    private static native int nativeSetFrameInfoCallback(final long mNativePtr, final IFrameInfoCallback callback, final int pixelFormat, final FrameInfo info);
+
+    private static native int nativeSetCallbackBuffers(final long mNativePtr, final int count);
+
+    private static native int nativeSetFrameCallbackRegion(final long mNativePtr, final int x, final int y,
+                                                           final int width, final int height,
+                                                           final int outWidth, final int outHeight);
+
+    private static native int nativeReleaseFrame(final long mNativePtr, final ByteBuffer frame);
+
+    private static native long nativeAddFrameConsumer(final long mNativePtr, final int pixelFormat, final int depth, final int policy, final int maxFps);
+
+    private static native int nativeRemoveFrameConsumer(final long mNativePtr, final long id_consumer);
+
+    private static native int nativeSetPipeline(final long mNativePtr, final long id_pipeline, final int type);
+
 //==================================================================================================
 
     /**
@@ -1358,6 +2155,22 @@ public class UVCCamera {
 
     private static native long nativeGetProcSupports(final long id_camera);
 
+    private static native int nativeGetControl(final long id_camera, final int id);
+
+    private static native int nativeGetControls(final long id_camera, final int[] ids, final int[] values);
+
+    private static native int nativeSetControls(final long id_camera, final int[] ids, final int[] values);
+
+    private static native int nativeGetControlLimits(final long id_camera, final int[] ids, final int[] limits);
+
+    private static native int nativeSetControlAsync(final long id_camera, final int id, final int value);
+
+    private static native int nativeSetPanTiltAsync(final long id_camera, final int pan, final int tilt);
+
+    private static native int nativeSetControlCallback(final long id_camera, final IControlCallback callback);
+
+    private static native long[] nativeGetControlLatency(final long id_camera, final int id);
+
     private native int nativeUpdateScanningModeLimit(final long id_camera);
 
     private static native int nativeSetScanningMode(final long id_camera, final int scanning_mode);
@@ -0,0 +1,69 @@
+package com.hsj.camera;
+
+/**
+ * Cameras created with {@link UVCCamera#UVCCamera(UVCCameraGroup)} share one libusb context,
+ * so one USB event thread serves all of them, and one MJPEG decode pool instead of a pool per camera.
+ * Destroy the cameras of the group before the group itself.
+ */
+public final class UVCCameraGroup {
+
+    static {
+        System.loadLibrary("camera");
+    }
+
+    long mNativePtr;
+
+    public UVCCameraGroup() {
+        mNativePtr = nativeCreate();
+    }
+
+    /**
+     * Pin the USB event thread and set its nice value, can be called before and after cameras connect
+     *
+     * @param cpuMask bit n allows cpu n, 0 keeps the current affinity
+     * @param nice    -20~19, default is -18
+     * @return true is success
+     */
+    public synchronized boolean setEventThread(int cpuMask, int nice) {
+        if (mNativePtr != 0) {
+            return nativeSetEventThread(mNativePtr, cpuMask, nice) == UVCCamera.ACTION_SUCCESS;
+        }
+        return false;
+    }
+
+    /**
+     * Set the worker count of the shared MJPEG decode pool,
+     * must be called before a camera of this group starts a MJPEG preview
+     *
+     * @param workers 1~8, default is 2
+     * @return true is success
+     */
+    public synchronized boolean setDecodeWorkers(int workers) {
+        if (mNativePtr != 0) {
+            return nativeSetDecodeWorkers(mNativePtr, workers) == UVCCamera.ACTION_SUCCESS;
+        }
+        return false;
+    }
+
+    /**
+     * Release the shared resources
+     *
+     * @throws IllegalStateException if a camera of this group is not destroyed yet
+     */
+    public synchronized void destroy() {
+        if (mNativePtr != 0) {
+            if (nativeDestroy(mNativePtr) != UVCCamera.ACTION_SUCCESS) {
+                throw new IllegalStateException("destroy the cameras of this group first");
+            }
+            mNativePtr = 0;
+        }
+    }
+
+    private static native long nativeCreate();
+
+    private static native int nativeDestroy(final long id_group);
+
+    private static native int nativeSetEventThread(final long id_group, final int cpuMask, final int nice);
+
+    private static native int nativeSetDecodeWorkers(final long id_group, final int workers);
+}
@@ -39,6 +39,7 @@ CFLAGS := -Werror
 LOCAL_C_INCLUDES := \
 		$(LOCAL_PATH)/../ \
 		$(LOCAL_PATH)/source \
+		$(LOCAL_PATH)/pipeline \
 		$(LOCAL_PATH)/../librapidjson/include \
 
 LOCAL_CFLAGS := $(LOCAL_C_INCLUDES:%=-I%)
@@ -61,9 +62,24 @@ LOCAL_SRC_FILES := \
 		source/Parameters.cpp \
 		source/UVCCamera.cpp \
 		source/UVCPreview.cpp \
+		source/UVCDecodePool.cpp \
+		source/UVCFrameConsumer.cpp \
+		source/UVCCameraGroup.cpp \
 		source/UVCButtonCallback.cpp \
 		source/UVCStatusCallback.cpp \
-		source/com_hsj_camera_UVCCamera.cpp
+		source/UVCControlQueue.cpp \
+		source/UVCStreamCache.cpp \
+		source/com_hsj_camera_UVCCamera.cpp \
+		source/com_hsj_camera_UVCCameraGroup.cpp \
+		source/com_hsj_camera_FrameConsumer.cpp \
+		source/com_hsj_camera_Pipeline.cpp \
+		pipeline/IPipeline.cpp \
+		pipeline/AbstractBufferedPipeline.cpp \
+		pipeline/DistributePipeline.cpp \
+		pipeline/ConvertPipeline.cpp \
+		pipeline/CallbackPipeline.cpp \
+		pipeline/PreviewPipeline.cpp \
+		pipeline/pipeline_helper.cpp
 
 LOCAL_MODULE := camera
 include $(BUILD_SHARED_LIBRARY)
@@ -13,20 +13,27 @@
 	#undef NDEBUG		// depends on definition in Android.mk and Application.mk
 #endif
 
-#include "utilbase.h"
+#include "libUVCCamera.h"
 #include "AbstractBufferedPipeline.h"
 
 /*public*/
-AbstractBufferedPipeline::AbstractBufferedPipeline(const int &_max_buffer_num, const int &_init_pool_num,
-	const size_t &_default_frame_size, const bool &drop_frames_when_buffer_empty)
-:	IPipeline(_default_frame_size),
-	max_buffer_num(_max_buffer_num),
-	init_pool_num(_init_pool_num),
-	drop_frames(drop_frames_when_buffer_empty),
-	total_frame_num(0)
+AbstractBufferedPipeline::AbstractBufferedPipeline(const int &_max_buffer_num, const int &_drop_policy)
+:	IPipeline(),
+	max_buffer_num(_max_buffer_num < 1 ? 1 : _max_buffer_num > RING_MAX_DEPTH ? RING_MAX_DEPTH : _max_buffer_num),
+	drop_policy(_drop_policy),
+	mDropped(0),
+	buffer_head(0),
+	buffer_num(0),
+	handling_frame(NULL),
+	frame_pool(MAX_OUTPUT_POOL_NUM)
 {
 	ENTER();
 
+	pthread_mutex_init(&buffer_mutex, NULL);
+	pthread_cond_init(&buffer_sync, NULL);
+	pthread_mutex_init(&pool_mutex, NULL);
+	setState(PIPELINE_STATE_INITIALIZED);
+
 	EXIT();
 }
 
@@ -35,7 +42,9 @@ AbstractBufferedPipeline::~AbstractBufferedPipeline() {
 	ENTER();
 
 	release();
-	setState(PIPELINE_STATE_UNINITIALIZED);
+	pthread_mutex_destroy(&pool_mutex);
+	pthread_cond_destroy(&buffer_sync);
+	pthread_mutex_destroy(&buffer_mutex);
 
 	EXIT();
 }
@@ -46,7 +55,8 @@ int AbstractBufferedPipeline::release() {
 
 	setState(PIPELINE_STATE_RELEASING);
 	stop();
-	clear_frames();
+	// the next pipeline may hold frames of our pool
+	IPipeline::flush();
 	clear_pool();
 	setState(PIPELINE_STATE_UNINITIALIZED);
 
@@ -61,21 +71,11 @@ int AbstractBufferedPipeline::start() {
 	if (!isRunning()) {
 		mIsRunning = true;
 		setState(PIPELINE_STATE_STARTING);
-		buffer_mutex.lock();
-		{
-			result = pthread_create(&handler_thread, NULL, handler_thread_func, (void *) this);
-		}
-		buffer_mutex.unlock();
+		result = pthread_create(&handler_thread, NULL, handler_thread_func, (void *) this);
 		if (UNLIKELY(result != EXIT_SUCCESS)) {
 			LOGW("AbstractBufferedPipeline::already running/could not create thread etc.");
 			setState(PIPELINE_STATE_INITIALIZED);
 			mIsRunning = false;
-			buffer_mutex.lock();
-			{
-				pool_sync.broadcast();
-				buffer_sync.broadcast();
-			}
-			buffer_mutex.unlock();
 		}
 	}
 	RETURN(result, int);
@@ -88,12 +88,15 @@ int AbstractBufferedPipeline::stop() {
 	bool b = isRunning();
 	if (LIKELY(b)) {
 		setState(PIPELINE_STATE_STOPPING);
-		mIsRunning = false;
-		pool_sync.broadcast();
-		buffer_sync.broadcast();
+		pthread_mutex_lock(&buffer_mutex);
+		{
+			mIsRunning = false;
+			pthread_cond_broadcast(&buffer_sync);
+		}
+		pthread_mutex_unlock(&buffer_mutex);
 		LOGD("pthread_join:handler_thread");
 		if (pthread_join(handler_thread, NULL) != EXIT_SUCCESS) {
-			LOGW("PublisherPipeline::terminate publisher thread: pthread_join failed");
+			LOGW("AbstractBufferedPipeline::terminate handler thread: pthread_join failed");
 		}
 		setState(PIPELINE_STATE_INITIALIZED);
 		LOGD("handler_thread finished");
@@ -105,201 +108,184 @@ int AbstractBufferedPipeline::stop() {
 
 /*public*/
 int AbstractBufferedPipeline::queueFrame(uvc_frame_t *frame) {
+	if (UNLIKELY(!frame || !isRunning())) return UVC_ERROR_OTHER;
+	pipeline_frame_ref(frame);
+	return add_frame(frame);
+}
+
+/*public*/
+void AbstractBufferedPipeline::flush() {
 	ENTER();
 
-	int ret = UVC_ERROR_OTHER;
-	if (LIKELY(frame)) {
-		// get empty frame from frame pool
-		uvc_frame_t *copy = get_frame(frame->data_bytes);
-		if (UNLIKELY(!copy)) {
-			LOGD("buffer pool is empty and exceeds the limit, drop frame");
-			RETURN(UVC_ERROR_NO_MEM, int);
-		}
-		// duplicate frame buffer and pass copy to publisher
-		ret = uvc_duplicate_frame(frame, copy);
-		if (LIKELY(!ret)) {
-			ret = add_frame(copy);
-		} else {
-			LOGW("uvc_duplicate_frame failed:%d", ret);
-			recycle_frame(copy);
-		}
+	uvc_frame_t *frames[RING_MAX_DEPTH];
+	pthread_mutex_lock(&buffer_mutex);
+	const int n = take_frames(frames);
+	while (handling_frame) {
+		pthread_cond_wait(&buffer_sync, &buffer_mutex);
+	}
+	pthread_mutex_unlock(&buffer_mutex);
+	for (int i = 0; i < n; i++) {
+		pipeline_frame_unref(frames[i]);
 	}
+	IPipeline::flush();
+
+	EXIT();
+}
 
-	RETURN(ret, int);
+/*public*/
+uint64_t AbstractBufferedPipeline::dropped() const {
+	return __atomic_load_n(&mDropped, __ATOMIC_RELAXED);
 }
 
 //********************************************************************************
 //
 //********************************************************************************
 /**
- * get uvc_frame_t from frame pool
- * if pool is empty, create new frame
- * this function does not confirm the frame size
- * and you may need to confirm the size
+ * get a frame for the output of this pipeline from the pool, if pool is empty, create new frame
+ * the caller owns the only reference
  */
 uvc_frame_t *AbstractBufferedPipeline::get_frame(const size_t &data_bytes) {
 	uvc_frame_t *frame = NULL;
-	Mutex::Autolock lock(pool_mutex);
-
-	if (UNLIKELY(frame_pool.empty() && (total_frame_num < max_buffer_num))) {
-		uint32_t n = total_frame_num * 2;
-		if (n > max_buffer_num) {
-			n = max_buffer_num;
-		}
-		n -= total_frame_num;
-		if (LIKELY(n > 0)) {
-			for (int i = 0; i < n; i++) {
-				frame = uvc_allocate_frame(data_bytes);
-				total_frame_num++;
+	pthread_mutex_lock(&pool_mutex);
+	{
+		for (int i = frame_pool.size() - 1; i >= 0; i--) {
+			if (frame_pool[i]->data_bytes == data_bytes) {
+				frame = frame_pool.remove(i);
+				break;
 			}
-			LOGW("allocate new frame:%d", total_frame_num);
-		} else {
-			LOGW("number of allocated frame exceeds limit");
 		}
 	}
-	if (UNLIKELY(frame_pool.empty() && !drop_frames)) {
-		// if pool is empty and need to block(avoid dropping frames), wait frame recycling.
-		for (; mIsRunning && frame_pool.empty() ; ) {
-			pool_sync.wait(pool_mutex);
-		}
+	pthread_mutex_unlock(&pool_mutex);
+	if (UNLIKELY(!frame)) {
+		frame = uvc_allocate_frame(data_bytes);
 	}
-	if (!frame_pool.empty()) {
-		frame = frame_pool.front();
-		frame_pool.pop_front();
+	if (LIKELY(frame)) {
+		frame->refs = 1;
+		frame->release = release_output_frame;
+		frame->release_arg = this;
 	}
-
 	return frame;
 }
 
-void AbstractBufferedPipeline::recycle_frame(uvc_frame_t *frame) {
-	ENTER();
+/*static*/
+void AbstractBufferedPipeline::release_output_frame(uvc_frame_t *frame, void *arg) {
+	reinterpret_cast<AbstractBufferedPipeline *>(arg)->recycle_frame(frame);
+}
 
+void AbstractBufferedPipeline::recycle_frame(uvc_frame_t *frame) {
 	if (LIKELY(frame)) {
-		Mutex::Autolock lock(pool_mutex);
-		if (LIKELY(frame_pool.size() < max_buffer_num)) {
-			frame_pool.push_back(frame);
-			frame = NULL;
+		frame->refs = 0;
+		pthread_mutex_lock(&pool_mutex);
+		{
+			if (LIKELY(frame_pool.size() < MAX_OUTPUT_POOL_NUM)) {
+				frame_pool.put(frame);
+				frame = NULL;
+			}
 		}
+		pthread_mutex_unlock(&pool_mutex);
 		if (UNLIKELY(frame)) {
 			// if pool overflowed
-			total_frame_num--;
 			uvc_free_frame(frame);
 		}
-		pool_sync.signal();
 	}
-
-	EXIT();
 }
 
-void AbstractBufferedPipeline::init_pool(const size_t &data_bytes) {
+void AbstractBufferedPipeline::clear_pool() {
 	ENTER();
 
-	uvc_frame_t *frame = NULL;
-
-	clear_pool();
-	pool_mutex.lock();
+	pthread_mutex_lock(&pool_mutex);
 	{
-
-		size_t frame_sz = data_bytes / 4;	// expects 25%, this will be able to much lower
-		if (!frame_sz) {
-			frame_sz = DEFAULT_FRAME_SZ;
-		}
-		for (uint32_t i = 0; i < init_pool_num; i++) {
-			frame = uvc_allocate_frame(frame_sz);
-			if (LIKELY(frame)) {
-				frame_pool.push_back(frame);
-				total_frame_num++;
-			} else {
-				LOGW("failed to allocate new frame:%d", total_frame_num);
-				break;
-			}
+		const int n = frame_pool.size();
+		for (int i = 0; i < n; i++) {
+			uvc_free_frame(frame_pool[i]);
 		}
+		frame_pool.clear();
 	}
-	pool_mutex.unlock();
-
-	EXIT();
-}
-
-void AbstractBufferedPipeline::clear_pool() {
-	ENTER();
-
-	Mutex::Autolock lock(pool_mutex);
+	pthread_mutex_unlock(&pool_mutex);
 
-	for (auto iter = frame_pool.begin(); iter != frame_pool.end(); iter++) {
-		total_frame_num--;
-		uvc_free_frame(*iter);
-	}
-	frame_pool.clear();
 	EXIT();
 }
 
 //********************************************************************************
 //
 //********************************************************************************
+// must be called with buffer_mutex held
+int AbstractBufferedPipeline::take_frames(uvc_frame_t **frames) {
+	const int n = buffer_num;
+	for (int i = 0; i < n; i++) {
+		frames[i] = frame_buffers[(buffer_head + i) % RING_MAX_DEPTH];
+	}
+	buffer_head = buffer_num = 0;
+	return n;
+}
 
 void AbstractBufferedPipeline::clear_frames() {
-	Mutex::Autolock lock(buffer_mutex);
-
-	for (auto iter = frame_buffers.begin(); iter != frame_buffers.end(); iter++) {
-		recycle_frame(*iter);
+	uvc_frame_t *frames[RING_MAX_DEPTH];
+	pthread_mutex_lock(&buffer_mutex);
+	const int n = take_frames(frames);
+	pthread_mutex_unlock(&buffer_mutex);
+	for (int i = 0; i < n; i++) {
+		pipeline_frame_unref(frames[i]);
 	}
-	frame_buffers.clear();
 }
 
+/**
+ * queue a frame this pipeline holds a reference of,
+ * when the queue is full drop the new or the oldest frame depending on drop_policy
+ */
 int AbstractBufferedPipeline::add_frame(uvc_frame_t *frame) {
-	ENTER();
-
-	buffer_mutex.lock();
+	uvc_frame_t *dropped = NULL;
+	pthread_mutex_lock(&buffer_mutex);
 	{
-		// FIXME as current implementation, transferring frame data on my device is slower than that coming from UVC camera... just drop them now
-		if (frame_buffers.size() > max_buffer_num) {
-			// erase old frames
-			int cnt = 0;
-			for (auto iter = frame_buffers.begin();
-				 (iter != frame_buffers.end()) && (cnt < 5); iter++, cnt++) {
-				recycle_frame(*iter);
-				iter = frame_buffers.erase(iter);
+		if (UNLIKELY(!isRunning())) {
+			dropped = frame;
+		} else if (buffer_num >= max_buffer_num) {
+			__atomic_fetch_add(&mDropped, 1, __ATOMIC_RELAXED);
+			if (drop_policy == RING_DROP_OLDEST) {
+				dropped = frame_buffers[buffer_head];
+				buffer_head = (buffer_head + 1) % RING_MAX_DEPTH;
+				buffer_num--;
+			} else {
+				dropped = frame;
 			}
-			LOGW("droped frame data");
 		}
-		if (isRunning() && (frame_buffers.size() < max_buffer_num)) {
-			frame_buffers.push_back(frame);
-			frame = NULL;
+		if (dropped != frame) {
+			frame_buffers[(buffer_head + buffer_num) % RING_MAX_DEPTH] = frame;
+			buffer_num++;
+			pthread_cond_signal(&buffer_sync);
 		}
-		buffer_sync.signal();
 	}
-	buffer_mutex.unlock();
-	if (frame) {
-		recycle_frame(frame);
+	pthread_mutex_unlock(&buffer_mutex);
+	if (dropped) {
+		pipeline_frame_unref(dropped);
 	}
-
-	RETURN(0, int);
+	return dropped == frame ? UVC_ERROR_BUSY : 0;
 }
 
+/**
+ * take the oldest queued frame, block while there is none
+ * @return NULL when stopped
+ */
 uvc_frame_t *AbstractBufferedPipeline::wait_frame() {
 	uvc_frame_t *frame = NULL;
-
-	Mutex::Autolock lock(buffer_mutex);
-
-	if (!frame_buffers.size()) {
-		buffer_sync.wait(buffer_mutex);
-	}
-	if (LIKELY(isRunning() && frame_buffers.size() > 0)) {
-		frame = frame_buffers.front();
-		frame_buffers.pop_front();
+	pthread_mutex_lock(&buffer_mutex);
+	{
+		handling_frame = NULL;
+		pthread_cond_broadcast(&buffer_sync);
+		while (isRunning() && !buffer_num) {
+			pthread_cond_wait(&buffer_sync, &buffer_mutex);
+		}
+		if (LIKELY(isRunning() && buffer_num)) {
+			frame = frame_buffers[buffer_head];
+			buffer_head = (buffer_head + 1) % RING_MAX_DEPTH;
+			buffer_num--;
+		}
+		handling_frame = frame;
 	}
+	pthread_mutex_unlock(&buffer_mutex);
 	return frame;
 }
 
-uint32_t AbstractBufferedPipeline::get_frame_count() {
-	ENTER();
-
-	Mutex::Autolock lock(buffer_mutex);
-	uint32_t result = frame_buffers.size();
-
-	RETURN(result, uint32_t);
-}
-
 //********************************************************************************
 //
 //********************************************************************************
@@ -308,36 +294,41 @@ void *AbstractBufferedPipeline::handler_thread_func(void *vptr_args) {
 	ENTER();
 	AbstractBufferedPipeline *pipeline = reinterpret_cast<AbstractBufferedPipeline *>(vptr_args);
 	if (LIKELY(pipeline)) {
-		pipeline->do_loop();
+		JavaVM *vm = getVM();
+		JNIEnv *env;
+		// attach to JavaVM
+		vm->AttachCurrentThread(&env, NULL);
+		pipeline->do_loop(env);	// never return until stop
+		// detach from JavaVM
+		vm->DetachCurrentThread();
+		MARK("DetachCurrentThread");
 	}
 	PRE_EXIT();
 	pthread_exit(NULL);
 }
 
-void AbstractBufferedPipeline::do_loop() {
+void AbstractBufferedPipeline::do_loop(JNIEnv *env) {
 	ENTER();
 
-	clear_frames();
-	init_pool(default_frame_size);
-
-	on_start();
+	on_start(env);
 	setState(PIPELINE_STATE_RUNNING);
 	for ( ; LIKELY(isRunning()) ; ) {
 		uvc_frame_t *frame = wait_frame();
 		if ((LIKELY(frame))) {
-			try {
-				if (!handle_frame(frame)) {
-					chain_frame(frame);
-				}
-			} catch (...) {
-				LOGE("exception");
+			if (!handle_frame(env, frame)) {
+				chain_frame(frame);
 			}
-			recycle_frame(frame);
+			pipeline_frame_unref(frame);
 		}
 	}
+	pthread_mutex_lock(&buffer_mutex);
+	{
+		handling_frame = NULL;
+		pthread_cond_broadcast(&buffer_sync);
+	}
+	pthread_mutex_unlock(&buffer_mutex);
 	setState(PIPELINE_STATE_STOPPING);
-	mIsRunning = false;
-	on_stop();
+	on_stop(env);
 	setState(PIPELINE_STATE_INITIALIZED);
 
 	EXIT();
@@ -7,63 +7,66 @@
 
 #include <stdlib.h>
 #include <pthread.h>
-#include <list>
-#include "Mutex.h"
-#include "Condition.h"
 
 #include "libUVCCamera.h"
+#include "objectarray.h"
+#include "spscring.h"	// RING_DROP_NEWEST/RING_DROP_OLDEST, RING_MAX_DEPTH
 #include "IPipeline.h"
 
-#pragma interface
-
-#define DEFAULT_INIT_FRAME_POOL_SZ 2
-#define DEFAULT_MAX_FRAME_NUM 8
-
-using namespace android;
+#define DEFAULT_MAX_FRAME_NUM 4
+// frames this pipeline outputs (e.g. converted frames) kept for reuse
+#define MAX_OUTPUT_POOL_NUM 8
 
 class AbstractBufferedPipeline;
 
+/**
+ * pipeline with its own queue and handler thread (attached to the JavaVM),
+ * queued frames are references to the upstream frame, not copies
+ */
 class AbstractBufferedPipeline : virtual public IPipeline {
 private:
-	const uint32_t max_buffer_num;
-	const uint32_t init_pool_num;
-	const bool drop_frames;
-	volatile uint32_t total_frame_num;
-
-// frame buffer pool to improve performance by reducing memory allocation
-	mutable Mutex pool_mutex;
-	Condition pool_sync;
-	std::list<uvc_frame_t *> frame_pool;
+	const int max_buffer_num;
+	const int drop_policy;
+	volatile uint64_t mDropped;
 // frame buffers
 	pthread_t handler_thread;
-	mutable Mutex buffer_mutex;
-	Condition buffer_sync;
-	std::list<uvc_frame_t *> frame_buffers;
+	pthread_mutex_t buffer_mutex;
+	pthread_cond_t buffer_sync;		// handler waits for a frame, flush for the handled one
+	uvc_frame_t *frame_buffers[RING_MAX_DEPTH];
+	int buffer_head, buffer_num;
+	uvc_frame_t *handling_frame;
+// frames output by this pipeline, improve performance by reducing memory allocation
+	pthread_mutex_t pool_mutex;
+	ObjectArray<uvc_frame_t *> frame_pool;
 	static void *handler_thread_func(void *vptr_args);
-
+	static void release_output_frame(uvc_frame_t *frame, void *arg);
+	int take_frames(uvc_frame_t **frames);
 protected:
-// frame buffer pool
+// frames output by this pipeline, shareable: refs is 1 and the last unref recycles them
 	uvc_frame_t *get_frame(const size_t &data_bytes);
 	void recycle_frame(uvc_frame_t *frame);
-	void init_pool(const size_t &data_bytes);
 	void clear_pool();
 // frame buffers
 	void clear_frames();
 	int add_frame(uvc_frame_t *frame);
 	uvc_frame_t *wait_frame();
-	uint32_t get_frame_count();
-	virtual void do_loop();
-	virtual void on_start() = 0;
-	virtual void on_stop() = 0;
-	virtual int handle_frame(uvc_frame_t *frame) = 0;
+	virtual void do_loop(JNIEnv *env);
+	virtual void on_start(JNIEnv *env) {};
+	virtual void on_stop(JNIEnv *env) {};
+	/**
+	 * @return 0 to chain frame to the next pipeline
+	 */
+	virtual int handle_frame(JNIEnv *env, uvc_frame_t *frame) = 0;
 public:
-	AbstractBufferedPipeline(const int &_max_buffer_num = DEFAULT_MAX_FRAME_NUM, const int &init_pool_num = DEFAULT_INIT_FRAME_POOL_SZ,
-		const size_t &default_frame_size = DEFAULT_FRAME_SZ, const bool &drop_frames_when_buffer_empty = true);
+	AbstractBufferedPipeline(const int &_max_buffer_num = DEFAULT_MAX_FRAME_NUM,
+		const int &drop_policy = RING_DROP_OLDEST);
 	virtual ~AbstractBufferedPipeline();
 	virtual int release();
 	virtual int start();
 	virtual int stop();
 	virtual int queueFrame(uvc_frame_t *frame);
+	virtual void flush();
+	virtual uint64_t dropped() const;
 };
 
 
@@ -6,20 +6,25 @@
 #define PUPILMOBILE_CALLBACKPIPELINE_H
 
 #include "libUVCCamera.h"
-#include "CaptureBasePipeline.h"
+#include "UVCPreview.h"	// PIXEL_FORMAT_XXX, pixel_format_bytes
+#include "AbstractBufferedPipeline.h"
 
-class CallbackPipeline : virtual public CaptureBasePipeline {
+/**
+ * call IFrameCallback#onFrame on its own thread with frames converted to the pixel format
+ */
+class CallbackPipeline : virtual public AbstractBufferedPipeline {
 private:
+	pthread_mutex_t callback_mutex;
 	jobject mFrameCallbackObj;
-	convFunc_t mFrameCallbackFunc;
-	Fields_iframecallback iframecallback_fields;
+	jmethodID mOnFrame;
 	int mPixelFormat;
-	size_t callbackPixelBytes;
-	void callbackPixelFormatChanged(const uint32_t &width, const uint32_t &height);
+	// conversion target, used only on the handler thread
+	uvc_frame_t *mCallbackFrame;
 protected:
-	virtual void do_capture(JNIEnv *env);
+	virtual void on_stop(JNIEnv *env);
+	virtual int handle_frame(JNIEnv *env, uvc_frame_t *frame);
 public:
-	CallbackPipeline(const size_t &_data_bytes = DEFAULT_FRAME_SZ);
+	CallbackPipeline(const int &_max_buffer_num = DEFAULT_MAX_FRAME_NUM, const int &drop_policy = RING_DROP_OLDEST);
 	virtual ~CallbackPipeline();
 	int setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format);
 };
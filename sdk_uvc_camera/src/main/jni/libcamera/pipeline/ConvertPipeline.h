@@ -6,19 +6,21 @@
 #define PUPILMOBILE_CONVERTPIPELINE_H
 
 #include "libUVCCamera.h"
+#include "UVCPreview.h"	// PIXEL_FORMAT_XXX, pixel_format_bytes
 #include "AbstractBufferedPipeline.h"
 
+/**
+ * convert frames to target_pixel_format on its own thread and chain the converted frame,
+ * frames already in the pixel format are chained as is
+ */
 class ConvertPipeline : virtual public AbstractBufferedPipeline {
 private:
 	const int target_pixel_format;
-	convFunc_t mFrameConvFunc;
-	void updateConvFunc();
 protected:
-	virtual void on_start();
-	virtual void on_stop();
-	virtual int handle_frame(uvc_frame_t *frame);
+	virtual int handle_frame(JNIEnv *env, uvc_frame_t *frame);
 public:
-	ConvertPipeline(const size_t &_data_bytes, const int &target_pixel_format = PIXEL_FORMAT_RAW);
+	ConvertPipeline(const int &target_pixel_format = PIXEL_FORMAT_RAW,
+		const int &_max_buffer_num = DEFAULT_MAX_FRAME_NUM, const int &drop_policy = RING_DROP_OLDEST);
 	virtual ~ConvertPipeline();
 };
 
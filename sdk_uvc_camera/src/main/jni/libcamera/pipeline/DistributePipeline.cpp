@@ -2,20 +2,30 @@
 // Created by saki on 15/11/25.
 //
 
-#include "utilbase.h"
-#include "common_utils.h"
-#include "libUVCCamera.h"
+#if 1	// set 1 if you don't need debug message
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// ignore LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+	#undef NDEBUG		// depends on definition in Android.mk and Application.mk
+#endif
+
+#include <string.h>
 
-#include "pipeline_helper.h"
+#include "libUVCCamera.h"
 #include "IPipeline.h"
 #include "DistributePipeline.h"
 
-DistributePipeline::DistributePipeline(const int &_max_buffer_num, const int &init_pool_num,
-		const size_t &default_frame_size, const bool &drop_frames_when_buffer_empty)
-:	AbstractBufferedPipeline(_max_buffer_num, init_pool_num, default_frame_size, drop_frames_when_buffer_empty)
+DistributePipeline::DistributePipeline()
+:	IPipeline(),
+	pipeline_num(0)
 {
 	ENTER();
 
+	memset(pipelines, 0, sizeof(pipelines));
 	setState(PIPELINE_STATE_INITIALIZED);
 
 	EXIT();
@@ -24,189 +34,123 @@ DistributePipeline::DistributePipeline(const int &_max_buffer_num, const int &in
 DistributePipeline::~DistributePipeline() {
 	ENTER();
 
-	Mutex::Autolock lock(pipeline_mutex);
-
-	pipelines.clear();
-
-	EXIT();
-}
-
-void DistributePipeline::on_start() {
-	ENTER();
-	EXIT();
-}
+	pthread_mutex_lock(&pipeline_mutex);
+	pipeline_num = 0;
+	pthread_mutex_unlock(&pipeline_mutex);
 
-void DistributePipeline::on_stop() {
-	ENTER();
 	EXIT();
 }
 
-int DistributePipeline::handle_frame(uvc_frame_t *frame) {
+int DistributePipeline::start() {
 	ENTER();
 
-	Mutex::Autolock lock(pipeline_mutex);
-
-	for (auto iter = pipelines.begin(); iter != pipelines.end(); iter++) {
-		(*iter)->queueFrame(frame);
-	}
+	mIsRunning = true;
+	setState(PIPELINE_STATE_RUNNING);
 
 	RETURN(0, int);
 }
 
-int DistributePipeline::addPipeline(IPipeline *pipeline) {
+int DistributePipeline::stop() {
 	ENTER();
 
-	if (pipeline) {
-		Mutex::Autolock lock(pipeline_mutex);
-		pipelines.push_back(pipeline);
-	}
+	mIsRunning = false;
+	setState(PIPELINE_STATE_INITIALIZED);
 
 	RETURN(0, int);
 }
 
-int DistributePipeline::removePipeline(IPipeline *pipeline) {
-	ENTER();
-
-	if (pipeline) {
-		Mutex::Autolock lock(pipeline_mutex);
-
-		for (auto iter = pipelines.begin(); iter != pipelines.end(); ) {
-			if (*iter == pipeline) {
-				iter = pipelines.erase(iter);
-			} else {
-				iter++;
+/**
+ * the branches take their own reference of frame when they keep it
+ * @return 0 if at least one branch queued frame
+ */
+int DistributePipeline::queueFrame(uvc_frame_t *frame) {
+	if (UNLIKELY(!frame || !isRunning())) return UVC_ERROR_OTHER;
+	int result = UVC_ERROR_BUSY;
+	pthread_mutex_lock(&pipeline_mutex);
+	{
+		for (int i = 0; i < pipeline_num; i++) {
+			if (!pipelines[i]->queueFrame(frame)) {
+				result = 0;
 			}
 		}
+		if (next_pipeline && !next_pipeline->queueFrame(frame)) {
+			result = 0;
+		}
 	}
-
-	RETURN(0, int);
+	pthread_mutex_unlock(&pipeline_mutex);
+	return result;
 }
 
-//**********************************************************************
-//
-//**********************************************************************
-static ID_TYPE nativeCreate(JNIEnv *env, jobject thiz) {
-
+void DistributePipeline::flush() {
 	ENTER();
-	DistributePipeline *pipeline = new DistributePipeline();
-	setField_long(env, thiz, "mNativePtr", reinterpret_cast<ID_TYPE>(pipeline));
-	RETURN(reinterpret_cast<ID_TYPE>(pipeline), ID_TYPE);
-}
-
-static void nativeDestroy(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
 
-	ENTER();
-	setField_long(env, thiz, "mNativePtr", 0);
-	DistributePipeline *pipeline = reinterpret_cast<DistributePipeline *>(id_pipeline);
-	if (LIKELY(pipeline)) {
-		pipeline->release();
-		SAFE_DELETE(pipeline);
+	pthread_mutex_lock(&pipeline_mutex);
+	{
+		for (int i = 0; i < pipeline_num; i++) {
+			pipelines[i]->flush();
+		}
 	}
+	pthread_mutex_unlock(&pipeline_mutex);
+	IPipeline::flush();
+
 	EXIT();
 }
 
-static jint nativeGetState(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
-
+/**
+ * @return -1 if there are MAX_DISTRIBUTE_PIPELINES branches already or pipeline is this one
+ */
+int DistributePipeline::addPipeline(IPipeline *pipeline) {
 	ENTER();
-	jint result = 0;
-	DistributePipeline *pipeline = reinterpret_cast<DistributePipeline *>(id_pipeline);
-	if (pipeline) {
-		result = pipeline->getState();
-	}
-	RETURN(result, jint);
-}
-
-static jint nativeSetPipeline(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline, jobject pipeline_obj) {
 
-	ENTER();
-	jint result = JNI_ERR;
-	DistributePipeline *pipeline = reinterpret_cast<DistributePipeline *>(id_pipeline);
-	if (pipeline) {
-		IPipeline *target_pipeline = getPipeline(env, pipeline_obj);
-		result = pipeline->setPipeline(target_pipeline);
+	int result = -1;
+	if (pipeline && (pipeline != this)) {
+		pthread_mutex_lock(&pipeline_mutex);
+		{
+			result = 0;
+			for (int i = 0; i < pipeline_num; i++) {
+				if (pipelines[i] == pipeline) {
+					pipeline = NULL;	// already added
+					break;
+				}
+			}
+			if (pipeline) {
+				if (pipeline_num < MAX_DISTRIBUTE_PIPELINES) {
+					pipelines[pipeline_num++] = pipeline;
+				} else {
+					result = -1;
+				}
+			}
+		}
+		pthread_mutex_unlock(&pipeline_mutex);
 	}
 
-	RETURN(result, jint);
+	RETURN(result, int);
 }
 
-static jint nativeAddPipeline(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline, jobject pipeline_obj) {
-
+/**
+ * remove the branch, it holds no frame of the upstream anymore when this returns
+ */
+int DistributePipeline::removePipeline(IPipeline *pipeline) {
 	ENTER();
-	jint result = JNI_ERR;
-	DistributePipeline *pipeline = reinterpret_cast<DistributePipeline *>(id_pipeline);
-	if (pipeline) {
-		IPipeline *target_pipeline = getPipeline(env, pipeline_obj);
-		result = pipeline->addPipeline(target_pipeline);
-	}
-
-	RETURN(result, jint);
-}
-
-static jint nativeRemovePipeline(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline, jobject pipeline_obj) {
 
-	ENTER();
-	jint result = JNI_ERR;
-	DistributePipeline *pipeline = reinterpret_cast<DistributePipeline *>(id_pipeline);
+	int result = -1;
 	if (pipeline) {
-		IPipeline *target_pipeline = getPipeline(env, pipeline_obj);
-		result = pipeline->removePipeline(target_pipeline);
-	}
-
-	RETURN(result, jint);
-}
-
-static jint nativeStart(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
-
-	ENTER();
-
-	int result = JNI_ERR;
-	DistributePipeline *pipeline = reinterpret_cast<DistributePipeline *>(id_pipeline);
-	if (LIKELY(pipeline)) {
-		result = pipeline->start();
-	}
-	RETURN(result, jint);
-}
-
-static jint nativeStop(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
-
-	jint result = JNI_ERR;
-	ENTER();
-	DistributePipeline *pipeline = reinterpret_cast<DistributePipeline *>(id_pipeline);
-	if (LIKELY(pipeline)) {
-		result = pipeline->stop();
+		pthread_mutex_lock(&pipeline_mutex);
+		{
+			for (int i = 0; i < pipeline_num; i++) {
+				if (pipelines[i] == pipeline) {
+					pipelines[i] = pipelines[--pipeline_num];
+					pipelines[pipeline_num] = NULL;
+					result = 0;
+					break;
+				}
+			}
+		}
+		pthread_mutex_unlock(&pipeline_mutex);
+		if (!result) {
+			pipeline->flush();
+		}
 	}
-	RETURN(result, jint);
-}
 
-//**********************************************************************
-//
-//**********************************************************************
-static JNINativeMethod methods[] = {
-	{ "nativeCreate",					"()J", (void *) nativeCreate },
-	{ "nativeDestroy",					"(J)V", (void *) nativeDestroy },
-
-	{ "nativeGetState",					"(J)I", (void *) nativeGetState },
-	{ "nativeSetPipeline",				"(JLcom/serenegiant/usb/IPipeline;)I", (void *) nativeSetPipeline },
-	{ "nativeAddPipeline",				"(JLcom/serenegiant/usb/IPipeline;)I", (void *) nativeAddPipeline },
-	{ "nativeRemovePipeline",			"(JLcom/serenegiant/usb/IPipeline;)I", (void *) nativeRemovePipeline },
-
-	{ "nativeStart",					"(J)I", (void *) nativeStart },
-	{ "nativeStop",						"(J)I", (void *) nativeStop },
-};
-
-int register_distribute_pipeline(JNIEnv *env) {
-	LOGV("register_distribute_pipeline:");
-	if (registerNativeMethods(env,
-		"com/serenegiant/usb/DistributePipeline",
-		methods, NUM_ARRAY_ELEMENTS(methods)) < 0) {
-		return -1;
-	}
-    return 0;
+	RETURN(result, int);
 }
@@ -5,21 +5,25 @@
 #ifndef PUPILMOBILE_DISTRIBUTEPIPELINE_H
 #define PUPILMOBILE_DISTRIBUTEPIPELINE_H
 
-#include "AbstractBufferedPipeline.h"
+#include "IPipeline.h"
 
-#pragma interface
+#define MAX_DISTRIBUTE_PIPELINES 8
 
-class DistributePipeline : virtual public AbstractBufferedPipeline {
+/**
+ * hand every frame to each branch without queueing or copying it,
+ * each branch keeps its own reference, queue and drop policy
+ */
+class DistributePipeline : virtual public IPipeline {
 private:
-	std::list<IPipeline *> pipelines;
-protected:
-	virtual void on_start();
-	virtual void on_stop();
-	virtual int handle_frame(uvc_frame_t *frame);
+	IPipeline *pipelines[MAX_DISTRIBUTE_PIPELINES];
+	int pipeline_num;
 public:
-	DistributePipeline(const int &_max_buffer_num = DEFAULT_MAX_FRAME_NUM, const int &init_pool_num = DEFAULT_INIT_FRAME_POOL_SZ,
-			const size_t &default_frame_size = DEFAULT_FRAME_SZ, const bool &drop_frames_when_buffer_empty = true);
+	DistributePipeline();
 	virtual ~DistributePipeline();
+	virtual int start();
+	virtual int stop();
+	virtual int queueFrame(uvc_frame_t *frame);
+	virtual void flush();
 	virtual int addPipeline(IPipeline *pipeline);
 	virtual int removePipeline(IPipeline *pipeline);
 };
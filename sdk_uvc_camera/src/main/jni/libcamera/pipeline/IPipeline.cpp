@@ -13,24 +13,19 @@
 	#undef NDEBUG		// depends on definition in Android.mk and Application.mk
 #endif
 
-#include <stdlib.h>
-
-#include "utilbase.h"
-#include "common_utils.h"
-
 #include "libUVCCamera.h"
-#include "pipeline_helper.h"
 #include "IPipeline.h"
 
 /*public*/
-IPipeline::IPipeline(const size_t &_default_frame_size)
+IPipeline::IPipeline()
 :	state(PIPELINE_STATE_UNINITIALIZED),
 	mIsRunning(false),
-	default_frame_size(_default_frame_size),
 	next_pipeline(NULL)
 {
 	ENTER();
 
+	pthread_mutex_init(&pipeline_mutex, NULL);
+
 	EXIT();
 }
 
@@ -38,6 +33,8 @@ IPipeline::IPipeline(const size_t &_default_frame_size)
 IPipeline::~IPipeline() {
 	ENTER();
 
+	pthread_mutex_destroy(&pipeline_mutex);
+
 	EXIT();
 }
 
@@ -54,10 +51,14 @@ void IPipeline::setState(const pipeline_state_t &new_state) { state = new_state;
 int IPipeline::setPipeline(IPipeline *pipeline) {
 	ENTER();
 
-	Mutex::Autolock lock(pipeline_mutex);
-
-	// XXX do I need to delete next_pipeline if it is not NULL?
+	pthread_mutex_lock(&pipeline_mutex);
+	IPipeline *prev = next_pipeline;
 	next_pipeline = pipeline;
+	pthread_mutex_unlock(&pipeline_mutex);
+	// the previous one may still hold frames of this pipeline
+	if (prev && (prev != pipeline)) {
+		prev->flush();
+	}
 
 	RETURN(0, int);
 }
@@ -67,15 +68,24 @@ int IPipeline::setPipeline(IPipeline *pipeline) {
  * if you don't need this, override this function
  */
 int IPipeline::chain_frame(uvc_frame_t *frame) {
-	ENTER();
-
 	int result = -1;
-	Mutex::Autolock lock(pipeline_mutex);
+	pthread_mutex_lock(&pipeline_mutex);
+	if (next_pipeline) {
+		result = next_pipeline->queueFrame(frame);
+	}
+	pthread_mutex_unlock(&pipeline_mutex);
+	return result;
+}
 
+/*public*/
+void IPipeline::flush() {
+	ENTER();
+
+	pthread_mutex_lock(&pipeline_mutex);
 	if (next_pipeline) {
-		next_pipeline->queueFrame(frame);
-		result = 0;
+		next_pipeline->flush();
 	}
+	pthread_mutex_unlock(&pipeline_mutex);
 
-	RETURN(result, int);
+	EXIT();
 }
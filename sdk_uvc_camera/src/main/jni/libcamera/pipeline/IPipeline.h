@@ -5,18 +5,11 @@
 #ifndef PUPILMOBILE_IPIPELINE_H
 #define PUPILMOBILE_IPIPELINE_H
 
-#include <stdlib.h>
 #include <pthread.h>
-#include "Mutex.h"
 
 #include "libUVCCamera.h"
 
-#pragma interface
-
-using namespace android;
-
-#define DEFAULT_FRAME_SZ 1024
-
+// keep in sync with Pipeline.java
 typedef enum pipeline_type {
 	PIPELINE_TYPE_SIMPLE_BUFFERED = 0,
 	PIPELINE_TYPE_SQLITE_BUFFERED = 10,
@@ -37,6 +30,23 @@ typedef enum _pipeline_state {
 	PIPELINE_STATE_STOPPING = 50,
 } pipeline_state_t;
 
+/**
+ * frames are shared by reference between the pipelines of a graph instead of copied per branch,
+ * the owner sets frame->release and takes the first reference, every pipeline keeping the frame takes one more
+ */
+static inline void pipeline_frame_ref(uvc_frame_t *frame) {
+	__atomic_add_fetch(&frame->refs, 1, __ATOMIC_RELAXED);
+}
+
+/**
+ * drop a reference, the last one hands the frame back to its owner
+ */
+static inline void pipeline_frame_unref(uvc_frame_t *frame) {
+	if (__atomic_sub_fetch(&frame->refs, 1, __ATOMIC_ACQ_REL) <= 0) {
+		frame->release(frame, frame->release_arg);
+	}
+}
+
 class IPipeline;
 
 class IPipeline {
@@ -47,19 +57,17 @@ private:
 	void operator =(const IPipeline &src);
 protected:
 	volatile bool mIsRunning;
-	const size_t default_frame_size;
-	mutable Mutex pipeline_mutex;
+	pthread_mutex_t pipeline_mutex;
 	IPipeline *next_pipeline;
 	void setState(const pipeline_state_t &new_state);
 	/**
 	 * if handle_frame return 0, handler_thread call this function
-	 * set frame to next pipeline
-	 * this may block caller thread while the pipeline is full
+	 * set frame to next pipeline, the next pipeline takes its own reference
 	 * @return 0: success queueing, other: failed
 	 */
 	virtual int chain_frame(uvc_frame_t *frame);
 public:
-	IPipeline(const size_t &default_frame_size = DEFAULT_FRAME_SZ);
+	IPipeline();
 	virtual ~IPipeline();
 	const pipeline_state_t getState() const;
 	const bool isRunning() const;
@@ -67,7 +75,19 @@ public:
 	virtual int release() { return 0; };
 	virtual int start() { return 0; };
 	virtual int stop() { return 0; };
+	/**
+	 * hand a frame to this pipeline, it takes a reference when it keeps the frame.
+	 * called only from the thread of the upstream pipeline (or the capture thread of the camera)
+	 * @return 0: queued, other: dropped or not running
+	 */
 	virtual int queueFrame(uvc_frame_t *frame) = 0;
+	/**
+	 * drop the queued frames and wait for the one being handled,
+	 * afterwards this pipeline and the ones after it hold no frame of the upstream anymore
+	 */
+	virtual void flush();
+	// frames dropped because the queue of this pipeline was full
+	virtual uint64_t dropped() const { return 0; };
 };
 
 
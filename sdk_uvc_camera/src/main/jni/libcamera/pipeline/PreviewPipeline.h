@@ -8,17 +8,26 @@
 #include <android/native_window.h>
 
 #include "libUVCCamera.h"
-#include "CaptureBasePipeline.h"
+#include "AbstractBufferedPipeline.h"
 
-class PreviewPipeline : virtual public CaptureBasePipeline {
+/**
+ * draw frames to a Surface on its own thread, RGBX or RGB565 depending on the window format
+ */
+class PreviewPipeline : virtual public AbstractBufferedPipeline {
 private:
-	ANativeWindow *mCaptureWindow;
+	pthread_mutex_t surface_mutex;
+	ANativeWindow *mWindow;
+	int mWindowWidth, mWindowHeight, mWindowFormat;
+	// conversion target, used only on the handler thread
+	uvc_frame_t *mSurfaceFrame;
+	int draw_frame(uvc_frame_t *frame);
 protected:
-	virtual void do_capture(JNIEnv *env);
+	virtual void on_stop(JNIEnv *env);
+	virtual int handle_frame(JNIEnv *env, uvc_frame_t *frame);
 public:
-	PreviewPipeline(const size_t &_data_bytes = DEFAULT_FRAME_SZ);
+	PreviewPipeline(const int &_max_buffer_num = DEFAULT_MAX_FRAME_NUM, const int &drop_policy = RING_DROP_OLDEST);
 	virtual ~PreviewPipeline();
-	int setCaptureDisplay(ANativeWindow *capture_window);
+	int setSurface(ANativeWindow *window);
 };
 
 
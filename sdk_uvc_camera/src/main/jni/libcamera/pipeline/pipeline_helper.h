@@ -5,10 +5,14 @@
 #ifndef PUPILMOBILE_PIPELINE_HELPER_H_H
 #define PUPILMOBILE_PIPELINE_HELPER_H_H
 
-#include "common_utils.h"
+#include "libUVCCamera.h"
 
 #include "IPipeline.h"
 
-IPipeline *getPipeline(JNIEnv *env, jobject pipeline_obj);
+/**
+ * @param type pipeline_type_t of the pipeline, the Java side keeps it with mNativePtr
+ * @return NULL if type is not a pipeline type built into this library
+ */
+IPipeline *getPipeline(ID_TYPE id_pipeline, jint type);
 
 #endif //PUPILMOBILE_PIPELINE_HELPER_H_H
@@ -393,3 +393,86 @@ char *UVCDiags::getSupportedSize(const uvc_device_handle_t *deviceHandle) {
 	writer.EndObject();
 	RETURN(strdup(buffer.GetString()), char *);
 }
+
+// counts only while values is NULL
+static inline void put(int *values, int &ix, int value) {
+	if (values) values[ix] = value;
+	ix++;
+}
+
+static int writeFormats(const uvc_device_handle_t *deviceHandle, int *values) {
+	int ix = 0;
+	put(values, ix, FORMATS_VERSION);
+	const int count_ix = ix;
+	put(values, ix, 0);
+	int formats = 0;
+	uvc_streaming_interface_t *stream_if;
+	DL_FOREACH(deviceHandle->info->stream_ifs, stream_if)
+	{
+		uvc_format_desc_t *fmt_desc;
+		DL_FOREACH(stream_if->format_descs, fmt_desc)
+		{
+			formats++;
+			put(values, ix, fmt_desc->bDescriptorSubtype);
+			put(values, ix, fmt_desc->bFormatIndex);
+			put(values, ix, fmt_desc->bDefaultFrameIndex);
+			put(values, ix, fmt_desc->bDescriptorSubtype == UVC_VS_FORMAT_MJPEG ? 0 : fmt_desc->bBitsPerPixel);
+			const int frame_count_ix = ix;
+			put(values, ix, 0);
+			int frames = 0;
+			uvc_frame_desc_t *frame_desc;
+			DL_FOREACH(fmt_desc->frame_descs, frame_desc)
+			{
+				frames++;
+				put(values, ix, frame_desc->bFrameIndex);
+				put(values, ix, frame_desc->bmCapabilities);
+				put(values, ix, frame_desc->wWidth);
+				put(values, ix, frame_desc->wHeight);
+				put(values, ix, frame_desc->dwDefaultFrameInterval);
+				put(values, ix, frame_desc->bFrameIntervalType);
+				if (!frame_desc->bFrameIntervalType) {
+					put(values, ix, frame_desc->dwMinFrameInterval);
+					put(values, ix, frame_desc->dwMaxFrameInterval);
+					put(values, ix, frame_desc->dwFrameIntervalStep);
+				} else {
+					for (int i = 0; i < frame_desc->bFrameIntervalType; i++) {
+						put(values, ix, frame_desc->intervals[i]);
+					}
+				}
+			}
+			if (values) values[frame_count_ix] = frames;
+			const uvc_still_frame_desc_t *still = fmt_desc->still_frame_desc;
+			const int sizes = still ? still->bNumImageSizePatterns : 0;
+			put(values, ix, sizes);
+			for (int i = 0; i < sizes * 2; i++) {
+				put(values, ix, still->wWidthHeight[i]);
+			}
+			const int compressions = still ? still->bNumCompressionPattern : 0;
+			put(values, ix, compressions);
+			for (int i = 0; i < compressions; i++) {
+				put(values, ix, still->bCompression[i]);
+			}
+		}
+	}
+	if (values) values[count_ix] = formats;
+	return ix;
+}
+
+/**
+ * formats, frame sizes, frame intervals and still image sizes of all streaming interfaces,
+ * see Parameters.h for the layout
+ * @param len number of values returned
+ * @return values, free it with free(); NULL if the device has none
+ */
+int *UVCDiags::getFormats(const uvc_device_handle_t *deviceHandle, int &len) {
+	ENTER();
+	len = 0;
+	if (!deviceHandle->info->stream_ifs) RETURN(NULL, int *);
+	const int n = writeFormats(deviceHandle, NULL);
+	int *values = (int *) malloc(n * sizeof(int));
+	if (LIKELY(values)) {
+		writeFormats(deviceHandle, values);
+		len = n;
+	}
+	RETURN(values, int *);
+}
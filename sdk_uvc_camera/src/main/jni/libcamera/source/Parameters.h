@@ -29,6 +29,16 @@
 
 #include "libUVCCamera.h"
 
+/*
+ * layout of UVCDiags#getFormats, keep in sync with SizeFormats#parse:
+ * {FORMATS_VERSION, format count, formats...}
+ * format: {descriptor subtype, format index, default frame index, bits per pixel, frame count, frames...,
+ *          still size count, {width, height}..., still compression count, compressions...}
+ * frame: {frame index, capabilities, width, height, default interval, interval type,
+ *         interval type 0: {min, max, step} interval, n: n intervals}, intervals in 100ns
+ */
+#define FORMATS_VERSION 1
+
 class UVCDiags {
 private:
 public:
@@ -37,6 +47,7 @@ public:
 	char *getDescriptions(const uvc_device_handle_t *deviceHandle);
 	char *getCurrentStream(const uvc_stream_ctrl_t *ctrl);
 	char *getSupportedSize(const uvc_device_handle_t *deviceHandle);
+	int *getFormats(const uvc_device_handle_t *deviceHandle, int &len);
 };
 
 #endif /* PARAMETERS_H_ */
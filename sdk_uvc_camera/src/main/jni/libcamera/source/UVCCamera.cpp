@@ -59,15 +59,22 @@ UVCCamera::UVCCamera()
 :	mFd(0),
 	mUsbFs(NULL),
 	mContext(NULL),
+	mGroup(NULL),
 	mDevice(NULL),
 	mDeviceHandle(NULL),
 	mStatusCallback(NULL),
 	mButtonCallback(NULL),
+	mControlQueue(NULL),
+	mQueueUsers(0),
 	mPreview(NULL),
+	mConnectNs(0),
 	mCtrlSupports(0),
 	mPUSupports(0) {
 
 	ENTER()
+	pthread_mutex_init(&mCtrlMutex, NULL);
+	pthread_mutex_init(&mQueueMutex, NULL);
+	pthread_cond_init(&mQueueSync, NULL);
 	clearCameraParams();
 	EXIT();
 }
@@ -78,7 +85,12 @@ UVCCamera::UVCCamera()
 UVCCamera::~UVCCamera() {
 	ENTER()
 	release();
-	if (mContext) {
+	if (mGroup) {
+		// the context belongs to the group
+		mGroup->detach();
+		mGroup = NULL;
+		mContext = NULL;
+	} else if (mContext) {
 		uvc_exit(mContext);
 		mContext = NULL;
 	}
@@ -86,6 +98,9 @@ UVCCamera::~UVCCamera() {
 		free(mUsbFs);
 		mUsbFs = NULL;
 	}
+	pthread_cond_destroy(&mQueueSync);
+	pthread_mutex_destroy(&mQueueMutex);
+	pthread_mutex_destroy(&mCtrlMutex);
 	EXIT();
 }
 
@@ -129,6 +144,9 @@ void UVCCamera::clearCameraParams() {
 	mMultiplierLimit.min = mMultiplierLimit.max = mMultiplierLimit.def = 0;
 	mAnalogVideoStandard.min = mAnalogVideoStandard.max = mAnalogVideoStandard.def = 0;
 	mAnalogVideoLockState.min = mAnalogVideoLockState.max = mAnalogVideoLockState.def = 0;
+	for (int i = 0; i < sControlCount; i++) {
+		(this->*sControls[i].value).flags = 0;
+	}
 }
 
 //======================================================================
@@ -141,7 +159,8 @@ int UVCCamera::connect(int vid, int pid, int fd, int busnum, int devaddr, const
 			free(mUsbFs);
 		mUsbFs = strdup(usbfs);
 		if (UNLIKELY(!mContext)) {
-			result = uvc_init2(&mContext, NULL, mUsbFs);
+			result = mGroup ? (uvc_error_t) mGroup->getContext(&mContext, mUsbFs)
+				: uvc_init2(&mContext, NULL, mUsbFs);
 			//libusb_set_debug(mContext->usb_ctx, LIBUSB_LOG_LEVEL_DEBUG);
 			if (UNLIKELY(result < 0)) {
 				LOGD("failed to init libuvc");
@@ -151,6 +170,7 @@ int UVCCamera::connect(int vid, int pid, int fd, int busnum, int devaddr, const
 		// 清除相机功能标志
 		clearCameraParams();
 		fd = dup(fd);
+		const uint64_t start_time = UVCStats::now();
 		// 搜索具有指定vid和​​id的设备，如果找到则返回0，然后将找到的设备设置为mDevice（已经称为uvc_ref_device一次）
 		//result = uvc_find_device2(mContext, &mDevice, vid, pid, NULL, fd);
 		result = uvc_get_device_with_fd(mContext, &mDevice, vid, pid, NULL, fd, busnum, devaddr);
@@ -162,10 +182,21 @@ int UVCCamera::connect(int vid, int pid, int fd, int busnum, int devaddr, const
 #if LOCAL_DEBUG
 				uvc_print_diag(mDeviceHandle, stderr);
 #endif
+				mConnectNs = UVCStats::now() - start_time;
 				mFd = fd;
 				mStatusCallback = new UVCStatusCallback(mDeviceHandle);
+				mStatusCallback->setControlListener(control_changed, this);
 				mButtonCallback = new UVCButtonCallback(mDeviceHandle);
+				UVCControlQueue *queue = new UVCControlQueue(mDeviceHandle);
+				queue->setListener(control_written, this);
+				pthread_mutex_lock(&mQueueMutex);
+				mControlQueue = queue;
+				pthread_mutex_unlock(&mQueueMutex);
 				mPreview = new UVCPreview(mDeviceHandle);
+				if (mGroup) mPreview->setDecodePool(mGroup->getDecodePool());
+				// an older blob of another firmware/configuration is refused by #setStreamCache
+				mStreamCache.reset(uvc_get_descriptor_hash(mDeviceHandle));
+				mPreview->setStreamCache(&mStreamCache);
 			} else {
 				// open出来なかった時
 				LOGE("could not open camera:err=%d", result);
@@ -187,6 +218,40 @@ int UVCCamera::connect(int vid, int pid, int fd, int busnum, int devaddr, const
 	RETURN(result, int)
 }
 
+//connect a synthetic/replay frame source instead of a camera, takes ownership of source
+int UVCCamera::connectSource(uvc_frame_source_t *source) {
+	ENTER()
+	int result = UVC_ERROR_BUSY;
+	if (!mDeviceHandle && !mPreview && source) {
+		clearCameraParams();
+		mPreview = new UVCPreview(NULL);
+		if (mGroup) mPreview->setDecodePool(mGroup->getDecodePool());
+		result = mPreview->setFrameSource(source);
+	} else {
+		LOGW("camera is already opened. you should release first");
+		if (source) uvc_source_destroy(source);
+	}
+	RETURN(result, int)
+}
+
+//join a camera group before the first connect, the group must outlive this camera
+int UVCCamera::setGroup(UVCCameraGroup *group) {
+	ENTER()
+	int result = UVC_ERROR_BUSY;
+	if (!mDeviceHandle && !mPreview && !mGroup && group) {
+		if (mContext) {
+			uvc_exit(mContext);
+			mContext = NULL;
+		}
+		mGroup = group;
+		mGroup->attach();
+		result = UVC_SUCCESS;
+	} else {
+		LOGW("camera is already opened or grouped");
+	}
+	RETURN(result, int)
+}
+
 // release camera resource
 int UVCCamera::release() {
 	ENTER()
@@ -194,6 +259,16 @@ int UVCCamera::release() {
 	// 相机关闭处理
 	if (LIKELY(mDeviceHandle)) {
 		MARK("カメラがopenしていたら開放する");
+		// wait for the asynchronous control writes, they need the event thread uvc_close stops
+		pthread_mutex_lock(&mQueueMutex);
+		UVCControlQueue *queue = mControlQueue;
+		mControlQueue = NULL;
+		// #setControlAsync may still read limits from the device
+		while (mQueueUsers > 0) {
+			pthread_cond_wait(&mQueueSync, &mQueueMutex);
+		}
+		pthread_mutex_unlock(&mQueueMutex);
+		SAFE_DELETE(queue);
 		// 销毁状态回调对象
 		SAFE_DELETE(mStatusCallback);
 		SAFE_DELETE(mButtonCallback);
@@ -208,6 +283,8 @@ int UVCCamera::release() {
 		uvc_unref_device(mDevice);
 		mDevice = NULL;
 	}
+	// 放弃帧源预览对象
+	SAFE_DELETE(mPreview);
 	// 清除相机功能标志
 	clearCameraParams();
 	if (mUsbFs) {
@@ -240,12 +317,58 @@ int UVCCamera::setButtonCallback(JNIEnv *env, jobject button_callback_obj) {
 char *UVCCamera::getSupportedSize() {
 	ENTER()
 	if (mDeviceHandle) {
-		UVCDiags params;
-		RETURN(params.getSupportedSize(mDeviceHandle), char *)
+		char *result = mStreamCache.getSupportedSize();
+		if (!result) {
+			UVCDiags params;
+			result = params.getSupportedSize(mDeviceHandle);
+			if (result) mStreamCache.setSupportedSize(result);
+		}
+		RETURN(result, char *)
 	}
 	RETURN(NULL, char *)
 }
 
+//formats, frame sizes, intervals and still sizes without JSON, see Parameters.h for the layout
+int *UVCCamera::getFormats(int &len) {
+	ENTER()
+	len = 0;
+	if (mDeviceHandle) {
+		UVCDiags params;
+		RETURN(params.getFormats(mDeviceHandle, len), int *)
+	}
+	RETURN(NULL, int *)
+}
+
+//take over what this device answered before, call right after #connect
+int UVCCamera::setStreamCache(const uint8_t *blob, size_t len) {
+	ENTER()
+	int result = EXIT_FAILURE;
+	if (mDeviceHandle) {
+		result = mStreamCache.load(blob, len);
+	}
+	RETURN(result, int)
+}
+
+//blob to persist for the next #connect, free it with free(); NULL if nothing changed
+uint8_t *UVCCamera::getStreamCache(size_t &len) {
+	ENTER()
+	len = 0;
+	uint8_t *result = mDeviceHandle ? mStreamCache.save(len) : NULL;
+	RETURN(result, uint8_t *)
+}
+
+//STARTUP_NUM values, see UVCStats.h for the layout
+int UVCCamera::getStartupTimes(uint64_t *values) {
+	ENTER()
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		mPreview->getStartupTimes(values);
+		values[STARTUP_CONNECT] = mConnectNs;
+		result = EXIT_SUCCESS;
+	}
+	RETURN(result, int)
+}
+
 int UVCCamera::setPreviewSize(int width, int height, int min_fps, int max_fps, int mode, float bandwidth) {
 	ENTER()
 	int result = EXIT_FAILURE;
@@ -275,6 +398,124 @@ int UVCCamera::setPreviewFlip(int flip) {
 	RETURN(result, int)
 }
 
+int UVCCamera::setPreviewFormat(int window_format) {
+	ENTER()
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setPreviewFormat(window_format);
+	}
+	RETURN(result, int)
+}
+
+int UVCCamera::setZeroCopy(bool zero_copy) {
+	ENTER()
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setZeroCopy(zero_copy);
+	}
+	RETURN(result, int)
+}
+
+int UVCCamera::setFrameQueue(int depth, int drop_policy) {
+	ENTER()
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setFrameQueue(depth, drop_policy);
+	}
+	RETURN(result, int)
+}
+
+int UVCCamera::setDecodeWorkers(int workers) {
+	ENTER()
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setDecodeWorkers(workers);
+	}
+	RETURN(result, int)
+}
+
+uint64_t UVCCamera::getCopiedBytesPerFrame() {
+	ENTER()
+	uint64_t result = 0;
+	if (mPreview) {
+		result = mPreview->getCopiedBytesPerFrame();
+	}
+	RETURN(result, uint64_t)
+}
+
+int UVCCamera::getFramePoolStats(uint64_t *stats) {
+	ENTER()
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->getFramePoolStats(stats);
+	}
+	RETURN(result, int)
+}
+
+int UVCCamera::getStats(uint64_t *values) {
+	ENTER()
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		mPreview->getStats(values);
+		result = EXIT_SUCCESS;
+	}
+	RETURN(result, int)
+}
+
+int UVCCamera::startRecording(const char *path) {
+	ENTER()
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->startRecording(path);
+	}
+	RETURN(result, int)
+}
+
+int UVCCamera::stopRecording() {
+	ENTER()
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->stopRecording();
+	}
+	RETURN(result, int)
+}
+
+int UVCCamera::getRecordingStats(uint64_t *stats) {
+	ENTER()
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->getRecordingStats(stats);
+	}
+	RETURN(result, int)
+}
+
+int UVCCamera::setTransferPlan(int transfers, int packets, int alt_policy) {
+	ENTER()
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setTransferPlan(transfers, packets, alt_policy);
+	}
+	RETURN(result, int)
+}
+
+int UVCCamera::getTransferStats(uint64_t *stats) {
+	ENTER()
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->getTransferStats(stats);
+	}
+	RETURN(result, int)
+}
+
+int UVCCamera::getClockEstimate(uint64_t *estimate) {
+	ENTER()
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->getClockEstimate(estimate);
+	}
+	RETURN(result, int)
+}
+
 int UVCCamera::setPreviewDisplay(ANativeWindow *preview_window) {
 	ENTER()
 	int result = EXIT_FAILURE;
@@ -284,11 +525,64 @@ int UVCCamera::setPreviewDisplay(ANativeWindow *preview_window) {
 	RETURN(result, int)
 }
 
-int UVCCamera::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format) {
+int UVCCamera::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format, jobject frame_info_obj) {
 	ENTER()
 	int result = EXIT_FAILURE;
 	if (mPreview) {
-		result = mPreview->setFrameCallback(env, frame_callback_obj, pixel_format);
+		result = mPreview->setFrameCallback(env, frame_callback_obj, pixel_format, frame_info_obj);
+	}
+	RETURN(result, int)
+}
+
+int UVCCamera::setCallbackBuffers(int count) {
+	ENTER()
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setCallbackBuffers(count);
+	}
+	RETURN(result, int)
+}
+
+int UVCCamera::setFrameCallbackRegion(const uvc_roi_t &roi) {
+	ENTER()
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setFrameCallbackRegion(roi);
+	}
+	RETURN(result, int)
+}
+
+int UVCCamera::releaseCallbackBuffer(JNIEnv *env, jobject buffer) {
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->releaseCallbackBuffer(env, buffer);
+	}
+	return result;
+}
+
+UVCFrameConsumer *UVCCamera::addFrameConsumer(int pixel_format, int depth, int policy, int max_fps) {
+	ENTER()
+	UVCFrameConsumer *result = NULL;
+	if (mPreview) {
+		result = mPreview->addFrameConsumer(pixel_format, depth, policy, max_fps);
+	}
+	RETURN(result, UVCFrameConsumer *)
+}
+
+int UVCCamera::removeFrameConsumer(JNIEnv *env, UVCFrameConsumer *consumer) {
+	ENTER()
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->removeFrameConsumer(env, consumer);
+	}
+	RETURN(result, int)
+}
+
+int UVCCamera::setPipeline(IPipeline *pipeline) {
+	ENTER()
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setPipeline(pipeline);
 	}
 	RETURN(result, int)
 }
@@ -296,7 +590,7 @@ int UVCCamera::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pix
 int UVCCamera::startPreview() {
 	ENTER()
 	int result = EXIT_FAILURE;
-	if (mDeviceHandle) {
+	if (mPreview) {
 		return mPreview->startPreview();
 	}
 	RETURN(result, int)
@@ -373,6 +667,412 @@ int UVCCamera::getProcSupports(uint64_t *supports) {
 	RETURN(ret, int);
 }
 
+//==================================================================================================
+// control cache: limits are read once per connect, current values are kept from the sets
+// and the value change events of the status interrupt, so polling the controls costs no transfer
+
+#define AE_MODE_AUTO_EXPOSURE	0x0a	// auto, aperture priority: exposure time driven by the camera
+#define AE_MODE_AUTO_IRIS		0x06	// auto, shutter priority: iris driven by the camera
+
+const control_desc_t UVCCamera::sControls[] = {
+	{ CTRL_SCANNING, UVC_CT_SCANNING_MODE_CONTROL, 1, false, 0, 0, &UVCCamera::mScanningMode },
+	{ CTRL_AE, UVC_CT_AE_MODE_CONTROL, 1, false, 0, 0, &UVCCamera::mExposureMode },
+	{ CTRL_AE_PRIORITY, UVC_CT_AE_PRIORITY_CONTROL, 1, false, 0, 0, &UVCCamera::mExposurePriority },
+	{ CTRL_AE_ABS, UVC_CT_EXPOSURE_TIME_ABSOLUTE_CONTROL, 4, false, CTRL_AE, AE_MODE_AUTO_EXPOSURE, &UVCCamera::mExposureAbs },
+	{ CTRL_FOCUS_ABS, UVC_CT_FOCUS_ABSOLUTE_CONTROL, 2, false, CTRL_FOCUS_AUTO, 1, &UVCCamera::mFocus },
+	{ CTRL_FOCUS_AUTO, UVC_CT_FOCUS_AUTO_CONTROL, 1, false, 0, 0, &UVCCamera::mAutoFocus },
+	{ CTRL_IRIS_ABS, UVC_CT_IRIS_ABSOLUTE_CONTROL, 2, false, CTRL_AE, AE_MODE_AUTO_IRIS, &UVCCamera::mIris },
+	{ CTRL_ZOOM_ABS, UVC_CT_ZOOM_ABSOLUTE_CONTROL, 2, false, 0, 0, &UVCCamera::mZoom },
+	{ CTRL_ROLL_ABS, UVC_CT_ROLL_ABSOLUTE_CONTROL, 2, true, 0, 0, &UVCCamera::mRoll },
+	{ CTRL_PRIVACY, UVC_CT_PRIVACY_CONTROL, 1, false, 0, 0, &UVCCamera::mPrivacy },
+	{ CTRL_ID_PU | PU_BRIGHTNESS, UVC_PU_BRIGHTNESS_CONTROL, 2, true, 0, 0, &UVCCamera::mBrightness },
+	{ CTRL_ID_PU | PU_CONTRAST, UVC_PU_CONTRAST_CONTROL, 2, false, CTRL_ID_PU | PU_CONTRAST_AUTO, 1, &UVCCamera::mContrast },
+	{ CTRL_ID_PU | PU_CONTRAST_AUTO, UVC_PU_CONTRAST_AUTO_CONTROL, 1, false, 0, 0, &UVCCamera::mAutoContrast },
+	{ CTRL_ID_PU | PU_HUE, UVC_PU_HUE_CONTROL, 2, true, CTRL_ID_PU | PU_HUE_AUTO, 1, &UVCCamera::mHue },
+	{ CTRL_ID_PU | PU_HUE_AUTO, UVC_PU_HUE_AUTO_CONTROL, 1, false, 0, 0, &UVCCamera::mAutoHue },
+	{ CTRL_ID_PU | PU_SATURATION, UVC_PU_SATURATION_CONTROL, 2, false, 0, 0, &UVCCamera::mSaturation },
+	{ CTRL_ID_PU | PU_SHARPNESS, UVC_PU_SHARPNESS_CONTROL, 2, false, 0, 0, &UVCCamera::mSharpness },
+	{ CTRL_ID_PU | PU_GAMMA, UVC_PU_GAMMA_CONTROL, 2, false, 0, 0, &UVCCamera::mGamma },
+	{ CTRL_ID_PU | PU_WB_TEMP, UVC_PU_WHITE_BALANCE_TEMPERATURE_CONTROL, 2, false, CTRL_ID_PU | PU_WB_TEMP_AUTO, 1, &UVCCamera::mWhiteBalance },
+	{ CTRL_ID_PU | PU_WB_TEMP_AUTO, UVC_PU_WHITE_BALANCE_TEMPERATURE_AUTO_CONTROL, 1, false, 0, 0, &UVCCamera::mAutoWhiteBalance },
+	{ CTRL_ID_PU | PU_WB_COMPO_AUTO, UVC_PU_WHITE_BALANCE_COMPONENT_AUTO_CONTROL, 1, false, 0, 0, &UVCCamera::mAutoWhiteBalanceCompo },
+	{ CTRL_ID_PU | PU_BACKLIGHT, UVC_PU_BACKLIGHT_COMPENSATION_CONTROL, 2, false, 0, 0, &UVCCamera::mBacklightComp },
+	{ CTRL_ID_PU | PU_GAIN, UVC_PU_GAIN_CONTROL, 2, false, 0, 0, &UVCCamera::mGain },
+	{ CTRL_ID_PU | PU_POWER_LF, UVC_PU_POWER_LINE_FREQUENCY_CONTROL, 1, false, 0, 0, &UVCCamera::mPowerlineFrequency },
+	{ CTRL_ID_PU | PU_DIGITAL_MULT, UVC_PU_DIGITAL_MULTIPLIER_CONTROL, 2, false, 0, 0, &UVCCamera::mMultiplier },
+	{ CTRL_ID_PU | PU_DIGITAL_LIMIT, UVC_PU_DIGITAL_MULTIPLIER_LIMIT_CONTROL, 2, false, 0, 0, &UVCCamera::mMultiplierLimit },
+	{ CTRL_ID_PU | PU_AVIDEO_STD, UVC_PU_ANALOG_VIDEO_STANDARD_CONTROL, 1, false, 0, 0, &UVCCamera::mAnalogVideoStandard },
+	{ CTRL_ID_PU | PU_AVIDEO_LOCK, UVC_PU_ANALOG_LOCK_STATUS_CONTROL, 1, false, 0, 0, &UVCCamera::mAnalogVideoLockState },
+};
+
+const int UVCCamera::sControlCount = sizeof(sControls) / sizeof(sControls[0]);
+
+static inline int decode_ctrl_value(const control_desc_t *desc, const uint8_t *data) {
+	switch (desc->len) {
+	case 1:
+		return desc->is_signed ? (int) (int8_t) data[0] : (int) data[0];
+	case 2:
+		return desc->is_signed ? (int) (int16_t) SW_TO_SHORT(data) : (int) (uint16_t) SW_TO_SHORT(data);
+	default:
+		return (int) DW_TO_INT(data);
+	}
+}
+
+static inline void encode_ctrl_value(const control_desc_t *desc, int value, uint8_t *data) {
+	switch (desc->len) {
+	case 1:
+		data[0] = (uint8_t) value;
+		break;
+	case 2:
+		SHORT_TO_SW(value, data);
+		break;
+	default:
+		INT_TO_DW(value, data);
+		break;
+	}
+}
+
+// the control of id if this camera supports it, NULL otherwise
+const control_desc_t *UVCCamera::findControl(int id) {
+	if (UNLIKELY(!mDeviceHandle)) return NULL;
+	const uint64_t bit = (uint32_t) id & ~CTRL_ID_PU;
+	uint64_t supports;
+	if (id & CTRL_ID_PU) {
+		if (getProcSupports(&supports) || !(supports & bit)) return NULL;
+	} else {
+		if (getCtrlSupports(&supports) || !(supports & bit)) return NULL;
+	}
+	for (int i = 0; i < sControlCount; i++) {
+		if (sControls[i].id == id) return &sControls[i];
+	}
+	return NULL;
+}
+
+int UVCCamera::controlUnit(const control_desc_t *desc) {
+	return (desc->id & CTRL_ID_PU)
+		? uvc_get_processing_units(mDeviceHandle)->bUnitID
+		: uvc_get_input_terminals(mDeviceHandle)->bTerminalID;
+}
+
+int UVCCamera::readControlLimits(const control_desc_t *desc) {
+	control_value_t &values = this->*desc->value;
+	if (values.flags & (CTRL_FLAG_LIMITS | CTRL_FLAG_NO_LIMITS)) {
+		return values.flags & CTRL_FLAG_LIMITS ? UVC_SUCCESS : UVC_ERROR_NOT_SUPPORTED;
+	}
+	const int unit = controlUnit(desc);
+	uint8_t min[4], max[4], def[4];
+	const bool ok = (uvc_get_ctrl(mDeviceHandle, unit, desc->selector, min, desc->len, UVC_GET_MIN) == desc->len)
+		&& (uvc_get_ctrl(mDeviceHandle, unit, desc->selector, max, desc->len, UVC_GET_MAX) == desc->len)
+		&& (uvc_get_ctrl(mDeviceHandle, unit, desc->selector, def, desc->len, UVC_GET_DEF) == desc->len);
+	pthread_mutex_lock(&mCtrlMutex);
+	{
+		if (ok) {
+			values.min = decode_ctrl_value(desc, min);
+			values.max = decode_ctrl_value(desc, max);
+			values.def = decode_ctrl_value(desc, def);
+			values.flags |= CTRL_FLAG_LIMITS;
+		} else {
+			// e.g. the AE mode only answers GET_RES/GET_DEF
+			values.flags |= CTRL_FLAG_NO_LIMITS;
+		}
+	}
+	pthread_mutex_unlock(&mCtrlMutex);
+	return ok ? UVC_SUCCESS : UVC_ERROR_NOT_SUPPORTED;
+}
+
+// whether the camera currently drives the value of desc by itself, call with mCtrlMutex held
+bool UVCCamera::isAutoControlled(const control_desc_t *desc) {
+	if (!desc->auto_id) return false;
+	const control_desc_t *auto_desc = findControl(desc->auto_id);
+	if (!auto_desc) return false;
+	const control_value_t &auto_values = this->*auto_desc->value;
+	// not known yet, do not trust the cached value
+	if (!(auto_values.flags & CTRL_FLAG_CURRENT)) return true;
+	return (auto_values.current & desc->auto_mask) != 0;
+}
+
+void UVCCamera::invalidateControl(control_value_t &values) {
+	pthread_mutex_lock(&mCtrlMutex);
+	values.flags &= ~CTRL_FLAG_CURRENT;
+	pthread_mutex_unlock(&mCtrlMutex);
+}
+
+// the controls driven by auto_id may have changed when auto_id was set, call with mCtrlMutex held
+void UVCCamera::invalidateDependents(int auto_id) {
+	for (int i = 0; i < sControlCount; i++) {
+		if (sControls[i].auto_id == auto_id) {
+			(this->*sControls[i].value).flags &= ~CTRL_FLAG_CURRENT;
+		}
+	}
+}
+
+/**
+ * current value of a control, from the cache unless it was never read,
+ * was invalidated or the camera drives it by itself (auto mode)
+ * @param id CTRL_* or PU_* | CTRL_ID_PU
+ */
+int UVCCamera::getControl(int id, int &value) {
+	const control_desc_t *desc = findControl(id);
+	if (UNLIKELY(!desc)) return UVC_ERROR_NOT_SUPPORTED;
+	control_value_t &values = this->*desc->value;
+	bool cached;
+	pthread_mutex_lock(&mCtrlMutex);
+	{
+		cached = (values.flags & CTRL_FLAG_CURRENT) && !isAutoControlled(desc);
+		if (cached) value = values.current;
+	}
+	pthread_mutex_unlock(&mCtrlMutex);
+	if (cached) return UVC_SUCCESS;
+	uint8_t data[4];
+	const int ret = uvc_get_ctrl(mDeviceHandle, controlUnit(desc), desc->selector, data, desc->len, UVC_GET_CUR);
+	if (UNLIKELY(ret != desc->len)) {
+		return ret < 0 ? ret : UVC_ERROR_IO;
+	}
+	value = decode_ctrl_value(desc, data);
+	pthread_mutex_lock(&mCtrlMutex);
+	{
+		values.current = value;
+		values.flags |= CTRL_FLAG_CURRENT;
+	}
+	pthread_mutex_unlock(&mCtrlMutex);
+	return UVC_SUCCESS;
+}
+
+/**
+ * set a control, clamped to its limits when the device reports them
+ * @param id CTRL_* or PU_* | CTRL_ID_PU
+ */
+int UVCCamera::setControl(int id, int value) {
+	const control_desc_t *desc = findControl(id);
+	if (UNLIKELY(!desc)) return UVC_ERROR_NOT_SUPPORTED;
+	control_value_t &values = this->*desc->value;
+	if (!readControlLimits(desc)) {
+		value = value < values.min ? values.min : (value > values.max ? values.max : value);
+	}
+	uint8_t data[4];
+	encode_ctrl_value(desc, value, data);
+	const int ret = uvc_set_ctrl(mDeviceHandle, controlUnit(desc), desc->selector, data, desc->len);
+	pthread_mutex_lock(&mCtrlMutex);
+	{
+		if (LIKELY(ret == desc->len)) {
+			values.current = value;
+			values.flags |= CTRL_FLAG_CURRENT;
+		} else {
+			values.flags &= ~CTRL_FLAG_CURRENT;
+		}
+		invalidateDependents(id);
+	}
+	pthread_mutex_unlock(&mCtrlMutex);
+	if (UNLIKELY(ret != desc->len)) {
+		return ret < 0 ? ret : UVC_ERROR_IO;
+	}
+	return UVC_SUCCESS;
+}
+
+/**
+ * get several controls in one call, values of the controls that could not be read
+ * are CTRL_VALUE_UNAVAILABLE
+ * @return number of controls read
+ */
+int UVCCamera::getControls(const int *ids, int *values, int n) {
+	ENTER()
+	int result = 0;
+	for (int i = 0; i < n; i++) {
+		if (LIKELY(!getControl(ids[i], values[i]))) {
+			result++;
+		} else {
+			values[i] = CTRL_VALUE_UNAVAILABLE;
+		}
+	}
+	RETURN(result, int)
+}
+
+/**
+ * set several controls in one call, in the given order
+ * @return number of controls set
+ */
+int UVCCamera::setControls(const int *ids, const int *values, int n) {
+	ENTER()
+	int result = 0;
+	for (int i = 0; i < n; i++) {
+		if (LIKELY(!setControl(ids[i], values[i]))) {
+			result++;
+		}
+	}
+	RETURN(result, int)
+}
+
+/**
+ * min, max and def of several controls, 3 values per id in limits,
+ * CTRL_VALUE_UNAVAILABLE for the controls without limits
+ * @return number of controls with limits
+ */
+int UVCCamera::getControlLimits(const int *ids, int *limits, int n) {
+	ENTER()
+	int result = 0;
+	for (int i = 0; i < n; i++, limits += 3) {
+		const control_desc_t *desc = findControl(ids[i]);
+		if (LIKELY(desc && !readControlLimits(desc))) {
+			const control_value_t &values = this->*desc->value;
+			limits[0] = values.min;
+			limits[1] = values.max;
+			limits[2] = values.def;
+			result++;
+		} else {
+			limits[0] = limits[1] = limits[2] = CTRL_VALUE_UNAVAILABLE;
+		}
+	}
+	RETURN(result, int)
+}
+
+// status interrupt of a control, on the status thread
+void UVCCamera::onControlChanged(uvc_status_class status_class, int selector, int attribute,
+		const void *data, size_t data_len) {
+	const int unit_bit = status_class == UVC_STATUS_CLASS_CONTROL_PROCESSING ? CTRL_ID_PU : 0;
+	if (!unit_bit && (status_class != UVC_STATUS_CLASS_CONTROL_CAMERA)) return;
+	for (int i = 0; i < sControlCount; i++) {
+		const control_desc_t *desc = &sControls[i];
+		if ((desc->selector != selector) || ((desc->id & CTRL_ID_PU) != unit_bit)) continue;
+		control_value_t &values = this->*desc->value;
+		pthread_mutex_lock(&mCtrlMutex);
+		{
+			if ((attribute == UVC_STATUS_ATTRIBUTE_VALUE_CHANGE) && (data_len >= desc->len)) {
+				values.current = decode_ctrl_value(desc, (const uint8_t *) data);
+				values.flags |= CTRL_FLAG_CURRENT;
+			} else {
+				values.flags &= ~CTRL_FLAG_CURRENT;
+				if (attribute > UVC_STATUS_ATTRIBUTE_FAILURE_CHANGE) {
+					// min/max change
+					values.flags &= ~(CTRL_FLAG_LIMITS | CTRL_FLAG_NO_LIMITS);
+				}
+			}
+			invalidateDependents(desc->id);
+		}
+		pthread_mutex_unlock(&mCtrlMutex);
+		break;
+	}
+}
+
+void UVCCamera::control_changed(void *arg, uvc_status_class status_class, int selector, int attribute,
+		const void *data, size_t data_len) {
+	reinterpret_cast<UVCCamera *>(arg)->onControlChanged(status_class, selector, attribute, data, data_len);
+}
+
+/**
+ * set a control without waiting for the device, clamped to its limits like #setControl.
+ * A value written while the previous one of the same control is still on the bus replaces
+ * any other waiting value, the result arrives at IControlCallback#onControlComplete
+ * @param id CTRL_* or PU_* | CTRL_ID_PU
+ */
+/**
+ * keep the device open for a #setControlAsync call that reads limits without mQueueMutex,
+ * so other asynchronous writes do not wait for its control transfers
+ * @return false if the camera is not connected
+ */
+bool UVCCamera::enterControlQueue() {
+	bool result;
+	pthread_mutex_lock(&mQueueMutex);
+	{
+		result = mControlQueue != NULL;
+		if (result) mQueueUsers++;
+	}
+	pthread_mutex_unlock(&mQueueMutex);
+	return result;
+}
+
+void UVCCamera::leaveControlQueue() {
+	pthread_mutex_lock(&mQueueMutex);
+	{
+		if (--mQueueUsers <= 0) {
+			pthread_cond_broadcast(&mQueueSync);
+		}
+	}
+	pthread_mutex_unlock(&mQueueMutex);
+}
+
+int UVCCamera::setControlAsync(int id, int value) {
+	if (UNLIKELY(!enterControlQueue())) return UVC_ERROR_NO_DEVICE;
+	int ret = UVC_ERROR_NOT_SUPPORTED;
+	const control_desc_t *desc = findControl(id);
+	if (LIKELY(desc)) {
+		// blocks once per connect for GET_MIN/GET_MAX/GET_DEF
+		const control_value_t &values = this->*desc->value;
+		if (!readControlLimits(desc)) {
+			value = value < values.min ? values.min : (value > values.max ? values.max : value);
+		}
+		uint8_t data[4];
+		encode_ctrl_value(desc, value, data);
+		const int unit = controlUnit(desc);
+		pthread_mutex_lock(&mQueueMutex);
+		ret = LIKELY(mControlQueue)
+			? mControlQueue->write(id, unit, desc->selector, data, desc->len) : UVC_ERROR_NO_DEVICE;
+		pthread_mutex_unlock(&mQueueMutex);
+	}
+	leaveControlQueue();
+	return ret;
+}
+
+int UVCCamera::setControlCallback(JNIEnv *env, jobject control_callback_obj) {
+	ENTER()
+	int result = EXIT_FAILURE;
+	pthread_mutex_lock(&mQueueMutex);
+	if (mControlQueue) {
+		result = mControlQueue->setCallback(env, control_callback_obj);
+	} else if (control_callback_obj) {
+		env->DeleteGlobalRef(control_callback_obj);
+	}
+	pthread_mutex_unlock(&mQueueMutex);
+	RETURN(result, int)
+}
+
+/**
+ * latency of the asynchronous writes of a control since connect
+ * @param values CONTROL_LATENCY_VALUES, {count, sum ns, max ns, coalesced, failed}
+ */
+int UVCCamera::getControlLatency(int id, uint64_t *values) {
+	int ret = UVC_ERROR_NO_DEVICE;
+	pthread_mutex_lock(&mQueueMutex);
+	if (LIKELY(mControlQueue)) {
+		ret = mControlQueue->getLatency(id, values);
+	}
+	pthread_mutex_unlock(&mQueueMutex);
+	return ret;
+}
+
+// an asynchronous write completed, on the libusb event thread
+void UVCCamera::onControlWritten(int id, int result, const uint8_t *data, int len) {
+	if (id == CTRL_PANTILT_ABS) {
+		if (LIKELY(!result && (len == 8))) {
+			pthread_mutex_lock(&mCtrlMutex);
+			mPan.current = DW_TO_INT(data);
+			mTilt.current = DW_TO_INT(data + 4);
+			pthread_mutex_unlock(&mCtrlMutex);
+		}
+		return;
+	}
+	for (int i = 0; i < sControlCount; i++) {
+		const control_desc_t *desc = &sControls[i];
+		if (desc->id != id) continue;
+		control_value_t &values = this->*desc->value;
+		pthread_mutex_lock(&mCtrlMutex);
+		{
+			if (LIKELY(!result && (len == desc->len))) {
+				values.current = decode_ctrl_value(desc, data);
+				values.flags |= CTRL_FLAG_CURRENT;
+			} else {
+				values.flags &= ~CTRL_FLAG_CURRENT;
+			}
+			invalidateDependents(id);
+		}
+		pthread_mutex_unlock(&mCtrlMutex);
+		break;
+	}
+}
+
+void UVCCamera::control_written(void *arg, int id, int result, const uint8_t *data, int len) {
+	reinterpret_cast<UVCCamera *>(arg)->onControlWritten(id, result, data, len);
+}
+
 //==================================================================================================
 
 #define CTRL_BRIGHTNESS		0
@@ -690,6 +1390,7 @@ int UVCCamera::internalSetCtrlValue(control_value_t &values, int8_t value,
 			? values.min
 			: (value > values.max ? values.max : value);
 		set_func(mDeviceHandle, value);
+		invalidateControl(values);
 	}
 	RETURN(ret, int);
 }
@@ -703,6 +1404,7 @@ int UVCCamera::internalSetCtrlValue(control_value_t &values, uint8_t value,
 			? values.min
 			: (value > values.max ? values.max : value);
 		set_func(mDeviceHandle, value);
+		invalidateControl(values);
 	}
 	RETURN(ret, int);
 }
@@ -723,6 +1425,7 @@ int UVCCamera::internalSetCtrlValue(control_value_t &values, uint8_t value1, uin
 			? v2min
 			: (value2 > v2max ? v2max : value2);
 		set_func(mDeviceHandle, value1, value2);
+		invalidateControl(values);
 	}
 	RETURN(ret, int);
 }
@@ -739,6 +1442,7 @@ int UVCCamera::internalSetCtrlValue(control_value_t &values, int8_t value1, uint
 		value1 = value1 < v1min? v1min : (value1 > v1max ? v1max : value1);
 		value2 = value2 < v2min? v2min : (value2 > v2max ? v2max : value2);
 		set_func(mDeviceHandle, value1, value2);
+		invalidateControl(values);
 	}
 	RETURN(ret, int)
 }
@@ -758,6 +1462,7 @@ int UVCCamera::internalSetCtrlValue(control_value_t &values, int8_t value1, uint
 		value2 = value2 < v2min? v2min: (value2 > v2max ? v2max : value2);
 		value3 = value3 < v3min? v3min: (value3 > v3max ? v3max : value3);
 		set_func(mDeviceHandle, value1, value2, value3);
+		invalidateControl(values);
 	}
 	RETURN(ret, int)
 }
@@ -772,6 +1477,7 @@ int UVCCamera::internalSetCtrlValue(control_value_t &values, int16_t value,
 		// 正常に最小・最大値を取得出来た時
 		value = value < values.min? values.min : (value > values.max ? values.max : value);
 		set_func(mDeviceHandle, value);
+		invalidateControl(values);
 	}
 	RETURN(ret, int)
 }
@@ -786,6 +1492,7 @@ int UVCCamera::internalSetCtrlValue(control_value_t &values, uint16_t value,
 		// 正常に最小・最大値を取得出来た時
 		value = value < values.min? values.min : (value > values.max ? values.max : value);
 		set_func(mDeviceHandle, value);
+		invalidateControl(values);
 	}
 	RETURN(ret, int)
 }
@@ -800,6 +1507,7 @@ int UVCCamera::internalSetCtrlValue(control_value_t &values, int32_t value,
 		// 正常に最小・最大値を取得出来た時
 		value = value < values.min? values.min : (value > values.max ? values.max : value);
 		set_func(mDeviceHandle, value);
+		invalidateControl(values);
 	}
 	RETURN(ret, int)
 }
@@ -814,6 +1522,7 @@ int UVCCamera::internalSetCtrlValue(control_value_t &values, uint32_t value,
 		// 正常に最小・最大値を取得出来た時
 		value = value < values.min? values.min : (value > values.max ? values.max : value);
 		set_func(mDeviceHandle, value);
+		invalidateControl(values);
 	}
 	RETURN(ret, int)
 }
@@ -837,6 +1546,7 @@ int UVCCamera::setScanningMode(int mode) {
 	if LIKELY((mDeviceHandle) && (mCtrlSupports & CTRL_SCANNING)) {
 		//LOGI("ae:%d", mode);
 		r = uvc_set_scanning_mode(mDeviceHandle, mode/* & 0xff*/);
+		invalidateControl(mScanningMode);
 	}
 	RETURN(r, int)
 }
@@ -875,6 +1585,9 @@ int UVCCamera::setExposureMode(int mode) {
 	if LIKELY((mDeviceHandle) && (mCtrlSupports & CTRL_AE)) {
 		//LOGI("ae:%d", mode);
 		r = uvc_set_ae_mode(mDeviceHandle, mode/* & 0xff*/);
+		invalidateControl(mExposureMode);
+		invalidateControl(mExposureAbs);
+		invalidateControl(mIris);
 	}
 	RETURN(r, int)
 }
@@ -913,6 +1626,7 @@ int UVCCamera::setExposurePriority(int priority) {
 	if LIKELY((mDeviceHandle) && (mCtrlSupports & CTRL_AE_PRIORITY)) {
 		//LOGI("ae priority:%d", priority);
 		r = uvc_set_ae_priority(mDeviceHandle, priority/* & 0xff*/);
+		invalidateControl(mExposurePriority);
 	}
 	RETURN(r, int)
 }
@@ -951,6 +1665,7 @@ int UVCCamera::setExposure(int ae_abs) {
 	if LIKELY((mDeviceHandle) && (mCtrlSupports & CTRL_AE_ABS)) {
 		//LOGI("ae_abs:%d", ae_abs);
 		r = uvc_set_exposure_abs(mDeviceHandle, ae_abs/* & 0xff*/);
+		invalidateControl(mExposureAbs);
 	}
 	RETURN(r, int)
 }
@@ -989,6 +1704,7 @@ int UVCCamera::setExposureRel(int ae_rel) {
 	if LIKELY((mDeviceHandle) && (mCtrlSupports & CTRL_AE_REL)) {
 		//LOGI("ae_rel:%d", ae_rel);
 		r = uvc_set_exposure_rel(mDeviceHandle, ae_rel/* & 0xff*/);
+		invalidateControl(mExposureAbs);
 	}
 	RETURN(r, int)
 }
@@ -1026,6 +1742,8 @@ int UVCCamera::setAutoFocus(bool autoFocus) {
 	int r = UVC_ERROR_ACCESS;
 	if LIKELY((mDeviceHandle) && (mCtrlSupports & CTRL_FOCUS_AUTO)) {
 		r = uvc_set_focus_auto(mDeviceHandle, autoFocus);
+		invalidateControl(mAutoFocus);
+		invalidateControl(mFocus);
 	}
 	RETURN(r, int)
 }
@@ -1100,6 +1818,7 @@ int UVCCamera::setFocusRel(int focus_rel) {
 	if (mCtrlSupports & CTRL_FOCUS_REL) {
 		ret = internalSetCtrlValue(mFocusRel, (int8_t)((focus_rel >> 8) & 0xff),
 		 (uint8_t)(focus_rel &0xff), uvc_get_focus_rel, uvc_set_focus_rel);
+		invalidateControl(mFocus);
 	}
 	RETURN(ret, int)
 }
@@ -1296,6 +2015,52 @@ int UVCCamera::getPan() {
 
 //==================================================================================================
 
+/**
+ * set pan and tilt in one asynchronous PanTilt (Absolute) write, see #setControlAsync,
+ * IControlCallback gets CTRL_PANTILT_ABS as id
+ */
+int UVCCamera::setPanTiltAsync(int pan, int tilt) {
+	ENTER()
+	if (UNLIKELY(!enterControlQueue())) RETURN(UVC_ERROR_NO_DEVICE, int);
+	int ret = UVC_ERROR_NOT_SUPPORTED;
+	uint64_t supports;
+	if (!getCtrlSupports(&supports) && (supports & CTRL_PANTILT_ABS)) {
+		// limits are read without mQueueMutex, see #enterControlQueue; into copies so a concurrent
+		// call never clamps with a half written range
+		control_value_t pan_values, tilt_values;
+		pthread_mutex_lock(&mCtrlMutex);
+		pan_values = mPan;
+		tilt_values = mTilt;
+		pthread_mutex_unlock(&mCtrlMutex);
+		ret = update_ctrl_values(mDeviceHandle, pan_values, tilt_values, uvc_get_pantilt_abs);
+		if (LIKELY(!ret)) {
+			pthread_mutex_lock(&mCtrlMutex);
+			mPan.min = pan_values.min;
+			mPan.max = pan_values.max;
+			mPan.def = pan_values.def;
+			mTilt.min = tilt_values.min;
+			mTilt.max = tilt_values.max;
+			mTilt.def = tilt_values.def;
+			pthread_mutex_unlock(&mCtrlMutex);
+			pan = pan < pan_values.min ? pan_values.min : (pan > pan_values.max ? pan_values.max : pan);
+			tilt = tilt < tilt_values.min ? tilt_values.min : (tilt > tilt_values.max ? tilt_values.max : tilt);
+			uint8_t data[8];
+			INT_TO_DW(pan, data);
+			INT_TO_DW(tilt, data + 4);
+			const int unit = uvc_get_input_terminals(mDeviceHandle)->bTerminalID;
+			pthread_mutex_lock(&mQueueMutex);
+			ret = LIKELY(mControlQueue)
+				? mControlQueue->write(CTRL_PANTILT_ABS, unit, UVC_CT_PANTILT_ABSOLUTE_CONTROL, data, sizeof(data))
+				: UVC_ERROR_NO_DEVICE;
+			pthread_mutex_unlock(&mQueueMutex);
+		}
+	}
+	leaveControlQueue();
+	RETURN(ret, int)
+}
+
+//==================================================================================================
+
 // Tilt(絶対値)調整
 int UVCCamera::updateTiltLimit(int &min, int &max, int &def) {
 	ENTER()
@@ -1673,6 +2438,8 @@ int UVCCamera::setAutoContrast(bool autoContrast) {
 	int r = UVC_ERROR_ACCESS;
 	if LIKELY((mDeviceHandle) && (mPUSupports & PU_CONTRAST_AUTO)) {
 		r = uvc_set_contrast_auto(mDeviceHandle, autoContrast);
+		invalidateControl(mAutoContrast);
+		invalidateControl(mContrast);
 	}
 	RETURN(r, int)
 }
@@ -1789,6 +2556,8 @@ int UVCCamera::setAutoWhiteBalance(bool autoWhiteBalance) {
 	int r = UVC_ERROR_ACCESS;
 	if LIKELY((mDeviceHandle) && (mPUSupports & PU_WB_TEMP_AUTO)) {
 		r = uvc_set_white_balance_temperature_auto(mDeviceHandle, autoWhiteBalance);
+		invalidateControl(mAutoWhiteBalance);
+		invalidateControl(mWhiteBalance);
 	}
 	RETURN(r, int)
 }
@@ -1825,6 +2594,7 @@ int UVCCamera::setAutoWhiteBalanceCompo(bool autoWhiteBalanceCompo) {
 	int r = UVC_ERROR_ACCESS;
 	if LIKELY((mDeviceHandle) && (mPUSupports & PU_WB_COMPO_AUTO)) {
 		r = uvc_set_white_balance_component_auto(mDeviceHandle, autoWhiteBalanceCompo);
+		invalidateControl(mAutoWhiteBalanceCompo);
 	}
 	RETURN(r, int)
 }
@@ -2059,6 +2829,8 @@ int UVCCamera::setAutoHue(bool autoHue) {
 	int r = UVC_ERROR_ACCESS;
 	if LIKELY((mDeviceHandle) && (mPUSupports & PU_HUE_AUTO)) {
 		r = uvc_set_hue_auto(mDeviceHandle, autoHue);
+		invalidateControl(mAutoHue);
+		invalidateControl(mHue);
 	}
 	RETURN(r, int)
 }
@@ -2105,6 +2877,7 @@ int UVCCamera::setPowerlineFrequency(int frequency) {
 		}
 		LOGD("frequency:%d", frequency);
 		ret = uvc_set_powerline_freqency(mDeviceHandle, frequency);
+		invalidateControl(mPowerlineFrequency);
 	}
 	RETURN(ret, int)
 }
@@ -2181,6 +2954,7 @@ int UVCCamera::setZoomRel(int zoom) {
 	if (mCtrlSupports & CTRL_ZOOM_REL) {
 		ret = internalSetCtrlValue(mZoomRel,(int8_t)((zoom >> 16) & 0xff),
 		 (uint8_t)((zoom >> 8) & 0xff), (uint8_t)(zoom & 0xff),uvc_get_zoom_rel, uvc_set_zoom_rel);
+		invalidateControl(mZoom);
 	}
 	RETURN(ret, int)
 }
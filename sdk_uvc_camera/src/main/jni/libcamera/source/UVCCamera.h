@@ -33,7 +33,9 @@
 #include <android/native_window.h>
 #include "UVCStatusCallback.h"
 #include "UVCButtonCallback.h"
+#include "UVCControlQueue.h"
 #include "UVCPreview.h"
+#include "UVCCameraGroup.h"
 
 #define	CTRL_SCANNING		0x000001	// D0:  Scanning Mode
 #define	CTRL_AE				0x000002	// D1:  Auto-Exposure Mode
@@ -77,14 +79,39 @@
 #define PU_AVIDEO_LOCK		0x020000	// D17: Analog Video Lock Status
 #define PU_CONTRAST_AUTO	0x040000	// D18: Contrast, Auto
 
+// the Java side marks processing unit controls with this bit, e.g. PU_BRIGHTNESS | CTRL_ID_PU;
+// an int like the jint ids, so PU_* | CTRL_ID_PU does not narrow in the brace initializers of sControls
+#define CTRL_ID_PU			((int) 0x80000000)
+// value of a control that could not be read, Integer.MIN_VALUE on the Java side
+#define CTRL_VALUE_UNAVAILABLE	((int) 0x80000000)
+
+// control_value_t#flags, only used by the control cache (#getControls/#setControls)
+#define CTRL_FLAG_LIMITS	0x01	// min/max/def were read
+#define CTRL_FLAG_NO_LIMITS	0x02	// the device refused GET_MIN/GET_MAX/GET_DEF, not asked again
+#define CTRL_FLAG_CURRENT	0x04	// current is the value of the device
+
 typedef struct control_value {
 	int res;// unused
 	int min;
 	int max;
 	int def;
 	int current;
+	int flags;
 } control_value_t;
 
+class UVCCamera;
+
+// a single value control of the camera terminal or the processing unit, see UVCCamera#sControls
+typedef struct control_desc {
+	int id;					// CTRL_* or PU_* | CTRL_ID_PU
+	uint8_t selector;		// UVC_CT_* / UVC_PU_*
+	uint8_t len;			// bytes of the value, 1, 2 or 4
+	bool is_signed;
+	int auto_id;			// control that drives this one while (its value & auto_mask) != 0, 0 for none
+	int auto_mask;
+	control_value_t UVCCamera::*value;
+} control_desc_t;
+
 typedef uvc_error_t (*paramget_func_i8)(uvc_device_handle_t *devh, int8_t *value, enum uvc_req_code req_code);
 typedef uvc_error_t (*paramget_func_i16)(uvc_device_handle_t *devh, int16_t *value, enum uvc_req_code req_code);
 typedef uvc_error_t (*paramget_func_i32)(uvc_device_handle_t *devh, int32_t *value, enum uvc_req_code req_code);
@@ -110,15 +137,33 @@ typedef uvc_error_t (*paramset_func_i32i32)(uvc_device_handle_t *devh, int32_t v
 class UVCCamera {
 	char *mUsbFs;
 	uvc_context_t *mContext;
+	// shares mContext and the decode pool when set, see #setGroup
+	UVCCameraGroup *mGroup;
 	int mFd;
 	uvc_device_t *mDevice;
 	uvc_device_handle_t *mDeviceHandle;
 	UVCStatusCallback *mStatusCallback;
 	UVCButtonCallback *mButtonCallback;
+	// non-blocking control writes, mQueueMutex keeps it alive for #setControlAsync while #release runs
+	UVCControlQueue *mControlQueue;
+	pthread_mutex_t mQueueMutex;
+	// #setControlAsync calls reading limits without mQueueMutex, #release waits for them on mQueueSync
+	int mQueueUsers;
+	pthread_cond_t mQueueSync;
+	bool enterControlQueue();
+	void leaveControlQueue();
 	// 预览
 	UVCPreview *mPreview;
+	// what this device answered before, filled from the Java side's file right after #connect
+	UVCStreamCache mStreamCache;
+	// uvc_wrap + uvc_open of the last #connect
+	uint64_t mConnectNs;
 	uint64_t mCtrlSupports;
 	uint64_t mPUSupports;
+	// guards the cached values and flags of the controls in sControls, the status thread updates them too
+	pthread_mutex_t mCtrlMutex;
+	static const control_desc_t sControls[];
+	static const int sControlCount;
 	control_value_t mScanningMode;
 	control_value_t mExposureMode;
 	control_value_t mExposurePriority;
@@ -159,6 +204,18 @@ class UVCCamera {
 	control_value_t mAnalogVideoLockState;
 
 	void clearCameraParams();
+	const control_desc_t *findControl(int id);
+	int controlUnit(const control_desc_t *desc);
+	int readControlLimits(const control_desc_t *desc);
+	bool isAutoControlled(const control_desc_t *desc);
+	void invalidateControl(control_value_t &values);
+	void invalidateDependents(int auto_id);
+	void onControlChanged(uvc_status_class status_class, int selector, int attribute,
+		const void *data, size_t data_len);
+	static void control_changed(void *arg, uvc_status_class status_class, int selector, int attribute,
+		const void *data, size_t data_len);
+	void onControlWritten(int id, int result, const uint8_t *data, int len);
+	static void control_written(void *arg, int id, int result, const uint8_t *data, int len);
 	int internalSetCtrlValue(control_value_t &values, int8_t value,
 		paramget_func_i8 get_func, paramset_func_i8 set_func);
 	int internalSetCtrlValue(control_value_t &values, uint8_t value,
@@ -182,15 +239,27 @@ public:
 	~UVCCamera();
 
 	int connect(int vid, int pid, int fd, int busnum, int devaddr, const char *usbfs);
+	int connectSource(uvc_frame_source_t *source);
 	int release();
+	int setGroup(UVCCameraGroup *group);
 
 	int setStatusCallback(JNIEnv *env, jobject status_callback_obj);
 	int setButtonCallback(JNIEnv *env, jobject button_callback_obj);
 
 	char *getSupportedSize();
+	int *getFormats(int &len);
+	int setStreamCache(const uint8_t *blob, size_t len);
+	uint8_t *getStreamCache(size_t &len);
+	int getStartupTimes(uint64_t *values);
 	int setPreviewSize(int width, int height, int min_fps, int max_fps, int mode, float bandwidth = DEFAULT_BANDWIDTH);
 	int setPreviewDisplay(ANativeWindow *preview_window);
-	int setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format);
+	int setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format, jobject frame_info_obj = NULL);
+	int setCallbackBuffers(int count);
+	int setFrameCallbackRegion(const uvc_roi_t &roi);
+	int releaseCallbackBuffer(JNIEnv *env, jobject buffer);
+	UVCFrameConsumer *addFrameConsumer(int pixel_format, int depth, int policy, int max_fps);
+	int removeFrameConsumer(JNIEnv *env, UVCFrameConsumer *consumer);
+	int setPipeline(IPipeline *pipeline);
 	int startPreview();
 	int stopPreview();
 	int setCaptureDisplay(ANativeWindow *capture_window);
@@ -198,10 +267,33 @@ public:
 	//Add by hsj
 	int setPreviewRotate(int rotate);
 	int setPreviewFlip(int flip);
+	int setPreviewFormat(int window_format);
+	int setZeroCopy(bool zero_copy);
+	int setFrameQueue(int depth, int drop_policy);
+	int setDecodeWorkers(int workers);
+	uint64_t getCopiedBytesPerFrame();
+	int getFramePoolStats(uint64_t *stats);
+	int getStats(uint64_t *values);
+	int startRecording(const char *path);
+	int stopRecording();
+	int getRecordingStats(uint64_t *stats);
+	int setTransferPlan(int transfers, int packets, int alt_policy);
+	int getTransferStats(uint64_t *stats);
+	int getClockEstimate(uint64_t *estimate);
 
 	int getCtrlSupports(uint64_t *supports);
 	int getProcSupports(uint64_t *supports);
 
+	int getControl(int id, int &value);
+	int setControl(int id, int value);
+	int getControls(const int *ids, int *values, int n);
+	int setControls(const int *ids, const int *values, int n);
+	int getControlLimits(const int *ids, int *limits, int n);
+	int setControlAsync(int id, int value);
+	int setPanTiltAsync(int pan, int tilt);
+	int setControlCallback(JNIEnv *env, jobject control_callback_obj);
+	int getControlLatency(int id, uint64_t *values);
+
 	int updateScanningModeLimit(int &min, int &max, int &def);
 	int setScanningMode(int mode);
 	int getScanningMode();
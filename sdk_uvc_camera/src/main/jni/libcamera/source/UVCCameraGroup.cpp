@@ -0,0 +1,169 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * File name: UVCCameraGroup.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#include <stdlib.h>
+#include <string.h>
+#include "base_util.h"
+#include "UVCCameraGroup.h"
+
+#define LOCAL_DEBUG 0
+
+// same as libuvc's default for the event thread
+#define DEFAULT_HANDLER_NICE -18
+
+UVCCameraGroup::UVCCameraGroup()
+        : mContext(NULL),
+          mUsbFs(NULL),
+          mHandlerCpus(0),
+          mHandlerNice(DEFAULT_HANDLER_NICE),
+          mDecodeWorkers(DEFAULT_GROUP_DECODE_WORKERS),
+          mDecodePool(NULL),
+          mCameras(0) {
+    ENTER()
+    pthread_mutex_init(&mLock, NULL);
+    EXIT()
+}
+
+UVCCameraGroup::~UVCCameraGroup() {
+    ENTER()
+    if (mDecodePool) {
+        mDecodePool->stop();
+        SAFE_DELETE(mDecodePool);
+    }
+    if (mContext) {
+        uvc_exit(mContext);
+        mContext = NULL;
+    }
+    if (mUsbFs) {
+        free(mUsbFs);
+        mUsbFs = NULL;
+    }
+    pthread_mutex_destroy(&mLock);
+    EXIT()
+}
+
+void UVCCameraGroup::attach() {
+    pthread_mutex_lock(&mLock);
+    mCameras++;
+    pthread_mutex_unlock(&mLock);
+}
+
+void UVCCameraGroup::detach() {
+    pthread_mutex_lock(&mLock);
+    mCameras--;
+    pthread_mutex_unlock(&mLock);
+}
+
+int UVCCameraGroup::cameras() {
+    pthread_mutex_lock(&mLock);
+    const int result = mCameras;
+    pthread_mutex_unlock(&mLock);
+    return result;
+}
+
+/*
+ * shared context, created by the first camera that connects, the group keeps ownership
+ */
+int UVCCameraGroup::getContext(uvc_context_t **context, const char *usbfs) {
+    ENTER()
+    int result = UVC_SUCCESS;
+    pthread_mutex_lock(&mLock);
+    {
+        if (!mContext) {
+            result = uvc_init2(&mContext, NULL, usbfs);
+            if (LIKELY(!result)) {
+                mUsbFs = usbfs ? strdup(usbfs) : NULL;
+                uvc_set_handler_thread(mContext, mHandlerCpus, mHandlerNice);
+            } else {
+                mContext = NULL;
+            }
+        } else if (usbfs && mUsbFs && strcmp(usbfs, mUsbFs)) {
+            LOGW("usbfs %s differs from the group's %s", usbfs, mUsbFs);
+        }
+        *context = mContext;
+    }
+    pthread_mutex_unlock(&mLock);
+    RETURN(result, int)
+}
+
+/*
+ * affinity and nice value of the USB event thread, works before and after cameras connect
+ * @param cpu_mask bit n allows cpu n, 0 leaves the affinity alone
+ */
+int UVCCameraGroup::setEventThread(uint32_t cpu_mask, int nice) {
+    ENTER()
+    int result = 0;
+    if (nice < -20 || nice > 19) {
+        result = -2;
+    } else {
+        pthread_mutex_lock(&mLock);
+        {
+            mHandlerCpus = cpu_mask;
+            mHandlerNice = nice;
+            if (mContext) {
+                result = uvc_set_handler_thread(mContext, cpu_mask, nice);
+            }
+        }
+        pthread_mutex_unlock(&mLock);
+    }
+    RETURN(result, int)
+}
+
+/*
+ * size of the shared decode pool, fixed once a camera of the group decoded MJPEG
+ */
+int UVCCameraGroup::setDecodeWorkers(int workers) {
+    ENTER()
+    int result = 0;
+    pthread_mutex_lock(&mLock);
+    {
+        if (mDecodePool) {
+            result = -1;
+        } else if (workers < 1 || workers > MAX_DECODE_WORKERS) {
+            result = -2;
+        } else {
+            mDecodeWorkers = workers;
+        }
+    }
+    pthread_mutex_unlock(&mLock);
+    RETURN(result, int)
+}
+
+/*
+ * decode pool of the group, started on first call
+ * @return NULL if the workers could not be started
+ */
+UVCDecodePool *UVCCameraGroup::getDecodePool() {
+    ENTER()
+    pthread_mutex_lock(&mLock);
+    {
+        if (!mDecodePool) {
+            mDecodePool = new UVCDecodePool();
+            if (UNLIKELY(mDecodePool->start(mDecodeWorkers))) {
+                LOGE("could not start decode pool of the group");
+                SAFE_DELETE(mDecodePool);
+            }
+        }
+    }
+    pthread_mutex_unlock(&mLock);
+    RETURN(mDecodePool, UVCDecodePool *)
+}
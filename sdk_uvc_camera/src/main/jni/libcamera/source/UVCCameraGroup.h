@@ -0,0 +1,64 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * File name: UVCCameraGroup.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef UVCCAMERAGROUP_H_
+#define UVCCAMERAGROUP_H_
+
+#include "libUVCCamera.h"
+#include <pthread.h>
+#include "UVCDecodePool.h"
+
+#pragma interface
+
+#define DEFAULT_GROUP_DECODE_WORKERS 2
+
+/**
+ * Resources shared by the cameras of one group: a single libuvc/libusb context, hence a single
+ * USB event thread running the transfer completions of every camera, and one MJPEG decode pool
+ * whose workers serve all cameras instead of each camera starting its own.
+ * Must outlive its cameras, see #attach.
+ */
+class UVCCameraGroup {
+private:
+	pthread_mutex_t mLock;
+	uvc_context_t *mContext;
+	char *mUsbFs;
+	uint32_t mHandlerCpus;
+	int mHandlerNice;
+	int mDecodeWorkers;
+	UVCDecodePool *mDecodePool;
+	// UVCCamera of this group not destroyed yet
+	int mCameras;
+public:
+	UVCCameraGroup();
+	~UVCCameraGroup();
+
+	void attach();
+	void detach();
+	int cameras();
+	int getContext(uvc_context_t **context, const char *usbfs);
+	int setEventThread(uint32_t cpu_mask, int nice);
+	int setDecodeWorkers(int workers);
+	UVCDecodePool *getDecodePool();
+};
+
+#endif /* UVCCAMERAGROUP_H_ */
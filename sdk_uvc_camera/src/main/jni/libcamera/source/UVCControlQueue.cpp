@@ -0,0 +1,283 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * File name: UVCControlQueue.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#include <stdlib.h>
+#include <string.h>
+#include "base_util.h"
+#include "UVCStats.h"
+#include "UVCControlQueue.h"
+
+#define LOCAL_DEBUG 0
+
+UVCControlQueue::UVCControlQueue(uvc_device_handle_t *devh)
+        : mDeviceHandle(devh),
+          mSlotCount(0),
+          mInFlight(0),
+          mStopped(false),
+          mListener(NULL),
+          mListenerArg(NULL),
+          mCallbackObj(NULL),
+          mOnControlComplete(NULL) {
+    ENTER()
+    pthread_mutex_init(&mMutex, NULL);
+    pthread_cond_init(&mSync, NULL);
+    pthread_mutex_init(&mCallbackMutex, NULL);
+    memset(mSlots, 0, sizeof(mSlots));
+    EXIT()
+}
+
+UVCControlQueue::~UVCControlQueue() {
+    ENTER()
+    stop();
+    if (mCallbackObj) {
+        JNIEnv *env = getEnv();
+        if (env) env->DeleteGlobalRef(mCallbackObj);
+        mCallbackObj = NULL;
+    }
+    pthread_mutex_destroy(&mCallbackMutex);
+    pthread_cond_destroy(&mSync);
+    pthread_mutex_destroy(&mMutex);
+    EXIT()
+}
+
+// set before the first #write
+void UVCControlQueue::setListener(control_complete_t listener, void *arg) {
+    mListenerArg = arg;
+    mListener = listener;
+}
+
+/**
+ * IControlCallback to notify the completed writes to, takes over the global reference
+ */
+int UVCControlQueue::setCallback(JNIEnv *env, jobject callback_obj) {
+    ENTER()
+    pthread_mutex_lock(&mCallbackMutex);
+    {
+        if (!env->IsSameObject(mCallbackObj, callback_obj)) {
+            mOnControlComplete = NULL;
+            if (mCallbackObj) {
+                env->DeleteGlobalRef(mCallbackObj);
+            }
+            mCallbackObj = callback_obj;
+            if (callback_obj) {
+                jclass clazz = env->GetObjectClass(callback_obj);
+                if (LIKELY(clazz)) {
+                    mOnControlComplete = env->GetMethodID(clazz, "onControlComplete", "(IIJ)V");
+                    env->DeleteLocalRef(clazz);
+                } else {
+                    LOGW("failed to get object class");
+                }
+                env->ExceptionClear();
+                if (!mOnControlComplete) {
+                    LOGE("Can't find IControlCallback#onControlComplete");
+                    env->DeleteGlobalRef(callback_obj);
+                    mCallbackObj = NULL;
+                }
+            }
+        } else if (callback_obj) {
+            // same object again, drop the extra reference
+            env->DeleteGlobalRef(callback_obj);
+        }
+    }
+    pthread_mutex_unlock(&mCallbackMutex);
+    RETURN(0, int)
+}
+
+// call with mMutex held
+control_slot_t *UVCControlQueue::findSlot(int id, bool create) {
+    for (int i = 0; i < mSlotCount; i++) {
+        if (mSlots[i].id == id) return &mSlots[i];
+    }
+    if (!create || (mSlotCount >= CONTROL_QUEUE_SLOTS)) return NULL;
+    control_slot_t *slot = &mSlots[mSlotCount++];
+    slot->id = id;
+    slot->queue = this;
+    return slot;
+}
+
+// send slot->data, call with mMutex held
+int UVCControlQueue::submitLocked(control_slot_t *slot) {
+    const int ret = uvc_set_ctrl_async(mDeviceHandle, slot->unit, slot->selector,
+        slot->data, slot->len, ctrl_callback, slot);
+    if (LIKELY(!ret)) {
+        slot->in_flight = true;
+        mInFlight++;
+    } else {
+        slot->failed++;
+    }
+    return ret;
+}
+
+/**
+ * write a control without waiting for the device, the result arrives at the listener and IControlCallback
+ * @param id CTRL_* or PU_* | CTRL_ID_PU, one slot per id
+ * @param data SET_CUR payload, copied
+ * @return UVC_SUCCESS if the value was sent or is waiting for the previous one of the same control
+ */
+int UVCControlQueue::write(int id, uint8_t unit, uint8_t selector, const void *data, int len) {
+    if (UNLIKELY((len <= 0) || (len > CONTROL_QUEUE_DATA_MAX))) return UVC_ERROR_INVALID_PARAM;
+    int ret;
+    pthread_mutex_lock(&mMutex);
+    {
+        control_slot_t *slot = mStopped ? NULL : findSlot(id, true);
+        if (UNLIKELY(!slot)) {
+            ret = mStopped ? UVC_ERROR_NO_DEVICE : UVC_ERROR_NO_MEM;
+        } else if (slot->in_flight) {
+            // last write wins, the previous pending value is never sent
+            if (slot->pending) slot->coalesced++;
+            slot->pending = true;
+            slot->pending_len = len;
+            memcpy(slot->pending_data, data, len);
+            slot->pending_ns = UVCStats::now();
+            ret = UVC_SUCCESS;
+        } else {
+            slot->unit = unit;
+            slot->selector = selector;
+            slot->len = len;
+            memcpy(slot->data, data, len);
+            slot->request_ns = UVCStats::now();
+            ret = submitLocked(slot);
+        }
+    }
+    pthread_mutex_unlock(&mMutex);
+    return ret;
+}
+
+void UVCControlQueue::ctrl_callback(uvc_error_t result, void *user_ptr) {
+    control_slot_t *slot = reinterpret_cast<control_slot_t *>(user_ptr);
+    slot->queue->onComplete(slot, result);
+}
+
+// on the libusb event thread
+void UVCControlQueue::onComplete(control_slot_t *slot, int result) {
+    const uint64_t now = UVCStats::now();
+    uint8_t data[CONTROL_QUEUE_DATA_MAX], next_data[CONTROL_QUEUE_DATA_MAX];
+    int len, next_len = 0, next_result = UVC_SUCCESS;
+    uint64_t latency_ns;
+    int id;
+    pthread_mutex_lock(&mMutex);
+    {
+        slot->in_flight = false;
+        id = slot->id;
+        latency_ns = now - slot->request_ns;
+        if (LIKELY(!result)) {
+            slot->count++;
+            slot->sum_ns += latency_ns;
+            if (latency_ns > slot->max_ns) slot->max_ns = latency_ns;
+        } else {
+            slot->failed++;
+        }
+        len = slot->len;
+        memcpy(data, slot->data, len);
+        if (slot->pending) {
+            slot->pending = false;
+            if (!mStopped) {
+                slot->len = slot->pending_len;
+                memcpy(slot->data, slot->pending_data, slot->len);
+                slot->request_ns = slot->pending_ns;
+                next_result = submitLocked(slot);
+                if (UNLIKELY(next_result)) {
+                    next_len = slot->len;
+                    memcpy(next_data, slot->data, next_len);
+                }
+            }
+        }
+    }
+    pthread_mutex_unlock(&mMutex);
+
+    notifyComplete(id, result, latency_ns, data, len);
+    if (UNLIKELY(next_result)) {
+        notifyComplete(id, next_result, 0, next_data, next_len);
+    }
+
+    // only now, #stop must not return while this thread still uses the queue
+    pthread_mutex_lock(&mMutex);
+    {
+        if (!--mInFlight) {
+            pthread_cond_broadcast(&mSync);
+        }
+    }
+    pthread_mutex_unlock(&mMutex);
+}
+
+void UVCControlQueue::notifyComplete(int id, int result, uint64_t latency_ns, const uint8_t *data, int len) {
+    if (mListener) {
+        mListener(mListenerArg, id, result, data, len);
+    }
+    pthread_mutex_lock(&mCallbackMutex);
+    {
+        if (mCallbackObj) {
+            JavaVM *vm = getVM();
+            JNIEnv *env;
+            // attach to JavaVM
+            vm->AttachCurrentThread(&env, NULL);
+            env->CallVoidMethod(mCallbackObj, mOnControlComplete, id, result, (jlong) latency_ns);
+            env->ExceptionClear();
+            vm->DetachCurrentThread();
+        }
+    }
+    pthread_mutex_unlock(&mCallbackMutex);
+}
+
+/**
+ * @param values CONTROL_LATENCY_VALUES, see the layout there
+ */
+int UVCControlQueue::getLatency(int id, uint64_t *values) {
+    int ret = UVC_ERROR_NOT_FOUND;
+    pthread_mutex_lock(&mMutex);
+    {
+        const control_slot_t *slot = findSlot(id, false);
+        if (slot) {
+            values[0] = slot->count;
+            values[1] = slot->sum_ns;
+            values[2] = slot->max_ns;
+            values[3] = slot->coalesced;
+            values[4] = slot->failed;
+            ret = UVC_SUCCESS;
+        }
+    }
+    pthread_mutex_unlock(&mMutex);
+    return ret;
+}
+
+/**
+ * refuse new writes, drop the pending values and wait for the requests on the bus,
+ * the device must still be open and its event thread running
+ */
+void UVCControlQueue::stop() {
+    ENTER()
+    pthread_mutex_lock(&mMutex);
+    {
+        mStopped = true;
+        for (int i = 0; i < mSlotCount; i++) {
+            if (mSlots[i].pending) {
+                mSlots[i].pending = false;
+                mSlots[i].coalesced++;
+            }
+        }
+        while (mInFlight) {
+            pthread_cond_wait(&mSync, &mMutex);
+        }
+    }
+    pthread_mutex_unlock(&mMutex);
+    EXIT()
+}
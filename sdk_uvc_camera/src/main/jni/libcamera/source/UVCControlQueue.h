@@ -0,0 +1,100 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * File name: UVCControlQueue.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef UVCCONTROLQUEUE_H_
+#define UVCCONTROLQUEUE_H_
+
+#include "libUVCCamera.h"
+#include <pthread.h>
+
+#pragma interface
+
+// controls written asynchronously at the same time, one slot each
+#define CONTROL_QUEUE_SLOTS 40
+// largest SET_CUR payload, PanTilt (Absolute)
+#define CONTROL_QUEUE_DATA_MAX 8
+
+// latency snapshot layout of one control: {count, sum ns, max ns, coalesced, failed}
+#define CONTROL_LATENCY_VALUES 5
+
+// native listener of the completed writes, called on the libusb event thread
+typedef void (*control_complete_t)(void *arg, int id, int result, const uint8_t *data, int len);
+
+typedef struct control_slot {
+	int id;
+	uint8_t unit;
+	uint8_t selector;
+	int len;
+	// the value on the bus, its request time and the next value, written while data was in flight
+	uint8_t data[CONTROL_QUEUE_DATA_MAX];
+	uint64_t request_ns;
+	bool in_flight;
+	bool pending;
+	int pending_len;
+	uint8_t pending_data[CONTROL_QUEUE_DATA_MAX];
+	uint64_t pending_ns;
+	// request -> completion of the values that reached the device
+	uint64_t count;
+	uint64_t sum_ns;
+	uint64_t max_ns;
+	uint64_t coalesced;		// values replaced by a later one before they were sent
+	uint64_t failed;
+	class UVCControlQueue *queue;
+} control_slot_t;
+
+/**
+ * Non-blocking SET_CUR requests on the libusb event loop of the device.
+ * At most one request per control is on the bus, a value written meanwhile waits in the slot and
+ * is replaced by any later one (last write wins), so a fast slider or joystick never queues up
+ * stale positions behind a slow device.
+ */
+class UVCControlQueue {
+private:
+	uvc_device_handle_t *mDeviceHandle;
+	pthread_mutex_t mMutex;
+	pthread_cond_t mSync;
+	control_slot_t mSlots[CONTROL_QUEUE_SLOTS];
+	int mSlotCount;
+	int mInFlight;
+	bool mStopped;
+	control_complete_t mListener;
+	void *mListenerArg;
+	pthread_mutex_t mCallbackMutex;
+	jobject mCallbackObj;
+	jmethodID mOnControlComplete;
+	control_slot_t *findSlot(int id, bool create);
+	int submitLocked(control_slot_t *slot);
+	void onComplete(control_slot_t *slot, int result);
+	void notifyComplete(int id, int result, uint64_t latency_ns, const uint8_t *data, int len);
+	static void ctrl_callback(uvc_error_t result, void *user_ptr);
+public:
+	UVCControlQueue(uvc_device_handle_t *devh);
+	~UVCControlQueue();
+
+	void setListener(control_complete_t listener, void *arg);
+	int setCallback(JNIEnv *env, jobject callback_obj);
+	int write(int id, uint8_t unit, uint8_t selector, const void *data, int len);
+	int getLatency(int id, uint64_t *values);
+	void stop();
+};
+
+#endif /* UVCCONTROLQUEUE_H_ */
@@ -0,0 +1,342 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * File name: UVCDecodePool.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#include <stdlib.h>
+#include <string.h>
+#include "base_util.h"
+#include "UVCDecodePool.h"
+
+#define LOCAL_DEBUG 0
+
+#define JOB_FREE        0
+#define JOB_QUEUED      1
+#define JOB_DECODING    2
+#define JOB_DONE        3
+
+UVCDecodePool::UVCDecodePool()
+        : mWorkers(0),
+          mStarted(0),
+          mIsRunning(false),
+          mNextLane(0) {
+    ENTER()
+    memset(mDecoders, 0, sizeof(mDecoders));
+    memset(mLanes, 0, sizeof(mLanes));
+    pthread_mutex_init(&job_mutex, NULL);
+    pthread_cond_init(&job_sync, NULL);
+    for (int i = 0; i < MAX_DECODE_LANES; i++) {
+        pthread_cond_init(&mLanes[i].done_sync, NULL);
+    }
+    EXIT()
+}
+
+UVCDecodePool::~UVCDecodePool() {
+    ENTER()
+    stop();
+    for (int i = 0; i < MAX_DECODE_WORKERS; i++) {
+        if (mDecoders[i]) {
+            uvc_mjpeg_decoder_destroy(mDecoders[i]);
+            mDecoders[i] = NULL;
+        }
+    }
+    for (int i = 0; i < MAX_DECODE_LANES; i++) {
+        SAFE_DELETE_ARRAY(mLanes[i].jobs);
+        pthread_cond_destroy(&mLanes[i].done_sync);
+    }
+    pthread_cond_destroy(&job_sync);
+    pthread_mutex_destroy(&job_mutex);
+    EXIT()
+}
+
+/*
+ * start worker threads, decompressors are created once and kept between streams
+ * @return 0 on success, -1 if already running, -2 if invalid count, -3 if no memory/thread
+ */
+int UVCDecodePool::start(int workers) {
+    ENTER()
+    int result = 0;
+    if (isRunning()) {
+        result = -1;
+    } else if (workers < 1 || workers > MAX_DECODE_WORKERS) {
+        result = -2;
+    } else {
+        for (int i = 0; i < workers; i++) {
+            if (!mDecoders[i]) {
+                mDecoders[i] = uvc_mjpeg_decoder_create();
+                if (UNLIKELY(!mDecoders[i])) {
+                    LOGE("could not create MJPEG decoder");
+                    result = -3;
+                    break;
+                }
+            }
+        }
+        if (LIKELY(!result)) {
+            mStarted = 0;
+            mIsRunning = true;
+            for (mWorkers = 0; mWorkers < workers; mWorkers++) {
+                if (UNLIKELY(pthread_create(&mThreads[mWorkers], NULL, worker_thread_func, (void *) this))) {
+                    LOGE("could not create decode worker:%d", mWorkers);
+                    result = -3;
+                    break;
+                }
+            }
+            if (UNLIKELY(result)) {
+                stop();
+            }
+        }
+    }
+    RETURN(result, int)
+}
+
+/*
+ * terminate worker threads, jobs not returned yet must be taken back with #drain
+ */
+void UVCDecodePool::stop() {
+    ENTER()
+    pthread_mutex_lock(&job_mutex);
+    {
+        mIsRunning = false;
+        pthread_cond_broadcast(&job_sync);
+        for (int i = 0; i < MAX_DECODE_LANES; i++) {
+            pthread_cond_broadcast(&mLanes[i].done_sync);
+        }
+    }
+    pthread_mutex_unlock(&job_mutex);
+    for (int i = 0; i < mWorkers; i++) {
+        if (pthread_join(mThreads[i], NULL) != EXIT_SUCCESS) {
+            LOGW("UVCDecodePool::terminate decode worker: pthread_join failed");
+        }
+    }
+    mWorkers = 0;
+    EXIT()
+}
+
+/*
+ * open a lane for a stream, the pool must be running
+ * @param notify called from a worker each time a frame of this lane was decoded
+ * @return lane, -1 if the pool is not running or all lanes are in use
+ */
+int UVCDecodePool::open(decode_notify_t notify, void *notify_arg) {
+    ENTER()
+    int result = -1;
+    pthread_mutex_lock(&job_mutex);
+    {
+        for (int i = 0; mIsRunning && (i < MAX_DECODE_LANES); i++) {
+            decode_lane_t &lane = mLanes[i];
+            if (!lane.used) {
+                const int depth = mWorkers * DECODE_JOBS_PER_WORKER;
+                if (lane.depth != depth) {
+                    SAFE_DELETE_ARRAY(lane.jobs);
+                    lane.jobs = new decode_job_t[depth];
+                    lane.depth = depth;
+                }
+                memset(lane.jobs, 0, sizeof(decode_job_t) * lane.depth);
+                lane.submitted = lane.taken = lane.returned = 0;
+                lane.busy = 0;
+                lane.used = lane.running = lane.decodeI420 = true;
+                lane.notify = notify;
+                lane.notify_arg = notify_arg;
+                result = i;
+                break;
+            }
+        }
+    }
+    pthread_mutex_unlock(&job_mutex);
+    RETURN(result, int)
+}
+
+/*
+ * stop decoding jobs of the lane and wait for the ones a worker is busy with,
+ * jobs not returned yet must be taken back with #drain, which releases the lane
+ */
+void UVCDecodePool::close(int lane) {
+    ENTER()
+    decode_lane_t &l = mLanes[lane];
+    pthread_mutex_lock(&job_mutex);
+    {
+        l.running = false;
+        pthread_cond_broadcast(&l.done_sync);
+        for ( ; l.busy ; ) {
+            pthread_cond_wait(&l.done_sync, &job_mutex);
+        }
+    }
+    pthread_mutex_unlock(&job_mutex);
+    EXIT()
+}
+
+size_t UVCDecodePool::outputBytes(int lane, int width, int height) const {
+    return mLanes[lane].decodeI420 ? (width * height * 3) / 2 : width * height * 2;
+}
+
+/*
+ * queue MJPEG frame to decode into out, never blocks
+ * @return false if all jobs of the lane are in flight, the caller keeps both frames then
+ */
+bool UVCDecodePool::submit(int lane, uvc_frame_t *in, uvc_frame_t *out) {
+    bool result = false;
+    decode_lane_t &l = mLanes[lane];
+    pthread_mutex_lock(&job_mutex);
+    {
+        if (LIKELY(mIsRunning && l.running && (l.submitted - l.returned < (uint32_t) l.depth))) {
+            decode_job_t *job = &l.jobs[l.submitted % l.depth];
+            job->in = in;
+            job->out = out;
+            job->result = UVC_SUCCESS;
+            job->decode_ns = 0;
+            job->state = JOB_QUEUED;
+            l.submitted++;
+            pthread_cond_signal(&job_sync);
+            result = true;
+        }
+    }
+    pthread_mutex_unlock(&job_mutex);
+    return result;
+}
+
+/*
+ * take back the oldest job of the lane once it was decoded, later jobs wait for it even if they finished first
+ * @param wait block until the oldest job was decoded
+ * @return false if nothing is in flight, the oldest job is not decoded yet or the pool/lane was stopped
+ */
+bool UVCDecodePool::next(int lane, decode_job_t &job, bool wait) {
+    bool result = false;
+    decode_lane_t &l = mLanes[lane];
+    pthread_mutex_lock(&job_mutex);
+    {
+        for ( ; l.returned != l.submitted ; ) {
+            decode_job_t *oldest = &l.jobs[l.returned % l.depth];
+            if (oldest->state == JOB_DONE) {
+                job = *oldest;
+                oldest->state = JOB_FREE;
+                l.returned++;
+                result = true;
+                break;
+            }
+            if (!wait || !mIsRunning || !l.running) break;
+            pthread_cond_wait(&l.done_sync, &job_mutex);
+        }
+    }
+    pthread_mutex_unlock(&job_mutex);
+    return result;
+}
+
+/*
+ * take back remaining jobs after #close or #stop whether they were decoded or not, in submission order
+ * @return false once the lane is empty, the lane is released then
+ */
+bool UVCDecodePool::drain(int lane, decode_job_t &job) {
+    bool result = false;
+    decode_lane_t &l = mLanes[lane];
+    pthread_mutex_lock(&job_mutex);
+    {
+        if ((!mIsRunning || !l.running) && !l.busy) {
+            if (l.returned != l.submitted) {
+                decode_job_t *oldest = &l.jobs[l.returned % l.depth];
+                job = *oldest;
+                if (oldest->state != JOB_DONE) {
+                    job.result = UVC_ERROR_INTERRUPTED;
+                }
+                oldest->state = JOB_FREE;
+                l.returned++;
+                result = true;
+            } else {
+                l.used = false;
+            }
+        }
+    }
+    pthread_mutex_unlock(&job_mutex);
+    return result;
+}
+
+void *UVCDecodePool::worker_thread_func(void *vptr_args) {
+    ENTER()
+    UVCDecodePool *pool = reinterpret_cast<UVCDecodePool *>(vptr_args);
+    if (LIKELY(pool)) {
+        const int index = __atomic_fetch_add(&pool->mStarted, 1, __ATOMIC_RELAXED);
+        pool->do_decode(index);
+    }
+    PRE_EXIT()
+    pthread_exit(NULL);
+}
+
+// next lane with a queued job, round robin so one busy camera does not starve the others
+// must be called with job_mutex held
+decode_lane_t *UVCDecodePool::queued_lane() {
+    for (int i = 0; i < MAX_DECODE_LANES; i++) {
+        const int index = (mNextLane + i) % MAX_DECODE_LANES;
+        decode_lane_t *lane = &mLanes[index];
+        if (lane->used && lane->running && (lane->taken != lane->submitted)) {
+            mNextLane = (index + 1) % MAX_DECODE_LANES;
+            return lane;
+        }
+    }
+    return NULL;
+}
+
+void UVCDecodePool::do_decode(int index) {
+    uvc_mjpeg_decoder_t *decoder = mDecoders[index];
+    pthread_mutex_lock(&job_mutex);
+    for ( ; LIKELY(mIsRunning) ; ) {
+        decode_lane_t *lane = queued_lane();
+        if (!lane) {
+            pthread_cond_wait(&job_sync, &job_mutex);
+            continue;
+        }
+        decode_job_t *job = &lane->jobs[lane->taken++ % lane->depth];
+        job->state = JOB_DECODING;
+        lane->busy++;
+        pthread_mutex_unlock(&job_mutex);
+
+        const uint64_t start_time = UVCStats::now();
+        uvc_error_t result = UVC_ERROR_NOT_SUPPORTED;
+        if (LIKELY(lane->decodeI420)) {
+            // MJPEG => I420
+            result = uvc_mjpeg_decode_i420(decoder, job->in, job->out);
+            if (UNLIKELY(result == UVC_ERROR_NOT_SUPPORTED)) {
+                LOGW("MJPEG sampling not supported by I420 decoder, use YUYV");
+                lane->decodeI420 = false;
+            }
+        }
+        if (UNLIKELY(result == UVC_ERROR_NOT_SUPPORTED)) {
+            // MJPEG => yuyv
+            result = uvc_mjpeg_decode_yuyv(decoder, job->in, job->out);
+        }
+#if LOCAL_DEBUG
+        LOGD("worker%d:decoded %d", index, result);
+#endif
+        job->result = result;
+        job->decode_ns = UVCStats::now() - start_time;
+
+        pthread_mutex_lock(&job_mutex);
+        job->state = JOB_DONE;
+        pthread_cond_broadcast(&lane->done_sync);
+        pthread_mutex_unlock(&job_mutex);
+        // still counted as busy, so #close can not return and free notify_arg meanwhile
+        if (lane->notify) {
+            lane->notify(lane->notify_arg);
+        }
+        pthread_mutex_lock(&job_mutex);
+        if (!--lane->busy) {
+            pthread_cond_broadcast(&lane->done_sync);
+        }
+    }
+    pthread_mutex_unlock(&job_mutex);
+}
@@ -0,0 +1,108 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * File name: UVCDecodePool.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef UVCDECODEPOOL_H_
+#define UVCDECODEPOOL_H_
+
+#include "libUVCCamera.h"
+#include "UVCStats.h"
+#include <pthread.h>
+
+#pragma interface
+
+#define MAX_DECODE_WORKERS 8
+// streams decoded by one pool at the same time, i.e. cameras of a UVCCameraGroup
+#define MAX_DECODE_LANES 8
+// jobs in flight per worker, one decoding and one waiting
+#define DECODE_JOBS_PER_WORKER 2
+
+typedef struct decode_job {
+	uvc_frame_t *in;		// MJPEG frame
+	uvc_frame_t *out;		// I420 or YUYV frame, see out->frame_format
+	uvc_error_t result;
+	uint64_t decode_ns;		// CLOCK_MONOTONIC ns the worker spent decoding
+	volatile int state;
+} decode_job_t;
+
+// called from a worker thread each time a frame was decoded
+typedef void (*decode_notify_t)(void *arg);
+
+// jobs of one stream, any worker decodes them but they are returned in submission order
+typedef struct decode_lane {
+	decode_job_t *jobs;
+	int depth;
+	// tickets: submitted > taken by a worker > returned by #next
+	uint32_t submitted, taken, returned;
+	// jobs a worker is decoding or notifying right now
+	int busy;
+	bool used;
+	bool running;
+	// decode straight to I420 until a frame with unsupported sampling is seen
+	bool decodeI420;
+	pthread_cond_t done_sync;	// #next waits for the oldest job, #close for the busy ones
+	decode_notify_t notify;
+	void *notify_arg;
+} decode_lane_t;
+
+/**
+ * Decodes MJPEG frames on several worker threads, each with its own decompressor.
+ * Each stream opens a lane; frames of a lane are submitted and taken back by one thread only
+ * (its preview thread) and every submitted frame gets a ticket in submission order, i.e. frame->sequence
+ * order, so #next returns them in ticket order however the workers finished and preview and capture never
+ * see frames out of order. Workers take queued jobs from the lanes round robin, so several cameras
+ * can share one fixed set of threads.
+ */
+class UVCDecodePool {
+private:
+	int mWorkers;
+	volatile int mStarted;
+	volatile bool mIsRunning;
+	pthread_t mThreads[MAX_DECODE_WORKERS];
+	uvc_mjpeg_decoder_t *mDecoders[MAX_DECODE_WORKERS];
+	decode_lane_t mLanes[MAX_DECODE_LANES];
+	// lane the next idle worker looks at first
+	int mNextLane;
+	pthread_mutex_t job_mutex;
+	pthread_cond_t job_sync;	// worker waits for a job
+	static void *worker_thread_func(void *vptr_args);
+	void do_decode(int index);
+	decode_lane_t *queued_lane();
+public:
+	UVCDecodePool();
+	~UVCDecodePool();
+
+	int start(int workers);
+	void stop();
+	inline const bool isRunning() const { return mIsRunning; }
+	inline const int workers() const { return mWorkers; }
+	// jobs in flight per lane
+	inline const int depth() const { return mWorkers * DECODE_JOBS_PER_WORKER; }
+	int open(decode_notify_t notify, void *notify_arg);
+	void close(int lane);
+	// bytes of the output frame to #submit for a frame of width x height
+	size_t outputBytes(int lane, int width, int height) const;
+	bool submit(int lane, uvc_frame_t *in, uvc_frame_t *out);
+	bool next(int lane, decode_job_t &job, bool wait);
+	bool drain(int lane, decode_job_t &job);
+};
+
+#endif /* UVCDECODEPOOL_H_ */
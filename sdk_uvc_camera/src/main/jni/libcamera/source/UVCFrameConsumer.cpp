@@ -0,0 +1,430 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * File name: UVCFrameConsumer.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include "base_util.h"
+#include "UVCPreview.h"
+#include "UVCFrameConsumer.h"
+
+#define LOCAL_DEBUG 0
+
+#define SLOT_FREE       0
+#define SLOT_CONVERTING 1
+#define SLOT_QUEUED     2
+#define SLOT_LEASED     3
+
+size_t pixel_format_bytes(int pixel_format, int width, int height, uvc_frame_format in_format, convFunc_t &func) {
+    const size_t sz = width * height;
+    size_t bytes = sz * 2;
+    func = NULL;
+    switch (pixel_format) {
+        case PIXEL_FORMAT_RAW:
+        case PIXEL_FORMAT_YUV:
+            // MJPEG is decoded to I420
+            if (in_format != UVC_FRAME_FORMAT_YUYV) func = uvc_any2yuyv;
+            break;
+        case PIXEL_FORMAT_RGB565:
+            func = uvc_any2rgb565;
+            break;
+        case PIXEL_FORMAT_RGBX:
+            func = uvc_any2rgbx;
+            bytes = sz * 4;
+            break;
+        case PIXEL_FORMAT_NV12:
+            func = uvc_any2yuv420SP;
+            bytes = (sz * 3) / 2;
+            break;
+        case PIXEL_FORMAT_NV21:
+            func = uvc_any2iyuv420SP;
+            bytes = (sz * 3) / 2;
+            break;
+        case PIXEL_FORMAT_I420:
+            // copied plane by plane even from I420, pooled frames may be larger than the image
+            func = uvc_any2i420;
+            bytes = (sz * 3) / 2;
+            break;
+    }
+    return bytes;
+}
+
+UVCFrameConsumer::UVCFrameConsumer(int pixel_format, int depth, int policy, int max_fps)
+        : mPixelFormat(pixel_format),
+          mDepth(depth),
+          mPolicy(policy),
+          mIntervalNs(max_fps > 0 ? 1000000000LL / max_fps : 0),
+          mLastNs(0),
+          mSlotCount(0),
+          mSlotBytes(0),
+          mQueueHead(0),
+          mQueueSize(0),
+          mClosed(false),
+          mRoiFrame(NULL),
+          mRoiWork(NULL) {
+    ENTER()
+    memset(mSlots, 0, sizeof(mSlots));
+    memset(&mRoi, 0, sizeof(mRoi));
+    memset(mCounters, 0, sizeof(mCounters));
+    pthread_mutex_init(&mutex, NULL);
+    pthread_condattr_t attr;
+    pthread_condattr_init(&attr);
+    pthread_condattr_setclock(&attr, CLOCK_MONOTONIC);
+    pthread_cond_init(&sync, &attr);
+    pthread_condattr_destroy(&attr);
+    EXIT()
+}
+
+/*
+ * #clear must have been called with a JNIEnv before, otherwise the global refs leak
+ */
+UVCFrameConsumer::~UVCFrameConsumer() {
+    ENTER()
+    free_slots(NULL);
+    if (mRoiFrame) uvc_free_frame(mRoiFrame);
+    if (mRoiWork) uvc_free_frame(mRoiWork);
+    pthread_cond_destroy(&sync);
+    pthread_mutex_destroy(&mutex);
+    EXIT()
+}
+
+// must be called with mutex held and no slot in use
+void UVCFrameConsumer::free_slots(JNIEnv *env) {
+    for (int i = 0; i < mSlotCount; i++) {
+        consumer_slot_t &slot = mSlots[i];
+        if (env) env->DeleteGlobalRef(slot.buffer);
+        slot.frame->library_owns_data = 1;
+        uvc_free_frame(slot.frame);
+        slot.frame = NULL;
+        slot.buffer = NULL;
+        slot.state = SLOT_FREE;
+    }
+    mSlotCount = 0;
+    mSlotBytes = 0;
+    mQueueHead = mQueueSize = 0;
+}
+
+/*
+ * (re)build the buffers for frames of bytes, must be called with mutex held
+ * @return false if Java still leases buffers of the old size or on allocation failure
+ */
+bool UVCFrameConsumer::prepare_slots(JNIEnv *env, size_t bytes) {
+    if (LIKELY(mSlotCount && (mSlotBytes == bytes))) return true;
+    for (int i = 0; i < mSlotCount; i++) {
+        if (mSlots[i].state == SLOT_LEASED) return false;
+    }
+    free_slots(env);
+    const int count = mDepth + CONSUMER_LEASES + 1;
+    for (int i = 0; i < count; i++) {
+        consumer_slot_t &slot = mSlots[i];
+        slot.frame = uvc_allocate_frame(bytes);
+        if (UNLIKELY(!slot.frame)) break;
+        slot.frame->library_owns_data = 0;
+        jobject buffer = env->NewDirectByteBuffer(slot.frame->data, bytes);
+        slot.buffer = buffer ? env->NewGlobalRef(buffer) : NULL;
+        env->DeleteLocalRef(buffer);
+        if (UNLIKELY(!slot.buffer)) {
+            slot.frame->library_owns_data = 1;
+            uvc_free_frame(slot.frame);
+            slot.frame = NULL;
+            break;
+        }
+        slot.state = SLOT_FREE;
+        mSlotCount++;
+    }
+    env->ExceptionClear();
+    if (UNLIKELY(mSlotCount < count)) {
+        LOGE("failed to allocate consumer buffers");
+        free_slots(env);
+        return false;
+    }
+    mSlotBytes = bytes;
+    return true;
+}
+
+// must be called with mutex held
+int UVCFrameConsumer::pop_queue() {
+    if (!mQueueSize) return -1;
+    const int index = mQueue[mQueueHead];
+    mQueueHead = (mQueueHead + 1) % MAX_CONSUMER_DEPTH;
+    mQueueSize--;
+    return index;
+}
+
+/*
+ * deliver a region of the frames instead of the whole frame, scaled to its output size,
+ * the buffers are rebuilt for the new size once Java released its leases
+ * @return 0, -1 if roi is invalid
+ */
+int UVCFrameConsumer::setRegion(const uvc_roi_t &roi) {
+    ENTER()
+    uvc_roi_t normalized = roi;
+    if (UNLIKELY(!roi_normalize(normalized))) RETURN(-1, int)
+    pthread_mutex_lock(&mutex);
+    {
+        mRoi = normalized;
+    }
+    pthread_mutex_unlock(&mutex);
+    RETURN(0, int)
+}
+
+/*
+ * crop/scale frame into mRoiFrame, called only from the capture thread
+ */
+int UVCFrameConsumer::crop_frame(uvc_frame_t *frame, const uvc_roi_t &roi) {
+    if (UNLIKELY(!mRoiFrame)) {
+        int width, height;
+        roi_output_size(roi, frame->width, frame->height, width, height);
+        mRoiFrame = uvc_allocate_frame((width * height * 3) / 2);
+        if (UNLIKELY(!mRoiFrame)) return UVC_ERROR_NO_MEM;
+    }
+    if (!mRoiWork && (frame->frame_format == UVC_FRAME_FORMAT_YUYV)) {
+        // any region of the frame fits into it
+        mRoiWork = uvc_allocate_frame((frame->width * frame->height * 3) / 2);
+    }
+    return uvc_roi2i420(frame, mRoiFrame, &roi, mRoiWork);
+}
+
+/*
+ * convert frame for this consumer and queue it, called only from the capture thread
+ * @param converted frame already converted to the pixel format of this consumer by another sink,
+ *                  copied instead of converting frame again, NULL if there is none
+ * @return 0 if queued, 1 if skipped or dropped, -1 on error
+ */
+int UVCFrameConsumer::offer(JNIEnv *env, uvc_frame_t *frame, UVCStats &stats, const uvc_frame_t *converted) {
+    // replayed frames have no arrival time
+    const uint64_t now = frame->complete_ns ? frame->complete_ns : UVCStats::now();
+    if (mIntervalNs && mLastNs && (now < mLastNs + mIntervalNs)) {
+        __atomic_fetch_add(&mCounters[CONSUMER_SKIPPED_RATE], 1, __ATOMIC_RELAXED);
+        return 1;
+    }
+    // a frame dropped below still uses up the interval, the consumer is slow anyway
+    mLastNs = now;
+    convFunc_t func;
+    size_t bytes;
+    uvc_roi_t roi;
+    int index = -1;
+    pthread_mutex_lock(&mutex);
+    {
+        if (UNLIKELY(mClosed)) {
+            pthread_mutex_unlock(&mutex);
+            return 1;
+        }
+        roi = mRoi;
+        if (roi_active(roi)) {
+            int width, height;
+            roi_output_size(roi, frame->width, frame->height, width, height);
+            bytes = pixel_format_bytes(mPixelFormat, width, height, UVC_FRAME_FORMAT_I420, func);
+        } else {
+            bytes = pixel_format_bytes(mPixelFormat, frame->width, frame->height, frame->frame_format, func);
+        }
+        if (UNLIKELY(!prepare_slots(env, bytes))) {
+            __atomic_fetch_add(&mCounters[CONSUMER_DROP_LEASES_HELD], 1, __ATOMIC_RELAXED);
+            pthread_mutex_unlock(&mutex);
+            return 1;
+        }
+        if ((mPolicy == CONSUMER_POLICY_FIFO) && (mQueueSize >= mDepth)) {
+            __atomic_fetch_add(&mCounters[CONSUMER_DROP_QUEUE_FULL], 1, __ATOMIC_RELAXED);
+            pthread_mutex_unlock(&mutex);
+            return 1;
+        }
+        for (int i = 0; i < mSlotCount; i++) {
+            if (mSlots[i].state == SLOT_FREE) {
+                index = i;
+                break;
+            }
+        }
+        if ((index < 0) && (mPolicy == CONSUMER_POLICY_LATEST)) {
+            // Java holds more than CONSUMER_LEASES, reuse the oldest queued frame
+            index = pop_queue();
+            if (index >= 0) __atomic_fetch_add(&mCounters[CONSUMER_DROP_QUEUE_FULL], 1, __ATOMIC_RELAXED);
+        }
+        if (UNLIKELY(index < 0)) {
+            __atomic_fetch_add(&mCounters[CONSUMER_DROP_LEASES_HELD], 1, __ATOMIC_RELAXED);
+            pthread_mutex_unlock(&mutex);
+            return 1;
+        }
+        mSlots[index].state = SLOT_CONVERTING;
+    }
+    pthread_mutex_unlock(&mutex);
+
+    // convert without the lock, Java only touches queued and leased slots
+    consumer_slot_t &slot = mSlots[index];
+    int result;
+    if (roi_active(roi)) {
+        // crop/scale first so the conversion only touches the delivered pixels,
+        // the shared conversions of the whole frame are of no use here
+        const uint64_t start_time = UVCStats::now();
+        result = crop_frame(frame, roi);
+        if (LIKELY(!result)) result = func(mRoiFrame, slot.frame);
+        stats.since(STAGE_CAPTURE_CONVERT, start_time);
+    } else if (func && converted) {
+        result = converted->actual_bytes > bytes ? UVC_ERROR_NO_MEM : UVC_SUCCESS;
+        if (LIKELY(!result)) memcpy(slot.frame->data, converted->data, converted->actual_bytes);
+    } else if (func) {
+        const uint64_t start_time = UVCStats::now();
+        result = func(frame, slot.frame);
+        stats.since(STAGE_CAPTURE_CONVERT, start_time);
+    } else {
+        // data_bytes is the capacity of a pooled frame, only the received bytes are delivered
+        result = frame->actual_bytes > bytes ? UVC_ERROR_NO_MEM : UVC_SUCCESS;
+        if (LIKELY(!result)) memcpy(slot.frame->data, frame->data, frame->actual_bytes);
+    }
+    get_frame_info(frame, slot.info);
+
+    pthread_mutex_lock(&mutex);
+    {
+        if (LIKELY(!result)) {
+            if (mQueueSize >= mDepth) {
+                // CONSUMER_POLICY_LATEST
+                mSlots[pop_queue()].state = SLOT_FREE;
+                __atomic_fetch_add(&mCounters[CONSUMER_DROP_QUEUE_FULL], 1, __ATOMIC_RELAXED);
+            }
+            slot.state = SLOT_QUEUED;
+            mQueue[(mQueueHead + mQueueSize) % MAX_CONSUMER_DEPTH] = index;
+            mQueueSize++;
+            __atomic_fetch_add(&mCounters[CONSUMER_DELIVERED], 1, __ATOMIC_RELAXED);
+            pthread_cond_signal(&sync);
+        } else {
+            slot.state = SLOT_FREE;
+        }
+    }
+    pthread_mutex_unlock(&mutex);
+    return result ? -1 : 0;
+}
+
+/*
+ * lease the oldest queued frame, called from any Java thread
+ * @param timeout_ms < 0 waits until a frame is queued or #close
+ * @return slot index, -1 on timeout, -2 if closed
+ */
+int UVCFrameConsumer::acquire(int timeout_ms) {
+    int result = -1;
+    struct timespec ts;
+    if (timeout_ms > 0) {
+        clock_gettime(CLOCK_MONOTONIC, &ts);
+        ts.tv_sec += timeout_ms / 1000;
+        ts.tv_nsec += (timeout_ms % 1000) * 1000000L;
+        if (ts.tv_nsec >= 1000000000L) {
+            ts.tv_sec++;
+            ts.tv_nsec -= 1000000000L;
+        }
+    }
+    pthread_mutex_lock(&mutex);
+    {
+        for ( ; ; ) {
+            if (UNLIKELY(mClosed)) {
+                result = -2;
+                break;
+            }
+            result = pop_queue();
+            if ((result >= 0) || !timeout_ms) break;
+            if (timeout_ms < 0) {
+                pthread_cond_wait(&sync, &mutex);
+            } else if (pthread_cond_timedwait(&sync, &mutex, &ts)) {
+                // ETIMEDOUT, take a frame queued meanwhile
+                result = mClosed ? -2 : pop_queue();
+                break;
+            }
+        }
+        if (result >= 0) mSlots[result].state = SLOT_LEASED;
+    }
+    pthread_mutex_unlock(&mutex);
+    return result;
+}
+
+/*
+ * buffer and FrameInfo values of a leased slot
+ * @return local ref of the DirectByteBuffer, NULL if slot is not leased
+ */
+jobject UVCFrameConsumer::getFrame(JNIEnv *env, int slot, jlong *info, size_t &bytes) {
+    jobject result = NULL;
+    pthread_mutex_lock(&mutex);
+    {
+        if (LIKELY((slot >= 0) && (slot < mSlotCount) && (mSlots[slot].state == SLOT_LEASED))) {
+            memcpy(info, mSlots[slot].info, sizeof(mSlots[slot].info));
+            bytes = mSlotBytes;
+            result = env->NewLocalRef(mSlots[slot].buffer);
+        }
+    }
+    pthread_mutex_unlock(&mutex);
+    return result;
+}
+
+/*
+ * hand a leased frame back, called from any Java thread
+ * @return 0, -1 if slot was not leased
+ */
+int UVCFrameConsumer::release(int slot) {
+    int result = -1;
+    pthread_mutex_lock(&mutex);
+    {
+        if (LIKELY((slot >= 0) && (slot < mSlotCount) && (mSlots[slot].state == SLOT_LEASED))) {
+            mSlots[slot].state = SLOT_FREE;
+            result = 0;
+        }
+    }
+    pthread_mutex_unlock(&mutex);
+    return result;
+}
+
+/*
+ * stop queueing and release the threads waiting in #acquire
+ */
+void UVCFrameConsumer::close() {
+    ENTER()
+    pthread_mutex_lock(&mutex);
+    {
+        mClosed = true;
+        pthread_cond_broadcast(&sync);
+    }
+    pthread_mutex_unlock(&mutex);
+    EXIT()
+}
+
+/*
+ * free the buffers, only after #close when neither the capture thread nor Java use this consumer anymore
+ */
+void UVCFrameConsumer::clear(JNIEnv *env) {
+    ENTER()
+    pthread_mutex_lock(&mutex);
+    {
+        free_slots(env);
+    }
+    pthread_mutex_unlock(&mutex);
+    EXIT()
+}
+
+int UVCFrameConsumer::queued() {
+    pthread_mutex_lock(&mutex);
+    const int result = mQueueSize;
+    pthread_mutex_unlock(&mutex);
+    return result;
+}
+
+// counters must hold CONSUMER_COUNTER_NUM
+void UVCFrameConsumer::getCounters(uint64_t *counters) {
+    for (int i = 0; i < CONSUMER_COUNTER_NUM; i++) {
+        counters[i] = __atomic_load_n(&mCounters[i], __ATOMIC_RELAXED);
+    }
+}
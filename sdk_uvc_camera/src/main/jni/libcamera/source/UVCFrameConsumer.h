@@ -0,0 +1,155 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * File name: UVCFrameConsumer.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+
+#ifndef UVCFRAMECONSUMER_H_
+#define UVCFRAMECONSUMER_H_
+
+#include <jni.h>
+#include <pthread.h>
+#include "libUVCCamera.h"
+#include "UVCStats.h"
+
+#pragma interface
+
+// FrameInfo#values: sequence, pts, scr, capture ns, first payload ns, complete ns, keep in sync with FrameInfo.java
+#define FRAME_INFO_VALUES 6
+
+#define MAX_FRAME_CONSUMERS 8
+#define MAX_CONSUMER_DEPTH 16
+// frames Java may hold leased at the same time besides the queued ones
+#define CONSUMER_LEASES 2
+
+// keep in sync with FrameConsumer.java
+// queue keeps the newest frames, a new frame evicts the oldest queued one
+#define CONSUMER_POLICY_LATEST 0
+// bounded FIFO, a new frame is dropped while the queue is full
+#define CONSUMER_POLICY_FIFO 1
+
+// per consumer counters, keep in sync with FrameConsumer.java
+enum consumer_counter {
+	CONSUMER_DELIVERED = 0,			// frames queued for Java
+	CONSUMER_DROP_QUEUE_FULL,		// queued frames evicted (LATEST) or new frames rejected (FIFO)
+	CONSUMER_DROP_LEASES_HELD,		// no buffer to convert into, Java holds all leases
+	CONSUMER_SKIPPED_RATE,			// skipped to keep the max fps of the consumer
+	CONSUMER_COUNTER_NUM
+};
+
+typedef uvc_error_t (*convFunc_t)(uvc_frame_t *in, uvc_frame_t *out);
+
+typedef struct consumer_slot {
+	uvc_frame_t *frame;		// memory of buffer, not owned by libuvc so conversions never move it
+	jobject buffer;			// DirectByteBuffer on frame->data, global ref
+	jlong info[FRAME_INFO_VALUES];
+	volatile int state;
+} consumer_slot_t;
+
+static inline void get_frame_info(const uvc_frame_t *frame, jlong *info) {
+	info[0] = (jlong) frame->sequence;
+	info[1] = (jlong) frame->pts;
+	info[2] = (jlong) frame->scr;
+	info[3] = (jlong) frame->capture_ns;
+	info[4] = (jlong) frame->first_payload_ns;
+	info[5] = (jlong) frame->complete_ns;
+}
+
+/**
+ * check a region set from Java, sizes are rounded down to even for the subsampled chroma
+ * @return false if the region can never fit a frame
+ */
+static inline bool roi_normalize(uvc_roi_t &roi) {
+	if ((roi.x < 0) || (roi.y < 0) || (roi.width < 0) || (roi.height < 0)
+		|| (roi.out_width < 0) || (roi.out_height < 0)) {
+		return false;
+	}
+	roi.width &= ~1;
+	roi.height &= ~1;
+	roi.out_width &= ~1;
+	roi.out_height &= ~1;
+	return (!roi.width == !roi.height) && (!roi.out_width == !roi.out_height);
+}
+
+// frames are cropped and/or scaled before the conversion
+static inline bool roi_active(const uvc_roi_t &roi) {
+	return roi.width || roi.out_width;
+}
+
+// size of a width x height frame after uvc_roi2i420
+static inline void roi_output_size(const uvc_roi_t &roi, int width, int height, int &out_width, int &out_height) {
+	out_width = roi.out_width ? roi.out_width : roi.width ? roi.width : width;
+	out_height = roi.out_height ? roi.out_height : roi.height ? roi.height : height;
+}
+
+/**
+ * bytes of a frame of width x height in pixel_format and the conversion from the decoded frame (YUYV/I420)
+ * into it, func is NULL if frames of in_format are copied as they are
+ */
+size_t pixel_format_bytes(int pixel_format, int width, int height, uvc_frame_format in_format, convFunc_t &func);
+
+/**
+ * One frame consumer of a camera with its own queue, pixel format and rate.
+ * The capture thread converts each frame once per consumer into one of a fixed set of buffers
+ * and queues it; Java threads lease queued buffers with #acquire and hand them back with #release,
+ * so a slow consumer only loses frames of its own queue and never stalls the capture thread.
+ */
+class UVCFrameConsumer {
+private:
+	const int mPixelFormat;
+	const int mDepth;
+	const int mPolicy;
+	// min ns between two frames converted for this consumer, 0 for every frame
+	const uint64_t mIntervalNs;
+	uint64_t mLastNs;
+	pthread_mutex_t mutex;
+	pthread_cond_t sync;		// #acquire waits for a queued frame
+	consumer_slot_t mSlots[MAX_CONSUMER_DEPTH + CONSUMER_LEASES + 1];
+	int mSlotCount;
+	size_t mSlotBytes;
+	// queued slot indices, oldest first
+	int mQueue[MAX_CONSUMER_DEPTH];
+	int mQueueHead, mQueueSize;
+	bool mClosed;
+	uint64_t mCounters[CONSUMER_COUNTER_NUM];
+	// region delivered instead of the whole frame, cropped on the capture thread into mRoiFrame
+	uvc_roi_t mRoi;
+	uvc_frame_t *mRoiFrame, *mRoiWork;
+	bool prepare_slots(JNIEnv *env, size_t bytes);
+	void free_slots(JNIEnv *env);
+	int pop_queue();
+	int crop_frame(uvc_frame_t *frame, const uvc_roi_t &roi);
+public:
+	UVCFrameConsumer(int pixel_format, int depth, int policy, int max_fps);
+	~UVCFrameConsumer();
+
+	inline const int pixelFormat() const { return mPixelFormat; }
+	int setRegion(const uvc_roi_t &roi);
+	int offer(JNIEnv *env, uvc_frame_t *frame, UVCStats &stats, const uvc_frame_t *converted = NULL);
+	int acquire(int timeout_ms);
+	jobject getFrame(JNIEnv *env, int slot, jlong *info, size_t &bytes);
+	int release(int slot);
+	void close();
+	void clear(JNIEnv *env);
+	int queued();
+	void getCounters(uint64_t *counters);
+};
+
+#endif /* UVCFRAMECONSUMER_H_ */
@@ -45,13 +45,12 @@
 #include "libuvc_internal.h"
 
 #define LOCAL_DEBUG 0
-#define MAX_FRAME 4
 // ARGB/RGBA/RGBX/ABGR ->4  RGB24 -> 3
 #define PREVIEW_PIXEL_BYTES 4
-#define FRAME_POOL_SZ MAX_FRAME + 2
 
 UVCPreview::UVCPreview(uvc_device_handle_t *devh)
         : mPreviewWindow(NULL),
+          mSource(NULL),
           mCaptureWindow(NULL),
           mDeviceHandle(devh),
           requestWidth(DEFAULT_PREVIEW_WIDTH),
@@ -65,24 +64,50 @@ UVCPreview::UVCPreview(uvc_device_handle_t *devh)
         // YUYV / YUY2
           frameBytes(DEFAULT_PREVIEW_WIDTH * DEFAULT_PREVIEW_HEIGHT * 2),
           frameMode(0),
+          mMjpegDecoder(NULL),
+          mPreviewWork(NULL),
+          mDecodeWorkers(1),
+          mDecodePool(NULL),
+          mSharedDecodePool(NULL),
 
         //Add by Hsj
           previewRotate(ROTATE_0),
           previewFlip(FLIP_DEFAULT),
+          mZeroCopy(false),
+          mFrameCount(0),
+          mCopiedBytes(0),
+          mFramePoolClasses(0),
+          mFramePoolFixed(0),
+          mPoolHit(0),
+          mPoolMiss(0),
+          mPoolRealloc(0),
+          mPoolUsed(0),
+          mPoolHighWater(0),
 
           previewBytes(DEFAULT_PREVIEW_WIDTH * DEFAULT_PREVIEW_HEIGHT * PREVIEW_PIXEL_BYTES),
           previewFormat(WINDOW_FORMAT_RGBA_8888),
           mIsRunning(false),
           mIsCapturing(false),
-          captureQueu(NULL),
+          previewFrames(DEFAULT_FRAME_QUEUE_DEPTH, RING_DROP_NEWEST),
+          captureFrames(1, RING_DROP_OLDEST),
           mFrameCallbackObj(NULL),
+          iframecallback_fields(),
           mFrameCallbackFunc(NULL),
-          callbackPixelBytes(2) {
+          callbackPixelBytes(2),
+          mCaptureWork(NULL),
+          mCallbackBuffers(0),
+          mCallbackBufferCount(0),
+          mCallbackBufferNext(0),
+          mCallbackBufferBytes(0),
+          mConsumerCount(0),
+          mConversionCount(0),
+          mPipeline(NULL),
+          mStreamCache(NULL),
+          mStreamCtrlValid(false),
+          mStartNs(0) {
 
     ENTER()
     //
-    pthread_cond_init(&preview_sync, NULL);
-    //
     pthread_mutex_init(&preview_mutex, NULL);
     //
     pthread_cond_init(&capture_sync, NULL);
@@ -90,6 +115,17 @@ UVCPreview::UVCPreview(uvc_device_handle_t *devh)
     pthread_mutex_init(&capture_mutex, NULL);
     //
     pthread_mutex_init(&pool_mutex, NULL);
+    pthread_mutex_init(&callback_buffer_mutex, NULL);
+    memset(mCallbackBufferRing, 0, sizeof(mCallbackBufferRing));
+    pthread_mutex_init(&consumer_mutex, NULL);
+    memset(mConsumers, 0, sizeof(mConsumers));
+    pthread_mutex_init(&pipeline_mutex, NULL);
+    pthread_mutex_init(&conversion_mutex, NULL);
+    memset(mConversions, 0, sizeof(mConversions));
+    memset(&mCallbackRoi, 0, sizeof(mCallbackRoi));
+    memset(&mStreamCtrl, 0, sizeof(mStreamCtrl));
+    memset(&mCommittedCtrl, 0, sizeof(mCommittedCtrl));
+    memset(mStartupNs, 0, sizeof(mStartupNs));
     EXIT()
 }
 
@@ -99,63 +135,156 @@ UVCPreview::~UVCPreview() {
     mPreviewWindow = NULL;
     if (mCaptureWindow) ANativeWindow_release(mCaptureWindow);
     mCaptureWindow = NULL;
+    // the graph may still hold frames of the pool
+    setPipeline(NULL);
     clearPreviewFrame();
     clearCaptureFrame();
+    release_conversions(NULL);
     clear_pool();
+    if (mMjpegDecoder) {
+        uvc_mjpeg_decoder_destroy(mMjpegDecoder);
+        mMjpegDecoder = NULL;
+    }
+    SAFE_DELETE(mDecodePool);
+    if (mSource) {
+        uvc_source_destroy(mSource);
+        mSource = NULL;
+    }
+    if (mPreviewWork) {
+        uvc_free_frame(mPreviewWork);
+        mPreviewWork = NULL;
+    }
+    if (mCaptureWork) {
+        uvc_free_frame(mCaptureWork);
+        mCaptureWork = NULL;
+    }
+    if (mCallbackBufferCount) {
+        // normally released with the frame callback, destroyed from a Java thread
+        clear_callback_buffers(getEnv());
+    }
+    for (int i = 0; i < mConsumerCount; i++) {
+        // normally removed by UVCCamera#close already
+        mConsumers[i]->close();
+        mConsumers[i]->clear(getEnv());
+        SAFE_DELETE(mConsumers[i]);
+    }
     pthread_mutex_destroy(&preview_mutex);
-    pthread_cond_destroy(&preview_sync);
     pthread_mutex_destroy(&capture_mutex);
     pthread_cond_destroy(&capture_sync);
     pthread_mutex_destroy(&pool_mutex);
+    pthread_mutex_destroy(&callback_buffer_mutex);
+    pthread_mutex_destroy(&consumer_mutex);
+    pthread_mutex_destroy(&pipeline_mutex);
+    pthread_mutex_destroy(&conversion_mutex);
     EXIT()
 }
 
-long getTime() {
-    struct timeval time;
-    gettimeofday(&time, NULL);
-    return time.tv_sec * 1000 + time.tv_usec / 1000;
+/*
+ * find the pool class of data_bytes, must be called with pool_mutex held
+ * if add is true and there is no such class, register it,
+ * reusing an empty class that was not preallocated when all classes are in use
+ * @return index of class or -1
+ */
+int UVCPreview::pool_class(size_t data_bytes, bool add) {
+    for (int i = 0; i < mFramePoolClasses; i++) {
+        if (mFramePoolBytes[i] == data_bytes) return i;
+    }
+    if (add) {
+        if (mFramePoolClasses < FRAME_POOL_CLASSES) {
+            mFramePoolBytes[mFramePoolClasses] = data_bytes;
+            return mFramePoolClasses++;
+        }
+        for (int i = mFramePoolFixed; i < mFramePoolClasses; i++) {
+            if (mFramePool[i].isEmpty()) {
+                mFramePoolBytes[i] = data_bytes;
+                return i;
+            }
+        }
+    }
+    return -1;
 }
 
 /*
- * get uvc_frame_t from frame pool
- * if pool is empty, create new frame
- * this function does not confirm the frame size
- * and you may need to confirm the size
+ * preallocate frames for the negotiated frame size before streaming starts
+ * raw payload(YUYV) or decoded MJPEG frames, preview frames and callback frames
  */
-void UVCPreview::init_pool(size_t data_bytes) {
+void UVCPreview::init_pool() {
     ENTER()
     clear_pool();
     pthread_mutex_lock(&pool_mutex);
     {
-        for (int i = 0; i < FRAME_POOL_SZ; i++) {
-            mFramePool.put(uvc_allocate_frame(data_bytes));
+        // raw YUYV or MJPEG decoded to I420
+        const size_t yuv_bytes = frameMode ? (frameWidth * frameHeight * 3) / 2
+                                           : frameWidth * frameHeight * 2;
+        const size_t bytes[] = {yuv_bytes, previewBytes, callbackPixelBytes};
+        const int counts[] = {pool_size(), 2, mFrameCallbackObj ? 2 : 0};
+        for (int i = 0; i < 3; i++) {
+            const int ix = pool_class(bytes[i], true);
+            for (int j = mFramePool[ix].size(); j < counts[i]; j++) {
+                uvc_frame_t *frame = uvc_allocate_frame(bytes[i]);
+                if (UNLIKELY(!frame)) break;
+                mFramePool[ix].put(frame);
+            }
         }
+        mFramePoolFixed = mFramePoolClasses;
+        mPoolHit = mPoolMiss = mPoolRealloc = 0;
+        mPoolUsed = mPoolHighWater = 0;
     }
     pthread_mutex_unlock(&pool_mutex);
     EXIT()
 }
 
+/*
+ * get uvc_frame_t of data_bytes from frame pool
+ * if pool is empty, create new frame
+ */
 uvc_frame_t *UVCPreview::get_frame(size_t data_bytes) {
     uvc_frame_t *frame = NULL;
     pthread_mutex_lock(&pool_mutex);
     {
-        if (!mFramePool.isEmpty()) {
-            frame = mFramePool.last();
+        const int ix = pool_class(data_bytes, true);
+        if (LIKELY(ix >= 0)) {
+            frame = mFramePool[ix].last();
+        }
+        if (LIKELY(frame)) {
+            mPoolHit++;
+        } else {
+            mPoolMiss++;
+        }
+        if (++mPoolUsed > mPoolHighWater) {
+            mPoolHighWater = mPoolUsed;
         }
     }
     pthread_mutex_unlock(&pool_mutex);
     if UNLIKELY(!frame) {
-        LOGW("allocate new frame");
+#if LOCAL_DEBUG
+        LOGW("allocate new frame:%d", (int) data_bytes);
+#endif
         frame = uvc_allocate_frame(data_bytes);
     }
     return frame;
 }
 
+/*
+ * return frame to the pool of its current size,
+ * the frame is freed if the size was changed to one no class holds or the pool is full
+ */
 void UVCPreview::recycle_frame(uvc_frame_t *frame) {
+    if (frame->refs && (__atomic_sub_fetch(&frame->refs, 1, __ATOMIC_ACQ_REL) > 0)) {
+        // still shared by the pipeline graph, the last reference recycles it
+        return;
+    }
+    frame->release = NULL;
     pthread_mutex_lock(&pool_mutex);
-    if (LIKELY(mFramePool.size() < FRAME_POOL_SZ)) {
-        mFramePool.put(frame);
-        frame = NULL;
+    {
+        mPoolUsed--;
+        const int ix = pool_class(frame->data_bytes, false);
+        if (UNLIKELY(ix < 0)) {
+            mPoolRealloc++;
+        } else if (LIKELY(mFramePool[ix].size() < pool_size())) {
+            mFramePool[ix].put(frame);
+            frame = NULL;
+        }
     }
     pthread_mutex_unlock(&pool_mutex);
     if (UNLIKELY(frame)) {
@@ -167,16 +296,289 @@ void UVCPreview::clear_pool() {
     ENTER()
     pthread_mutex_lock(&pool_mutex);
     {
-        const int n = mFramePool.size();
-        for (int i = 0; i < n; i++) {
-            uvc_free_frame(mFramePool[i]);
+        for (int ix = 0; ix < mFramePoolClasses; ix++) {
+            const int n = mFramePool[ix].size();
+            for (int i = 0; i < n; i++) {
+                uvc_free_frame(mFramePool[ix][i]);
+            }
+            mFramePool[ix].clear();
         }
-        mFramePool.clear();
+        mFramePoolClasses = mFramePoolFixed = 0;
     }
     pthread_mutex_unlock(&pool_mutex);
     EXIT()
 }
 
+static inline int conversion_format(int pixel_format) {
+    // PIXEL_FORMAT_RAW hands YUYV to the sinks as well
+    return pixel_format == PIXEL_FORMAT_RAW ? PIXEL_FORMAT_YUV : pixel_format;
+}
+
+/*
+ * keep converted, a conversion of source, for the other sinks of source
+ * converted is released with source by #release_conversions, the oldest conversion is released when full;
+ * that only drops the reference of the cache, a sink still reading it holds its own, see #find_conversion
+ */
+void UVCPreview::put_conversion(uvc_frame_t *source, int pixel_format, int rotate, int flip,
+                                uvc_frame_t *converted) {
+    uvc_frame_t *evicted = NULL;
+    // the cache holds a reference, sinks of the pipeline graph may take more, see #acquire_conversion
+    __atomic_add_fetch(&converted->refs, 1, __ATOMIC_RELAXED);
+    converted->release = release_conversion_frame;
+    converted->release_arg = this;
+    pthread_mutex_lock(&conversion_mutex);
+    {
+        if (UNLIKELY(mConversionCount >= MAX_CONVERSIONS)) {
+            evicted = mConversions[0].frame;
+            memmove(&mConversions[0], &mConversions[1], sizeof(conversion_t) * --mConversionCount);
+        }
+        conversion_t &conversion = mConversions[mConversionCount++];
+        conversion.source = source;
+        conversion.sequence = source->sequence;
+        conversion.pixel_format = conversion_format(pixel_format);
+        conversion.rotate = rotate;
+        conversion.flip = flip;
+        conversion.frame = converted;
+    }
+    pthread_mutex_unlock(&conversion_mutex);
+    if (UNLIKELY(evicted)) {
+        recycle_frame(evicted);
+    }
+}
+
+/*
+ * @return the conversion of source kept by another sink with a reference for the caller,
+ * NULL if there is none; only read it and drop the reference with #recycle_frame
+ */
+uvc_frame_t *UVCPreview::find_conversion(const uvc_frame_t *source, int pixel_format,
+                                         int rotate, int flip) {
+    uvc_frame_t *result = NULL;
+    if (UNLIKELY(!mConversionCount)) return result;
+    pixel_format = conversion_format(pixel_format);
+    pthread_mutex_lock(&conversion_mutex);
+    {
+        for (int i = 0; i < mConversionCount; i++) {
+            const conversion_t &conversion = mConversions[i];
+            if ((conversion.source == source) && (conversion.sequence == source->sequence)
+                && (conversion.pixel_format == pixel_format)
+                && (conversion.rotate == rotate) && (conversion.flip == flip)) {
+                result = conversion.frame;
+                // taken while the cache still holds its own, an eviction cannot recycle it under the caller
+                pipeline_frame_ref(result);
+                break;
+            }
+        }
+    }
+    pthread_mutex_unlock(&conversion_mutex);
+    return result;
+}
+
+/*
+ * upright conversion of source into pixel_format, converted by the first sink asking for it
+ * and shared by the others, called only from the capture thread
+ * @return NULL if the conversion failed, otherwise see #find_conversion
+ */
+uvc_frame_t *UVCPreview::get_conversion(uvc_frame_t *source, int pixel_format,
+                                        convFunc_t func, size_t bytes) {
+    uvc_frame_t *result = find_conversion(source, pixel_format, ROTATE_0, FLIP_DEFAULT);
+    if (!result) {
+        result = get_frame(bytes);
+        if (LIKELY(result)) {
+            const uint64_t start_time = UVCStats::now();
+            const int b = func(source, result);
+            mStats.since(STAGE_CAPTURE_CONVERT, start_time);
+            if (LIKELY(!b)) {
+                put_conversion(source, pixel_format, ROTATE_0, FLIP_DEFAULT, result);
+                // the reference of the caller next to the one of the cache
+                pipeline_frame_ref(result);
+            } else {
+                recycle_frame(result);
+                result = NULL;
+            }
+        }
+    }
+    return result;
+}
+
+/*
+ * conversion of source for a sink of the pipeline graph, shared with the other sinks of source
+ * like #get_conversion but from any thread: the caller gets its own reference and drops it
+ * with pipeline_frame_unref, and a conversion made here never evicts one of the preview and
+ * capture threads
+ * @return NULL if the conversion failed
+ */
+uvc_frame_t *UVCPreview::acquire_conversion(uvc_frame_t *source, int pixel_format,
+                                            convFunc_t func, size_t bytes) {
+    const int format = conversion_format(pixel_format);
+    uvc_frame_t *result = find_conversion(source, format, ROTATE_0, FLIP_DEFAULT);
+    if (!result) {
+        result = get_frame(bytes);
+        if (UNLIKELY(!result)) return result;
+        if (UNLIKELY(func(source, result))) {
+            recycle_frame(result);
+            return NULL;
+        }
+        result->refs = 1;
+        result->release = release_conversion_frame;
+        result->release_arg = this;
+        pthread_mutex_lock(&conversion_mutex);
+        if (mConversionCount < MAX_CONVERSIONS) {
+            pipeline_frame_ref(result);
+            conversion_t &conversion = mConversions[mConversionCount++];
+            conversion.source = source;
+            conversion.sequence = source->sequence;
+            conversion.pixel_format = format;
+            conversion.rotate = ROTATE_0;
+            conversion.flip = FLIP_DEFAULT;
+            conversion.frame = result;
+        }
+        pthread_mutex_unlock(&conversion_mutex);
+    }
+    return result;
+}
+
+/*
+ * conversion of frame for a sink of the pipeline graph, see #acquire_conversion
+ * @return NULL if frame was not shared by a UVCPreview or the conversion failed,
+ * the sink converts on its own then
+ */
+/*static*/
+uvc_frame_t *UVCPreview::acquire_shared_conversion(uvc_frame_t *frame, int pixel_format,
+                                                   convFunc_t func, size_t bytes) {
+    if (!frame || (frame->release != release_shared_frame) || !func) return NULL;
+    return reinterpret_cast<UVCPreview *>(frame->release_arg)->acquire_conversion(frame, pixel_format, func, bytes);
+}
+
+/*
+ * recycle the conversions of source before source itself is recycled, NULL for all
+ */
+void UVCPreview::release_conversions(const uvc_frame_t *source) {
+    uvc_frame_t *released[MAX_CONVERSIONS];
+    int n = 0;
+    pthread_mutex_lock(&conversion_mutex);
+    {
+        int j = 0;
+        for (int i = 0; i < mConversionCount; i++) {
+            if (!source || (mConversions[i].source == source)) {
+                released[n++] = mConversions[i].frame;
+            } else {
+                mConversions[j++] = mConversions[i];
+            }
+        }
+        mConversionCount = j;
+    }
+    pthread_mutex_unlock(&conversion_mutex);
+    for (int i = 0; i < n; i++) {
+        recycle_frame(released[i]);
+    }
+}
+
+//hit, miss, realloc and high water mark of frames in use since preview started
+int UVCPreview::getFramePoolStats(uint64_t *stats) {
+    pthread_mutex_lock(&pool_mutex);
+    {
+        stats[0] = mPoolHit;
+        stats[1] = mPoolMiss;
+        stats[2] = mPoolRealloc;
+        stats[3] = mPoolHighWater;
+    }
+    pthread_mutex_unlock(&pool_mutex);
+    return 0;
+}
+
+//latency histograms and drop counters, see UVCStats.h for the layout of values
+void UVCPreview::getStats(uint64_t *values) {
+    mStats.snapshot(values);
+}
+
+//STARTUP_NUM values, see UVCStats.h for the layout; STARTUP_CONNECT is the camera's
+void UVCPreview::getStartupTimes(uint64_t *values) {
+    for (int i = 0; i < STARTUP_NUM; i++) {
+        values[i] = __atomic_load_n(&mStartupNs[i], __ATOMIC_RELAXED);
+    }
+}
+
+//record the raw frames of the device stream, works before and while previewing
+int UVCPreview::startRecording(const char *path) {
+    ENTER()
+    int result = -1;
+    if (mDeviceHandle && !mSource) {
+        // slots are sized for the requested YUYV frame, MJPEG frames are smaller
+        result = uvc_start_recording(mDeviceHandle, path, requestWidth * requestHeight * 2);
+    }
+    RETURN(result, int)
+}
+
+int UVCPreview::stopRecording() {
+    ENTER()
+    int result = -1;
+    if (mDeviceHandle) {
+        result = uvc_stop_recording(mDeviceHandle);
+    }
+    RETURN(result, int)
+}
+
+//frames written, frames dropped, bytes written
+int UVCPreview::getRecordingStats(uint64_t *stats) {
+    uint32_t frames, dropped;
+    uint64_t bytes;
+    if (!mDeviceHandle || uvc_get_recording_stats(mDeviceHandle, &frames, &dropped, &bytes)) {
+        return -1;
+    }
+    stats[0] = frames;
+    stats[1] = dropped;
+    stats[2] = bytes;
+    return 0;
+}
+
+//transfers in flight, max packets per isochronous transfer, uvc_alt_policy, 0 keeps the default
+int UVCPreview::setTransferPlan(int transfers, int packets, int alt_policy) {
+    ENTER()
+    int result = 0;
+    if (isRunning() || !mDeviceHandle) {
+        result = -1;
+    } else {
+        uvc_transfer_plan_t plan = {};
+        plan.transfers = transfers;
+        plan.packets = packets;
+        plan.alt_policy = (enum uvc_alt_policy) alt_policy;
+        if (uvc_set_transfer_plan(mDeviceHandle, &plan)) {
+            result = -2;
+        }
+    }
+    RETURN(result, int)
+}
+
+//altsetting, packet bytes, transfers, packets per transfer, packets, error packets, short packets, renegotiations
+int UVCPreview::getTransferStats(uint64_t *stats) {
+    uvc_transfer_stats_t transfer_stats;
+    if (!mDeviceHandle || uvc_get_transfer_stats(mDeviceHandle, &transfer_stats)) {
+        return -1;
+    }
+    stats[0] = transfer_stats.altsetting;
+    stats[1] = transfer_stats.packet_bytes;
+    stats[2] = transfer_stats.transfers;
+    stats[3] = transfer_stats.packets_per_transfer;
+    stats[4] = transfer_stats.packets;
+    stats[5] = transfer_stats.error_packets;
+    stats[6] = transfer_stats.short_packets;
+    stats[7] = transfer_stats.renegotiations;
+    return 0;
+}
+
+// samples, nominal Hz, fitted Hz, jitter ns
+int UVCPreview::getClockEstimate(uint64_t *estimate) {
+    uvc_clock_estimate_t clock;
+    if (!mDeviceHandle || uvc_get_clock_estimate(mDeviceHandle, &clock)) {
+        return -1;
+    }
+    estimate[0] = clock.samples;
+    estimate[1] = clock.nominal_hz;
+    estimate[2] = (uint64_t) (clock.device_hz + 0.5);
+    estimate[3] = clock.jitter_ns;
+    return 0;
+}
+
 inline const bool UVCPreview::isRunning() const { return mIsRunning; }
 
 int UVCPreview::setPreviewSize(int width, int height,
@@ -192,16 +594,50 @@ int UVCPreview::setPreviewSize(int width, int height,
         requestMode = mode;
         requestBandwidth = bandwidth;
 
-        uvc_stream_ctrl_t ctrl;
-        result = uvc_get_stream_ctrl_format_size_fps(mDeviceHandle, &ctrl,
-                                                     !requestMode ? UVC_FRAME_FORMAT_YUYV
-                                                                  : UVC_FRAME_FORMAT_MJPEG,
-                                                     requestWidth, requestHeight, requestMinFps,
-                                                     requestMaxFps);
+        mStreamCtrlValid = false;
+        // a frame source streams its own format, nothing to negotiate
+        if (!mSource && mDeviceHandle) {
+            const uint64_t start_time = UVCStats::now();
+            uint64_t fast_path;
+            result = negotiate(&mStreamCtrl, &fast_path);
+            // startPreview commits this one instead of negotiating the same request again
+            mStreamCtrlValid = !result;
+            __atomic_store_n(&mStartupNs[STARTUP_SIZE_NEGOTIATE], UVCStats::now() - start_time,
+                             __ATOMIC_RELAXED);
+        }
     }
     RETURN(result, int)
 }
 
+/**
+ * negotiate the requested stream; a control the device accepted before is probed as is
+ * (PROBE SET_CUR + GET_CUR) instead of reading the ranges and probing from scratch
+ * @param fast_path 1 if the cached control was accepted, 0 if negotiated from scratch
+ */
+uvc_error_t UVCPreview::negotiate(uvc_stream_ctrl_t *ctrl, uint64_t *fast_path) {
+    ENTER()
+    uvc_error_t result;
+    if (mStreamCache
+        && mStreamCache->find(requestMode, requestWidth, requestHeight, requestMinFps, requestMaxFps, ctrl)) {
+        const uint8_t format_index = ctrl->bFormatIndex;
+        const uint8_t frame_index = ctrl->bFrameIndex;
+        result = uvc_probe_stream_ctrl(mDeviceHandle, ctrl);
+        if (LIKELY(!result && (ctrl->bFormatIndex == format_index) && (ctrl->bFrameIndex == frame_index))) {
+            *fast_path = 1;
+            RETURN(UVC_SUCCESS, uvc_error_t)
+        }
+        LOGI("cached stream control not accepted:err=%d", result);
+        mStreamCache->remove(requestMode, requestWidth, requestHeight, requestMinFps, requestMaxFps);
+    }
+    *fast_path = 0;
+    result = uvc_get_stream_ctrl_format_size_fps(mDeviceHandle, ctrl,
+                                                 !requestMode ? UVC_FRAME_FORMAT_YUYV
+                                                              : UVC_FRAME_FORMAT_MJPEG,
+                                                 requestWidth, requestHeight, requestMinFps,
+                                                 requestMaxFps);
+    RETURN(result, uvc_error_t)
+}
+
 //Add by Hsj for set preview rotate
 int UVCPreview::setPreviewRotate(int rotate) {
     ENTER()
@@ -232,6 +668,126 @@ int UVCPreview::setPreviewFlip(int flip) {
     RETURN(result, int)
 }
 
+/*
+ * format of the preview window buffers, only while not previewing
+ * @param window_format WINDOW_FORMAT_RGBA_8888, WINDOW_FORMAT_RGBX_8888, WINDOW_FORMAT_RGB_565 or WINDOW_FORMAT_YV12,
+ *                      frames are converted straight into the locked buffer in this format
+ */
+int UVCPreview::setPreviewFormat(int window_format) {
+    ENTER()
+    int result = 0;
+    if (isRunning()) {
+        result = -1;
+    } else if (window_format == WINDOW_FORMAT_RGBA_8888 || window_format == WINDOW_FORMAT_RGBX_8888
+               || window_format == WINDOW_FORMAT_RGB_565 || window_format == WINDOW_FORMAT_YV12) {
+        pthread_mutex_lock(&preview_mutex);
+        {
+            previewFormat = window_format;
+            if (mPreviewWindow) {
+                if (previewRotate == ROTATE_90 || previewRotate == ROTATE_270) {
+                    ANativeWindow_setBuffersGeometry(mPreviewWindow, frameHeight, frameWidth,
+                                                     previewFormat);
+                } else {
+                    ANativeWindow_setBuffersGeometry(mPreviewWindow, frameWidth, frameHeight,
+                                                     previewFormat);
+                }
+            }
+        }
+        pthread_mutex_unlock(&preview_mutex);
+    } else {
+        result = -2;
+    }
+    RETURN(result, int)
+}
+
+//hand over libuvc's receive buffer instead of copying it, only while not previewing
+int UVCPreview::setZeroCopy(bool zero_copy) {
+    ENTER()
+    int result = 0;
+    if (isRunning()) {
+        result = -1;
+    } else {
+        mZeroCopy = zero_copy;
+    }
+    RETURN(result, int)
+}
+
+//depth of stream->preview queue and which frame to drop when it is full, only while not previewing
+int UVCPreview::setFrameQueue(int depth, int drop_policy) {
+    ENTER()
+    int result = 0;
+    if (isRunning()) {
+        result = -1;
+    } else if (depth < 1 || depth > RING_MAX_DEPTH
+               || (drop_policy != RING_DROP_NEWEST && drop_policy != RING_DROP_OLDEST)) {
+        result = -2;
+    } else {
+        clearPreviewFrame();
+        previewFrames.resize(depth);
+        previewFrames.policy(drop_policy);
+    }
+    RETURN(result, int)
+}
+
+//number of threads decoding MJPEG frames concurrently, only while not previewing
+int UVCPreview::setDecodeWorkers(int workers) {
+    ENTER()
+    int result = 0;
+    if (isRunning()) {
+        result = -1;
+    } else if (workers < 1 || workers > MAX_DECODE_WORKERS) {
+        result = -2;
+    } else {
+        mDecodeWorkers = workers;
+    }
+    RETURN(result, int)
+}
+
+//decode MJPEG on the pool of the camera group instead of own threads, the pool must outlive this
+int UVCPreview::setDecodePool(UVCDecodePool *pool) {
+    ENTER()
+    int result = 0;
+    if (isRunning()) {
+        result = -1;
+    } else {
+        mSharedDecodePool = pool;
+    }
+    RETURN(result, int)
+}
+
+//stream controls to try before negotiating from scratch, the cache must outlive this
+int UVCPreview::setStreamCache(UVCStreamCache *cache) {
+    ENTER()
+    int result = 0;
+    if (isRunning()) {
+        result = -1;
+    } else {
+        mStreamCache = cache;
+    }
+    RETURN(result, int)
+}
+
+//stream from a synthetic/replay source instead of the device, takes ownership of source
+int UVCPreview::setFrameSource(uvc_frame_source_t *source) {
+    ENTER()
+    int result = 0;
+    if (isRunning()) {
+        result = -1;
+    } else {
+        if (mSource && mSource != source) {
+            uvc_source_destroy(mSource);
+        }
+        mSource = source;
+    }
+    RETURN(result, int)
+}
+
+//average bytes copied per frame between libuvc and the preview queue
+uint64_t UVCPreview::getCopiedBytesPerFrame() {
+    const uint64_t frames = mFrameCount;
+    return frames ? mCopiedBytes / frames : 0;
+}
+
 int UVCPreview::setPreviewDisplay(ANativeWindow *preview_window) {
     ENTER()
     pthread_mutex_lock(&preview_mutex);
@@ -256,7 +812,11 @@ int UVCPreview::setPreviewDisplay(ANativeWindow *preview_window) {
     RETURN(0, int)
 }
 
-int UVCPreview::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format) {
+/*
+ * @param frame_callback_obj global ref, taken over
+ * @param frame_info_obj FrameInfo to fill before each IFrameInfoCallback#onFrame, NULL for IFrameCallback
+ */
+int UVCPreview::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format, jobject frame_info_obj) {
     ENTER()
     LOGD("frame_callback_obj->%d", frame_callback_obj != NULL);
     pthread_mutex_lock(&capture_mutex);
@@ -269,18 +829,40 @@ int UVCPreview::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pi
                 pthread_cond_wait(&capture_sync, &capture_mutex);
             }
         }
-        if (!env->IsSameObject(mFrameCallbackObj, frame_callback_obj)) {
+        if (!env->IsSameObject(mFrameCallbackObj, frame_callback_obj)
+            || !env->IsSameObject(iframecallback_fields.frameInfo, frame_info_obj)) {
             iframecallback_fields.onFrame = NULL;
             if (mFrameCallbackObj) {
                 env->DeleteGlobalRef(mFrameCallbackObj);
             }
+            release_frame_info(env);
+            // buffers the old callback still holds are invalid from now on
+            clear_callback_buffers(env);
             mFrameCallbackObj = frame_callback_obj;
             if (frame_callback_obj) {
                 jclass clazz = env->GetObjectClass(frame_callback_obj);
                 if (LIKELY(clazz)) {
-                    iframecallback_fields.onFrame = env->GetMethodID(clazz,
-                                                                     "onFrame",
-                                                                     "(Ljava/nio/ByteBuffer;)V");
+                    if (frame_info_obj) {
+                        iframecallback_fields.onFrame = env->GetMethodID(clazz,
+                                                                         "onFrame",
+                                                                         "(Ljava/nio/ByteBuffer;Lcom/hsj/camera/FrameInfo;)V");
+                        jclass info_clazz = env->GetObjectClass(frame_info_obj);
+                        jfieldID values_field = env->GetFieldID(info_clazz, "values", "[J");
+                        jobject values = values_field ? env->GetObjectField(frame_info_obj, values_field) : NULL;
+                        if (LIKELY(values && env->GetArrayLength((jlongArray) values) >= FRAME_INFO_VALUES)) {
+                            iframecallback_fields.frameInfo = env->NewGlobalRef(frame_info_obj);
+                            iframecallback_fields.frameInfoValues = (jlongArray) env->NewGlobalRef(values);
+                        } else {
+                            LOGE("Can't find FrameInfo#values");
+                            iframecallback_fields.onFrame = NULL;
+                        }
+                        env->DeleteLocalRef(values);
+                        env->DeleteLocalRef(info_clazz);
+                    } else {
+                        iframecallback_fields.onFrame = env->GetMethodID(clazz,
+                                                                         "onFrame",
+                                                                         "(Ljava/nio/ByteBuffer;)V");
+                    }
                 } else {
                     LOGE("Can't find IFrameCallback class");
                 }
@@ -288,9 +870,14 @@ int UVCPreview::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pi
                 if (!iframecallback_fields.onFrame) {
                     LOGE("Can't find IFrameCallback#onFrame()");
                     env->DeleteGlobalRef(frame_callback_obj);
+                    release_frame_info(env);
                     mFrameCallbackObj = frame_callback_obj = NULL;
                 }
             }
+        } else if (frame_callback_obj) {
+            // same callback again, drop the extra global ref
+            env->DeleteGlobalRef(frame_callback_obj);
+            frame_callback_obj = mFrameCallbackObj;
         }
         if (frame_callback_obj) {
             mPixelFormat = pixel_format;
@@ -301,9 +888,296 @@ int UVCPreview::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pi
     RETURN(0, int)
 }
 
+// must be called with capture_mutex held
+void UVCPreview::release_frame_info(JNIEnv *env) {
+    if (iframecallback_fields.frameInfoValues) {
+        env->DeleteGlobalRef(iframecallback_fields.frameInfoValues);
+        iframecallback_fields.frameInfoValues = NULL;
+    }
+    if (iframecallback_fields.frameInfo) {
+        env->DeleteGlobalRef(iframecallback_fields.frameInfo);
+        iframecallback_fields.frameInfo = NULL;
+    }
+}
+
+/*
+ * hand only a region of the frames to IFrameCallback, scaled to its output size,
+ * cropped before the conversion to the callback pixel format so that only touches the delivered pixels
+ * @return 0, -1 if roi is invalid
+ */
+int UVCPreview::setFrameCallbackRegion(const uvc_roi_t &roi) {
+    ENTER()
+    uvc_roi_t normalized = roi;
+    if (UNLIKELY(!roi_normalize(normalized))) RETURN(-1, int)
+    pthread_mutex_lock(&capture_mutex);
+    {
+        if (isRunning() && isCapturing()) {
+            mIsCapturing = false;
+            if (mFrameCallbackObj) {
+                pthread_cond_signal(&capture_sync);
+                // wait finishing capturing
+                pthread_cond_wait(&capture_sync, &capture_mutex);
+            }
+        }
+        mCallbackRoi = normalized;
+        callbackPixelFormatChanged();
+    }
+    pthread_mutex_unlock(&capture_mutex);
+    RETURN(0, int)
+}
+
+/*
+ * deliver frames to IFrameCallback in count reusable DirectByteBuffers instead of a new one per frame,
+ * each buffer belongs to Java until #releaseCallbackBuffer
+ * @param count 0 for a new ByteBuffer per frame
+ */
+int UVCPreview::setCallbackBuffers(int count) {
+    ENTER()
+    int result = -1;
+    if (count >= 0 && count <= MAX_CALLBACK_BUFFERS) {
+        // the ring is rebuilt on the capture thread once Java released all buffers
+        mCallbackBuffers = count;
+        result = 0;
+    }
+    RETURN(result, int)
+}
+
+/*
+ * hand a buffer delivered from the ring back, called from any thread
+ * @return -1 if the buffer is not one of the ring (anymore)
+ */
+int UVCPreview::releaseCallbackBuffer(JNIEnv *env, jobject buffer) {
+    int result = -1;
+    void *address = env->GetDirectBufferAddress(buffer);
+    pthread_mutex_lock(&callback_buffer_mutex);
+    {
+        for (int i = 0; address && (i < mCallbackBufferCount); i++) {
+            callback_buffer_t &slot = mCallbackBufferRing[i];
+            if (slot.frame->data == address) {
+                slot.held = false;
+                result = 0;
+                break;
+            }
+        }
+    }
+    pthread_mutex_unlock(&callback_buffer_mutex);
+    return result;
+}
+
+/*
+ * next free buffer of the ring, (re)built here when the wanted count or the frame size changed
+ * and Java holds none of the old buffers
+ * @return NULL if all buffers are held
+ */
+callback_buffer_t *UVCPreview::acquire_callback_buffer(JNIEnv *env) {
+    callback_buffer_t *result = NULL;
+    pthread_mutex_lock(&callback_buffer_mutex);
+    {
+        if (UNLIKELY((mCallbackBufferCount != mCallbackBuffers)
+                     || (mCallbackBufferBytes != callbackPixelBytes))) {
+            bool held = false;
+            for (int i = 0; i < mCallbackBufferCount; i++) {
+                held |= mCallbackBufferRing[i].held;
+            }
+            if (!held) {
+                pthread_mutex_unlock(&callback_buffer_mutex);
+                clear_callback_buffers(env);
+                pthread_mutex_lock(&callback_buffer_mutex);
+                int n = 0;
+                for ( ; n < mCallbackBuffers; n++) {
+                    callback_buffer_t &slot = mCallbackBufferRing[n];
+                    slot.frame = uvc_allocate_frame(callbackPixelBytes);
+                    if (UNLIKELY(!slot.frame)) break;
+                    slot.frame->library_owns_data = 0;
+                    jobject buffer = env->NewDirectByteBuffer(slot.frame->data, callbackPixelBytes);
+                    slot.buffer = buffer ? env->NewGlobalRef(buffer) : NULL;
+                    env->DeleteLocalRef(buffer);
+                    if (UNLIKELY(!slot.buffer)) {
+                        slot.frame->library_owns_data = 1;
+                        uvc_free_frame(slot.frame);
+                        slot.frame = NULL;
+                        break;
+                    }
+                    slot.held = false;
+                }
+                env->ExceptionClear();
+                if (UNLIKELY(n < mCallbackBuffers)) {
+                    LOGW("could only allocate %d of %d callback buffers", n, mCallbackBuffers);
+                    mCallbackBuffers = n;
+                }
+                mCallbackBufferCount = n;
+                mCallbackBufferBytes = callbackPixelBytes;
+                mCallbackBufferNext = 0;
+            }
+        }
+        if (LIKELY(mCallbackBufferCount == mCallbackBuffers)) {
+            for (int i = 0; i < mCallbackBufferCount; i++) {
+                callback_buffer_t &slot = mCallbackBufferRing[(mCallbackBufferNext + i) % mCallbackBufferCount];
+                if (!slot.held) {
+                    slot.held = true;
+                    mCallbackBufferNext = (mCallbackBufferNext + i + 1) % mCallbackBufferCount;
+                    result = &slot;
+                    break;
+                }
+            }
+        }
+    }
+    pthread_mutex_unlock(&callback_buffer_mutex);
+    return result;
+}
+
+// free the ring, only while the capture thread does not use it
+void UVCPreview::clear_callback_buffers(JNIEnv *env) {
+    pthread_mutex_lock(&callback_buffer_mutex);
+    {
+        for (int i = 0; i < mCallbackBufferCount; i++) {
+            callback_buffer_t &slot = mCallbackBufferRing[i];
+            if (env) env->DeleteGlobalRef(slot.buffer);
+            slot.frame->library_owns_data = 1;
+            uvc_free_frame(slot.frame);
+            slot.frame = NULL;
+            slot.buffer = NULL;
+            slot.held = false;
+        }
+        mCallbackBufferCount = 0;
+        mCallbackBufferBytes = 0;
+    }
+    pthread_mutex_unlock(&callback_buffer_mutex);
+}
+
+/*
+ * add a consumer that leases frames converted to pixel_format, can be called while previewing
+ * @param depth frames queued for the consumer, 1..MAX_CONSUMER_DEPTH
+ * @param max_fps frames per second converted for the consumer at most, 0 for every frame
+ * @return NULL on invalid arguments or if there are MAX_FRAME_CONSUMERS already
+ */
+UVCFrameConsumer *UVCPreview::addFrameConsumer(int pixel_format, int depth, int policy, int max_fps) {
+    ENTER()
+    UVCFrameConsumer *result = NULL;
+    if ((pixel_format >= PIXEL_FORMAT_RAW) && (pixel_format <= PIXEL_FORMAT_I420)
+        && (depth >= 1) && (depth <= MAX_CONSUMER_DEPTH)
+        && ((policy == CONSUMER_POLICY_LATEST) || (policy == CONSUMER_POLICY_FIFO))
+        && (max_fps >= 0)) {
+        pthread_mutex_lock(&consumer_mutex);
+        {
+            if (mConsumerCount < MAX_FRAME_CONSUMERS) {
+                result = new UVCFrameConsumer(pixel_format, depth, policy, max_fps);
+                mConsumers[mConsumerCount++] = result;
+            }
+        }
+        pthread_mutex_unlock(&consumer_mutex);
+    }
+    RETURN(result, UVCFrameConsumer *)
+}
+
+/*
+ * remove and delete consumer, no other thread may use it anymore
+ * (FrameConsumer#close waits for its acquire/release calls)
+ * @return -1 if consumer is not one of this preview
+ */
+int UVCPreview::removeFrameConsumer(JNIEnv *env, UVCFrameConsumer *consumer) {
+    ENTER()
+    int result = -1;
+    pthread_mutex_lock(&consumer_mutex);
+    {
+        for (int i = 0; i < mConsumerCount; i++) {
+            if (mConsumers[i] == consumer) {
+                mConsumers[i] = mConsumers[--mConsumerCount];
+                mConsumers[mConsumerCount] = NULL;
+                result = 0;
+                break;
+            }
+        }
+    }
+    pthread_mutex_unlock(&consumer_mutex);
+    if (!result) {
+        // the capture thread offers under consumer_mutex, it is done with consumer now
+        consumer->close();
+        consumer->clear(env);
+        SAFE_DELETE(consumer);
+    }
+    RETURN(result, int)
+}
+
+/*
+ * convert and queue frame for each consumer, frame stays with the caller
+ */
+void UVCPreview::do_capture_consumers(JNIEnv *env, uvc_frame_t *frame) {
+    if (UNLIKELY(!frame || !mConsumerCount)) return;
+    pthread_mutex_lock(&consumer_mutex);
+    {
+        for (int i = 0; i < mConsumerCount; i++) {
+            // upright conversion another sink already made, if any
+            uvc_frame_t *converted = find_conversion(frame, mConsumers[i]->pixelFormat(), ROTATE_0, FLIP_DEFAULT);
+            mConsumers[i]->offer(env, frame, mStats, converted);
+            if (converted) recycle_frame(converted);
+        }
+    }
+    pthread_mutex_unlock(&consumer_mutex);
+}
+
+/*
+ * set the root of the pipeline graph the capture thread feeds, NULL to stop feeding
+ * when this returns the previous graph holds no frame of this preview anymore
+ */
+int UVCPreview::setPipeline(IPipeline *pipeline) {
+    ENTER()
+    pthread_mutex_lock(&pipeline_mutex);
+    IPipeline *prev = mPipeline;
+    mPipeline = pipeline;
+    pthread_mutex_unlock(&pipeline_mutex);
+    if (prev && (prev != pipeline)) {
+        prev->flush();
+    }
+    RETURN(0, int)
+}
+
+void UVCPreview::release_shared_frame(uvc_frame_t *frame, void *vptr_args) {
+    UVCPreview *preview = reinterpret_cast<UVCPreview *>(vptr_args);
+    // the last branch of the graph is done, so are the sinks sharing its conversions
+    preview->release_conversions(frame);
+    preview->recycle_frame(frame);
+}
+
+void UVCPreview::release_conversion_frame(uvc_frame_t *frame, void *vptr_args) {
+    reinterpret_cast<UVCPreview *>(vptr_args)->recycle_frame(frame);
+}
+
+/*
+ * the capture thread is done with frame, a frame shared with the pipeline graph
+ * keeps its conversions until the graph drops the last reference, see #release_shared_frame
+ */
+void UVCPreview::release_capture_frame(uvc_frame_t *frame) {
+    if (frame->refs && (__atomic_sub_fetch(&frame->refs, 1, __ATOMIC_ACQ_REL) > 0)) {
+        return;
+    }
+    release_conversions(frame);
+    recycle_frame(frame);
+}
+
+/*
+ * share frame with the pipeline graph, the capture thread keeps its own reference
+ * and the frame returns to the pool when the last branch is done with it
+ */
+void UVCPreview::do_capture_pipeline(uvc_frame_t *frame) {
+    if (UNLIKELY(!frame || !mPipeline)) return;
+    pthread_mutex_lock(&pipeline_mutex);
+    if (mPipeline) {
+        frame->refs = 1;
+        frame->release = release_shared_frame;
+        frame->release_arg = this;
+        mPipeline->queueFrame(frame);
+    }
+    pthread_mutex_unlock(&pipeline_mutex);
+}
+
 void UVCPreview::callbackPixelFormatChanged() {
     mFrameCallbackFunc = NULL;
-    const size_t sz = requestWidth * requestHeight;
+    int width, height;
+    // a frame source streams its own size, see #prepare_preview
+    roi_output_size(mCallbackRoi, mSource ? frameWidth : requestWidth,
+                    mSource ? frameHeight : requestHeight, width, height);
+    const size_t sz = width * height;
     switch (mPixelFormat) {
         case PIXEL_FORMAT_RAW:
             LOGI("PIXEL_FORMAT_RAW:");
@@ -325,49 +1199,66 @@ void UVCPreview::callbackPixelFormatChanged() {
             break;
         case PIXEL_FORMAT_NV12:
             LOGI("PIXEL_FORMAT_YUV420P<->NV12:");
-            mFrameCallbackFunc = uvc_yuyv2yuv420SP;
+            mFrameCallbackFunc = uvc_any2yuv420SP;
             callbackPixelBytes = (sz * 3) / 2;
             break;
         case PIXEL_FORMAT_NV21:
             LOGI("PIXEL_FORMAT_YUV420SP<->NV21:");
-            mFrameCallbackFunc = uvc_yuyv2iyuv420SP;
+            mFrameCallbackFunc = uvc_any2iyuv420SP;
             callbackPixelBytes = (sz * 3) / 2;
             break;
+        case PIXEL_FORMAT_I420:
+            LOGI("PIXEL_FORMAT_I420:");
+            mFrameCallbackFunc = uvc_any2i420;
+            callbackPixelBytes = (sz * 3) / 2;
+            break;
+    }
+}
+
+static void clearPlane(uint8_t *dest, const size_t bytes, const int stride, const int height, const int value) {
+    for (int i = 0; i < height; i++) {
+        memset(dest, value, bytes);
+        dest += stride;
+    }
+}
+
+// fill the Surface(ANativeWindow) with black in whatever format its buffers have
+static void clearWindow(ANativeWindow *window) {
+    ANativeWindow_Buffer buffer;
+    if (LIKELY(ANativeWindow_lock(window, &buffer, NULL) == 0)) {
+        uint8_t *dest = (uint8_t *) buffer.bits;
+        switch (buffer.format) {
+            case WINDOW_FORMAT_YV12: {
+                const int cstride = ((buffer.stride >> 1) + 15) & ~15;
+                clearPlane(dest, buffer.width, buffer.stride, buffer.height, 16);
+                clearPlane(dest + buffer.stride * buffer.height, buffer.width >> 1, cstride, buffer.height, 128);
+                break;
+            }
+            case WINDOW_FORMAT_RGB_565:
+                clearPlane(dest, buffer.width * 2, buffer.stride * 2, buffer.height, 0);
+                break;
+            default:
+                clearPlane(dest, buffer.width * PREVIEW_PIXEL_BYTES, buffer.stride * PREVIEW_PIXEL_BYTES,
+                           buffer.height, 0);
+                break;
+        }
+        ANativeWindow_unlockAndPost(window);
     }
 }
 
 void UVCPreview::clearDisplay() {
     ENTER()
-    ANativeWindow_Buffer buffer;
     pthread_mutex_lock(&capture_mutex);
     {
         if (LIKELY(mCaptureWindow)) {
-            if (LIKELY(ANativeWindow_lock(mCaptureWindow, &buffer, NULL) == 0)) {
-                uint8_t *dest = (uint8_t *) buffer.bits;
-                const size_t bytes = buffer.width * PREVIEW_PIXEL_BYTES;
-                const int stride = buffer.stride * PREVIEW_PIXEL_BYTES;
-                for (int i = 0; i < buffer.height; i++) {
-                    memset(dest, 0, bytes);
-                    dest += stride;
-                }
-                ANativeWindow_unlockAndPost(mCaptureWindow);
-            }
+            clearWindow(mCaptureWindow);
         }
     }
     pthread_mutex_unlock(&capture_mutex);
     pthread_mutex_lock(&preview_mutex);
     {
         if (LIKELY(mPreviewWindow)) {
-            if (LIKELY(ANativeWindow_lock(mPreviewWindow, &buffer, NULL) == 0)) {
-                uint8_t *dest = (uint8_t *) buffer.bits;
-                const size_t bytes = buffer.width * PREVIEW_PIXEL_BYTES;
-                const int stride = buffer.stride * PREVIEW_PIXEL_BYTES;
-                for (int i = 0; i < buffer.height; i++) {
-                    memset(dest, 0, bytes);
-                    dest += stride;
-                }
-                ANativeWindow_unlockAndPost(mPreviewWindow);
-            }
+            clearWindow(mPreviewWindow);
         }
     }
     pthread_mutex_unlock(&preview_mutex);
@@ -378,6 +1269,10 @@ int UVCPreview::startPreview() {
     ENTER()
     int result = EXIT_FAILURE;
     if (!isRunning()) {
+        for (int i = STARTUP_NEGOTIATE; i < STARTUP_NUM; i++) {
+            __atomic_store_n(&mStartupNs[i], 0, __ATOMIC_RELAXED);
+        }
+        mStartNs = UVCStats::now();
         mIsRunning = true;
         pthread_mutex_lock(&preview_mutex);
         {
@@ -390,11 +1285,7 @@ int UVCPreview::startPreview() {
         if (UNLIKELY(result != EXIT_SUCCESS)) {
             LOGW("UVCCamera::window does not exist/already running/could not create thread etc.");
             mIsRunning = false;
-            pthread_mutex_lock(&preview_mutex);
-            {
-                pthread_cond_signal(&preview_sync);
-            }
-            pthread_mutex_unlock(&preview_mutex);
+            previewFrames.wakeup();
         }
     }
     RETURN(result, int);
@@ -405,12 +1296,8 @@ int UVCPreview::stopPreview() {
     bool b = isRunning();
     if (LIKELY(b)) {
         mIsRunning = false;
-        //pthread_cond_signal(&preview_sync);
-        pthread_mutex_lock(&preview_mutex);
-        {
-            pthread_cond_signal(&preview_sync);
-        }
-        pthread_mutex_unlock(&preview_mutex);
+        previewFrames.wakeup();
+        captureFrames.wakeup();
         pthread_cond_signal(&capture_sync);
         if (pthread_join(capture_thread, NULL) != EXIT_SUCCESS) {
             LOGW("UVCPreview::terminate capture thread: pthread_join failed");
@@ -420,6 +1307,12 @@ int UVCPreview::stopPreview() {
         }
         clearDisplay();
     }
+    pthread_mutex_lock(&pipeline_mutex);
+    if (mPipeline) {
+        // the frames the graph still holds go back to the pool before it is cleared
+        mPipeline->flush();
+    }
+    pthread_mutex_unlock(&pipeline_mutex);
     clearPreviewFrame();
     clearCaptureFrame();
     pthread_mutex_lock(&preview_mutex);
@@ -458,64 +1351,78 @@ void UVCPreview::uvc_preview_frame_callback(uvc_frame_t *frame, void *vptr_args)
             frame->frame_format, frame->actual_bytes, preview->frameBytes,
             frame->width, frame->height, preview->frameWidth, preview->frameHeight);
 #endif
+        preview->mStats.drop(DROP_BROKEN_FRAME);
         return;
     }
+    if (LIKELY(frame->first_payload_ns && frame->complete_ns >= frame->first_payload_ns)) {
+        preview->mStats.record(STAGE_USB, frame->complete_ns - frame->first_payload_ns);
+    }
+    if (UNLIKELY(!__atomic_load_n(&preview->mStartupNs[STARTUP_FIRST_FRAME], __ATOMIC_RELAXED))) {
+        __atomic_store_n(&preview->mStartupNs[STARTUP_FIRST_FRAME], UVCStats::now() - preview->mStartNs,
+                         __ATOMIC_RELAXED);
+        // the device streams with it, worth probing as is next time
+        if (preview->mStreamCache && !preview->mSource) {
+            preview->mStreamCache->put(preview->requestMode, preview->requestWidth, preview->requestHeight,
+                                       preview->requestMinFps, preview->requestMaxFps, &preview->mCommittedCtrl);
+        }
+    }
     if (LIKELY(preview->isRunning())) {
         uvc_frame_t *copy = preview->get_frame(frame->data_bytes);
         if (UNLIKELY(!copy)) {
 #if LOCAL_DEBUG
             LOGE("uvc_callback:unable to allocate duplicate frame!");
 #endif
+            preview->mStats.drop(DROP_POOL_EXHAUSTED);
             return;
         }
-        uvc_error_t ret = uvc_duplicate_frame(frame, copy);
+        uvc_error_t ret;
+        if (preview->mZeroCopy) {
+            // take over the buffer, libuvc continues with the one copy had
+            ret = uvc_swap_frame(frame, copy);
+        } else {
+            ret = uvc_duplicate_frame(frame, copy);
+            // libuvc already copied holdbuf into frame before calling back
+            if (LIKELY(!ret)) preview->mCopiedBytes += copy->actual_bytes * 2;
+        }
         if (UNLIKELY(ret)) {
             preview->recycle_frame(copy);
             return;
         }
+        preview->mFrameCount++;
         preview->addPreviewFrame(copy);
     }
 }
 
+/*
+ * called only from the libuvc callback thread (single producer)
+ */
 void UVCPreview::addPreviewFrame(uvc_frame_t *frame) {
-    pthread_mutex_lock(&preview_mutex);
-    {
-        if (isRunning() && (previewFrames.size() < MAX_FRAME)) {
-            previewFrames.put(frame);
-            frame = NULL;
-            pthread_cond_signal(&preview_sync);
-        }
+    uvc_frame_t *dropped = frame;
+    if (LIKELY(isRunning())) {
+        previewFrames.put(frame, dropped);
+        if (UNLIKELY(dropped)) mStats.drop(DROP_PREVIEW_QUEUE_FULL);
     }
-    pthread_mutex_unlock(&preview_mutex);
-    if (frame) {
-        recycle_frame(frame);
+    if (dropped) {
+        recycle_frame(dropped);
     }
 }
 
+/*
+ * called only from the preview thread (single consumer)
+ */
 uvc_frame_t *UVCPreview::waitPreviewFrame() {
-    uvc_frame_t *frame = NULL;
-    pthread_mutex_lock(&preview_mutex);
-    {
-        if (!previewFrames.size()) {
-            pthread_cond_wait(&preview_sync, &preview_mutex);
-        }
-        if (LIKELY(isRunning() && previewFrames.size() > 0)) {
-            frame = previewFrames.remove(0);
-        }
+    uvc_frame_t *frame = previewFrames.wait();
+    if (UNLIKELY(frame && !isRunning())) {
+        recycle_frame(frame);
+        frame = NULL;
     }
-    pthread_mutex_unlock(&preview_mutex);
     return frame;
 }
 
 void UVCPreview::clearPreviewFrame() {
-    pthread_mutex_lock(&preview_mutex);
-    {
-        for (int i = 0; i < previewFrames.size(); i++) {
-            recycle_frame(previewFrames[i]);
-        }
-        previewFrames.clear();
+    for (uvc_frame_t *frame = previewFrames.get(); frame; frame = previewFrames.get()) {
+        recycle_frame(frame);
     }
-    pthread_mutex_unlock(&preview_mutex);
 }
 
 void *UVCPreview::preview_thread_func(void *vptr_args) {
@@ -536,22 +1443,44 @@ void *UVCPreview::preview_thread_func(void *vptr_args) {
 int UVCPreview::prepare_preview(uvc_stream_ctrl_t *ctrl) {
     uvc_error_t result;
     ENTER()
-    result = uvc_get_stream_ctrl_format_size_fps(mDeviceHandle, ctrl,
-                                                 !requestMode ? UVC_FRAME_FORMAT_YUYV
-                                                              : UVC_FRAME_FORMAT_MJPEG,
-                                                 requestWidth, requestHeight, requestMinFps,
-                                                 requestMaxFps);
+    // the request of setPreviewSize stays as is, a frame source must not make a later USB
+    // stream of the same size look already negotiated
+    int width = requestWidth, height = requestHeight, mode = requestMode;
+    if (mSource) {
+        // frame source decides format and size
+        enum uvc_frame_format format;
+        uvc_source_get_format(mSource, &format, &width, &height);
+        mode = (format == UVC_FRAME_FORMAT_MJPEG) ? 1 : 0;
+        result = UVC_SUCCESS;
+    } else if (mStreamCtrlValid) {
+        // setPreviewSize just negotiated this request, the device still holds the probe
+        *ctrl = mStreamCtrl;
+        mStreamCtrlValid = false;
+        __atomic_store_n(&mStartupNs[STARTUP_FAST_PATH], 2, __ATOMIC_RELAXED);
+        result = UVC_SUCCESS;
+    } else {
+        const uint64_t start_time = UVCStats::now();
+        uint64_t fast_path;
+        result = negotiate(ctrl, &fast_path);
+        __atomic_store_n(&mStartupNs[STARTUP_NEGOTIATE], UVCStats::now() - start_time, __ATOMIC_RELAXED);
+        __atomic_store_n(&mStartupNs[STARTUP_FAST_PATH], fast_path, __ATOMIC_RELAXED);
+    }
+    if (LIKELY(!result && !mSource)) {
+        mCommittedCtrl = *ctrl;
+    }
     if (LIKELY(!result)) {
 #if LOCAL_DEBUG
-        uvc_print_stream_ctrl(ctrl, stderr);
+        if (!mSource) uvc_print_stream_ctrl(ctrl, stderr);
 #endif
-        uvc_frame_desc_t *frame_desc;
-        result = uvc_get_frame_desc(mDeviceHandle, ctrl, &frame_desc);
+        uvc_frame_desc_t *frame_desc = NULL;
+        if (!mSource) {
+            result = uvc_get_frame_desc(mDeviceHandle, ctrl, &frame_desc);
+        }
         if (LIKELY(!result)) {
-            frameWidth = frame_desc->wWidth;
-            frameHeight = frame_desc->wHeight;
+            frameWidth = frame_desc ? frame_desc->wWidth : width;
+            frameHeight = frame_desc ? frame_desc->wHeight : height;
             LOGI("frameSize=(%d,%d)@%s", frameWidth, frameHeight,
-                 (!requestMode ? "YUYV" : "MJPEG"));
+                 (!mode ? "YUYV" : "MJPEG"));
             pthread_mutex_lock(&preview_mutex);
             if (LIKELY(mPreviewWindow)) {
                 //ANativeWindow width、height by Hsj
@@ -566,12 +1495,30 @@ int UVCPreview::prepare_preview(uvc_stream_ctrl_t *ctrl) {
             }
             pthread_mutex_unlock(&preview_mutex);
         } else {
-            frameWidth = requestWidth;
-            frameHeight = requestHeight;
+            frameWidth = width;
+            frameHeight = height;
         }
-        frameMode = requestMode;
-        frameBytes = frameWidth * frameHeight * (!requestMode ? 2 : 4);
+        frameMode = mode;
+        frameBytes = frameWidth * frameHeight * (!mode ? 2 : 4);
         previewBytes = frameWidth * frameHeight * PREVIEW_PIXEL_BYTES;
+        init_pool();
+        // two I420 images, YUYV is converted to I420 and then rotated
+        const size_t workBytes = frameWidth * frameHeight * 3;
+        if (!mPreviewWork) {
+            mPreviewWork = uvc_allocate_frame(workBytes);
+        } else if (mPreviewWork->data_bytes != workBytes) {
+            uvc_ensure_frame_size(mPreviewWork, workBytes);
+        }
+        if (frameMode && !mMjpegDecoder) {
+            mMjpegDecoder = uvc_mjpeg_decoder_create();
+            if (UNLIKELY(!mMjpegDecoder)) {
+                LOGE("could not create MJPEG decoder");
+                result = UVC_ERROR_NO_MEM;
+            }
+        }
+        if (frameMode && mDecodeWorkers > 1 && !mSharedDecodePool && !mDecodePool) {
+            mDecodePool = new UVCDecodePool();
+        }
     } else {
         LOGE("could not negotiate with camera:err=%d", result);
     }
@@ -582,26 +1529,60 @@ void UVCPreview::do_preview(uvc_stream_ctrl_t *ctrl) {
     ENTER()
     uvc_frame_t *frame = NULL;
     uvc_frame_t *frame_mjpeg = NULL;
-    uvc_error_t result = uvc_start_streaming_bandwidth(
-            mDeviceHandle, ctrl, uvc_preview_frame_callback, (void *) this, requestBandwidth, 0);
+    const uint8_t flags = mZeroCopy ? UVC_STREAM_FLAG_ZERO_COPY : 0;
+    mStats.reset();
+    const uint64_t start_time = UVCStats::now();
+    uvc_error_t result = mSource
+            ? uvc_source_start(mSource, uvc_preview_frame_callback, (void *) this, flags)
+            : uvc_start_streaming_bandwidth(mDeviceHandle, ctrl, uvc_preview_frame_callback,
+                                            (void *) this, requestBandwidth, flags);
+    __atomic_store_n(&mStartupNs[STARTUP_STREAM_ON], UVCStats::now() - start_time, __ATOMIC_RELAXED);
     if (LIKELY(!result)) {
         clearPreviewFrame();
+        mFrameCount = mCopiedBytes = 0;
         int ret = pthread_create(&capture_thread, NULL, capture_thread_func, (void *) this);
         LOGD("do_preview thread_create=%d", ret);
 
 #if LOCAL_DEBUG
         LOGI("Streaming...");
 #endif
-        if (frameMode) {
+        // the group's pool is shared and always running, a private one runs while previewing
+        UVCDecodePool *pool = mSharedDecodePool;
+        if (!pool && frameMode && mDecodeWorkers > 1 && mDecodePool
+            && !mDecodePool->start(mDecodeWorkers)) {
+            pool = mDecodePool;
+        }
+        const int lane = frameMode && pool ? pool->open(decode_notify, this) : -1;
+        if (lane >= 0) {
+            // MJPEG mode (Compressed), decoded by worker threads
+            do_preview_mjpeg_parallel(pool, lane);
+        } else if (frameMode) {
+            if (pool == mDecodePool && mDecodePool) {
+                mDecodePool->stop();
+            }
             // MJPEG mode (Compressed)
+            // decode straight to I420, fall back to YUYV if the stream is not 4:2:0/4:2:2
+            bool decode_i420 = true;
             for (; LIKELY(isRunning());) {
                 frame_mjpeg = waitPreviewFrame();
                 if (LIKELY(frame_mjpeg)) {
-                    frame = get_frame(frame_mjpeg->width * frame_mjpeg->height * 2);
-                    // MJPEG => yuyv
-                    long start_time = getTime();
-                    result = uvc_mjpeg2yuyv(frame_mjpeg, frame);
-                    LOGD("uvc_mjpeg2yuyv->%ld", getTime() - start_time);
+                    const uint64_t start_time = UVCStats::now();
+                    if (LIKELY(decode_i420)) {
+                        // MJPEG => I420
+                        frame = get_frame((frame_mjpeg->width * frame_mjpeg->height * 3) / 2);
+                        result = uvc_mjpeg_decode_i420(mMjpegDecoder, frame_mjpeg, frame);
+                        if (UNLIKELY(result == UVC_ERROR_NOT_SUPPORTED)) {
+                            LOGW("MJPEG sampling not supported by I420 decoder, use YUYV");
+                            decode_i420 = false;
+                            recycle_frame(frame);
+                        }
+                    }
+                    if (UNLIKELY(!decode_i420)) {
+                        // MJPEG => yuyv
+                        frame = get_frame(frame_mjpeg->width * frame_mjpeg->height * 2);
+                        result = uvc_mjpeg_decode_yuyv(mMjpegDecoder, frame_mjpeg, frame);
+                    }
+                    mStats.since(STAGE_DECODE, start_time);
                     recycle_frame(frame_mjpeg);
                     if (LIKELY(!result)) {
                         //Add by Hsj for open camera when no PreviewWindow
@@ -609,7 +1590,8 @@ void UVCPreview::do_preview(uvc_stream_ctrl_t *ctrl) {
                         if (mPreviewWindow) {
                             //Add by Hsj for rotate and flip
                             //frame = draw_preview_one(frame, &mPreviewWindow, uvc_any2rgbx, PREVIEW_PIXEL_BYTES);
-                            frame = draw_preview_one(frame, &mPreviewWindow, uvc_yuyv2argb,
+                            frame = draw_preview_one(frame, &mPreviewWindow,
+                                                     decode_i420 ? uvc_i4202argb : uvc_yuyv2argb,
                                                      PREVIEW_PIXEL_BYTES);
                         }
                         addCaptureFrame(frame);
@@ -639,7 +1621,11 @@ void UVCPreview::do_preview(uvc_stream_ctrl_t *ctrl) {
 #if LOCAL_DEBUG
         LOGI("preview_thread_func:wait for all callbacks complete");
 #endif
-        uvc_stop_streaming(mDeviceHandle);
+        if (mSource) {
+            uvc_source_stop(mSource);
+        } else {
+            uvc_stop_streaming(mDeviceHandle);
+        }
 #if LOCAL_DEBUG
         LOGI("Streaming finished");
 #endif
@@ -649,6 +1635,66 @@ void UVCPreview::do_preview(uvc_stream_ctrl_t *ctrl) {
     EXIT()
 }
 
+/*
+ * preview thread hands MJPEG frames to the decode pool and draws the decoded ones in sequence order,
+ * it is woken up from waitPreviewFrame by a worker each time a frame was decoded
+ */
+void UVCPreview::do_preview_mjpeg_parallel(UVCDecodePool *pool, int lane) {
+    ENTER()
+    decode_job_t job;
+    for (; LIKELY(isRunning());) {
+        uvc_frame_t *frame_mjpeg = waitPreviewFrame();
+        if (LIKELY(frame_mjpeg)) {
+            uvc_frame_t *frame = get_frame(
+                    pool->outputBytes(lane, frame_mjpeg->width, frame_mjpeg->height));
+            bool queued;
+            // all jobs of this stream are in flight, draw the oldest frame to make room
+            while (!(queued = pool->submit(lane, frame_mjpeg, frame))
+                   && pool->next(lane, job, true)) {
+                draw_decoded(job);
+            }
+            if (UNLIKELY(!queued)) {
+                recycle_frame(frame_mjpeg);
+                recycle_frame(frame);
+            }
+        }
+        while (pool->next(lane, job, false)) {
+            draw_decoded(job);
+        }
+    }
+    pool->close(lane);
+    while (pool->drain(lane, job)) {
+        recycle_frame(job.in);
+        recycle_frame(job.out);
+    }
+    if (pool == mDecodePool) {
+        mDecodePool->stop();
+    }
+    EXIT()
+}
+
+void UVCPreview::draw_decoded(decode_job_t &job) {
+    recycle_frame(job.in);
+    uvc_frame_t *frame = job.out;
+    mStats.record(STAGE_DECODE, job.decode_ns);
+    if (LIKELY(!job.result)) {
+        if (mPreviewWindow) {
+            frame = draw_preview_one(frame, &mPreviewWindow,
+                                     frame->frame_format == UVC_FRAME_FORMAT_I420
+                                     ? uvc_i4202argb : uvc_yuyv2argb,
+                                     PREVIEW_PIXEL_BYTES);
+        }
+        addCaptureFrame(frame);
+    } else {
+        recycle_frame(frame);
+    }
+}
+
+void UVCPreview::decode_notify(void *vptr_args) {
+    UVCPreview *preview = reinterpret_cast<UVCPreview *>(vptr_args);
+    preview->previewFrames.wakeup();
+}
+
 static void copyFrame(const uint8_t *src, uint8_t *dest,
                       const int width, int height,
                       const int stride_src, const int stride_dest) {
@@ -717,6 +1763,37 @@ int copyToSurface(uvc_frame_t *frame, ANativeWindow **window) {
     return result; //RETURN(result, int);
 }
 
+static inline enum uvc_frame_format window_frame_format(int32_t window_format) {
+    switch (window_format) {
+        case WINDOW_FORMAT_RGBA_8888:
+        case WINDOW_FORMAT_RGBX_8888:
+            return UVC_FRAME_FORMAT_RGBX;
+        case WINDOW_FORMAT_RGB_565:
+            return UVC_FRAME_FORMAT_RGB565;
+        case WINDOW_FORMAT_YV12:
+            return UVC_FRAME_FORMAT_YV12;
+        default:
+            return UVC_FRAME_FORMAT_UNKNOWN;
+    }
+}
+
+// convert YUYV/I420 frame straight into the locked buffer of the Surface(ANativeWindow), honoring its stride and format
+int drawToWindow(uvc_frame_t *frame, ANativeWindow *window, int rotate, int flip, uvc_frame_t *work) {
+    int result = -1;
+    ANativeWindow_Buffer buffer;
+    if (LIKELY(ANativeWindow_lock(window, &buffer, NULL) == 0)) {
+        const enum uvc_frame_format format = window_frame_format(buffer.format);
+        if (LIKELY(format != UVC_FRAME_FORMAT_UNKNOWN)) {
+            result = uvc_any2buffer(frame, buffer.bits, buffer.stride, buffer.width, buffer.height,
+                                    format, rotate, flip, work);
+        } else {
+            LOGW("unsupported window format:%d", buffer.format);
+        }
+        ANativeWindow_unlockAndPost(window);
+    }
+    return result;
+}
+
 // changed to return original frame instead of returning converted frame even if convert_func is not null.
 uvc_frame_t *UVCPreview::draw_preview_one(uvc_frame_t *frame, ANativeWindow **window,
                                           convFunc_t2 convert_func, int pixelBytes) {
@@ -729,28 +1806,53 @@ uvc_frame_t *UVCPreview::draw_preview_one(uvc_frame_t *frame, ANativeWindow **wi
     pthread_mutex_unlock(&preview_mutex);
     if (LIKELY(b)) {
         uvc_frame_t *converted;
-        if (convert_func) {
+        // the upright RGBX the sinks could share is worth an extra copy, otherwise convert into the window
+        const bool share = convert_func && (mCaptureWindow || mFrameCallbackObj || mConsumerCount)
+                           && (previewRotate == ROTATE_0) && (previewFlip == FLIP_DEFAULT)
+                           && ((previewFormat == WINDOW_FORMAT_RGBA_8888)
+                               || (previewFormat == WINDOW_FORMAT_RGBX_8888));
+        if (convert_func && !share) {
+            pthread_mutex_lock(&preview_mutex);
+            if (LIKELY(*window)) {
+                const uint64_t start_time = UVCStats::now();
+                if (UNLIKELY(drawToWindow(frame, *window, previewRotate, previewFlip, mPreviewWork))) {
+                    LOGE("failed converting");
+                }
+                mStats.since(STAGE_PREVIEW_CONVERT, start_time);
+            }
+            pthread_mutex_unlock(&preview_mutex);
+        } else if (convert_func) {
             converted = get_frame(frame->width * frame->height * pixelBytes);
             if LIKELY(converted) {
-                long start_time = getTime();
-                b = convert_func(frame, converted, previewRotate, previewFlip);
-                LOGD("convert_func->%ld", getTime() - start_time);
+                uint64_t start_time = UVCStats::now();
+                b = convert_func(frame, converted, previewRotate, previewFlip, mPreviewWork);
+                start_time = mStats.since(STAGE_PREVIEW_CONVERT, start_time);
                 if (!b) {
                     pthread_mutex_lock(&preview_mutex);
-                    long start_time = getTime();
                     copyToSurface(converted, window);
-                    LOGD("copyToSurface->%ld", getTime() - start_time);
+                    mStats.since(STAGE_COPY_SURFACE, start_time);
                     pthread_mutex_unlock(&preview_mutex);
                 } else {
                     LOGE("failed converting");
                 }
-                recycle_frame(converted);
+                if (!b && (mCaptureWindow || mFrameCallbackObj || mConsumerCount || mPipeline)) {
+                    // the capture thread reuses it for the sinks asking for the same representation
+                    put_conversion(frame, PIXEL_FORMAT_RGBX, previewRotate, previewFlip, converted);
+                } else {
+                    recycle_frame(converted);
+                }
             }
         } else {
+            // already RGBX
             pthread_mutex_lock(&preview_mutex);
+            const uint64_t start_time = UVCStats::now();
             copyToSurface(frame, window);
+            mStats.since(STAGE_COPY_SURFACE, start_time);
             pthread_mutex_unlock(&preview_mutex);
         }
+        if (UNLIKELY(!__atomic_load_n(&mStartupNs[STARTUP_FIRST_DRAW], __ATOMIC_RELAXED))) {
+            __atomic_store_n(&mStartupNs[STARTUP_FIRST_DRAW], UVCStats::now() - mStartNs, __ATOMIC_RELAXED);
+        }
     }
     //RETURN(frame, uvc_frame_t *)
     return frame;
@@ -768,6 +1870,7 @@ int UVCPreview::setCaptureDisplay(ANativeWindow *capture_window) {
             mIsCapturing = false;
             if (mCaptureWindow) {
                 pthread_cond_signal(&capture_sync);
+                captureFrames.wakeup();
                 // wait finishing capturing
                 pthread_cond_wait(&capture_sync, &capture_mutex);
             }
@@ -785,9 +1888,9 @@ int UVCPreview::setCaptureDisplay(ANativeWindow *capture_window) {
             // So we need check here.
             if (mCaptureWindow) {
                 int32_t window_format = ANativeWindow_getFormat(mCaptureWindow);
-                if ((window_format != WINDOW_FORMAT_RGB_565)
-                    && (previewFormat == WINDOW_FORMAT_RGB_565)) {
-                    LOGE("window format mismatch, cancelled movie capturing.");
+                if ((window_format != WINDOW_FORMAT_RGBA_8888) && (window_format != WINDOW_FORMAT_RGBX_8888)
+                    && (window_format != WINDOW_FORMAT_RGB_565) && (window_format != WINDOW_FORMAT_YV12)) {
+                    LOGE("window format %d not supported, cancelled movie capturing.", window_format);
                     ANativeWindow_release(mCaptureWindow);
                     mCaptureWindow = NULL;
                 }
@@ -798,40 +1901,33 @@ int UVCPreview::setCaptureDisplay(ANativeWindow *capture_window) {
     RETURN(0, int)
 }
 
+/*
+ * called only from the preview thread (single producer), keep only latest one
+ */
 void UVCPreview::addCaptureFrame(uvc_frame_t *frame) {
-    pthread_mutex_lock(&capture_mutex);
-    {
-        if (LIKELY(isRunning())) {
-            // keep only latest one
-            if (captureQueu) {
-                recycle_frame(captureQueu);
-            }
-            captureQueu = frame;
-            pthread_cond_broadcast(&capture_sync);
-        } else {
-            //Add by Hsj
-            recycle_frame(frame);
-        }
+    uvc_frame_t *dropped = frame;
+    if (LIKELY(isRunning())) {
+        captureFrames.put(frame, dropped);
+        if (UNLIKELY(dropped)) mStats.drop(DROP_CAPTURE_OVERWRITE);
+    }
+    if (dropped) {
+        //Add by Hsj
+        release_conversions(dropped);
+        recycle_frame(dropped);
     }
-    pthread_mutex_unlock(&capture_mutex);
 }
 
 /*
  * get frame data for capturing, if not exist, block and wait
+ * called only from the capture thread (single consumer)
  */
 uvc_frame_t *UVCPreview::waitCaptureFrame() {
-    uvc_frame_t *frame = NULL;
-    pthread_mutex_lock(&capture_mutex);
-    {
-        if (!captureQueu) {
-            pthread_cond_wait(&capture_sync, &capture_mutex);
-        }
-        if (LIKELY(isRunning() && captureQueu)) {
-            frame = captureQueu;
-            captureQueu = NULL;
-        }
+    uvc_frame_t *frame = captureFrames.wait();
+    if (UNLIKELY(frame && !isRunning())) {
+        release_conversions(frame);
+        recycle_frame(frame);
+        frame = NULL;
     }
-    pthread_mutex_unlock(&capture_mutex);
     return frame;
 }
 
@@ -839,14 +1935,10 @@ uvc_frame_t *UVCPreview::waitCaptureFrame() {
  * clear drame data for capturing
  */
 void UVCPreview::clearCaptureFrame() {
-    pthread_mutex_lock(&capture_mutex);
-    {
-        if (captureQueu) {
-            recycle_frame(captureQueu);
-        }
-        captureQueu = NULL;
+    for (uvc_frame_t *frame = captureFrames.get(); frame; frame = captureFrames.get()) {
+        release_conversions(frame);
+        recycle_frame(frame);
     }
-    pthread_mutex_unlock(&capture_mutex);
 }
 
 //==================================================================================================
@@ -899,7 +1991,13 @@ void UVCPreview::do_capture(JNIEnv *env) {
 void UVCPreview::do_capture_idle_loop(JNIEnv *env) {
     ENTER()
     for (; isRunning() && isCapturing();) {
-        do_capture_callback(env, waitCaptureFrame());
+        uvc_frame_t *frame = waitCaptureFrame();
+        if (LIKELY(frame)) {
+            do_capture_pipeline(frame);
+            do_capture_consumers(env, frame);
+            do_capture_callback(env, frame);
+            release_capture_frame(frame);
+        }
     }
     EXIT()
 }
@@ -910,31 +2008,33 @@ void UVCPreview::do_capture_idle_loop(JNIEnv *env) {
 void UVCPreview::do_capture_surface(JNIEnv *env) {
     ENTER()
     uvc_frame_t *frame = NULL;
-    uvc_frame_t *converted = NULL;
     //char *local_picture_path;
     for (; isRunning() && isCapturing();) {
         frame = waitCaptureFrame();
         if (LIKELY(frame)) {
-            // frame data is always YUYV format.
-            if LIKELY(isCapturing()) {
-                if (UNLIKELY(!converted)) {
-                    converted = get_frame(previewBytes);
-                }
-                if (LIKELY(converted)) {
-                    int b = uvc_any2rgbx(frame, converted);
-                    if (!b) {
-                        if (LIKELY(mCaptureWindow)) {
-                            copyToSurface(converted, &mCaptureWindow);
-                        }
-                    }
+            // frame data is YUYV, or I420 in MJPEG mode
+            if (LIKELY(isCapturing() && mCaptureWindow)) {
+                // upright RGBX of the preview, if the preview shared it, otherwise convert into the window
+                uvc_frame_t *converted = find_conversion(frame, PIXEL_FORMAT_RGBX, ROTATE_0, FLIP_DEFAULT);
+                const int32_t window_format = ANativeWindow_getFormat(mCaptureWindow);
+                const uint64_t start_time = UVCStats::now();
+                if (converted && ((window_format == WINDOW_FORMAT_RGBA_8888)
+                                  || (window_format == WINDOW_FORMAT_RGBX_8888))) {
+                    copyToSurface(converted, &mCaptureWindow);
+                    mStats.since(STAGE_COPY_SURFACE, start_time);
+                } else {
+                    // upright needs no work buffer
+                    drawToWindow(frame, mCaptureWindow, ROTATE_0, FLIP_DEFAULT, NULL);
+                    mStats.since(STAGE_CAPTURE_CONVERT, start_time);
                 }
+                if (converted) recycle_frame(converted);
             }
+            do_capture_pipeline(frame);
+            do_capture_consumers(env, frame);
             do_capture_callback(env, frame);
+            release_capture_frame(frame);
         }
     }
-    if (converted) {
-        recycle_frame(converted);
-    }
     if (mCaptureWindow) {
         ANativeWindow_release(mCaptureWindow);
         mCaptureWindow = NULL;
@@ -943,43 +2043,119 @@ void UVCPreview::do_capture_surface(JNIEnv *env) {
 }
 
 /*
- * call IFrameCallback#onFrame if needs
+ * call IFrameCallback#onFrame if needs, frame stays with the caller
  */
 void UVCPreview::do_capture_callback(JNIEnv *env, uvc_frame_t *frame) {
     ENTER()
-    if (LIKELY(frame)) {
-        uvc_frame_t *callback_frame = frame;
-        if (mFrameCallbackObj) {
-            if (mFrameCallbackFunc) {
-                callback_frame = get_frame(callbackPixelBytes);
-                if (LIKELY(callback_frame)) {
-                    int b = mFrameCallbackFunc(frame, callback_frame);
-                    recycle_frame(frame);
-                    if (UNLIKELY(b)) {
-                        LOGW("failed to convert for callback frame");
-                        goto SKIP;
-                    }
-                } else {
-                    LOGW("failed to allocate for callback frame");
-                    callback_frame = frame;
-                    goto SKIP;
-                }
+    if (LIKELY(frame && mFrameCallbackObj)) {
+        if (roi_active(mCallbackRoi)) {
+            // crop/scale before the conversion, the conversions the other sinks share are of the whole frame
+            int width, height;
+            roi_output_size(mCallbackRoi, frame->width, frame->height, width, height);
+            uvc_frame_t *cropped = get_frame((width * height * 3) / 2);
+            if (UNLIKELY(!cropped)) EXIT()
+            if (!mCaptureWork && (frame->frame_format == UVC_FRAME_FORMAT_YUYV)) {
+                // any region of the frame fits into it
+                mCaptureWork = uvc_allocate_frame((frame->width * frame->height * 3) / 2);
             }
-            //Fix for NullPointerException with first of stopPreview()
-            //and then setFrameCallback(null) add by Hsj
-            //if (isCapturing()) {
-            //    jobject buf = env->NewDirectByteBuffer(callback_frame->data, callbackPixelBytes);
-            //    env->CallVoidMethod(mFrameCallbackObj, iframecallback_fields.onFrame, buf);
-            //    env->DeleteLocalRef(buf);
-            //}
-            //env->ExceptionClear();
-            jobject buf = env->NewDirectByteBuffer(callback_frame->data, callbackPixelBytes);
-            env->CallVoidMethod(mFrameCallbackObj, iframecallback_fields.onFrame, buf);
-            env->ExceptionClear();
-            env->DeleteLocalRef(buf);
-        }
-        SKIP:
-        recycle_frame(callback_frame);
+            const uint64_t start_time = UVCStats::now();
+            const int r = uvc_roi2i420(frame, cropped, &mCallbackRoi, mCaptureWork);
+            mStats.since(STAGE_CAPTURE_CONVERT, start_time);
+            if (LIKELY(!r)) {
+                call_frame_callback(env, cropped);
+            } else {
+                LOGW("failed to crop callback frame:%d", r);
+            }
+            release_conversions(cropped);
+            recycle_frame(cropped);
+        } else {
+            call_frame_callback(env, frame);
+        }
+    }
+    EXIT()
+}
+
+/*
+ * convert frame to the pixel format of the callback and call IFrameCallback#onFrame
+ */
+void UVCPreview::call_frame_callback(JNIEnv *env, uvc_frame_t *frame) {
+    ENTER()
+    uvc_frame_t *callback_frame = frame;
+    // conversion shared with the other sinks, referenced until onFrame returned
+    uvc_frame_t *shared = NULL;
+    convFunc_t callback_func = mFrameCallbackFunc;
+    callback_buffer_t *slot = NULL;
+    jlong info[FRAME_INFO_VALUES];
+    get_frame_info(frame, info);
+    if (!callback_func && (frame->frame_format != UVC_FRAME_FORMAT_YUYV)) {
+        // PIXEL_FORMAT_RAW/YUV expect YUYV but MJPEG is decoded to I420
+        callback_func = uvc_any2yuyv;
+    }
+    if (mCallbackBuffers) {
+        slot = acquire_callback_buffer(env);
+        if (UNLIKELY(!slot)) {
+            mStats.drop(DROP_CALLBACK_BUFFERS_HELD);
+            EXIT()
+        }
+    }
+    if (callback_func) {
+        callback_frame = find_conversion(frame, mPixelFormat, ROTATE_0, FLIP_DEFAULT);
+        if (!callback_frame) {
+            if (slot) {
+                // nobody else needs it, convert right into the buffer handed to Java
+                const uint64_t start_time = UVCStats::now();
+                callback_frame = callback_func(frame, slot->frame) ? NULL : slot->frame;
+                mStats.since(STAGE_CAPTURE_CONVERT, start_time);
+            } else {
+                callback_frame = shared = get_conversion(frame, mPixelFormat, callback_func, callbackPixelBytes);
+            }
+        } else {
+            shared = callback_frame;
+        }
+        if (UNLIKELY(!callback_frame)) {
+            LOGW("failed to convert for callback frame");
+            if (slot) {
+                releaseCallbackBuffer(env, slot->buffer);
+            }
+            EXIT()
+        }
+    }
+    if (slot && (callback_frame != slot->frame)) {
+        // Java keeps the buffer, the frame and its conversions go back to the pool
+        memcpy(slot->frame->data, callback_frame->data,
+               callback_frame->actual_bytes < callbackPixelBytes
+               ? callback_frame->actual_bytes : callbackPixelBytes);
+        callback_frame = slot->frame;
+        if (shared) {
+            recycle_frame(shared);
+            shared = NULL;
+        }
+    }
+    //Fix for NullPointerException with first of stopPreview()
+    //and then setFrameCallback(null) add by Hsj
+    //if (isCapturing()) {
+    //    jobject buf = env->NewDirectByteBuffer(callback_frame->data, callbackPixelBytes);
+    //    env->CallVoidMethod(mFrameCallbackObj, iframecallback_fields.onFrame, buf);
+    //    env->DeleteLocalRef(buf);
+    //}
+    //env->ExceptionClear();
+    jobject buf = slot ? slot->buffer : env->NewDirectByteBuffer(callback_frame->data, callbackPixelBytes);
+    const uint64_t start_time = UVCStats::now();
+    if (iframecallback_fields.frameInfo) {
+        env->SetLongArrayRegion(iframecallback_fields.frameInfoValues, 0, FRAME_INFO_VALUES, info);
+        env->CallVoidMethod(mFrameCallbackObj, iframecallback_fields.onFrame, buf,
+                            iframecallback_fields.frameInfo);
+    } else {
+        env->CallVoidMethod(mFrameCallbackObj, iframecallback_fields.onFrame, buf);
+    }
+    mStats.since(STAGE_CALLBACK, start_time);
+    env->ExceptionClear();
+    if (!slot) {
+        // the ring owns the buffer of a slot, Java returns it with UVCCamera#releaseFrame
+        env->DeleteLocalRef(buf);
+    }
+    if (shared) {
+        recycle_frame(shared);
     }
     EXIT()
 }
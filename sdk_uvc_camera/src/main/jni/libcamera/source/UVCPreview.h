@@ -29,6 +29,12 @@
 #include <pthread.h>
 #include <android/native_window.h>
 #include "objectarray.h"
+#include "spscring.h"
+#include "UVCDecodePool.h"
+#include "UVCStats.h"
+#include "UVCStreamCache.h"
+#include "UVCFrameConsumer.h"
+#include "IPipeline.h"
 
 #pragma interface
 
@@ -38,9 +44,11 @@
 #define DEFAULT_PREVIEW_FPS_MAX 30
 #define DEFAULT_PREVIEW_MODE 0
 #define DEFAULT_BANDWIDTH 1.0f
+#define DEFAULT_FRAME_QUEUE_DEPTH 4
+// raw payload, YUYV, preview and callback frames + sizes seen while streaming
+#define FRAME_POOL_CLASSES 6
 
-typedef uvc_error_t (*convFunc_t)(uvc_frame_t *in, uvc_frame_t *out);
-typedef uvc_error_t (*convFunc_t2)(uvc_frame_t *in, uvc_frame_t *out,int rotate,int mirror);
+typedef uvc_error_t (*convFunc_t2)(uvc_frame_t *in, uvc_frame_t *out,int rotate,int mirror,uvc_frame_t *work);
 
 // same as PIXEL_FORMAT_YUV
 #define PIXEL_FORMAT_RAW 		0
@@ -49,15 +57,44 @@ typedef uvc_error_t (*convFunc_t2)(uvc_frame_t *in, uvc_frame_t *out,int rotate,
 #define PIXEL_FORMAT_RGBX 		3
 #define PIXEL_FORMAT_NV12 	    4	// YVU420P
 #define PIXEL_FORMAT_NV21 		5	// YVU420SP
+#define PIXEL_FORMAT_I420 		6	// YUV420P
+
+// HAL_PIXEL_FORMAT_YV12 / ImageFormat.YV12, a window format the preview can draw into besides the RGB ones
+#define WINDOW_FORMAT_YV12		0x32315659
+
+// conversions of the frames in flight kept for the sinks asking for the same representation
+#define MAX_CONVERSIONS 4
+
+typedef struct conversion {
+	const uvc_frame_t *source;	// frame converted from, only compared
+	uint32_t sequence;
+	int pixel_format;			// PIXEL_FORMAT_XXX, PIXEL_FORMAT_RAW is kept as PIXEL_FORMAT_YUV
+	int rotate, flip;
+	uvc_frame_t *frame;			// from the frame pool
+} conversion_t;
+
+// ByteBuffers handed to IFrameCallback when delivered from the ring, see #setCallbackBuffers
+#define MAX_CALLBACK_BUFFERS 8
+
+typedef struct callback_buffer {
+	uvc_frame_t *frame;		// memory of buffer, not owned by libuvc so conversions never move it
+	jobject buffer;			// DirectByteBuffer on frame->data, global ref
+	bool held;				// handed to Java and not released yet
+} callback_buffer_t;
 
 // for callback to Java object
 typedef struct {
 	jmethodID onFrame;
+	// IFrameInfoCallback only, reused FrameInfo and its values, global refs
+	jobject frameInfo;
+	jlongArray frameInfoValues;
 } Fields_iframecallback;
 
 class UVCPreview {
 private:
 	uvc_device_handle_t *mDeviceHandle;
+	// streams from this instead of the device when set (synthetic / replay)
+	uvc_frame_source_t *mSource;
 	ANativeWindow *mPreviewWindow;
 	volatile bool mIsRunning;
 	int requestWidth, requestHeight, requestMode;
@@ -65,15 +102,28 @@ private:
 	float requestBandwidth;
 	int frameWidth, frameHeight;
 	int frameMode;
+	// MJPEG decompressor reused for every frame of the stream, only touched by preview thread
+	uvc_mjpeg_decoder_t *mMjpegDecoder;
+	// scratch planes for rotate/flip, sized once per resolution, only touched by preview thread
+	uvc_frame_t *mPreviewWork;
+	// MJPEG decode threads, 1 decodes on the preview thread with mMjpegDecoder
+	int mDecodeWorkers;
+	UVCDecodePool *mDecodePool;
+	// decode pool of the camera group, not owned; used instead of mDecodePool when set
+	UVCDecodePool *mSharedDecodePool;
 	//Add by hsj
 	//0/90/180/270,-1/0/1 -> Vertical/Not/Horizontal
 	int previewRotate,previewFlip;
+	// hand libuvc's receive buffer to the preview instead of copying every frame
+	bool mZeroCopy;
+	// frames received from libuvc and bytes copied for them before the preview thread
+	volatile uint64_t mFrameCount, mCopiedBytes;
 	
 	size_t frameBytes;
 	pthread_t preview_thread;
 	pthread_mutex_t preview_mutex;
-	pthread_cond_t preview_sync;
-	ObjectArray<uvc_frame_t *> previewFrames;
+	// stream(libuvc callback) -> preview thread
+	SpscRing<uvc_frame_t *> previewFrames;
 	int previewFormat;
 	size_t previewBytes;
 	//
@@ -83,20 +133,70 @@ private:
 	pthread_t capture_thread;
 	pthread_mutex_t capture_mutex;
 	pthread_cond_t capture_sync;
-	// keep latest frame
-	uvc_frame_t *captureQueu;			
+	// preview thread -> capture thread, keep latest frame
+	SpscRing<uvc_frame_t *> captureFrames;
 	jobject mFrameCallbackObj;
 	convFunc_t mFrameCallbackFunc;
 	Fields_iframecallback iframecallback_fields;
 	int mPixelFormat;
 	size_t callbackPixelBytes;
+	// region handed to IFrameCallback instead of the whole frame, see #setFrameCallbackRegion
+	uvc_roi_t mCallbackRoi;
+	// scratch of the YUYV region while scaling it, only touched by capture thread
+	uvc_frame_t *mCaptureWork;
+	// ring of reusable callback buffers, built on the capture thread, mCallbackBuffers is the wanted count
+	pthread_mutex_t callback_buffer_mutex;
+	callback_buffer_t mCallbackBufferRing[MAX_CALLBACK_BUFFERS];
+	int mCallbackBuffers, mCallbackBufferCount, mCallbackBufferNext;
+	size_t mCallbackBufferBytes;
+	// consumers leasing frames, see UVCFrameConsumer; the capture thread offers each frame under consumer_mutex
+	pthread_mutex_t consumer_mutex;
+	UVCFrameConsumer *mConsumers[MAX_FRAME_CONSUMERS];
+	int mConsumerCount;
+	// (format, rotation, flip) -> conversion of a frame, shared by preview, capture surface, callback, consumers
+	// and the sinks of the pipeline graph
+	pthread_mutex_t conversion_mutex;
+	conversion_t mConversions[MAX_CONVERSIONS];
+	int mConversionCount;
+	// root of the pipeline graph fed by the capture thread, not owned; frames are shared by refcount
+	pthread_mutex_t pipeline_mutex;
+	IPipeline *mPipeline;
     // improve performance by reducing memory allocation
+    // frames are pooled by data_bytes so uvc_ensure_frame_size never reallocates them
 	pthread_mutex_t pool_mutex;
-	ObjectArray<uvc_frame_t *> mFramePool;
+	ObjectArray<uvc_frame_t *> mFramePool[FRAME_POOL_CLASSES];
+	size_t mFramePoolBytes[FRAME_POOL_CLASSES];
+	int mFramePoolClasses, mFramePoolFixed;
+	uint64_t mPoolHit, mPoolMiss, mPoolRealloc;
+	int mPoolUsed, mPoolHighWater;
+	// per stage latency and drop counters since startPreview
+	UVCStats mStats;
+	// stream controls of the camera, not owned; PROBE with a cached one skips reading the ranges
+	UVCStreamCache *mStreamCache;
+	// negotiated by setPreviewSize for the current request, taken over once by the next startPreview
+	uvc_stream_ctrl_t mStreamCtrl;
+	bool mStreamCtrlValid;
+	// control of the running stream, cached once it delivered a frame
+	uvc_stream_ctrl_t mCommittedCtrl;
+	// STARTUP_XXX of the last setPreviewSize/startPreview, relaxed atomics
+	uint64_t mStartNs;
+	uint64_t mStartupNs[STARTUP_NUM];
+	uvc_error_t negotiate(uvc_stream_ctrl_t *ctrl, uint64_t *fast_path);
 	uvc_frame_t *get_frame(size_t data_bytes);
 	void recycle_frame(uvc_frame_t *frame);
-	void init_pool(size_t data_bytes);
+	int pool_class(size_t data_bytes, bool add);
+	void init_pool();
 	void clear_pool();
+	void put_conversion(uvc_frame_t *source, int pixel_format, int rotate, int flip, uvc_frame_t *converted);
+	uvc_frame_t *find_conversion(const uvc_frame_t *source, int pixel_format, int rotate, int flip);
+	uvc_frame_t *get_conversion(uvc_frame_t *source, int pixel_format, convFunc_t func, size_t bytes);
+	uvc_frame_t *acquire_conversion(uvc_frame_t *source, int pixel_format, convFunc_t func, size_t bytes);
+	void release_conversions(const uvc_frame_t *source);
+	inline int pool_size() const {
+		return previewFrames.capacity() + captureFrames.capacity() + 1
+			   + (mSharedDecodePool ? mSharedDecodePool->depth()
+				  : mDecodeWorkers > 1 ? mDecodeWorkers * DECODE_JOBS_PER_WORKER : 0);
+	}
 	//
 	void clearDisplay();
 	static void uvc_preview_frame_callback(uvc_frame_t *frame, void *vptr_args);
@@ -106,6 +206,9 @@ private:
 	static void *preview_thread_func(void *vptr_args);
 	int prepare_preview(uvc_stream_ctrl_t *ctrl);
 	void do_preview(uvc_stream_ctrl_t *ctrl);
+	void do_preview_mjpeg_parallel(UVCDecodePool *pool, int lane);
+	void draw_decoded(decode_job_t &job);
+	static void decode_notify(void *vptr_args);
 	uvc_frame_t *draw_preview_one(uvc_frame_t *frame, ANativeWindow **window, convFunc_t2 func, int pixelBytes);
 	//
 	void addCaptureFrame(uvc_frame_t *frame);
@@ -116,7 +219,16 @@ private:
 	void do_capture_surface(JNIEnv *env);
 	void do_capture_idle_loop(JNIEnv *env);
 	void do_capture_callback(JNIEnv *env, uvc_frame_t *frame);
+	void call_frame_callback(JNIEnv *env, uvc_frame_t *frame);
+	void do_capture_consumers(JNIEnv *env, uvc_frame_t *frame);
+	void do_capture_pipeline(uvc_frame_t *frame);
+	void release_capture_frame(uvc_frame_t *frame);
+	static void release_shared_frame(uvc_frame_t *frame, void *vptr_args);
+	static void release_conversion_frame(uvc_frame_t *frame, void *vptr_args);
 	void callbackPixelFormatChanged();
+	void release_frame_info(JNIEnv *env);
+	callback_buffer_t *acquire_callback_buffer(JNIEnv *env);
+	void clear_callback_buffers(JNIEnv *env);
 public:
 	UVCPreview(uvc_device_handle_t *devh);
 	~UVCPreview();
@@ -126,9 +238,33 @@ public:
 	//Add by Hsj
 	int setPreviewRotate(int rotate);
 	int setPreviewFlip(int flip);
+	int setPreviewFormat(int window_format);
+	int setZeroCopy(bool zero_copy);
+	int setFrameQueue(int depth, int drop_policy);
+	int setDecodeWorkers(int workers);
+	int setFrameSource(uvc_frame_source_t *source);
+	int setDecodePool(UVCDecodePool *pool);
+	int setStreamCache(UVCStreamCache *cache);
+	void getStartupTimes(uint64_t *values);
+	uint64_t getCopiedBytesPerFrame();
+	int getFramePoolStats(uint64_t *stats);
+	int startRecording(const char *path);
+	int stopRecording();
+	int getRecordingStats(uint64_t *stats);
+	void getStats(uint64_t *values);
+	int setTransferPlan(int transfers, int packets, int alt_policy);
+	int getTransferStats(uint64_t *stats);
+	int getClockEstimate(uint64_t *estimate);
 
 	int setPreviewDisplay(ANativeWindow *preview_window);
-	int setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format);
+	int setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format, jobject frame_info_obj = NULL);
+	int setCallbackBuffers(int count);
+	int setFrameCallbackRegion(const uvc_roi_t &roi);
+	int releaseCallbackBuffer(JNIEnv *env, jobject buffer);
+	UVCFrameConsumer *addFrameConsumer(int pixel_format, int depth, int policy, int max_fps);
+	int removeFrameConsumer(JNIEnv *env, UVCFrameConsumer *consumer);
+	int setPipeline(IPipeline *pipeline);
+	static uvc_frame_t *acquire_shared_conversion(uvc_frame_t *frame, int pixel_format, convFunc_t func, size_t bytes);
 	int startPreview();
 	int stopPreview();
 	inline const bool isCapturing() const;
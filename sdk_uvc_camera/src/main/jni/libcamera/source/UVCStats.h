@@ -0,0 +1,146 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * File name: UVCStats.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef UVCSTATS_H_
+#define UVCSTATS_H_
+
+#include <stdint.h>
+#include <time.h>
+
+// timed stages, keep in sync with FrameStats.java
+enum stats_stage {
+	STAGE_USB = 0,			// first payload of a frame -> frame complete
+	STAGE_DECODE,			// MJPEG -> I420/YUYV
+	STAGE_PREVIEW_CONVERT,	// conversion for the preview window, straight into its buffer unless shared
+	STAGE_COPY_SURFACE,		// copyToSurface of a shared RGBX conversion, preview and capture window
+	STAGE_CAPTURE_CONVERT,	// conversion into the capture window / IFrameCallback pixel format
+	STAGE_CALLBACK,			// IFrameCallback#onFrame
+	STAGE_NUM
+};
+
+// reasons a frame was dropped, keep in sync with FrameStats.java
+enum stats_drop {
+	DROP_POOL_EXHAUSTED = 0,	// no frame to take over the received one
+	DROP_PREVIEW_QUEUE_FULL,	// stream -> preview queue was full
+	DROP_CAPTURE_OVERWRITE,		// capture frame replaced before the capture thread took it
+	DROP_BROKEN_FRAME,			// short or wrong sized frame from the stream
+	DROP_CALLBACK_BUFFERS_HELD,	// every callback buffer was still held by Java
+	DROP_NUM
+};
+
+// startup durations in ns of the last open/startPreview, keep in sync with UVCCamera#getStartupTimes
+enum stats_startup {
+	STARTUP_CONNECT = 0,		// uvc_wrap + uvc_open, descriptors are parsed from memory
+	STARTUP_SIZE_NEGOTIATE,		// stream negotiation of setPreviewSize
+	STARTUP_NEGOTIATE,			// stream negotiation of startPreview, 0 if setPreviewSize's was reused
+	STARTUP_STREAM_ON,			// COMMIT, alt setting and isochronous transfers
+	STARTUP_FIRST_FRAME,		// startPreview -> first complete frame
+	STARTUP_FIRST_DRAW,			// startPreview -> first frame in the preview window
+	STARTUP_FAST_PATH,			// not a duration, 0: full negotiation, 1: cached probe, 2: reused setPreviewSize's
+	STARTUP_NUM
+};
+
+// bucket 0 counts < 1024ns, bucket i counts [2^(i+9), 2^(i+10))ns, the last one everything above
+#define STATS_BUCKETS 24
+#define STATS_BUCKET_SHIFT 9
+
+// snapshot layout: {count, sum ns, max ns, buckets} per stage, then drops per reason
+#define STATS_STAGE_VALUES (3 + STATS_BUCKETS)
+#define STATS_VALUES (STAGE_NUM * STATS_STAGE_VALUES + DROP_NUM)
+
+typedef struct stats_histogram {
+	uint64_t count;
+	uint64_t sum_ns;
+	uint64_t max_ns;
+	uint64_t buckets[STATS_BUCKETS];
+} stats_histogram_t;
+
+/**
+ * Always-on latency histograms and drop counters.
+ * Writers only do relaxed atomic adds, so any thread can record and #snapshot can be taken
+ * at any time without stopping the stream; a snapshot is not atomic across counters.
+ */
+class UVCStats {
+private:
+	stats_histogram_t mStages[STAGE_NUM];
+	uint64_t mDrops[DROP_NUM];
+public:
+	UVCStats() { reset(); }
+
+	static inline uint64_t now() {
+		struct timespec ts;
+		clock_gettime(CLOCK_MONOTONIC, &ts);
+		return (uint64_t) ts.tv_sec * 1000000000LL + ts.tv_nsec;
+	}
+
+	inline void record(int stage, uint64_t ns) {
+		stats_histogram_t &h = mStages[stage];
+		const int log2 = ns ? 63 - __builtin_clzll(ns) : 0;
+		int bucket = log2 - STATS_BUCKET_SHIFT;
+		if (bucket < 0) bucket = 0;
+		else if (bucket >= STATS_BUCKETS) bucket = STATS_BUCKETS - 1;
+		__atomic_fetch_add(&h.count, 1, __ATOMIC_RELAXED);
+		__atomic_fetch_add(&h.sum_ns, ns, __ATOMIC_RELAXED);
+		__atomic_fetch_add(&h.buckets[bucket], 1, __ATOMIC_RELAXED);
+		uint64_t max = __atomic_load_n(&h.max_ns, __ATOMIC_RELAXED);
+		while (ns > max && !__atomic_compare_exchange_n(&h.max_ns, &max, ns,
+				true, __ATOMIC_RELAXED, __ATOMIC_RELAXED)) {}
+	}
+
+	// record now - start_ns, returns now to chain stages
+	inline uint64_t since(int stage, uint64_t start_ns) {
+		const uint64_t t = now();
+		record(stage, t - start_ns);
+		return t;
+	}
+
+	inline void drop(int reason) {
+		__atomic_fetch_add(&mDrops[reason], 1, __ATOMIC_RELAXED);
+	}
+
+	void reset() {
+		for (int i = 0; i < STAGE_NUM; i++) {
+			uint64_t *values = &mStages[i].count;
+			for (int j = 0; j < STATS_STAGE_VALUES; j++) {
+				__atomic_store_n(&values[j], 0, __ATOMIC_RELAXED);
+			}
+		}
+		for (int i = 0; i < DROP_NUM; i++) {
+			__atomic_store_n(&mDrops[i], 0, __ATOMIC_RELAXED);
+		}
+	}
+
+	// values must hold STATS_VALUES
+	void snapshot(uint64_t *values) const {
+		for (int i = 0; i < STAGE_NUM; i++) {
+			const uint64_t *stage = &mStages[i].count;
+			for (int j = 0; j < STATS_STAGE_VALUES; j++) {
+				*values++ = __atomic_load_n(&stage[j], __ATOMIC_RELAXED);
+			}
+		}
+		for (int i = 0; i < DROP_NUM; i++) {
+			*values++ = __atomic_load_n(&mDrops[i], __ATOMIC_RELAXED);
+		}
+	}
+};
+
+#endif /* UVCSTATS_H_ */
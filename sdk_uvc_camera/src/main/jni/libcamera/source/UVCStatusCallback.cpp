@@ -9,7 +9,9 @@
 
 UVCStatusCallback::UVCStatusCallback(uvc_device_handle_t *devh)
 :	mDeviceHandle(devh),
-	mStatusCallbackObj(NULL) {
+	mStatusCallbackObj(NULL),
+	mControlListener(NULL),
+	mControlListenerArg(NULL) {
 
 	ENTER();
 	pthread_mutex_init(&status_mutex, NULL);
@@ -58,6 +60,12 @@ int UVCStatusCallback::setCallback(JNIEnv *env, jobject status_callback_obj) {
 	RETURN(0, int);
 }
 
+// set before the status events can arrive, i.e. just after construction
+void UVCStatusCallback::setControlListener(control_listener_t listener, void *arg) {
+	mControlListenerArg = arg;
+	mControlListener = listener;
+}
+
 void UVCStatusCallback::notifyStatusCallback(JNIEnv* env, uvc_status_class status_class, int event, int selector, uvc_status_attribute status_attribute, void *data, size_t data_len) {
 
 	pthread_mutex_lock(&status_mutex);
@@ -75,6 +83,10 @@ void UVCStatusCallback::notifyStatusCallback(JNIEnv* env, uvc_status_class statu
 void UVCStatusCallback::uvc_status_callback(uvc_status_class status_class, int event, int selector, uvc_status_attribute status_attribute, void *data, size_t data_len, void *user_ptr) {
 
 	UVCStatusCallback *statusCallback = reinterpret_cast<UVCStatusCallback *>(user_ptr);
+	if (statusCallback->mControlListener) {
+		statusCallback->mControlListener(statusCallback->mControlListenerArg,
+			status_class, selector, status_attribute, data, data_len);
+	}
 
 	JavaVM *vm = getVM();
 	JNIEnv *env;
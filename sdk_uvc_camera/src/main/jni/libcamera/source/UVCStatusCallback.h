@@ -13,12 +13,18 @@ typedef struct {
 	jmethodID onStatus;
 } Fields_istatuscallback;
 
+// native listener of the control events, called on the status thread before IStatusCallback#onStatus
+typedef void (*control_listener_t)(void *arg, uvc_status_class status_class, int selector, int attribute,
+	const void *data, size_t data_len);
+
 class UVCStatusCallback {
 private:
 	uvc_device_handle_t *mDeviceHandle;
  	pthread_mutex_t status_mutex;
  	jobject mStatusCallbackObj;
  	Fields_istatuscallback istatuscallback_fields;
+	control_listener_t mControlListener;
+	void *mControlListenerArg;
  	void notifyStatusCallback(JNIEnv *env, uvc_status_class status_class, int event, int selector, uvc_status_attribute status_attribute, void *data, size_t data_len);
  	static void uvc_status_callback(uvc_status_class status_class, int event, int selector, uvc_status_attribute status_attribute, void *data, size_t data_len, void *user_ptr);
 public:
@@ -26,6 +32,7 @@ public:
 	~UVCStatusCallback();
 
 	int setCallback(JNIEnv *env, jobject status_callback_obj);
+	void setControlListener(control_listener_t listener, void *arg);
 };
 
 #endif /* UVCSTATUSCALLBACK_H_ */
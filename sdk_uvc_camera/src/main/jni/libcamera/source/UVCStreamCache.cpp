@@ -0,0 +1,257 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * File name: UVCStreamCache.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#include <stdlib.h>
+#include <string.h>
+#include "base_util.h"
+#include "UVCStreamCache.h"
+
+#define LOCAL_DEBUG 0
+
+// blob layout, host byte order since it never leaves the device:
+// header, entries, uint32_t length of the supported size string (0: none) and its chars without NUL
+#define STREAM_CACHE_MAGIC      0x43535655    // "UVSC"
+#define STREAM_CACHE_VERSION    1
+
+typedef struct stream_cache_header {
+    uint32_t magic;
+    uint32_t version;
+    // the blob is only valid for the same layout of the structures
+    uint32_t ctrl_size;
+    uint32_t descriptor_hash;
+    uint32_t count;
+} stream_cache_header_t;
+
+UVCStreamCache::UVCStreamCache()
+        : mDescriptorHash(0),
+          mCount(0),
+          mSupportedSize(NULL),
+          mDirty(false) {
+    pthread_mutex_init(&mMutex, NULL);
+}
+
+UVCStreamCache::~UVCStreamCache() {
+    reset(0);
+    pthread_mutex_destroy(&mMutex);
+}
+
+/**
+ * forget everything, called for each connect with the hash of the new device
+ */
+void UVCStreamCache::reset(uint32_t descriptor_hash) {
+    pthread_mutex_lock(&mMutex);
+    {
+        mDescriptorHash = descriptor_hash;
+        mCount = 0;
+        if (mSupportedSize) {
+            free(mSupportedSize);
+            mSupportedSize = NULL;
+        }
+        mDirty = false;
+    }
+    pthread_mutex_unlock(&mMutex);
+}
+
+/**
+ * take over a blob of #save
+ * @return 0, UVC_ERROR_INVALID_PARAM if it is damaged or written for other descriptors or another build
+ */
+int UVCStreamCache::load(const uint8_t *blob, size_t len) {
+    ENTER()
+    stream_cache_header_t header;
+    if (UNLIKELY(!blob || (len < sizeof(header)))) RETURN(UVC_ERROR_INVALID_PARAM, int);
+    memcpy(&header, blob, sizeof(header));
+    const size_t entries_bytes = (size_t) header.count * sizeof(stream_cache_entry_t);
+    if ((header.magic != STREAM_CACHE_MAGIC) || (header.version != STREAM_CACHE_VERSION)
+        || (header.ctrl_size != sizeof(uvc_stream_ctrl_t)) || (header.count > STREAM_CACHE_ENTRIES)
+        || (len < sizeof(header) + entries_bytes + sizeof(uint32_t))) {
+        LOGW("stream cache ignored, damaged or written by another build");
+        RETURN(UVC_ERROR_INVALID_PARAM, int);
+    }
+    const uint8_t *p = blob + sizeof(header) + entries_bytes;
+    uint32_t size_len;
+    memcpy(&size_len, p, sizeof(size_len));
+    p += sizeof(size_len);
+    if (UNLIKELY(len < (size_t) (p - blob) + size_len)) RETURN(UVC_ERROR_INVALID_PARAM, int);
+    int result = UVC_SUCCESS;
+    pthread_mutex_lock(&mMutex);
+    {
+        if (UNLIKELY(!mDescriptorHash || (header.descriptor_hash != mDescriptorHash))) {
+            LOGI("stream cache ignored, descriptors changed");
+            result = UVC_ERROR_INVALID_PARAM;
+        } else {
+            mCount = header.count;
+            memcpy(mEntries, blob + sizeof(header), entries_bytes);
+            if (mSupportedSize) {
+                free(mSupportedSize);
+                mSupportedSize = NULL;
+            }
+            if (size_len) {
+                mSupportedSize = (char *) malloc(size_len + 1);
+                if (LIKELY(mSupportedSize)) {
+                    memcpy(mSupportedSize, p, size_len);
+                    mSupportedSize[size_len] = '\0';
+                }
+            }
+            mDirty = false;
+        }
+    }
+    pthread_mutex_unlock(&mMutex);
+    RETURN(result, int)
+}
+
+/**
+ * @param len bytes of the returned blob
+ * @return blob to persist, free it with free(); NULL if nothing changed since #reset/#load
+ */
+uint8_t *UVCStreamCache::save(size_t &len) {
+    ENTER()
+    uint8_t *blob = NULL;
+    len = 0;
+    pthread_mutex_lock(&mMutex);
+    if (mDirty && mDescriptorHash) {
+        const uint32_t size_len = mSupportedSize ? (uint32_t) strlen(mSupportedSize) : 0;
+        const size_t entries_bytes = mCount * sizeof(stream_cache_entry_t);
+        const size_t bytes = sizeof(stream_cache_header_t) + entries_bytes + sizeof(size_len) + size_len;
+        blob = (uint8_t *) malloc(bytes);
+        if (LIKELY(blob)) {
+            stream_cache_header_t header;
+            header.magic = STREAM_CACHE_MAGIC;
+            header.version = STREAM_CACHE_VERSION;
+            header.ctrl_size = sizeof(uvc_stream_ctrl_t);
+            header.descriptor_hash = mDescriptorHash;
+            header.count = mCount;
+            uint8_t *p = blob;
+            memcpy(p, &header, sizeof(header));
+            p += sizeof(header);
+            memcpy(p, mEntries, entries_bytes);
+            p += entries_bytes;
+            memcpy(p, &size_len, sizeof(size_len));
+            p += sizeof(size_len);
+            if (size_len) memcpy(p, mSupportedSize, size_len);
+            len = bytes;
+            mDirty = false;
+        }
+    }
+    pthread_mutex_unlock(&mMutex);
+    RETURN(blob, uint8_t *)
+}
+
+// call with mMutex held
+int UVCStreamCache::indexOf(int mode, int width, int height, int min_fps, int max_fps) {
+    for (int i = 0; i < mCount; i++) {
+        const stream_cache_entry_t &entry = mEntries[i];
+        if ((entry.mode == mode) && (entry.width == width) && (entry.height == height)
+            && (entry.min_fps == min_fps) && (entry.max_fps == max_fps)) {
+            return i;
+        }
+    }
+    return -1;
+}
+
+/**
+ * @param ctrl receives the cached stream control of the request
+ * @return false if there is none
+ */
+bool UVCStreamCache::find(int mode, int width, int height, int min_fps, int max_fps, uvc_stream_ctrl_t *ctrl) {
+    bool found;
+    pthread_mutex_lock(&mMutex);
+    {
+        const int ix = indexOf(mode, width, height, min_fps, max_fps);
+        found = ix >= 0;
+        if (found) *ctrl = mEntries[ix].ctrl;
+    }
+    pthread_mutex_unlock(&mMutex);
+    return found;
+}
+
+/**
+ * remember the stream control of a request that delivered a frame, as the most recently used one
+ */
+void UVCStreamCache::put(int mode, int width, int height, int min_fps, int max_fps, const uvc_stream_ctrl_t *ctrl) {
+    pthread_mutex_lock(&mMutex);
+    {
+        int ix = indexOf(mode, width, height, min_fps, max_fps);
+        if (!ix && !memcmp(&mEntries[0].ctrl, ctrl, sizeof(*ctrl))) {
+            // already the most recent one, nothing to write back
+            pthread_mutex_unlock(&mMutex);
+            return;
+        }
+        if (ix < 0) {
+            ix = mCount < STREAM_CACHE_ENTRIES ? mCount++ : STREAM_CACHE_ENTRIES - 1;
+        }
+        if (ix > 0) {
+            memmove(&mEntries[1], &mEntries[0], ix * sizeof(stream_cache_entry_t));
+        }
+        stream_cache_entry_t &entry = mEntries[0];
+        memset(&entry, 0, sizeof(entry));
+        entry.mode = mode;
+        entry.width = width;
+        entry.height = height;
+        entry.min_fps = min_fps;
+        entry.max_fps = max_fps;
+        entry.ctrl = *ctrl;
+        mDirty = true;
+    }
+    pthread_mutex_unlock(&mMutex);
+}
+
+/**
+ * drop the stream control of a request the device did not accept anymore
+ */
+void UVCStreamCache::remove(int mode, int width, int height, int min_fps, int max_fps) {
+    pthread_mutex_lock(&mMutex);
+    {
+        const int ix = indexOf(mode, width, height, min_fps, max_fps);
+        if (ix >= 0) {
+            memmove(&mEntries[ix], &mEntries[ix + 1], (mCount - ix - 1) * sizeof(stream_cache_entry_t));
+            mCount--;
+            mDirty = true;
+        }
+    }
+    pthread_mutex_unlock(&mMutex);
+}
+
+/**
+ * @return copy of the cached supported size list, free it with free(); NULL if not cached
+ */
+char *UVCStreamCache::getSupportedSize() {
+    char *result = NULL;
+    pthread_mutex_lock(&mMutex);
+    {
+        if (mSupportedSize) result = strdup(mSupportedSize);
+    }
+    pthread_mutex_unlock(&mMutex);
+    return result;
+}
+
+void UVCStreamCache::setSupportedSize(const char *supported_size) {
+    pthread_mutex_lock(&mMutex);
+    {
+        if (!mSupportedSize || strcmp(mSupportedSize, supported_size)) {
+            if (mSupportedSize) free(mSupportedSize);
+            mSupportedSize = strdup(supported_size);
+            mDirty = true;
+        }
+    }
+    pthread_mutex_unlock(&mMutex);
+}
@@ -0,0 +1,74 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * File name: UVCStreamCache.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef UVCSTREAMCACHE_H_
+#define UVCSTREAMCACHE_H_
+
+#include "libUVCCamera.h"
+#include <pthread.h>
+
+#pragma interface
+
+// stream controls kept per device, the least recently used one is replaced
+#define STREAM_CACHE_ENTRIES 8
+
+typedef struct stream_cache_entry {
+	// request of UVCPreview#setPreviewSize, mode 0: YUYV, 1: MJPEG
+	int32_t mode;
+	int32_t width, height;
+	int32_t min_fps, max_fps;
+	// PROBE GET_CUR answer of the last stream of this request that delivered a frame
+	uvc_stream_ctrl_t ctrl;
+} stream_cache_entry_t;
+
+/**
+ * What one camera answered before, to reopen it without asking again: the negotiated stream
+ * control of each requested size and the supported size list.
+ * The Java side persists #save per device key name, #load only accepts a blob written for the
+ * same descriptors (see uvc_get_descriptor_hash) by the same build of the structures.
+ */
+class UVCStreamCache {
+private:
+	pthread_mutex_t mMutex;
+	uint32_t mDescriptorHash;
+	// most recently used first
+	stream_cache_entry_t mEntries[STREAM_CACHE_ENTRIES];
+	int mCount;
+	char *mSupportedSize;
+	// changed since #reset/#load, i.e. worth writing back
+	bool mDirty;
+	int indexOf(int mode, int width, int height, int min_fps, int max_fps);
+public:
+	UVCStreamCache();
+	~UVCStreamCache();
+
+	void reset(uint32_t descriptor_hash);
+	int load(const uint8_t *blob, size_t len);
+	uint8_t *save(size_t &len);
+	bool find(int mode, int width, int height, int min_fps, int max_fps, uvc_stream_ctrl_t *ctrl);
+	void put(int mode, int width, int height, int min_fps, int max_fps, const uvc_stream_ctrl_t *ctrl);
+	void remove(int mode, int width, int height, int min_fps, int max_fps);
+	char *getSupportedSize();
+	void setSupportedSize(const char *supported_size);
+};
+
+#endif /* UVCSTREAMCACHE_H_ */
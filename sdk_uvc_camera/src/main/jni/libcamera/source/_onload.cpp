@@ -28,6 +28,9 @@
 #define LOCAL_DEBUG 0
 
 extern int register_uvccamera(JNIEnv *env);
+extern int register_uvccameragroup(JNIEnv *env);
+extern int register_frameconsumer(JNIEnv *env);
+extern int register_pipeline(JNIEnv *env);
 
 jint JNI_OnLoad(JavaVM *vm, void *reserved) {
 #if LOCAL_DEBUG
@@ -39,6 +42,9 @@ jint JNI_OnLoad(JavaVM *vm, void *reserved) {
     }
     // register native methods
     int result = register_uvccamera(env);
+    if (!result) result = register_uvccameragroup(env);
+    if (!result) result = register_frameconsumer(env);
+    if (!result) result = register_pipeline(env);
 	setVM(vm);
 #if LOCAL_DEBUG
     LOGD("JNI_OnLoad:finshed:result=%d", result);
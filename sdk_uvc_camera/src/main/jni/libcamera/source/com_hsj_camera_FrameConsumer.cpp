@@ -0,0 +1,138 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * File name: com_hsj_camera_FrameConsumer.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+
+
+#if 1    // デバッグ情報を出さない時
+#ifndef LOG_NDEBUG
+#define	LOG_NDEBUG		// LOGV/LOGD/MARKを出力しない時
+#endif
+#undef USE_LOGALL            // 指定したLOGxだけを出力
+#else
+#define USE_LOGALL
+#undef LOG_NDEBUG
+#undef NDEBUG
+#endif
+
+#include <jni.h>
+
+#include "libUVCCamera.h"
+#include "UVCFrameConsumer.h"
+
+// com_hsj_camera_UVCCamera.cpp
+extern jint registerNativeMethods(JNIEnv *env, const char *class_name, JNINativeMethod *methods,
+                                  int num_methods);
+
+// called for every frame, no ENTER/RETURN logging
+static jint nativeAcquire(JNIEnv *env, jclass clazz, ID_TYPE id_consumer, jint timeout_ms) {
+    jint result = JNI_ERR;
+    UVCFrameConsumer *consumer = reinterpret_cast<UVCFrameConsumer *>(id_consumer);
+    if (LIKELY(consumer)) {
+        result = consumer->acquire(timeout_ms);
+    }
+    return result;
+}
+
+// values gets FrameInfo values and the frame size
+static jobject nativeGetFrame(JNIEnv *env, jclass clazz, ID_TYPE id_consumer, jint slot, jlongArray values) {
+    jobject result = NULL;
+    UVCFrameConsumer *consumer = reinterpret_cast<UVCFrameConsumer *>(id_consumer);
+    if (LIKELY(consumer && values && env->GetArrayLength(values) > FRAME_INFO_VALUES)) {
+        jlong info[FRAME_INFO_VALUES + 1];
+        size_t bytes = 0;
+        result = consumer->getFrame(env, slot, info, bytes);
+        if (LIKELY(result)) {
+            info[FRAME_INFO_VALUES] = (jlong) bytes;
+            env->SetLongArrayRegion(values, 0, FRAME_INFO_VALUES + 1, info);
+        }
+    }
+    return result;
+}
+
+static jint nativeRelease(JNIEnv *env, jclass clazz, ID_TYPE id_consumer, jint slot) {
+    jint result = JNI_ERR;
+    UVCFrameConsumer *consumer = reinterpret_cast<UVCFrameConsumer *>(id_consumer);
+    if (LIKELY(consumer)) {
+        result = consumer->release(slot);
+    }
+    return result;
+}
+
+static jint nativeClose(JNIEnv *env, jclass clazz, ID_TYPE id_consumer) {
+    jint result = JNI_ERR;
+    ENTER()
+    UVCFrameConsumer *consumer = reinterpret_cast<UVCFrameConsumer *>(id_consumer);
+    if (LIKELY(consumer)) {
+        consumer->close();
+        result = JNI_OK;
+    }
+    RETURN(result, jint)
+}
+
+static jint nativeSetRegion(JNIEnv *env, jclass clazz, ID_TYPE id_consumer,
+                            jint x, jint y, jint width, jint height, jint out_width, jint out_height) {
+    jint result = JNI_ERR;
+    ENTER()
+    UVCFrameConsumer *consumer = reinterpret_cast<UVCFrameConsumer *>(id_consumer);
+    if (LIKELY(consumer)) {
+        const uvc_roi_t roi = {x, y, width, height, out_width, out_height};
+        result = consumer->setRegion(roi);
+    }
+    RETURN(result, jint)
+}
+
+// counters by consumer_counter, then the frames queued now
+static jlongArray nativeGetCounters(JNIEnv *env, jclass clazz, ID_TYPE id_consumer) {
+    ENTER()
+    jlongArray result = NULL;
+    UVCFrameConsumer *consumer = reinterpret_cast<UVCFrameConsumer *>(id_consumer);
+    if (LIKELY(consumer)) {
+        uint64_t counters[CONSUMER_COUNTER_NUM + 1];
+        consumer->getCounters(counters);
+        counters[CONSUMER_COUNTER_NUM] = consumer->queued();
+        result = env->NewLongArray(CONSUMER_COUNTER_NUM + 1);
+        env->SetLongArrayRegion(result, 0, CONSUMER_COUNTER_NUM + 1, (const jlong *) counters);
+    }
+    RETURN(result, jlongArray)
+}
+
+//**************************************************************************************************
+//                                                                                                 *
+//**************************************************************************************************
+static JNINativeMethod methods[] = {
+        {"nativeAcquire",                           "(JI)I",                                (void *) nativeAcquire},
+        {"nativeGetFrame",                          "(JI[J)Ljava/nio/ByteBuffer;",          (void *) nativeGetFrame},
+        {"nativeRelease",                           "(JI)I",                                (void *) nativeRelease},
+        {"nativeClose",                             "(J)I",                                 (void *) nativeClose},
+        {"nativeSetRegion",                         "(JIIIIII)I",                           (void *) nativeSetRegion},
+        {"nativeGetCounters",                       "(J)[J",                                (void *) nativeGetCounters},
+};
+
+int register_frameconsumer(JNIEnv *env) {
+    LOGV("register_frameconsumer:");
+    if (registerNativeMethods(env,
+                              "com/hsj/camera/FrameConsumer",
+                              methods, NUM_ARRAY_ELEMENTS(methods)) < 0) {
+        return -1;
+    }
+    return 0;
+}
@@ -0,0 +1,226 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * File name: com_hsj_camera_Pipeline.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+
+
+
+#if 1    // デバッグ情報を出さない時
+#ifndef LOG_NDEBUG
+#define	LOG_NDEBUG		// LOGV/LOGD/MARKを出力しない時
+#endif
+#undef USE_LOGALL            // 指定したLOGxだけを出力
+#else
+#define USE_LOGALL
+#undef LOG_NDEBUG
+#undef NDEBUG
+#endif
+
+#include <jni.h>
+#include <android/native_window_jni.h>
+
+#include "libUVCCamera.h"
+#include "CallbackPipeline.h"
+#include "ConvertPipeline.h"
+#include "PreviewPipeline.h"
+#include "DistributePipeline.h"
+#include "pipeline_helper.h"
+
+// com_hsj_camera_UVCCamera.cpp
+extern jint registerNativeMethods(JNIEnv *env, const char *class_name, JNINativeMethod *methods,
+                                  int num_methods);
+
+static ID_TYPE nativeCreate(JNIEnv *env, jclass clazz, jint type,
+                            jint depth, jint drop_policy, jint pixel_format) {
+    ENTER()
+    ID_TYPE result = 0;
+    if ((depth < 1) || (depth > RING_MAX_DEPTH)
+        || ((drop_policy != RING_DROP_NEWEST) && (drop_policy != RING_DROP_OLDEST))) {
+        RETURN(result, ID_TYPE)
+    }
+    switch (type) {
+        case PIPELINE_TYPE_CALLBACK: {
+            CallbackPipeline *callback = new CallbackPipeline(depth, drop_policy);
+            result = reinterpret_cast<ID_TYPE>(callback);
+            break;
+        }
+        case PIPELINE_TYPE_CONVERT: {
+            if ((pixel_format >= PIXEL_FORMAT_RAW) && (pixel_format <= PIXEL_FORMAT_I420)) {
+                ConvertPipeline *convert = new ConvertPipeline(pixel_format, depth, drop_policy);
+                    result = reinterpret_cast<ID_TYPE>(convert);
+            }
+            break;
+        }
+        case PIPELINE_TYPE_PREVIEW: {
+            PreviewPipeline *preview = new PreviewPipeline(depth, drop_policy);
+            result = reinterpret_cast<ID_TYPE>(preview);
+            break;
+        }
+        case PIPELINE_TYPE_DISTRIBUTE: {
+            DistributePipeline *distribute = new DistributePipeline();
+            result = reinterpret_cast<ID_TYPE>(distribute);
+            break;
+        }
+        default:
+            LOGW("unsupported pipeline type:%d", type);
+            break;
+    }
+    RETURN(result, ID_TYPE)
+}
+
+static jint nativeDestroy(JNIEnv *env, jclass clazz, ID_TYPE id_pipeline, jint type) {
+    jint result = JNI_ERR;
+    ENTER()
+    IPipeline *pipeline = getPipeline(id_pipeline, type);
+    if (LIKELY(pipeline)) {
+        pipeline->release();
+        SAFE_DELETE(pipeline);
+        result = JNI_OK;
+    }
+    RETURN(result, jint)
+}
+
+static jint nativeStart(JNIEnv *env, jclass clazz, ID_TYPE id_pipeline, jint type) {
+    jint result = JNI_ERR;
+    ENTER()
+    IPipeline *pipeline = getPipeline(id_pipeline, type);
+    if (LIKELY(pipeline)) {
+        result = pipeline->start();
+    }
+    RETURN(result, jint)
+}
+
+static jint nativeStop(JNIEnv *env, jclass clazz, ID_TYPE id_pipeline, jint type) {
+    jint result = JNI_ERR;
+    ENTER()
+    IPipeline *pipeline = getPipeline(id_pipeline, type);
+    if (LIKELY(pipeline)) {
+        result = pipeline->stop();
+    }
+    RETURN(result, jint)
+}
+
+// id_next 0 to unlink
+static jint nativeSetPipeline(JNIEnv *env, jclass clazz, ID_TYPE id_pipeline, jint type,
+                              ID_TYPE id_next, jint next_type) {
+    jint result = JNI_ERR;
+    ENTER()
+    IPipeline *pipeline = getPipeline(id_pipeline, type);
+    if (LIKELY(pipeline)) {
+        result = pipeline->setPipeline(getPipeline(id_next, next_type));
+    }
+    RETURN(result, jint)
+}
+
+static jlong nativeGetDropped(JNIEnv *env, jclass clazz, ID_TYPE id_pipeline, jint type) {
+    IPipeline *pipeline = getPipeline(id_pipeline, type);
+    return pipeline ? (jlong) pipeline->dropped() : 0;
+}
+
+static jint nativeAddPipeline(JNIEnv *env, jclass clazz, ID_TYPE id_pipeline,
+                              ID_TYPE id_branch, jint branch_type) {
+    jint result = JNI_ERR;
+    ENTER()
+    DistributePipeline *pipeline = reinterpret_cast<DistributePipeline *>(id_pipeline);
+    IPipeline *branch = getPipeline(id_branch, branch_type);
+    if (LIKELY(pipeline && branch)) {
+        result = pipeline->addPipeline(branch);
+    }
+    RETURN(result, jint)
+}
+
+static jint nativeRemovePipeline(JNIEnv *env, jclass clazz, ID_TYPE id_pipeline,
+                                 ID_TYPE id_branch, jint branch_type) {
+    jint result = JNI_ERR;
+    ENTER()
+    DistributePipeline *pipeline = reinterpret_cast<DistributePipeline *>(id_pipeline);
+    IPipeline *branch = getPipeline(id_branch, branch_type);
+    if (LIKELY(pipeline && branch)) {
+        result = pipeline->removePipeline(branch);
+    }
+    RETURN(result, jint)
+}
+
+static jint nativeSetFrameCallback(JNIEnv *env, jclass clazz, ID_TYPE id_pipeline,
+                                   jobject jIFrameCallback, jint pixel_format) {
+    jint result = JNI_ERR;
+    ENTER()
+    CallbackPipeline *pipeline = reinterpret_cast<CallbackPipeline *>(id_pipeline);
+    if (LIKELY(pipeline)) {
+        result = pipeline->setFrameCallback(env, jIFrameCallback, pixel_format);
+    }
+    RETURN(result, jint)
+}
+
+static jint nativeSetSurface(JNIEnv *env, jclass clazz, ID_TYPE id_pipeline, jobject jSurface) {
+    jint result = JNI_ERR;
+    ENTER()
+    PreviewPipeline *pipeline = reinterpret_cast<PreviewPipeline *>(id_pipeline);
+    if (LIKELY(pipeline)) {
+        ANativeWindow *window = jSurface ? ANativeWindow_fromSurface(env, jSurface) : NULL;
+        result = pipeline->setSurface(window);
+    }
+    RETURN(result, jint)
+}
+
+//**************************************************************************************************
+//                                                                                                 *
+//**************************************************************************************************
+static JNINativeMethod methods[] = {
+        {"nativeCreate",                            "(IIII)J",                              (void *) nativeCreate},
+        {"nativeDestroy",                           "(JI)I",                                (void *) nativeDestroy},
+        {"nativeStart",                             "(JI)I",                                (void *) nativeStart},
+        {"nativeStop",                              "(JI)I",                                (void *) nativeStop},
+        {"nativeSetPipeline",                       "(JIJI)I",                              (void *) nativeSetPipeline},
+        {"nativeGetDropped",                        "(JI)J",                                (void *) nativeGetDropped},
+};
+
+static JNINativeMethod distribute_methods[] = {
+        {"nativeAddPipeline",                       "(JJI)I",                               (void *) nativeAddPipeline},
+        {"nativeRemovePipeline",                    "(JJI)I",                               (void *) nativeRemovePipeline},
+};
+
+static JNINativeMethod callback_methods[] = {
+        {"nativeSetFrameCallback",                  "(JLcom/hsj/camera/IFrameCallback;I)I", (void *) nativeSetFrameCallback},
+};
+
+static JNINativeMethod preview_methods[] = {
+        {"nativeSetSurface",                        "(JLandroid/view/Surface;)I",           (void *) nativeSetSurface},
+};
+
+int register_pipeline(JNIEnv *env) {
+    LOGV("register_pipeline:");
+    if (registerNativeMethods(env,
+                              "com/hsj/camera/Pipeline",
+                              methods, NUM_ARRAY_ELEMENTS(methods)) < 0
+        || registerNativeMethods(env,
+                                 "com/hsj/camera/DistributePipeline",
+                                 distribute_methods, NUM_ARRAY_ELEMENTS(distribute_methods)) < 0
+        || registerNativeMethods(env,
+                                 "com/hsj/camera/CallbackPipeline",
+                                 callback_methods, NUM_ARRAY_ELEMENTS(callback_methods)) < 0
+        || registerNativeMethods(env,
+                                 "com/hsj/camera/PreviewPipeline",
+                                 preview_methods, NUM_ARRAY_ELEMENTS(preview_methods)) < 0) {
+        return -1;
+    }
+    return 0;
+}
@@ -38,6 +38,7 @@
 
 #include "libUVCCamera.h"
 #include "UVCCamera.h"
+#include "pipeline_helper.h"
 
 /**
  * set the value into the long field
@@ -136,6 +137,18 @@ static void nativeDestroy(JNIEnv *env, jobject thiz, ID_TYPE id_camera) {
     EXIT();
 }
 
+// UVCCameraGroupに参加する
+static jint nativeSetGroup(JNIEnv *env, jobject thiz, ID_TYPE id_camera, ID_TYPE id_group) {
+    jint result = JNI_ERR;
+    ENTER()
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    UVCCameraGroup *group = reinterpret_cast<UVCCameraGroup *>(id_group);
+    if (LIKELY(camera && group)) {
+        result = camera->setGroup(group);
+    }
+    RETURN(result, jint)
+}
+
 //==================================================================================================
 
 // カメラへ接続
@@ -156,6 +169,47 @@ static jint nativeConnect(JNIEnv *env, jobject thiz,
     RETURN(result, jint)
 }
 
+// 接続: 合成フレーム(カメラなし)
+static jint nativeConnectSynthetic(JNIEnv *env, jobject thiz,
+                                   ID_TYPE id_camera,
+                                   jint frameFormat, jint width, jint height, jint fps) {
+
+    ENTER()
+    int result = JNI_ERR;
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        uvc_frame_source_t *source = NULL;
+        result = uvc_source_create_synthetic(&source,
+                                             !frameFormat ? UVC_FRAME_FORMAT_YUYV
+                                                          : UVC_FRAME_FORMAT_MJPEG,
+                                             width, height, fps);
+        if (LIKELY(!result)) {
+            result = camera->connectSource(source);
+        }
+    }
+    RETURN(result, jint)
+}
+
+// 接続: 録画ファイルの再生(カメラなし)
+static jint nativeConnectReplay(JNIEnv *env, jobject thiz,
+                                ID_TYPE id_camera,
+                                jstring path_str, jboolean realtime, jboolean loop) {
+
+    ENTER()
+    int result = JNI_ERR;
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera && path_str)) {
+        const char *c_path = env->GetStringUTFChars(path_str, JNI_FALSE);
+        uvc_frame_source_t *source = NULL;
+        result = uvc_source_create_replay(&source, c_path, realtime, loop);
+        env->ReleaseStringUTFChars(path_str, c_path);
+        if (LIKELY(!result)) {
+            result = camera->connectSource(source);
+        }
+    }
+    RETURN(result, jint)
+}
+
 // カメラとの接続を解除
 static jint nativeRelease(JNIEnv *env, jobject thiz,
                           ID_TYPE id_camera) {
@@ -209,6 +263,77 @@ static jobject nativeGetSupportedSize(JNIEnv *env, jobject thiz, ID_TYPE id_came
     RETURN(result, jobject);
 }
 
+// FORMATS_VERSION layout in Parameters.h, null if the device has no streaming interface
+static jintArray nativeGetFormats(JNIEnv *env, jobject thiz, ID_TYPE id_camera) {
+    jintArray result = NULL;
+    ENTER()
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        int len;
+        int *values = camera->getFormats(len);
+        if (values) {
+            result = env->NewIntArray(len);
+            if (LIKELY(result)) {
+                env->SetIntArrayRegion(result, 0, len, reinterpret_cast<const jint *>(values));
+            }
+            free(values);
+        }
+    }
+    RETURN(result, jintArray)
+}
+
+// blob of nativeGetStreamCache written by an earlier open of the same device
+static jint nativeSetStreamCache(JNIEnv *env, jobject thiz, ID_TYPE id_camera, jbyteArray blob) {
+    jint result = JNI_ERR;
+    ENTER()
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera && blob)) {
+        const jsize len = env->GetArrayLength(blob);
+        jbyte *bytes = env->GetByteArrayElements(blob, NULL);
+        if (LIKELY(bytes)) {
+            result = camera->setStreamCache(reinterpret_cast<const uint8_t *>(bytes), len);
+            env->ReleaseByteArrayElements(blob, bytes, JNI_ABORT);
+        }
+    }
+    RETURN(result, jint)
+}
+
+// null if nothing changed since it was loaded
+static jbyteArray nativeGetStreamCache(JNIEnv *env, jobject thiz, ID_TYPE id_camera) {
+    jbyteArray result = NULL;
+    ENTER()
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        size_t len;
+        uint8_t *blob = camera->getStreamCache(len);
+        if (blob) {
+            result = env->NewByteArray(len);
+            if (LIKELY(result)) {
+                env->SetByteArrayRegion(result, 0, len, reinterpret_cast<const jbyte *>(blob));
+            }
+            free(blob);
+        }
+    }
+    RETURN(result, jbyteArray)
+}
+
+// STARTUP_XXX in UVCStats.h
+static jlongArray nativeGetStartupTimes(JNIEnv *env, jobject thiz, ID_TYPE id_camera) {
+    jlongArray result = NULL;
+    ENTER()
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        uint64_t times[STARTUP_NUM];
+        if (!camera->getStartupTimes(times)) {
+            result = env->NewLongArray(STARTUP_NUM);
+            if (LIKELY(result)) {
+                env->SetLongArrayRegion(result, 0, STARTUP_NUM, reinterpret_cast<const jlong *>(times));
+            }
+        }
+    }
+    RETURN(result, jlongArray)
+}
+
 //==================================================================================================
 
 //Add by Hsj
@@ -233,6 +358,183 @@ static jint nativeSetPreviewFlip(JNIEnv *env, jobject thiz, ID_TYPE id_camera, j
     RETURN(result, jint)
 }
 
+static jint nativeSetPreviewFormat(JNIEnv *env, jobject thiz, ID_TYPE id_camera, jint window_format) {
+    jint result = JNI_ERR;
+    ENTER()
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        result = camera->setPreviewFormat(window_format);
+    }
+    RETURN(result, jint)
+}
+
+static jint nativeSetZeroCopy(JNIEnv *env, jobject thiz, ID_TYPE id_camera, jboolean zero_copy) {
+    jint result = JNI_ERR;
+    ENTER()
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        result = camera->setZeroCopy(zero_copy);
+    }
+    RETURN(result, jint)
+}
+
+static jint nativeSetFrameQueue(JNIEnv *env, jobject thiz, ID_TYPE id_camera,
+                               jint depth, jint drop_policy) {
+    jint result = JNI_ERR;
+    ENTER()
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        result = camera->setFrameQueue(depth, drop_policy);
+    }
+    RETURN(result, jint)
+}
+
+static jint nativeSetDecodeWorkers(JNIEnv *env, jobject thiz, ID_TYPE id_camera, jint workers) {
+    jint result = JNI_ERR;
+    ENTER()
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        result = camera->setDecodeWorkers(workers);
+    }
+    RETURN(result, jint)
+}
+
+static jlong nativeGetCopiedBytesPerFrame(JNIEnv *env, jobject thiz, ID_TYPE id_camera) {
+    jlong result = 0;
+    ENTER()
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        result = (jlong) camera->getCopiedBytesPerFrame();
+    }
+    RETURN(result, jlong)
+}
+
+// hit, miss, realloc, high water mark
+static jlongArray nativeGetFramePoolStats(JNIEnv *env, jobject thiz, ID_TYPE id_camera) {
+    jlongArray result = NULL;
+    ENTER()
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        uint64_t stats[4];
+        if (!camera->getFramePoolStats(stats)) {
+            jlong values[4];
+            for (int i = 0; i < 4; i++) {
+                values[i] = (jlong) stats[i];
+            }
+            result = env->NewLongArray(4);
+            if (LIKELY(result)) {
+                env->SetLongArrayRegion(result, 0, 4, values);
+            }
+        }
+    }
+    RETURN(result, jlongArray)
+}
+
+// fills values with UVCStats#snapshot, see FrameStats.java
+static jint nativeGetStats(JNIEnv *env, jobject thiz, ID_TYPE id_camera, jlongArray values) {
+    jint result = JNI_ERR;
+    ENTER()
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera && values && env->GetArrayLength(values) >= STATS_VALUES)) {
+        uint64_t stats[STATS_VALUES];
+        result = camera->getStats(stats);
+        if (LIKELY(!result)) {
+            env->SetLongArrayRegion(values, 0, STATS_VALUES, reinterpret_cast<const jlong *>(stats));
+        }
+    }
+    RETURN(result, jint)
+}
+
+static jint nativeStartRecording(JNIEnv *env, jobject thiz, ID_TYPE id_camera, jstring path_str) {
+    jint result = JNI_ERR;
+    ENTER()
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera && path_str)) {
+        const char *c_path = env->GetStringUTFChars(path_str, JNI_FALSE);
+        result = camera->startRecording(c_path);
+        env->ReleaseStringUTFChars(path_str, c_path);
+    }
+    RETURN(result, jint)
+}
+
+static jint nativeStopRecording(JNIEnv *env, jobject thiz, ID_TYPE id_camera) {
+    jint result = JNI_ERR;
+    ENTER()
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        result = camera->stopRecording();
+    }
+    RETURN(result, jint)
+}
+
+// frames, dropped, bytes
+static jlongArray nativeGetRecordingStats(JNIEnv *env, jobject thiz, ID_TYPE id_camera) {
+    jlongArray result = NULL;
+    ENTER()
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        uint64_t stats[3];
+        if (!camera->getRecordingStats(stats)) {
+            jlong values[3];
+            for (int i = 0; i < 3; i++) {
+                values[i] = (jlong) stats[i];
+            }
+            result = env->NewLongArray(3);
+            if (LIKELY(result)) {
+                env->SetLongArrayRegion(result, 0, 3, values);
+            }
+        }
+    }
+    RETURN(result, jlongArray)
+}
+
+static jint nativeSetTransferPlan(JNIEnv *env, jobject thiz, ID_TYPE id_camera,
+                                  jint transfers, jint packets, jint alt_policy) {
+    jint result = JNI_ERR;
+    ENTER()
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        result = camera->setTransferPlan(transfers, packets, alt_policy);
+    }
+    RETURN(result, jint)
+}
+
+// samples, nominal Hz, fitted Hz, jitter ns
+static jlongArray nativeGetClockEstimate(JNIEnv *env, jobject thiz, ID_TYPE id_camera) {
+    jlongArray result = NULL;
+    ENTER()
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        uint64_t estimate[4];
+        if (!camera->getClockEstimate(estimate)) {
+            result = env->NewLongArray(4);
+            env->SetLongArrayRegion(result, 0, 4, reinterpret_cast<const jlong *>(estimate));
+        }
+    }
+    RETURN(result, jlongArray)
+}
+
+// altsetting, packet bytes, transfers, packets per transfer, packets, error packets, short packets, renegotiations
+static jlongArray nativeGetTransferStats(JNIEnv *env, jobject thiz, ID_TYPE id_camera) {
+    jlongArray result = NULL;
+    ENTER()
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        uint64_t stats[8];
+        if (!camera->getTransferStats(stats)) {
+            jlong values[8];
+            for (int i = 0; i < 8; i++) {
+                values[i] = (jlong) stats[i];
+            }
+            result = env->NewLongArray(8);
+            if (LIKELY(result)) {
+                env->SetLongArrayRegion(result, 0, 8, values);
+            }
+        }
+    }
+    RETURN(result, jlongArray)
+}
+
 // プレビュー画面の大きさをセット
 static jint nativeSetPreviewSize(JNIEnv *env, jobject thiz,
                                  ID_TYPE id_camera, jint width, jint height,
@@ -290,6 +592,92 @@ nativeSetFrameCallback(JNIEnv *env, jobject thiz, ID_TYPE id_camera, jobject jIF
     RETURN(result, jint)
 }
 
+// IFrameInfoCallback, info is filled before each call
+static jint
+nativeSetFrameInfoCallback(JNIEnv *env, jobject thiz, ID_TYPE id_camera, jobject jIFrameInfoCallback,
+                           jint pixel_format, jobject jFrameInfo) {
+    jint result = JNI_ERR;
+    ENTER()
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        jobject frame_callback_obj = env->NewGlobalRef(jIFrameInfoCallback);
+        result = camera->setFrameCallback(env, frame_callback_obj, pixel_format,
+                                          jIFrameInfoCallback ? jFrameInfo : NULL);
+    }
+    RETURN(result, jint)
+}
+
+static jint
+nativeSetCallbackBuffers(JNIEnv *env, jobject thiz, ID_TYPE id_camera, jint count) {
+    jint result = JNI_ERR;
+    ENTER()
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        result = camera->setCallbackBuffers(count);
+    }
+    RETURN(result, jint)
+}
+
+static jint
+nativeSetFrameCallbackRegion(JNIEnv *env, jobject thiz, ID_TYPE id_camera,
+                             jint x, jint y, jint width, jint height, jint out_width, jint out_height) {
+    jint result = JNI_ERR;
+    ENTER()
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        const uvc_roi_t roi = {x, y, width, height, out_width, out_height};
+        result = camera->setFrameCallbackRegion(roi);
+    }
+    RETURN(result, jint)
+}
+
+// called for every frame, no ENTER/RETURN logging
+static jint
+nativeReleaseFrame(JNIEnv *env, jobject thiz, ID_TYPE id_camera, jobject jBuffer) {
+    jint result = JNI_ERR;
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera && jBuffer)) {
+        result = camera->releaseCallbackBuffer(env, jBuffer);
+    }
+    return result;
+}
+
+static ID_TYPE
+nativeAddFrameConsumer(JNIEnv *env, jobject thiz, ID_TYPE id_camera,
+                       jint pixel_format, jint depth, jint policy, jint max_fps) {
+    ENTER()
+    UVCFrameConsumer *consumer = NULL;
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        consumer = camera->addFrameConsumer(pixel_format, depth, policy, max_fps);
+    }
+    RETURN(reinterpret_cast<ID_TYPE>(consumer), ID_TYPE)
+}
+
+static jint
+nativeRemoveFrameConsumer(JNIEnv *env, jobject thiz, ID_TYPE id_camera, ID_TYPE id_consumer) {
+    jint result = JNI_ERR;
+    ENTER()
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    UVCFrameConsumer *consumer = reinterpret_cast<UVCFrameConsumer *>(id_consumer);
+    if (LIKELY(camera && consumer)) {
+        result = camera->removeFrameConsumer(env, consumer);
+    }
+    RETURN(result, jint)
+}
+
+// id_pipeline 0 to stop feeding the pipeline graph
+static jint
+nativeSetPipeline(JNIEnv *env, jobject thiz, ID_TYPE id_camera, ID_TYPE id_pipeline, jint type) {
+    jint result = JNI_ERR;
+    ENTER()
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        result = camera->setPipeline(getPipeline(id_pipeline, type));
+    }
+    RETURN(result, jint)
+}
+
 static jint
 nativeSetCaptureDisplay(JNIEnv *env, jobject thiz, ID_TYPE id_camera, jobject jSurface) {
     jint result = JNI_ERR;
@@ -334,6 +722,116 @@ static jlong nativeGetProcSupports(JNIEnv *env, jobject thiz, ID_TYPE id_camera)
 
 //==================================================================================================
 
+static jint nativeGetControl(JNIEnv *env, jobject thiz, ID_TYPE id_camera, jint id) {
+    jint result = 0;
+    ENTER()
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        int value;
+        if (!camera->getControl(id, value)) {
+            result = value;
+        }
+    }
+    RETURN(result, jint)
+}
+
+static jint nativeGetControls(JNIEnv *env, jobject thiz, ID_TYPE id_camera,
+                              jintArray ids_array, jintArray values_array) {
+    jint result = JNI_ERR;
+    ENTER()
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    const jsize n = ids_array ? env->GetArrayLength(ids_array) : 0;
+    if (LIKELY(camera && values_array && env->GetArrayLength(values_array) >= n)) {
+        jint *ids = env->GetIntArrayElements(ids_array, NULL);
+        jint *values = env->GetIntArrayElements(values_array, NULL);
+        result = camera->getControls(ids, values, n);
+        env->ReleaseIntArrayElements(values_array, values, 0);
+        env->ReleaseIntArrayElements(ids_array, ids, JNI_ABORT);
+    }
+    RETURN(result, jint)
+}
+
+static jint nativeSetControls(JNIEnv *env, jobject thiz, ID_TYPE id_camera,
+                              jintArray ids_array, jintArray values_array) {
+    jint result = JNI_ERR;
+    ENTER()
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    const jsize n = ids_array ? env->GetArrayLength(ids_array) : 0;
+    if (LIKELY(camera && values_array && env->GetArrayLength(values_array) >= n)) {
+        jint *ids = env->GetIntArrayElements(ids_array, NULL);
+        jint *values = env->GetIntArrayElements(values_array, NULL);
+        result = camera->setControls(ids, values, n);
+        env->ReleaseIntArrayElements(values_array, values, JNI_ABORT);
+        env->ReleaseIntArrayElements(ids_array, ids, JNI_ABORT);
+    }
+    RETURN(result, jint)
+}
+
+static jint nativeGetControlLimits(JNIEnv *env, jobject thiz, ID_TYPE id_camera,
+                                   jintArray ids_array, jintArray limits_array) {
+    jint result = JNI_ERR;
+    ENTER()
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    const jsize n = ids_array ? env->GetArrayLength(ids_array) : 0;
+    if (LIKELY(camera && limits_array && env->GetArrayLength(limits_array) >= n * 3)) {
+        jint *ids = env->GetIntArrayElements(ids_array, NULL);
+        jint *limits = env->GetIntArrayElements(limits_array, NULL);
+        result = camera->getControlLimits(ids, limits, n);
+        env->ReleaseIntArrayElements(limits_array, limits, 0);
+        env->ReleaseIntArrayElements(ids_array, ids, JNI_ABORT);
+    }
+    RETURN(result, jint)
+}
+
+// does not wait for the device, the result goes to IControlCallback
+static jint nativeSetControlAsync(JNIEnv *env, jobject thiz, ID_TYPE id_camera, jint id, jint value) {
+    jint result = JNI_ERR;
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        result = camera->setControlAsync(id, value);
+    }
+    return result;
+}
+
+static jint nativeSetPanTiltAsync(JNIEnv *env, jobject thiz, ID_TYPE id_camera, jint pan, jint tilt) {
+    jint result = JNI_ERR;
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        result = camera->setPanTiltAsync(pan, tilt);
+    }
+    return result;
+}
+
+static jint nativeSetControlCallback(JNIEnv *env, jobject thiz, ID_TYPE id_camera, jobject jIControlCallback) {
+    jint result = JNI_ERR;
+    ENTER()
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        jobject control_callback_obj = env->NewGlobalRef(jIControlCallback);
+        result = camera->setControlCallback(env, control_callback_obj);
+    }
+    RETURN(result, jint)
+}
+
+// count, sum ns, max ns, coalesced, failed
+static jlongArray nativeGetControlLatency(JNIEnv *env, jobject thiz, ID_TYPE id_camera, jint id) {
+    jlongArray result = NULL;
+    ENTER()
+    UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+    if (LIKELY(camera)) {
+        uint64_t latency[CONTROL_LATENCY_VALUES];
+        if (!camera->getControlLatency(id, latency)) {
+            result = env->NewLongArray(CONTROL_LATENCY_VALUES);
+            if (LIKELY(result)) {
+                env->SetLongArrayRegion(result, 0, CONTROL_LATENCY_VALUES, reinterpret_cast<const jlong *>(latency));
+            }
+        }
+    }
+    RETURN(result, jlongArray)
+}
+
+//==================================================================================================
+
 // Java method correspond to this function should not be a static mathod
 static jint nativeUpdateScanningModeLimit(JNIEnv *env, jobject thiz, ID_TYPE id_camera) {
     jint result = JNI_ERR;
@@ -1886,28 +2384,63 @@ jint registerNativeMethods(JNIEnv *env, const char *class_name, JNINativeMethod
 static JNINativeMethod methods[] = {
         {"nativeCreate",                            "()J",                                  (void *) nativeCreate},
         {"nativeDestroy",                           "(J)V",                                 (void *) nativeDestroy},
+        {"nativeSetGroup",                          "(JJ)I",                                (void *) nativeSetGroup},
 
         {"nativeConnect",                           "(JIIIIILjava/lang/String;)I",          (void *) nativeConnect},
+        {"nativeConnectSynthetic",                  "(JIIII)I",                             (void *) nativeConnectSynthetic},
+        {"nativeConnectReplay",                     "(JLjava/lang/String;ZZ)I",             (void *) nativeConnectReplay},
         {"nativeRelease",                           "(J)I",                                 (void *) nativeRelease},
 
         {"nativeSetStatusCallback",                 "(JLcom/hsj/camera/IStatusCallback;)I", (void *) nativeSetStatusCallback},
         {"nativeSetButtonCallback",                 "(JLcom/hsj/camera/IButtonCallback;)I", (void *) nativeSetButtonCallback},
 
         {"nativeGetSupportedSize",                  "(J)Ljava/lang/String;",                (void *) nativeGetSupportedSize},
+        {"nativeGetFormats",                        "(J)[I",                                (void *) nativeGetFormats},
+        {"nativeSetStreamCache",                    "(J[B)I",                               (void *) nativeSetStreamCache},
+        {"nativeGetStreamCache",                    "(J)[B",                                (void *) nativeGetStreamCache},
+        {"nativeGetStartupTimes",                   "(J)[J",                                (void *) nativeGetStartupTimes},
         {"nativeSetPreviewSize",                    "(JIIIIIF)I",                           (void *) nativeSetPreviewSize},
         {"nativeStartPreview",                      "(J)I",                                 (void *) nativeStartPreview},
         {"nativeStopPreview",                       "(J)I",                                 (void *) nativeStopPreview},
         {"nativeSetPreviewDisplay",                 "(JLandroid/view/Surface;)I",           (void *) nativeSetPreviewDisplay},
         {"nativeSetFrameCallback",                  "(JLcom/hsj/camera/IFrameCallback;I)I", (void *) nativeSetFrameCallback},
+        {"nativeSetFrameInfoCallback",              "(JLcom/hsj/camera/IFrameInfoCallback;ILcom/hsj/camera/FrameInfo;)I", (void *) nativeSetFrameInfoCallback},
+        {"nativeSetCallbackBuffers",                "(JI)I",                                (void *) nativeSetCallbackBuffers},
+        {"nativeSetFrameCallbackRegion",            "(JIIIIII)I",                           (void *) nativeSetFrameCallbackRegion},
+        {"nativeReleaseFrame",                      "(JLjava/nio/ByteBuffer;)I",            (void *) nativeReleaseFrame},
+        {"nativeAddFrameConsumer",                  "(JIIII)J",                             (void *) nativeAddFrameConsumer},
+        {"nativeRemoveFrameConsumer",               "(JJ)I",                                (void *) nativeRemoveFrameConsumer},
+        {"nativeSetPipeline",                       "(JJI)I",                               (void *) nativeSetPipeline},
 
         //Add by Hsj
         {"nativeSetPreviewRotate",                  "(JI)I",                                (void *) nativeSetPreviewRotate},
         {"nativeSetPreviewFlip",                    "(JI)I",                                (void *) nativeSetPreviewFlip},
+        {"nativeSetPreviewFormat",                  "(JI)I",                                (void *) nativeSetPreviewFormat},
+        {"nativeSetZeroCopy",                       "(JZ)I",                                (void *) nativeSetZeroCopy},
+        {"nativeSetFrameQueue",                     "(JII)I",                               (void *) nativeSetFrameQueue},
+        {"nativeSetDecodeWorkers",                  "(JI)I",                                (void *) nativeSetDecodeWorkers},
+        {"nativeGetCopiedBytesPerFrame",            "(J)J",                                 (void *) nativeGetCopiedBytesPerFrame},
+        {"nativeGetFramePoolStats",                 "(J)[J",                                (void *) nativeGetFramePoolStats},
+        {"nativeGetStats",                          "(J[J)I",                               (void *) nativeGetStats},
+        {"nativeStartRecording",                    "(JLjava/lang/String;)I",               (void *) nativeStartRecording},
+        {"nativeStopRecording",                     "(J)I",                                 (void *) nativeStopRecording},
+        {"nativeGetRecordingStats",                 "(J)[J",                                (void *) nativeGetRecordingStats},
+        {"nativeSetTransferPlan",                   "(JIII)I",                              (void *) nativeSetTransferPlan},
+        {"nativeGetClockEstimate",                  "(J)[J",                                (void *) nativeGetClockEstimate},
+        {"nativeGetTransferStats",                  "(J)[J",                                (void *) nativeGetTransferStats},
 
         {"nativeSetCaptureDisplay",                 "(JLandroid/view/Surface;)I",           (void *) nativeSetCaptureDisplay},
 
         {"nativeGetCtrlSupports",                   "(J)J",                                 (void *) nativeGetCtrlSupports},
         {"nativeGetProcSupports",                   "(J)J",                                 (void *) nativeGetProcSupports},
+        {"nativeGetControl",                        "(JI)I",                                (void *) nativeGetControl},
+        {"nativeGetControls",                       "(J[I[I)I",                             (void *) nativeGetControls},
+        {"nativeSetControls",                       "(J[I[I)I",                             (void *) nativeSetControls},
+        {"nativeGetControlLimits",                  "(J[I[I)I",                             (void *) nativeGetControlLimits},
+        {"nativeSetControlAsync",                   "(JII)I",                               (void *) nativeSetControlAsync},
+        {"nativeSetPanTiltAsync",                   "(JII)I",                               (void *) nativeSetPanTiltAsync},
+        {"nativeSetControlCallback",                "(JLcom/hsj/camera/IControlCallback;)I", (void *) nativeSetControlCallback},
+        {"nativeGetControlLatency",                 "(JI)[J",                               (void *) nativeGetControlLatency},
 
         {"nativeUpdateScanningModeLimit",           "(J)I",                                 (void *) nativeUpdateScanningModeLimit},
         {"nativeSetScanningMode",                   "(JI)I",                                (void *) nativeSetScanningMode},
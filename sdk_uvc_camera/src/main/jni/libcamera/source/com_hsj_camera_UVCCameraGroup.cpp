@@ -0,0 +1,105 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * File name: com_hsj_camera_UVCCameraGroup.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+
+#if 1    // デバッグ情報を出さない時
+#ifndef LOG_NDEBUG
+#define	LOG_NDEBUG		// LOGV/LOGD/MARKを出力しない時
+#endif
+#undef USE_LOGALL            // 指定したLOGxだけを出力
+#else
+#define USE_LOGALL
+#undef LOG_NDEBUG
+#undef NDEBUG
+#endif
+
+#include <jni.h>
+
+#include "libUVCCamera.h"
+#include "UVCCameraGroup.h"
+
+// com_hsj_camera_UVCCamera.cpp
+extern jint registerNativeMethods(JNIEnv *env, const char *class_name, JNINativeMethod *methods,
+                                  int num_methods);
+
+static ID_TYPE nativeCreate(JNIEnv *env, jclass clazz) {
+    ENTER()
+    UVCCameraGroup *group = new UVCCameraGroup();
+    RETURN(reinterpret_cast<ID_TYPE>(group), ID_TYPE);
+}
+
+// 所属するカメラが全て破棄されていなければ失敗する
+static jint nativeDestroy(JNIEnv *env, jclass clazz, ID_TYPE id_group) {
+    jint result = JNI_ERR;
+    ENTER()
+    UVCCameraGroup *group = reinterpret_cast<UVCCameraGroup *>(id_group);
+    if (LIKELY(group)) {
+        if (!group->cameras()) {
+            SAFE_DELETE(group);
+            result = JNI_OK;
+        } else {
+            LOGW("group still has %d cameras", group->cameras());
+        }
+    }
+    RETURN(result, jint)
+}
+
+static jint nativeSetEventThread(JNIEnv *env, jclass clazz, ID_TYPE id_group,
+                                 jint cpu_mask, jint nice) {
+    jint result = JNI_ERR;
+    ENTER()
+    UVCCameraGroup *group = reinterpret_cast<UVCCameraGroup *>(id_group);
+    if (LIKELY(group)) {
+        result = group->setEventThread((uint32_t) cpu_mask, nice);
+    }
+    RETURN(result, jint)
+}
+
+static jint nativeSetDecodeWorkers(JNIEnv *env, jclass clazz, ID_TYPE id_group, jint workers) {
+    jint result = JNI_ERR;
+    ENTER()
+    UVCCameraGroup *group = reinterpret_cast<UVCCameraGroup *>(id_group);
+    if (LIKELY(group)) {
+        result = group->setDecodeWorkers(workers);
+    }
+    RETURN(result, jint)
+}
+
+//**************************************************************************************************
+//                                                                                                 *
+//**************************************************************************************************
+static JNINativeMethod methods[] = {
+        {"nativeCreate",                            "()J",                                  (void *) nativeCreate},
+        {"nativeDestroy",                           "(J)I",                                 (void *) nativeDestroy},
+        {"nativeSetEventThread",                    "(JII)I",                               (void *) nativeSetEventThread},
+        {"nativeSetDecodeWorkers",                  "(JI)I",                                (void *) nativeSetDecodeWorkers},
+};
+
+int register_uvccameragroup(JNIEnv *env) {
+    LOGV("register_uvccameragroup:");
+    if (registerNativeMethods(env,
+                              "com/hsj/camera/UVCCameraGroup",
+                              methods, NUM_ARRAY_ELEMENTS(methods)) < 0) {
+        return -1;
+    }
+    return 0;
+}
@@ -0,0 +1,187 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * File name: spscring.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef SPSCRING_H_
+#define SPSCRING_H_
+
+#include <stdint.h>
+#include <unistd.h>
+#include <sys/syscall.h>
+#include <linux/futex.h>
+#include "base_util.h"
+
+// when the ring is full, the pushed object is rejected
+#define RING_DROP_NEWEST 0
+// when the ring is full, the oldest queued object is evicted
+#define RING_DROP_OLDEST 1
+
+#define RING_MAX_DEPTH 64
+
+/**
+ * Bounded lock free ring for handing objects (pointers) from one producer thread to one consumer thread.
+ * The producer never blocks; when the ring is full it drops either the pushed object or the oldest one
+ * and returns it to the caller for recycling. The consumer sleeps on a futex only while the ring is empty.
+ * With RING_DROP_OLDEST the producer and the consumer both claim the head with CAS,
+ * so whoever wins owns the object.
+ */
+template <class T>
+class SpscRing {
+private:
+	T *m_elements;
+	uint32_t m_mask;
+	int m_depth;
+	int m_policy;
+	volatile uint32_t m_head;	// next slot to read, advanced by consumer (and producer when dropping oldest)
+	volatile uint32_t m_tail;	// next slot to write, advanced by producer only
+	volatile uint32_t m_signal;	// futex word, bumped on every push and wakeup
+	volatile int32_t m_waiters;
+	volatile int32_t m_wakeup;	// pending #wakeup that was not consumed by #wait yet
+	volatile uint32_t m_dropped;
+
+	static uint32_t storage_size(int depth) {
+		uint32_t sz = 1;
+		while (sz < (uint32_t) depth) sz <<= 1;
+		return sz;
+	}
+
+	inline void signal() {
+		__atomic_add_fetch(&m_signal, 1, __ATOMIC_SEQ_CST);
+		if (__atomic_load_n(&m_waiters, __ATOMIC_SEQ_CST) > 0) {
+			syscall(__NR_futex, &m_signal, FUTEX_WAKE_PRIVATE, INT32_MAX, NULL, NULL, 0);
+		}
+	}
+public:
+	SpscRing(int depth = 4, int policy = RING_DROP_NEWEST)
+		: m_elements(NULL), m_mask(0), m_depth(0), m_policy(policy),
+		  m_head(0), m_tail(0), m_signal(0), m_waiters(0), m_wakeup(0), m_dropped(0) {
+		resize(depth);
+	}
+
+	~SpscRing() { SAFE_DELETE_ARRAY(m_elements); }
+
+	/**
+	 * change the depth of the ring, must be called while no thread is pushing/popping
+	 * and after all objects were popped
+	 */
+	void resize(int depth) {
+		if (depth < 1) depth = 1;
+		if (depth > RING_MAX_DEPTH) depth = RING_MAX_DEPTH;
+		const uint32_t sz = storage_size(depth);
+		if (sz != m_mask + 1 || !m_elements) {
+			SAFE_DELETE_ARRAY(m_elements);
+			m_elements = new T[sz];
+			m_mask = sz - 1;
+		}
+		for (uint32_t i = 0; i < sz; i++) {
+			m_elements[i] = NULL;
+		}
+		m_depth = depth;
+		m_head = m_tail = 0;
+	}
+
+	inline void policy(int policy) { m_policy = policy; }
+	inline int policy() const { return m_policy; }
+	inline int capacity() const { return m_depth; }
+	inline int size() const {
+		return (int) (__atomic_load_n(&m_tail, __ATOMIC_ACQUIRE) - __atomic_load_n(&m_head, __ATOMIC_ACQUIRE));
+	}
+	inline bool isEmpty() const { return size() < 1; }
+	inline uint32_t dropped() const { return __atomic_load_n(&m_dropped, __ATOMIC_RELAXED); }
+	inline void resetDropped() { __atomic_store_n(&m_dropped, 0, __ATOMIC_RELAXED); }
+
+	/**
+	 * producer side, never blocks
+	 * @param dropped the object the caller has to recycle, the pushed one or the evicted oldest one, or NULL
+	 * @return true if object was queued
+	 */
+	bool put(T object, T &dropped) {
+		dropped = NULL;
+		const uint32_t tail = m_tail;
+		for ( ; ; ) {
+			uint32_t head = __atomic_load_n(&m_head, __ATOMIC_ACQUIRE);
+			if (LIKELY(tail - head < (uint32_t) m_depth)) break;
+			__atomic_add_fetch(&m_dropped, 1, __ATOMIC_RELAXED);
+			if (m_policy != RING_DROP_OLDEST) {
+				dropped = object;
+				return false;
+			}
+			T oldest = __atomic_load_n(&m_elements[head & m_mask], __ATOMIC_RELAXED);
+			if (__atomic_compare_exchange_n(&m_head, &head, head + 1,
+					false, __ATOMIC_ACQ_REL, __ATOMIC_ACQUIRE)) {
+				dropped = oldest;
+				break;
+			}
+			// consumer took it first, there is room now
+			__atomic_sub_fetch(&m_dropped, 1, __ATOMIC_RELAXED);
+		}
+		__atomic_store_n(&m_elements[tail & m_mask], object, __ATOMIC_RELAXED);
+		__atomic_store_n(&m_tail, tail + 1, __ATOMIC_RELEASE);
+		signal();
+		return true;
+	}
+
+	/**
+	 * consumer side, never blocks
+	 * @return oldest queued object or NULL if empty
+	 */
+	T get() {
+		for ( ; ; ) {
+			uint32_t head = __atomic_load_n(&m_head, __ATOMIC_ACQUIRE);
+			const uint32_t tail = __atomic_load_n(&m_tail, __ATOMIC_ACQUIRE);
+			if (head == tail) return NULL;
+			T object = __atomic_load_n(&m_elements[head & m_mask], __ATOMIC_RELAXED);
+			if (LIKELY(__atomic_compare_exchange_n(&m_head, &head, head + 1,
+					false, __ATOMIC_ACQ_REL, __ATOMIC_ACQUIRE))) {
+				return object;
+			}
+		}
+	}
+
+	/**
+	 * consumer side, block while the ring is empty
+	 * @return oldest queued object or NULL when woken up by #wakeup
+	 */
+	T wait() {
+		T object = get();
+		if (LIKELY(object)) return object;
+		__atomic_add_fetch(&m_waiters, 1, __ATOMIC_SEQ_CST);
+		const uint32_t seq = __atomic_load_n(&m_signal, __ATOMIC_SEQ_CST);
+		object = get();
+		if (!object && !__atomic_exchange_n(&m_wakeup, 0, __ATOMIC_SEQ_CST)) {
+			syscall(__NR_futex, &m_signal, FUTEX_WAIT_PRIVATE, seq, NULL, NULL, 0);
+			object = get();
+		}
+		__atomic_sub_fetch(&m_waiters, 1, __ATOMIC_SEQ_CST);
+		return object;
+	}
+
+	/**
+	 * release the consumer blocked in #wait,
+	 * if it is not waiting yet the next #wait returns immediately instead
+	 */
+	inline void wakeup() {
+		__atomic_store_n(&m_wakeup, 1, __ATOMIC_SEQ_CST);
+		signal();
+	}
+};
+
+#endif	// SPSCRING_H_
@@ -70,7 +70,10 @@ LOCAL_SRC_FILES := \
 	src/frame.c \
 	src/frame-mjpeg.c \
 	src/init.c \
-	src/stream.c
+	src/stream.c \
+	src/source.c \
+	src/clock.c \
+	src/record.c
 
 LOCAL_MODULE := libuvc_static
 
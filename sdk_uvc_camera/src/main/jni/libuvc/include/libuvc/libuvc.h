@@ -110,6 +110,10 @@ enum uvc_frame_format {
     UVC_FRAME_FORMAT_COUNT,
     /**rotate flip add by hsj*/
     UVC_FRAME_FORMAT_ARGB,
+    /** planar YUV420, decoded from MJPEG without YUYV intermediate */
+    UVC_FRAME_FORMAT_I420,    // XXX added
+    /** planar Y, V, U with the chroma stride aligned to 16 bytes, the Android YV12 window layout */
+    UVC_FRAME_FORMAT_YV12,    // XXX added
 };
 
 /* UVC_COLOR_FORMAT_* have been replaced with UVC_FRAME_FORMAT_*. Please use
@@ -187,6 +191,21 @@ typedef struct uvc_frame_desc {
     uint32_t *intervals;
 } uvc_frame_desc_t;
 
+/** XXX added Still Image Frame descriptor
+ *
+ * Sizes and compressions a format offers for still image capture,
+ * it follows the frame descriptors of its format.
+ */
+typedef struct uvc_still_frame_desc {
+    /** Bulk endpoint of method 3, 0 if still images come through the video endpoint */
+    uint8_t bEndpointAddress;
+    uint8_t bNumImageSizePatterns;
+    /** bNumImageSizePatterns pairs of width, height */
+    uint16_t *wWidthHeight;
+    uint8_t bNumCompressionPattern;
+    uint8_t *bCompression;
+} uvc_still_frame_desc_t;
+
 /** Format descriptor
  *
  * A "format" determines a stream's image type (e.g., raw YUYV or JPEG)
@@ -221,6 +240,8 @@ typedef struct uvc_format_desc {
     uint8_t bVariableSize;
     /** Available frame specifications for this format */
     struct uvc_frame_desc *frame_descs;
+    /** Still image sizes of this format, NULL if none */
+    struct uvc_still_frame_desc *still_frame_desc;	// XXX
 } uvc_format_desc_t;
 
 /** UVC request code (A.8) */
@@ -474,6 +495,16 @@ typedef struct uvc_frame {
     uint32_t sequence;
     /** Estimate of system time when the device started capturing the image */
     struct timeval capture_time;
+    /** XXX CLOCK_MONOTONIC ns when the first payload of this frame arrived */
+    uint64_t first_payload_ns;
+    /** XXX CLOCK_MONOTONIC ns when the last payload of this frame arrived */
+    uint64_t complete_ns;
+    /** XXX device clock when the device started capturing, from the payload header PTS, 0 if not sent */
+    uint32_t pts;
+    /** XXX device clock (STC) of the last source clock reference of this frame, 0 if not sent */
+    uint32_t scr;
+    /** XXX pts mapped to CLOCK_MONOTONIC ns by the clock estimate of the stream, 0 if unknown */
+    uint64_t capture_ns;
     /** Handle on the device that produced the image.
      * @warning You must not call any uvc_* functions during a callback. */
     uvc_device_handle_t *source;
@@ -484,6 +515,11 @@ typedef struct uvc_frame {
      * Set this field to zero if you are supplying the buffer.
      */
     uint8_t library_owns_data;
+    /** XXX references while the frame is shared by the branches of a pipeline graph, 0 if not shared.
+     * release returns the frame to its owner when the last reference is dropped */
+    volatile int32_t refs;
+    void (*release)(struct uvc_frame *frame, void *arg);
+    void *release_arg;
 } uvc_frame_t;
 
 /** A callback function to handle incoming assembled UVC frames
@@ -526,6 +562,8 @@ typedef struct uvc_stream_ctrl {
 uvc_error_t uvc_init(uvc_context_t **ctx, struct libusb_context *usb_ctx);
 uvc_error_t uvc_init2(uvc_context_t **ctx, struct libusb_context *usb_ctx, const char *usbfs);
 void uvc_exit(uvc_context_t *ctx);
+/** XXX CPU affinity (bit n = cpu n, 0 keeps it) and nice value of the USB event thread of the context */
+uvc_error_t uvc_set_handler_thread(uvc_context_t *ctx, uint32_t cpu_mask, int nice);
 
 uvc_error_t uvc_get_device_list(uvc_context_t *ctx, uvc_device_t ***list);
 void uvc_free_device_list(uvc_device_t **list, uint8_t unref_devices);
@@ -533,6 +571,7 @@ void uvc_free_device_list(uvc_device_t **list, uint8_t unref_devices);
 uvc_error_t uvc_get_device_descriptor(uvc_device_t *dev,
                                       uvc_device_descriptor_t **desc);
 void uvc_free_device_descriptor(uvc_device_descriptor_t *desc);
+uint32_t uvc_get_descriptor_hash(uvc_device_handle_t *devh);	// XXX
 
 uint8_t uvc_get_bus_number(uvc_device_t *dev);
 uint8_t uvc_get_device_address(uvc_device_t *dev);
@@ -586,6 +625,13 @@ uvc_error_t uvc_probe_stream_ctrl(uvc_device_handle_t *devh,
 uvc_error_t uvc_get_frame_desc(uvc_device_handle_t *devh,
                                uvc_stream_ctrl_t *ctrl, uvc_frame_desc_t **desc);
 
+/** Stream setup flags for uvc_start_streaming* / uvc_stream_start*
+ * (the lower bit is reserved for backward compatibility)
+ * @ingroup streaming
+ */
+/** hand the assembled payload buffer to the callback instead of copying it (see uvc_swap_frame) */
+#define UVC_STREAM_FLAG_ZERO_COPY 0x02    // XXX added
+
 uvc_error_t uvc_start_streaming(uvc_device_handle_t *devh,
                                 uvc_stream_ctrl_t *ctrl, uvc_frame_callback_t *cb, void *user_ptr,
                                 uint8_t flags);
@@ -595,6 +641,83 @@ uvc_error_t uvc_start_streaming_bandwidth(uvc_device_handle_t *devh,
                                           float bandwidth,
                                           uint8_t flags);    // XXX added saki
 
+/** XXX how an isochronous stream chooses its altsetting */
+enum uvc_alt_policy {
+    /** smallest altsetting that fits dwMaxPayloadTransferSize * bandwidth, else the last one */
+    UVC_ALT_FIT = 0,
+    /** always the last (largest) altsetting */
+    UVC_ALT_MAX = 1,
+    /** start like UVC_ALT_FIT, step up on packet errors and down while the packets stay short */
+    UVC_ALT_ADAPTIVE = 2,
+};
+
+/** XXX transfer plan applied by the next uvc_start_streaming* / uvc_stream_start* of the device,
+ * zero fields keep the defaults (5 transfers, at most 32 packets per isochronous transfer) */
+typedef struct uvc_transfer_plan {
+    /** number of transfers in flight, [1, 16] */
+    int transfers;
+    /** upper limit of packets per isochronous transfer, [1, 256] */
+    int packets;
+    enum uvc_alt_policy alt_policy;
+    /** UVC_ALT_ADAPTIVE: step up when more than this many of 1000 packets fail, default 10 */
+    int error_permille;
+} uvc_transfer_plan_t;
+
+/** XXX transfer counters of the current stream, reset on start */
+typedef struct uvc_transfer_stats {
+    /** bAlternateSetting in use, 0 for bulk */
+    int altsetting;
+    /** bytes per isochronous packet, or per bulk transfer */
+    uint32_t packet_bytes;
+    uint32_t transfers;
+    uint32_t packets_per_transfer;
+    uint64_t packets;
+    /** packets with a transfer error, UVC_STREAM_ERR or a bogus header */
+    uint64_t error_packets;
+    /** packets that would have fit into the next smaller altsetting */
+    uint64_t short_packets;
+    /** altsetting switches made by UVC_ALT_ADAPTIVE */
+    uint32_t renegotiations;
+} uvc_transfer_stats_t;
+
+uvc_error_t uvc_set_transfer_plan(uvc_device_handle_t *devh, const uvc_transfer_plan_t *plan);
+uvc_error_t uvc_get_transfer_stats(uvc_device_handle_t *devh, uvc_transfer_stats_t *stats);
+
+/** XXX device clock -> CLOCK_MONOTONIC fit of the current stream, from the SCR of the payload headers */
+typedef struct uvc_clock_estimate {
+    /** SCR samples in the fit window, the fit is used from LIBUVC_CLOCK_MIN_SAMPLES on */
+    uint32_t samples;
+    /** dwClockFrequency negotiated with the device, 0 if it did not report one */
+    uint32_t nominal_hz;
+    /** fitted device clock frequency, 0 until the fit is used */
+    double device_hz;
+    /** spread of the samples above the fitted line, i.e. the USB arrival jitter the fit removed */
+    uint64_t jitter_ns;
+} uvc_clock_estimate_t;
+
+uvc_error_t uvc_get_clock_estimate(uvc_device_handle_t *devh, uvc_clock_estimate_t *estimate);
+
+/** XXX frame source that feeds a uvc_frame_callback_t without a device, for tests and benchmarks */
+typedef struct uvc_frame_source uvc_frame_source_t;
+uvc_error_t uvc_source_create_synthetic(uvc_frame_source_t **source,
+                                        enum uvc_frame_format format, int width, int height, int fps);
+uvc_error_t uvc_source_create_replay(uvc_frame_source_t **source,
+                                     const char *path, int realtime, int loop);
+void uvc_source_get_format(uvc_frame_source_t *source,
+                           enum uvc_frame_format *format, int *width, int *height);
+int uvc_source_get_frames(uvc_frame_source_t *source);
+uvc_error_t uvc_source_seek(uvc_frame_source_t *source, int frame);
+uvc_error_t uvc_source_start(uvc_frame_source_t *source,
+                             uvc_frame_callback_t *cb, void *user_ptr, uint8_t flags);
+void uvc_source_stop(uvc_frame_source_t *source);
+void uvc_source_destroy(uvc_frame_source_t *source);
+
+/** XXX raw stream recorder, see uvc_record_header_t */
+uvc_error_t uvc_start_recording(uvc_device_handle_t *devh, const char *path, size_t frame_bytes);
+uvc_error_t uvc_stop_recording(uvc_device_handle_t *devh);
+uvc_error_t uvc_get_recording_stats(uvc_device_handle_t *devh,
+                                    uint32_t *frames, uint32_t *dropped, uint64_t *bytes);
+
 uvc_error_t uvc_start_iso_streaming(uvc_device_handle_t *devh,
                                     uvc_stream_ctrl_t *ctrl, uvc_frame_callback_t *cb,
                                     void *user_ptr);
@@ -623,6 +746,10 @@ int uvc_get_ctrl(uvc_device_handle_t *devh, uint8_t unit, uint8_t ctrl,
                  void *data, int len, enum uvc_req_code req_code);
 int uvc_set_ctrl(uvc_device_handle_t *devh, uint8_t unit, uint8_t ctrl,
                  void *data, int len);
+/** XXX completion of uvc_set_ctrl_async, on the event handler thread */
+typedef void (uvc_ctrl_cb_t)(uvc_error_t result, void *user_ptr);
+uvc_error_t uvc_set_ctrl_async(uvc_device_handle_t *devh, uint8_t unit, uint8_t ctrl,
+                               const void *data, int len, uvc_ctrl_cb_t *cb, void *user_ptr); // XXX
 
 // Camera Controls
 uvc_error_t uvc_vc_get_error_code(uvc_device_handle_t *devh,
@@ -816,6 +943,7 @@ uvc_frame_t *uvc_allocate_frame(size_t data_bytes);
 void uvc_free_frame(uvc_frame_t *frame);
 
 uvc_error_t uvc_duplicate_frame(uvc_frame_t *in, uvc_frame_t *out);
+uvc_error_t uvc_swap_frame(uvc_frame_t *in, uvc_frame_t *out);    // XXX
 //----------------------------------------------------------------------
 uvc_error_t uvc_yuyv2rgb(uvc_frame_t *in, uvc_frame_t *out);
 uvc_error_t uvc_uyvy2rgb(uvc_frame_t *in, uvc_frame_t *out);
@@ -831,6 +959,14 @@ uvc_error_t uvc_mjpeg2bgr(uvc_frame_t *in, uvc_frame_t *out);        // XXX
 uvc_error_t uvc_mjpeg2rgb565(uvc_frame_t *in, uvc_frame_t *out);     // XXX
 uvc_error_t uvc_mjpeg2rgbx(uvc_frame_t *in, uvc_frame_t *out);       // XXX
 uvc_error_t uvc_mjpeg2yuyv(uvc_frame_t *in, uvc_frame_t *out);       // XXX
+uvc_error_t uvc_mjpeg2i420(uvc_frame_t *in, uvc_frame_t *out);       // XXX
+
+/** reusable MJPEG decompressor, create one per stream/decoding thread */
+typedef struct uvc_mjpeg_decoder uvc_mjpeg_decoder_t;    // XXX added
+uvc_mjpeg_decoder_t *uvc_mjpeg_decoder_create(void);
+void uvc_mjpeg_decoder_destroy(uvc_mjpeg_decoder_t *decoder);
+uvc_error_t uvc_mjpeg_decode_yuyv(uvc_mjpeg_decoder_t *decoder, uvc_frame_t *in, uvc_frame_t *out);
+uvc_error_t uvc_mjpeg_decode_i420(uvc_mjpeg_decoder_t *decoder, uvc_frame_t *in, uvc_frame_t *out);
 #endif
 
 uvc_error_t uvc_yuyv2rgb565(uvc_frame_t *in, uvc_frame_t *out);       // XXX
@@ -846,7 +982,11 @@ uvc_error_t uvc_any2rgbx(uvc_frame_t *in, uvc_frame_t *out);         // XXX
 //hsj
 //rotate=null to not do rotate
 //mirror=null to not mirror
-uvc_error_t uvc_yuyv2argb(uvc_frame_t *in, uvc_frame_t *out, int rotate, int flip);
+//work=scratch frame reused between calls, or NULL to allocate per call
+uvc_error_t uvc_yuyv2argb(uvc_frame_t *in, uvc_frame_t *out, int rotate, int flip, uvc_frame_t *work);
+uvc_error_t uvc_i4202argb(uvc_frame_t *in, uvc_frame_t *out, int rotate, int flip, uvc_frame_t *work);
+uvc_error_t uvc_any2buffer(uvc_frame_t *in, void *dst, int stride, int width, int height,
+                           enum uvc_frame_format format, int rotate, int flip, uvc_frame_t *work);    // XXX
 
 uvc_error_t uvc_yuyv2yuv420P(uvc_frame_t *in, uvc_frame_t *out);    // XXX
 uvc_error_t uvc_yuyv2yuv420SP(uvc_frame_t *in, uvc_frame_t *out);    // XXX
@@ -858,6 +998,19 @@ uvc_error_t uvc_any2iyuv420SP(uvc_frame_t *in, uvc_frame_t *out);    // XXX
 
 uvc_error_t uvc_any2yuyv(uvc_frame_t *in, uvc_frame_t *out);        // XXX
 
+uvc_error_t uvc_yuyv2i420(uvc_frame_t *in, uvc_frame_t *out);        // XXX
+uvc_error_t uvc_any2i420(uvc_frame_t *in, uvc_frame_t *out);         // XXX
+
+/** XXX region cropped out of a frame and the size it is scaled to, see uvc_roi2i420 */
+typedef struct uvc_roi {
+    /** region, a zero width or height is the whole frame */
+    int x, y, width, height;
+    /** size after scaling, 0 keeps the size of the region */
+    int out_width, out_height;
+} uvc_roi_t;
+
+uvc_error_t uvc_roi2i420(uvc_frame_t *in, uvc_frame_t *out, const uvc_roi_t *roi, uvc_frame_t *work);    // XXX
+
 uvc_error_t uvc_ensure_frame_size(uvc_frame_t *frame, size_t need_bytes); // XXX
 
 //**********************************************************************
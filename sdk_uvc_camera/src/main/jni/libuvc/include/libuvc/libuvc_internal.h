@@ -11,6 +11,7 @@
 #include <string.h>
 #include <pthread.h>
 #include <signal.h>
+#include <time.h>
 #include "base_util.h"
 #include "utlist.h"
 
@@ -248,8 +249,40 @@ typedef struct uvc_device_info {
   and then allow the user to change the number of buffers as required.
  */
 #define LIBUVC_NUM_TRANSFER_BUFS 5
+/* XXX upper limit of uvc_transfer_plan_t.transfers */
+#define LIBUVC_MAX_TRANSFER_BUFS 16
+/* XXX default and upper limit of the packets per isochronous transfer */
+#define LIBUVC_NUM_ISO_PACKETS 32
+#define LIBUVC_MAX_ISO_PACKETS 256
+#define LIBUVC_MAX_ALTSETTINGS 32
+/* XXX packets the adaptive altsetting policy looks at before deciding, about 1s on high speed */
+#define LIBUVC_ADAPT_WINDOW_PACKETS 8000
+#define LIBUVC_ADAPT_ERROR_PERMILLE 10
 
 #define LIBUVC_XFER_BUF_SIZE	( 16 * 1024 * 1024 )
+/* XXX extra room on the receive buffers when they are sized from the frame descriptor */
+#define LIBUVC_XFER_BUF_MARGIN	( 64 * 1024 )
+
+/** XXX device clock -> host clock fit, see clock.c */
+#define LIBUVC_CLOCK_SAMPLES 64
+#define LIBUVC_CLOCK_MIN_SAMPLES 8
+/** a sample this far off the fit means the device clock restarted, the window starts over */
+#define LIBUVC_CLOCK_RESET_NS 100000000LL
+
+typedef struct uvc_clock {
+  /** unwrapped device clock and CLOCK_MONOTONIC arrival of the samples, ring of count entries */
+  int64_t dev[LIBUVC_CLOCK_SAMPLES];
+  uint64_t host[LIBUVC_CLOCK_SAMPLES];
+  int head, count;
+  int64_t last_dev;
+  uint32_t nominal_hz;
+  /** host = ref_host + (dev - ref_dev) * ns_per_tick when valid */
+  int valid;
+  double ns_per_tick;
+  int64_t ref_dev;
+  int64_t ref_host;
+  uint64_t jitter_ns;
+} uvc_clock_t;
 
 struct uvc_stream_handle {
   struct uvc_device_handle *devh;
@@ -268,6 +301,15 @@ struct uvc_stream_handle {
   uint32_t seq, hold_seq;
   uint32_t pts, hold_pts;
   uint32_t last_scr, hold_last_scr;
+  /** XXX CLOCK_MONOTONIC ns of the first payload of the frame being received / of the hold frame */
+  uint64_t start_ns, hold_start_ns;
+  /** XXX CLOCK_MONOTONIC ns when the hold frame was complete */
+  uint64_t hold_complete_ns;
+  /** XXX first SCR of the frame and its CLOCK_MONOTONIC arrival, sample for the clock fit */
+  uint32_t first_scr, hold_first_scr;
+  uint64_t scr_ns, hold_scr_ns;
+  /** XXX device clock fit, only touched by the thread that populates frames */
+  uvc_clock_t clock;
   size_t got_bytes, hold_bytes;
   size_t size_buf;	// XXX add for boundary check
   uint8_t *outbuf, *holdbuf;
@@ -277,10 +319,31 @@ struct uvc_stream_handle {
   uint32_t last_polled_seq;
   uvc_frame_callback_t *user_cb;
   void *user_ptr;
-  struct libusb_transfer *transfers[LIBUVC_NUM_TRANSFER_BUFS];
-  uint8_t *transfer_bufs[LIBUVC_NUM_TRANSFER_BUFS];
+  struct libusb_transfer *transfers[LIBUVC_MAX_TRANSFER_BUFS];
+  uint8_t *transfer_bufs[LIBUVC_MAX_TRANSFER_BUFS];
   struct uvc_frame frame;
   enum uvc_frame_format frame_format;
+  /** if true, hand holdbuf to the frame instead of copying it (UVC_STREAM_FLAG_ZERO_COPY) */
+  uint8_t zero_copy;
+  /** XXX transfer plan copied from the device handle on start */
+  uvc_transfer_plan_t plan;
+  int num_transfers;
+  /** XXX isochronous only: bytes per packet of each altsetting (0 if unusable), current one */
+  size_t alt_bytes[LIBUVC_MAX_ALTSETTINGS];
+  int num_alt, cur_alt;
+  /** XXX packets up to this size would have fit into the next smaller altsetting */
+  size_t short_bytes;
+  uint32_t max_frame_bytes;
+  /** XXX UVC_ALT_ADAPTIVE: altsetting requested by the USB thread, -1 if none,
+   * the switch itself runs on the callback thread */
+  volatile int adapt_alt;
+  /** XXX lowest altsetting the adaptive policy may step down to, raised after errors */
+  int adapt_floor;
+  /** XXX if true, completed transfers are freed instead of resubmitted */
+  volatile uint8_t switching;
+  /** XXX current adaptive window, only touched on the USB thread */
+  uint32_t win_packets, win_errors, win_short;
+  size_t win_max_len;
 };
 
 /** Handle on an open UVC device
@@ -307,6 +370,16 @@ struct uvc_device_handle {
   /** Whether the camera is an iSight that sends one header per frame */
   uint8_t is_isight;
   uint8_t reset_on_release_if;	// XXX whether interface alt setting needs to reset to 0.
+  /** XXX raw stream recorder fed from _uvc_swap_buffers, NULL if not recording */
+  struct uvc_recorder *recorder;
+  /** XXX number of USB threads currently handing a frame to the recorder */
+  volatile int recorder_users;
+  /** XXX applied to the next stream start, see uvc_set_transfer_plan */
+  uvc_transfer_plan_t transfer_plan;
+  /** XXX counters of the running stream, written on the USB thread */
+  uvc_transfer_stats_t transfer_stats;
+  /** XXX copy of the clock fit of the running stream, written with each frame */
+  uvc_clock_estimate_t clock_estimate;
 };
 
 /** Context within which we communicate with devices */
@@ -319,8 +392,84 @@ struct uvc_context {
   uvc_device_handle_t *open_devices;
   pthread_t handler_thread;
   uint8_t kill_handler_thread;
+  /** XXX guards open_devices and the handler thread, devices of one context may be opened from several threads */
+  pthread_mutex_t open_mutex;
+  /** XXX linux thread id of the handler thread, 0 if not running */
+  volatile pid_t handler_tid;
+  /** XXX see uvc_set_handler_thread */
+  uint32_t handler_cpus;
+  int handler_nice;
 };
 
+/** XXX raw stream recording file, written by the recorder and read by the replay frame source.
+ * All fields are little endian.
+ *   uvc_record_header_t
+ *   { uvc_record_frame_t, payload bytes } * frames
+ *   uvc_record_index_t * frames    (optional, missing if the recording was not closed)
+ *   uvc_record_trailer_t
+ */
+#define UVC_RECORD_MAGIC		0x52435655	/* "UVCR" */
+#define UVC_RECORD_FRAME_MAGIC	0x4d524655	/* "UFRM" */
+#define UVC_RECORD_INDEX_MAGIC	0x58444955	/* "UIDX" */
+#define UVC_RECORD_VERSION		1
+
+typedef struct uvc_record_header {
+  uint32_t magic;
+  uint16_t version;
+  uint16_t header_bytes;
+  uint32_t frame_format;	/* enum uvc_frame_format */
+  uint32_t width;
+  uint32_t height;
+  uint32_t frame_interval;	/* 100ns units, 0 if unknown */
+  uint64_t start_time;		/* CLOCK_MONOTONIC ns when recording started */
+} uvc_record_header_t;
+
+typedef struct uvc_record_frame {
+  uint32_t magic;
+  uint32_t bytes;			/* payload bytes following this header */
+  uint64_t time;			/* ns since uvc_record_header_t.start_time */
+  uint32_t pts;				/* hold_pts */
+  uint32_t scr;				/* hold_last_scr */
+  uint32_t seq;				/* hold_seq */
+  uint32_t flags;			/* hold_bfh_err */
+} uvc_record_frame_t;
+
+typedef struct uvc_record_index {
+  uint64_t offset;			/* file offset of uvc_record_frame_t */
+  uint64_t time;
+} uvc_record_index_t;
+
+typedef struct uvc_record_trailer {
+  uint32_t magic;
+  uint32_t frames;
+  uint64_t index_offset;
+} uvc_record_trailer_t;
+
+void _uvc_record_frame(uvc_stream_handle_t *strmh);	// XXX
+
+void _uvc_clock_reset(uvc_clock_t *clock, uint32_t nominal_hz);
+void _uvc_clock_update(uvc_clock_t *clock, uint32_t stc, uint64_t host_ns);
+uint64_t _uvc_clock_to_host(const uvc_clock_t *clock, uint32_t ticks);
+void _uvc_clock_estimate(const uvc_clock_t *clock, uvc_clock_estimate_t *estimate);
+
+/** XXX copy sequence and timing of in to out, for the conversions */
+static inline void _uvc_copy_frame_time(const uvc_frame_t *in, uvc_frame_t *out) {
+	out->sequence = in->sequence;
+	out->capture_time = in->capture_time;
+	out->first_payload_ns = in->first_payload_ns;
+	out->complete_ns = in->complete_ns;
+	out->pts = in->pts;
+	out->scr = in->scr;
+	out->capture_ns = in->capture_ns;
+}
+
+/** XXX CLOCK_MONOTONIC in ns, used for frame timing */
+static inline uint64_t _uvc_now_ns(void) {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (uint64_t) ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
 uvc_error_t uvc_query_stream_ctrl(
     uvc_device_handle_t *devh,
     uvc_stream_ctrl_t *ctrl,
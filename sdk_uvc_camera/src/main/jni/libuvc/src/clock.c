@@ -0,0 +1,151 @@
+/*********************************************************************
+ * XXX added
+ * device clock -> host clock estimation for the PTS of the payload headers.
+ * every frame gives one sample: the first SCR (device clock when the payload left the device)
+ * paired with the CLOCK_MONOTONIC time the payload arrived. arrival is late by a varying amount
+ * (USB scheduling, transfer batching), never early, so a least squares fit over the window gives the
+ * rate and the line is then moved down to the earliest sample, the lower envelope of the arrivals.
+ *********************************************************************/
+#include "libuvc/libuvc.h"
+#include "libuvc/libuvc_internal.h"
+#include <string.h>
+
+/* a device clock further off its dwClockFrequency is taken as a bad fit, not as the real rate */
+#define UVC_CLOCK_MAX_DEVIATION	0.001
+
+void _uvc_clock_reset(uvc_clock_t *clock, uint32_t nominal_hz) {
+	memset(clock, 0, sizeof(*clock));
+	clock->nominal_hz = nominal_hz;
+}
+
+/* the 32 bit device clock wraps (every 89 seconds at 48MHz), values are close to the last sample */
+static inline int64_t _uvc_clock_unwrap(const uvc_clock_t *clock, uint32_t ticks) {
+	return clock->last_dev + (int32_t) (ticks - (uint32_t) clock->last_dev);
+}
+
+static void _uvc_clock_fit(uvc_clock_t *clock) {
+	const int newest = (clock->head + LIBUVC_CLOCK_SAMPLES - 1) % LIBUVC_CLOCK_SAMPLES;
+	const int64_t ref_dev = clock->dev[newest];
+	const uint64_t ref_host = clock->host[newest];
+	const int first = (clock->head + LIBUVC_CLOCK_SAMPLES - clock->count) % LIBUVC_CLOCK_SAMPLES;
+	const double nominal = clock->nominal_hz ? 1000000000.0 / clock->nominal_hz : 0;
+	double ns_per_tick;
+	int i, j;
+
+	if (clock->count >= LIBUVC_CLOCK_MIN_SAMPLES) {
+		double mx = 0, my = 0, sxx = 0, sxy = 0;
+		for (i = 0, j = first; i < clock->count; i++, j = (j + 1) % LIBUVC_CLOCK_SAMPLES) {
+			mx += (double) (clock->dev[j] - ref_dev);
+			my += (double) (int64_t) (clock->host[j] - ref_host);
+		}
+		mx /= clock->count;
+		my /= clock->count;
+		for (i = 0, j = first; i < clock->count; i++, j = (j + 1) % LIBUVC_CLOCK_SAMPLES) {
+			const double x = (double) (clock->dev[j] - ref_dev) - mx;
+			const double y = (double) (int64_t) (clock->host[j] - ref_host) - my;
+			sxx += x * x;
+			sxy += x * y;
+		}
+		ns_per_tick = sxx > 0 ? sxy / sxx : 0;
+		if (nominal && (ns_per_tick < nominal * (1 - UVC_CLOCK_MAX_DEVIATION)
+				|| ns_per_tick > nominal * (1 + UVC_CLOCK_MAX_DEVIATION))) {
+			ns_per_tick = nominal;
+		}
+	} else if (nominal && clock->count >= 2) {
+		ns_per_tick = nominal;
+	} else {
+		ns_per_tick = 0;
+	}
+	if (UNLIKELY(ns_per_tick <= 0)) {
+		clock->valid = 0;
+		return;
+	}
+
+	double low = 0, high = 0;
+	if (clock->count >= LIBUVC_CLOCK_MIN_SAMPLES) {
+		// the jitter tilts the least squares line, take the rate through the earliest arrival
+		// of the oldest and of the newest third of the window instead
+		const int third = clock->count / 3;
+		int older = -1, newer = -1;
+		double older_low = 0, newer_low = 0;
+		for (i = 0, j = first; i < clock->count; i++, j = (j + 1) % LIBUVC_CLOCK_SAMPLES) {
+			const double residual = (double) (int64_t) (clock->host[j] - ref_host)
+				- (double) (clock->dev[j] - ref_dev) * ns_per_tick;
+			if (i < third) {
+				if (older < 0 || residual < older_low) { older = j; older_low = residual; }
+			} else if (i >= clock->count - third) {
+				if (newer < 0 || residual < newer_low) { newer = j; newer_low = residual; }
+			}
+		}
+		if (LIKELY(clock->dev[newer] > clock->dev[older])) {
+			const double rate = (double) (int64_t) (clock->host[newer] - clock->host[older])
+				/ (double) (clock->dev[newer] - clock->dev[older]);
+			// keep the least squares rate if the two points disagree with it by more than 1%
+			if (rate > ns_per_tick * 0.99 && rate < ns_per_tick * 1.01
+				&& (!nominal || (rate > nominal * (1 - UVC_CLOCK_MAX_DEVIATION)
+					&& rate < nominal * (1 + UVC_CLOCK_MAX_DEVIATION)))) {
+				ns_per_tick = rate;
+			}
+		}
+	}
+	for (i = 0, j = first; i < clock->count; i++, j = (j + 1) % LIBUVC_CLOCK_SAMPLES) {
+		const double residual = (double) (int64_t) (clock->host[j] - ref_host)
+			- (double) (clock->dev[j] - ref_dev) * ns_per_tick;
+		if (!i || residual < low) low = residual;
+		if (!i || residual > high) high = residual;
+	}
+	clock->ns_per_tick = ns_per_tick;
+	clock->ref_dev = ref_dev;
+	clock->ref_host = (int64_t) ref_host + (int64_t) low;
+	clock->jitter_ns = (uint64_t) (high - low);
+	clock->valid = 1;
+}
+
+/** @internal
+ * @brief add the sample of one frame and refit
+ * @param stc device clock of the first SCR of the frame
+ * @param host_ns CLOCK_MONOTONIC arrival of the payload carrying it
+ */
+void _uvc_clock_update(uvc_clock_t *clock, uint32_t stc, uint64_t host_ns) {
+	int64_t dev = stc;
+	if (clock->count) {
+		dev = _uvc_clock_unwrap(clock, stc);
+		if (dev <= clock->last_dev) {
+			// SCR did not advance, the device does not run its clock
+			return;
+		}
+		if (clock->valid) {
+			const double error = (double) (int64_t) (host_ns - clock->ref_host)
+				- (double) (dev - clock->ref_dev) * clock->ns_per_tick;
+			if (UNLIKELY(error > LIBUVC_CLOCK_RESET_NS || error < -LIBUVC_CLOCK_RESET_NS)) {
+				_uvc_clock_reset(clock, clock->nominal_hz);
+				dev = stc;
+			}
+		}
+	}
+	clock->dev[clock->head] = dev;
+	clock->host[clock->head] = host_ns;
+	clock->head = (clock->head + 1) % LIBUVC_CLOCK_SAMPLES;
+	if (clock->count < LIBUVC_CLOCK_SAMPLES)
+		clock->count++;
+	clock->last_dev = dev;
+	_uvc_clock_fit(clock);
+}
+
+/** @internal
+ * @brief map a device clock value of the current stream, e.g. the PTS, to CLOCK_MONOTONIC
+ * @return ns, 0 while there is no fit
+ */
+uint64_t _uvc_clock_to_host(const uvc_clock_t *clock, uint32_t ticks) {
+	if (UNLIKELY(!clock->valid))
+		return 0;
+	const int64_t dev = _uvc_clock_unwrap(clock, ticks);
+	return (uint64_t) (clock->ref_host + (int64_t) ((double) (dev - clock->ref_dev) * clock->ns_per_tick));
+}
+
+void _uvc_clock_estimate(const uvc_clock_t *clock, uvc_clock_estimate_t *estimate) {
+	estimate->samples = clock->count;
+	estimate->nominal_hz = clock->nominal_hz;
+	estimate->device_hz = clock->valid ? 1000000000.0 / clock->ns_per_tick : 0;
+	estimate->jitter_ns = clock->valid ? clock->jitter_ns : 0;
+}
@@ -68,7 +68,7 @@ int uvc_get_ctrl_len(uvc_device_handle_t *devh, uint8_t unit, uint8_t ctrl) {
 
 	int ret = libusb_control_transfer(devh->usb_devh, REQ_TYPE_GET, UVC_GET_LEN,
 			ctrl << 8,
-			unit << 8,	// FIXME this will work wrong, invalid wIndex value
+			unit << 8 | devh->info->ctrl_if.bInterfaceNumber,	// XXX interface number in the low byte
 			buf, 2, CTRL_TIMEOUT_MILLIS);
 
 	if (UNLIKELY(ret < 0))
@@ -94,7 +94,7 @@ int uvc_get_ctrl(uvc_device_handle_t *devh, uint8_t unit, uint8_t ctrl,
 		void *data, int len, enum uvc_req_code req_code) {
 	return libusb_control_transfer(devh->usb_devh, REQ_TYPE_GET, req_code,
 			ctrl << 8,
-			unit << 8,	// FIXME this will work wrong, invalid wIndex value
+			unit << 8 | devh->info->ctrl_if.bInterfaceNumber,	// XXX interface number in the low byte
 			data, len, CTRL_TIMEOUT_MILLIS);
 }
 
@@ -114,10 +114,97 @@ int uvc_set_ctrl(uvc_device_handle_t *devh, uint8_t unit, uint8_t ctrl,
 		void *data, int len) {
 	return libusb_control_transfer(devh->usb_devh, REQ_TYPE_SET, UVC_SET_CUR,
 			ctrl << 8,
-			unit << 8,	// FIXME this will work wrong, invalid wIndex value
+			unit << 8 | devh->info->ctrl_if.bInterfaceNumber,	// XXX interface number in the low byte
 			data, len, CTRL_TIMEOUT_MILLIS);
 }
 
+/** XXX added
+ * completion of an asynchronous SET_CUR, the transfer and the setup buffer are freed by libusb after it returns
+ */
+#define CTRL_ASYNC_TIMEOUT_MILLIS 1000
+
+typedef struct _uvc_ctrl_async {
+	uvc_ctrl_cb_t *cb;
+	void *user_ptr;
+	int len;
+} _uvc_ctrl_async_t;
+
+static void LIBUSB_CALL _uvc_ctrl_async_cb(struct libusb_transfer *transfer) {
+	_uvc_ctrl_async_t *async = (_uvc_ctrl_async_t *) transfer->user_data;
+	uvc_error_t result;
+	switch (transfer->status) {
+	case LIBUSB_TRANSFER_COMPLETED:
+		result = transfer->actual_length == async->len ? UVC_SUCCESS : UVC_ERROR_IO;
+		break;
+	case LIBUSB_TRANSFER_STALL:
+		result = UVC_ERROR_PIPE;
+		break;
+	case LIBUSB_TRANSFER_TIMED_OUT:
+		result = UVC_ERROR_TIMEOUT;
+		break;
+	case LIBUSB_TRANSFER_NO_DEVICE:
+		result = UVC_ERROR_NO_DEVICE;
+		break;
+	case LIBUSB_TRANSFER_CANCELLED:
+		result = UVC_ERROR_INTERRUPTED;
+		break;
+	default:
+		result = UVC_ERROR_IO;
+		break;
+	}
+	if (async->cb) {
+		async->cb(result, async->user_ptr);
+	}
+	free(async);
+}
+
+/** XXX added
+ * @brief Perform a SET_CUR request to a terminal or unit without waiting for it.
+ *
+ * The request is queued on the libusb event loop of the context, cb is called
+ * from the event handler thread when it completed, failed or the device went away.
+ * The device must stay open until every callback returned.
+ *
+ * @param devh UVC device handle
+ * @param unit Unit or Terminal ID
+ * @param ctrl Control number to set
+ * @param data Data to be sent to the device, copied before returning
+ * @param len Size of data
+ * @param cb called once with the result, unless this function fails
+ * @param user_ptr passed to cb
+ * @return UVC_SUCCESS if the request was submitted
+ * @ingroup ctrl
+ */
+uvc_error_t uvc_set_ctrl_async(uvc_device_handle_t *devh, uint8_t unit, uint8_t ctrl,
+		const void *data, int len, uvc_ctrl_cb_t *cb, void *user_ptr) {
+	struct libusb_transfer *transfer = libusb_alloc_transfer(0);
+	unsigned char *buffer = malloc(LIBUSB_CONTROL_SETUP_SIZE + len);
+	_uvc_ctrl_async_t *async = malloc(sizeof(_uvc_ctrl_async_t));
+	if (UNLIKELY(!transfer || !buffer || !async)) {
+		libusb_free_transfer(transfer);
+		free(buffer);
+		free(async);
+		return UVC_ERROR_NO_MEM;
+	}
+	async->cb = cb;
+	async->user_ptr = user_ptr;
+	async->len = len;
+	libusb_fill_control_setup(buffer, REQ_TYPE_SET, UVC_SET_CUR,
+			ctrl << 8, unit << 8 | devh->info->ctrl_if.bInterfaceNumber, len);
+	memcpy(buffer + LIBUSB_CONTROL_SETUP_SIZE, data, len);
+	libusb_fill_control_transfer(transfer, devh->usb_devh, buffer,
+			_uvc_ctrl_async_cb, async, CTRL_ASYNC_TIMEOUT_MILLIS);
+	transfer->flags = LIBUSB_TRANSFER_FREE_BUFFER | LIBUSB_TRANSFER_FREE_TRANSFER;
+	const int r = libusb_submit_transfer(transfer);
+	if (UNLIKELY(r)) {
+		// not submitted, the flags only apply after the callback
+		libusb_free_transfer(transfer);	// also frees buffer because of LIBUSB_TRANSFER_FREE_BUFFER
+		free(async);
+		return (uvc_error_t) r;
+	}
+	return UVC_SUCCESS;
+}
+
 /***** INTERFACE CONTROLS *****/
 /** VC Request Error Code Control (UVC 4.2.1.2) */ // XXX added saki
 uvc_error_t uvc_vc_get_error_code(uvc_device_handle_t *devh,
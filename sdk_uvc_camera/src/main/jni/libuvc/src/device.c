@@ -102,6 +102,8 @@ uvc_error_t uvc_parse_vs_frame_frame(uvc_streaming_interface_t *stream_if,
 	    size_t block_size);
 uvc_error_t uvc_parse_vs_input_header(uvc_streaming_interface_t *stream_if,
 		const unsigned char *block, size_t block_size);
+uvc_error_t uvc_parse_vs_still_image_frame(uvc_streaming_interface_t *stream_if,
+		const unsigned char *block, size_t block_size);	// XXX
 
 void _uvc_status_callback(struct libusb_transfer *transfer);
 
@@ -330,12 +332,16 @@ uvc_error_t uvc_open(uvc_device_t *dev, uvc_device_handle_t **devh) {
 		LOGE("internal_devh->info->ctrl_if.bEndpointAddress is null");
 	}
 
-	if (dev->ctx->own_usb_ctx && dev->ctx->open_devices == NULL) {
-		/* Since this is our first device, we need to spawn the event handler thread */
-		uvc_start_handler_thread(dev->ctx);
-	}
+	pthread_mutex_lock(&dev->ctx->open_mutex);	// XXX
+	{
+		if (dev->ctx->own_usb_ctx && dev->ctx->open_devices == NULL) {
+			/* Since this is our first device, we need to spawn the event handler thread */
+			uvc_start_handler_thread(dev->ctx);
+		}
 
-	DL_APPEND(dev->ctx->open_devices, internal_devh);
+		DL_APPEND(dev->ctx->open_devices, internal_devh);
+	}
+	pthread_mutex_unlock(&dev->ctx->open_mutex);
 	*devh = internal_devh;
 
 	UVC_EXIT(ret);
@@ -457,6 +463,7 @@ void uvc_free_device_info(uvc_device_info_t *info) {
 				free(frame);
 			}
 
+			free(format->still_frame_desc);	// XXX
 			DL_DELETE(stream_if->format_descs, format);
 			free(format);
 		}
@@ -474,6 +481,31 @@ void uvc_free_device_info(uvc_device_info_t *info) {
 	UVC_EXIT_VOID();
 }
 
+/** XXX added
+ * @brief FNV-1a hash of the raw device and configuration descriptors
+ * @ingroup device
+ *
+ * Changes with the firmware or the configuration of the device, so state kept
+ * across opens (e.g. a negotiated stream control) can be checked against it.
+ *
+ * @param devh Device handle
+ * @return hash, 0 if the descriptors could not be read
+ */
+uint32_t uvc_get_descriptor_hash(uvc_device_handle_t *devh) {
+	unsigned char *buffer = NULL;
+	int len = 0, host_endian = 0, i;
+	uint32_t hash = 0;
+	if (LIKELY(!libusb_get_raw_descriptor(devh->dev->usb_dev, &buffer, &len, &host_endian))) {
+		hash = 2166136261u;
+		for (i = 0; i < len; i++) {
+			hash ^= buffer[i];
+			hash *= 16777619u;
+		}
+	}
+	free(buffer);
+	return hash;
+}
+
 /**
  * @brief Get a descriptor that contains the general information about
  * a device
@@ -1476,6 +1508,60 @@ uvc_error_t uvc_parse_vs_frame_uncompressed(
 	return UVC_SUCCESS;
 }
 
+/** XXX added
+ * @internal
+ * @brief Parse a VideoStreaming still image frame block, it belongs to the format before it.
+ * A malformed one is skipped, the device still streams without it.
+ * @ingroup device
+ */
+uvc_error_t uvc_parse_vs_still_image_frame(uvc_streaming_interface_t *stream_if,
+		const unsigned char *block, size_t block_size) {
+	uvc_format_desc_t *format;
+	uvc_still_frame_desc_t *still;
+	size_t n, m, i;
+
+	UVC_ENTER();
+
+	if (UNLIKELY(!stream_if->format_descs || (block_size < 6))) {
+		LOGW("still image frame without format or too short");
+		UVC_EXIT(UVC_SUCCESS);
+		return UVC_SUCCESS;
+	}
+	format = stream_if->format_descs->prev;
+	n = block[4];
+	if (UNLIKELY(block_size < 6 + n * 4)) {
+		LOGW("still image frame too short:%d sizes", (int)n);
+		UVC_EXIT(UVC_SUCCESS);
+		return UVC_SUCCESS;
+	}
+	m = block[5 + n * 4];
+	if (UNLIKELY(block_size < 6 + n * 4 + m)) {
+		m = block_size - (6 + n * 4);
+	}
+	// one allocation for the descriptor and both arrays
+	still = calloc(1, sizeof(*still) + n * 2 * sizeof(uint16_t) + m);
+	if (UNLIKELY(!still)) {
+		UVC_EXIT(UVC_ERROR_NO_MEM);
+		return UVC_ERROR_NO_MEM;
+	}
+	still->bEndpointAddress = block[3];
+	still->bNumImageSizePatterns = n;
+	still->wWidthHeight = (uint16_t *)(still + 1);
+	for (i = 0; i < n; i++) {
+		still->wWidthHeight[i * 2] = SW_TO_SHORT(&block[5 + i * 4]);
+		still->wWidthHeight[i * 2 + 1] = SW_TO_SHORT(&block[7 + i * 4]);
+	}
+	still->bNumCompressionPattern = m;
+	still->bCompression = (uint8_t *)(still->wWidthHeight + n * 2);
+	memcpy(still->bCompression, &block[6 + n * 4], m);
+
+	free(format->still_frame_desc);
+	format->still_frame_desc = still;
+
+	UVC_EXIT(UVC_SUCCESS);
+	return UVC_SUCCESS;
+}
+
 /** @internal
  * Process a single VideoStreaming descriptor block
  * @ingroup device
@@ -1495,8 +1581,9 @@ uvc_error_t uvc_parse_vs(uvc_device_t *dev, uvc_device_info_t *info,
 	case UVC_VS_INPUT_HEADER:
 		ret = uvc_parse_vs_input_header(stream_if, block, block_size);
 		break;
-//	case UVC_VS_STILL_IMAGE_FRAME:	// FIXME unsupported now
-//		break;
+	case UVC_VS_STILL_IMAGE_FRAME:	// XXX
+		ret = uvc_parse_vs_still_image_frame(stream_if, block, block_size);
+		break;
 	case UVC_VS_FORMAT_UNCOMPRESSED:
 		ret = uvc_parse_vs_format_uncompressed(stream_if, block, block_size);
 		break;
@@ -1561,6 +1648,9 @@ void uvc_close(uvc_device_handle_t *devh) {
 	if (devh->streams)
 		uvc_stop_streaming(devh);
 
+	if (devh->recorder)	// XXX
+		uvc_stop_recording(devh);
+
 	uvc_release_if(devh, devh->info->ctrl_if.bInterfaceNumber);
 
 #if !UVC_DETACH_ATTACH
@@ -1571,15 +1661,19 @@ void uvc_close(uvc_device_handle_t *devh) {
 	 * then we need to cancel the handler thread. When we call libusb_close,
 	 * it'll cause a return from the thread's libusb_handle_events call, after
 	 * which the handler thread will check the flag we set and then exit. */
-	if (ctx->own_usb_ctx && ctx->open_devices == devh && devh->next == NULL) {
-		ctx->kill_handler_thread = 1;
-		libusb_close(devh->usb_devh);
-		pthread_join(ctx->handler_thread, NULL);
-	} else {
-		libusb_close(devh->usb_devh);
-	}
+	pthread_mutex_lock(&ctx->open_mutex);	// XXX
+	{
+		if (ctx->own_usb_ctx && ctx->open_devices == devh && devh->next == NULL) {
+			ctx->kill_handler_thread = 1;
+			libusb_close(devh->usb_devh);
+			pthread_join(ctx->handler_thread, NULL);
+		} else {
+			libusb_close(devh->usb_devh);
+		}
 
-	DL_DELETE(ctx->open_devices, devh);
+		DL_DELETE(ctx->open_devices, devh);
+	}
+	pthread_mutex_unlock(&ctx->open_mutex);
 
 	uvc_unref_device(devh->dev);
 
@@ -42,6 +42,7 @@
 #include "libuvc/libuvc.h"
 #include "libuvc/libuvc_internal.h"
 #include <jpeglib.h>
+#include <jerror.h>
 #include <setjmp.h>
 
 extern uvc_error_t uvc_ensure_frame_size(uvc_frame_t *frame, size_t need_bytes);
@@ -187,8 +188,7 @@ uvc_error_t uvc_mjpeg2rgb(uvc_frame_t *in, uvc_frame_t *out) {
 	out->height = in->height;
 	out->frame_format = UVC_FRAME_FORMAT_RGB;
 	out->step = in->width * 3;
-	out->sequence = in->sequence;
-	out->capture_time = in->capture_time;
+	_uvc_copy_frame_time(in, out);
 	out->source = in->source;
 
 	dinfo.err = jpeg_std_error(&jerr.super);
@@ -257,8 +257,7 @@ uvc_error_t uvc_mjpeg2bgr(uvc_frame_t *in, uvc_frame_t *out) {
 	out->height = in->height;
 	out->frame_format = UVC_FRAME_FORMAT_BGR;
 	out->step = in->width * 3;
-	out->sequence = in->sequence;
-	out->capture_time = in->capture_time;
+	_uvc_copy_frame_time(in, out);
 	out->source = in->source;
 
 	dinfo.err = jpeg_std_error(&jerr.super);
@@ -331,8 +330,7 @@ uvc_error_t uvc_mjpeg2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 	out->height = in->height;
 	out->frame_format = UVC_FRAME_FORMAT_RGB565;
 	out->step = in->width * 2;
-	out->sequence = in->sequence;
-	out->capture_time = in->capture_time;
+	_uvc_copy_frame_time(in, out);
 	out->source = in->source;
 
 	dinfo.err = jpeg_std_error(&jerr.super);
@@ -408,8 +406,7 @@ uvc_error_t uvc_mjpeg2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 	out->height = in->height;
 	out->frame_format = UVC_FRAME_FORMAT_RGBX;	// XXX
 	out->step = in->width * 4;
-	out->sequence = in->sequence;
-	out->capture_time = in->capture_time;
+	_uvc_copy_frame_time(in, out);
 	out->source = in->source;
 
 	dinfo.err = jpeg_std_error(&jerr.super);
@@ -464,7 +461,120 @@ static inline unsigned char sat(int i) {
 		*(yuyv++) = (*(YCbCr+2) + *(YCbCr+5)) >> 1; \
 	}
 
-uvc_error_t uvc_mjpeg2yuyv(uvc_frame_t *in, uvc_frame_t *out) {
+//==================================================================================================
+// XXX added: decompressor that lives as long as the stream instead of being created for every frame
+
+struct uvc_mjpeg_decoder {
+	struct jpeg_decompress_struct dinfo;
+	struct error_mgr jerr;
+	/** reused for every frame, only the buffer pointer and length change */
+	struct jpeg_source_mgr src;
+	/** rows for one iMCU row of raw data or MAX_READLINE YCbCr scanlines */
+	uint8_t *scratch;
+	size_t scratch_bytes;
+	JSAMPROW rows[3][2 * DCTSIZE];
+};
+
+static void _src_init_source(j_decompress_ptr dinfo) {
+}
+
+static boolean _src_fill_input_buffer(j_decompress_ptr dinfo) {
+	/* the whole frame is in memory, insert a fake EOI marker like jpeg_mem_src does */
+	static const JOCTET eoi_buffer[2] = { (JOCTET) 0xFF, (JOCTET) JPEG_EOI };
+	WARNMS(dinfo, JWRN_JPEG_EOF);
+	dinfo->src->next_input_byte = eoi_buffer;
+	dinfo->src->bytes_in_buffer = 2;
+	return TRUE;
+}
+
+static void _src_skip_input_data(j_decompress_ptr dinfo, long num_bytes) {
+	struct jpeg_source_mgr *src = dinfo->src;
+	if (num_bytes > 0) {
+		while (num_bytes > (long) src->bytes_in_buffer) {
+			num_bytes -= (long) src->bytes_in_buffer;
+			(void) (*src->fill_input_buffer)(dinfo);
+		}
+		src->next_input_byte += (size_t) num_bytes;
+		src->bytes_in_buffer -= (size_t) num_bytes;
+	}
+}
+
+static void _src_term_source(j_decompress_ptr dinfo) {
+}
+
+/** @brief Create a MJPEG decompressor that can be reused for every frame of a stream
+ * The standard Huffman tables are installed once and stay on the decompressor,
+ * so frames without DHT (most UVC cameras) do not need insert_huff_tables.
+ * The decompressor is not thread safe, use one per decoding thread.
+ * @ingroup frame
+ *
+ * @return decoder or NULL if failed
+ */
+uvc_mjpeg_decoder_t *uvc_mjpeg_decoder_create(void) {
+	uvc_mjpeg_decoder_t *decoder = calloc(1, sizeof(uvc_mjpeg_decoder_t));
+	if (UNLIKELY(!decoder))
+		return NULL;
+
+	decoder->dinfo.err = jpeg_std_error(&decoder->jerr.super);
+	decoder->jerr.super.error_exit = _error_exit;
+	if (setjmp(decoder->jerr.jmp)) {
+		jpeg_destroy_decompress(&decoder->dinfo);
+		free(decoder);
+		return NULL;
+	}
+	jpeg_create_decompress(&decoder->dinfo);
+	insert_huff_tables(&decoder->dinfo);
+
+	decoder->src.init_source = _src_init_source;
+	decoder->src.fill_input_buffer = _src_fill_input_buffer;
+	decoder->src.skip_input_data = _src_skip_input_data;
+	decoder->src.resync_to_restart = jpeg_resync_to_restart;
+	decoder->src.term_source = _src_term_source;
+	decoder->dinfo.src = &decoder->src;
+
+	return decoder;
+}
+
+/** @brief Destroy a decompressor created with uvc_mjpeg_decoder_create
+ * @ingroup frame
+ */
+void uvc_mjpeg_decoder_destroy(uvc_mjpeg_decoder_t *decoder) {
+	if (LIKELY(decoder)) {
+		jpeg_destroy_decompress(&decoder->dinfo);
+		SAFE_FREE(decoder->scratch);
+		free(decoder);
+	}
+}
+
+static int _decoder_ensure_scratch(uvc_mjpeg_decoder_t *decoder, size_t need_bytes) {
+	if (UNLIKELY(decoder->scratch_bytes < need_bytes)) {
+		uint8_t *scratch = realloc(decoder->scratch, need_bytes);
+		if (UNLIKELY(!scratch))
+			return -1;
+		decoder->scratch = scratch;
+		decoder->scratch_bytes = need_bytes;
+	}
+	return 0;
+}
+
+static inline void _decoder_start_frame(uvc_mjpeg_decoder_t *decoder, uvc_frame_t *in) {
+	decoder->src.next_input_byte = in->data;
+	decoder->src.bytes_in_buffer = in->actual_bytes/*in->data_bytes*/;	// XXX
+	jpeg_read_header(&decoder->dinfo, TRUE);
+	if (UNLIKELY(decoder->dinfo.dc_huff_tbl_ptrs[0] == NULL)) {
+		/* This frame is missing the Huffman tables: fill in the standard ones */
+		insert_huff_tables(&decoder->dinfo);
+	}
+}
+
+/** @brief Convert an MJPEG frame to YUYV with a reusable decompressor
+ * @ingroup frame
+ *
+ * @param decoder decompressor from uvc_mjpeg_decoder_create
+ * @param in MJPEG frame
+ * @param out YUYV frame
+ */
+uvc_error_t uvc_mjpeg_decode_yuyv(uvc_mjpeg_decoder_t *decoder, uvc_frame_t *in, uvc_frame_t *out) {
 
 	out->actual_bytes = 0;	// XXX
 	if (UNLIKELY(in->frame_format != UVC_FRAME_FORMAT_MJPEG))
@@ -482,49 +592,44 @@ uvc_error_t uvc_mjpeg2yuyv(uvc_frame_t *in, uvc_frame_t *out) {
 	out->height = in->height;
 	out->frame_format = UVC_FRAME_FORMAT_YUYV;
 	out->step = in->width * 2;
-	out->sequence = in->sequence;
-	out->capture_time = in->capture_time;
+	_uvc_copy_frame_time(in, out);
 	out->source = in->source;
 
-	struct jpeg_decompress_struct dinfo;
-	struct error_mgr jerr;
-	dinfo.err = jpeg_std_error(&jerr.super);
-	jerr.super.error_exit = _error_exit;
-
-	if (setjmp(jerr.jmp)) {
+	j_decompress_ptr dinfo = &decoder->dinfo;
+	if (setjmp(decoder->jerr.jmp)) {
 		goto fail;
 	}
 
-	jpeg_create_decompress(&dinfo);
-	jpeg_mem_src(&dinfo, in->data, in->actual_bytes/*in->data_bytes*/);	// XXX
-	jpeg_read_header(&dinfo, TRUE);
-
-	if (dinfo.dc_huff_tbl_ptrs[0] == NULL) {
-		/* This frame is missing the Huffman tables: fill in the standard ones */
-		insert_huff_tables(&dinfo);
-	}
+	_decoder_start_frame(decoder, in);
 
-	dinfo.out_color_space = JCS_YCbCr;
-	dinfo.dct_method = JDCT_IFAST;
+	dinfo->out_color_space = JCS_YCbCr;
+	dinfo->raw_data_out = FALSE;
+	dinfo->do_fancy_upsampling = TRUE;
+	dinfo->dct_method = JDCT_IFAST;
 
 	// start decompressor
-	jpeg_start_decompress(&dinfo);
+	jpeg_start_decompress(dinfo);
 
-	// these dinfo.xxx valiables are only valid after jpeg_start_decompress
-	const int row_stride = dinfo.output_width * dinfo.output_components;
+	// these dinfo->xxx valiables are only valid after jpeg_start_decompress
+	const int row_stride = dinfo->output_width * dinfo->output_components;
 
-	// allocate buffer
-	register JSAMPARRAY buffer = (*dinfo.mem->alloc_sarray)
-		((j_common_ptr) &dinfo, JPOOL_IMAGE, row_stride, MAX_READLINE);
+	// scanline buffer is kept by decoder
+	if (UNLIKELY(_decoder_ensure_scratch(decoder, row_stride * MAX_READLINE) < 0)) {
+		jpeg_abort_decompress(dinfo);
+		return UVC_ERROR_NO_MEM;
+	}
+	JSAMPARRAY buffer = decoder->rows[0];
+	for (i = 0; i < MAX_READLINE; i++)
+		buffer[i] = decoder->scratch + i * row_stride;
 
 	// local copy
 	uint8_t *data = out->data;
 	const int out_step = out->step;
 
-	if (LIKELY(dinfo.output_height == out->height)) {
-		for (; dinfo.output_scanline < dinfo.output_height ;) {
+	if (LIKELY(dinfo->output_height == out->height)) {
+		for (; dinfo->output_scanline < dinfo->output_height ;) {
 			// convert lines of mjpeg data to YCbCr
-			num_scanlines = jpeg_read_scanlines(&dinfo, buffer, MAX_READLINE);
+			num_scanlines = jpeg_read_scanlines(dinfo, buffer, MAX_READLINE);
 			// convert YCbCr to yuyv(YUV422)
 			for (j = 0; j < num_scanlines; j++) {
 				yuyv = data + (lines_read + j) * out_step;
@@ -539,14 +644,171 @@ uvc_error_t uvc_mjpeg2yuyv(uvc_frame_t *in, uvc_frame_t *out) {
 			lines_read += num_scanlines;
 		}
 		out->actual_bytes = in->width * in->height * 2;	// XXX
+		jpeg_finish_decompress(dinfo);
+	} else {
+		jpeg_abort_decompress(dinfo);
 	}
 
-	jpeg_finish_decompress(&dinfo);
-	jpeg_destroy_decompress(&dinfo);
 	return lines_read == out->height ? UVC_SUCCESS : UVC_ERROR_OTHER;
 
 fail:
-	jpeg_destroy_decompress(&dinfo);
+	jpeg_abort_decompress(dinfo);
 	return lines_read == out->height ? UVC_SUCCESS : UVC_ERROR_OTHER+1;
 }
 
+/** @brief Convert an MJPEG frame to planar I420 in one pass with a reusable decompressor
+ * decodes raw YCbCr data with jpeg_read_raw_data and writes the planes directly,
+ * so there is no YCbCr scanline buffer nor YUYV intermediate.
+ * Only YCbCr 4:2:0 and 4:2:2 streams are handled, which are what UVC cameras send
+ * @ingroup frame
+ *
+ * @param decoder decompressor from uvc_mjpeg_decoder_create
+ * @param in MJPEG frame
+ * @param out I420 frame
+ * @return UVC_ERROR_NOT_SUPPORTED if the stream has other sampling factors,
+ *         caller should fall back to uvc_mjpeg_decode_yuyv
+ */
+uvc_error_t uvc_mjpeg_decode_i420(uvc_mjpeg_decoder_t *decoder, uvc_frame_t *in, uvc_frame_t *out) {
+
+	out->actual_bytes = 0;	// XXX
+	if (UNLIKELY(in->frame_format != UVC_FRAME_FORMAT_MJPEG))
+		return UVC_ERROR_INVALID_PARAM;
+	if (UNLIKELY((in->width & 1) || (in->height & 1)))
+		return UVC_ERROR_NOT_SUPPORTED;
+
+	const int width = in->width;
+	const int height = in->height;
+	const int width_uv = width >> 1;
+	if (uvc_ensure_frame_size(out, (width * height * 3) / 2) < 0)
+		return UVC_ERROR_NO_MEM;
+
+	size_t lines_read = 0;
+	int i, j;
+
+	out->width = width;
+	out->height = height;
+	out->frame_format = UVC_FRAME_FORMAT_I420;
+	out->step = width;
+	_uvc_copy_frame_time(in, out);
+	out->source = in->source;
+
+	j_decompress_ptr dinfo = &decoder->dinfo;
+	if (setjmp(decoder->jerr.jmp)) {
+		goto fail;
+	}
+
+	_decoder_start_frame(decoder, in);
+
+	const jpeg_component_info *comp = dinfo->comp_info;
+	if (UNLIKELY((dinfo->num_components != 3) || (dinfo->jpeg_color_space != JCS_YCbCr)
+		|| (dinfo->image_width != width) || (dinfo->image_height != height)
+		|| (comp[0].h_samp_factor != 2) || ((comp[0].v_samp_factor != 1) && (comp[0].v_samp_factor != 2))
+		|| (comp[1].h_samp_factor != 1) || (comp[1].v_samp_factor != 1)
+		|| (comp[2].h_samp_factor != 1) || (comp[2].v_samp_factor != 1))) {
+		jpeg_abort_decompress(dinfo);
+		return UVC_ERROR_NOT_SUPPORTED;
+	}
+
+	dinfo->raw_data_out = TRUE;
+	dinfo->do_fancy_upsampling = FALSE;
+	dinfo->out_color_space = JCS_YCbCr;
+	dinfo->dct_method = JDCT_IFAST;
+
+	// start decompressor
+	jpeg_start_decompress(dinfo);
+
+	// 2: 4:2:0, chroma is already subsampled vertically, 1: 4:2:2, average each pair of chroma rows
+	const int v_samp = comp[0].v_samp_factor;
+	const int rows_per_read = v_samp * DCTSIZE;
+	// raw data rows are padded to whole blocks, so decode each iMCU row into block sized rows kept by decoder
+	const size_t y_stride = comp[0].width_in_blocks * DCTSIZE;
+	const size_t c_stride = comp[1].width_in_blocks * DCTSIZE;
+	if (UNLIKELY(_decoder_ensure_scratch(decoder,
+			y_stride * rows_per_read + c_stride * DCTSIZE * 2) < 0)) {
+		jpeg_abort_decompress(dinfo);
+		return UVC_ERROR_NO_MEM;
+	}
+	JSAMPARRAY y_buf = decoder->rows[0];
+	JSAMPARRAY u_buf = decoder->rows[1];
+	JSAMPARRAY v_buf = decoder->rows[2];
+	for (i = 0; i < rows_per_read; i++)
+		y_buf[i] = decoder->scratch + i * y_stride;
+	for (i = 0; i < DCTSIZE; i++) {
+		u_buf[i] = decoder->scratch + y_stride * rows_per_read + i * c_stride;
+		v_buf[i] = u_buf[i] + c_stride * DCTSIZE;
+	}
+	JSAMPARRAY planes[3] = { y_buf, u_buf, v_buf };
+
+	// local copy
+	uint8_t *y = out->data;
+	uint8_t *u = y + width * height;
+	uint8_t *v = u + width_uv * (height >> 1);
+
+	for (; dinfo->output_scanline < dinfo->output_height ;) {
+		const int top = dinfo->output_scanline;
+		int rows = jpeg_read_raw_data(dinfo, planes, rows_per_read);
+		if (UNLIKELY(!rows))
+			break;
+		if (rows > height - top)
+			rows = height - top;
+		for (j = 0; j < rows; j++) {
+			memcpy(y + (top + j) * width, y_buf[j], width);
+		}
+		if (v_samp == 2) {
+			for (j = 0; j < (rows >> 1); j++) {
+				memcpy(u + ((top >> 1) + j) * width_uv, u_buf[j], width_uv);
+				memcpy(v + ((top >> 1) + j) * width_uv, v_buf[j], width_uv);
+			}
+		} else {
+			for (j = 0; j + 1 < rows; j += 2) {
+				uint8_t *u_dst = u + ((top + j) >> 1) * width_uv;
+				uint8_t *v_dst = v + ((top + j) >> 1) * width_uv;
+				const uint8_t *u0 = u_buf[j], *u1 = u_buf[j + 1];
+				const uint8_t *v0 = v_buf[j], *v1 = v_buf[j + 1];
+				for (i = 0; i < width_uv; i++) {
+					u_dst[i] = (uint8_t) ((u0[i] + u1[i] + 1) >> 1);
+					v_dst[i] = (uint8_t) ((v0[i] + v1[i] + 1) >> 1);
+				}
+			}
+		}
+		lines_read += rows;
+	}
+	if (LIKELY(lines_read == out->height)) {
+		out->actual_bytes = (width * height * 3) / 2;	// XXX
+		jpeg_finish_decompress(dinfo);
+	} else {
+		jpeg_abort_decompress(dinfo);
+	}
+
+	return lines_read == out->height ? UVC_SUCCESS : UVC_ERROR_OTHER;
+
+fail:
+	jpeg_abort_decompress(dinfo);
+	return UVC_ERROR_OTHER+1;
+}
+
+uvc_error_t uvc_mjpeg2yuyv(uvc_frame_t *in, uvc_frame_t *out) {
+	uvc_mjpeg_decoder_t *decoder = uvc_mjpeg_decoder_create();
+	if (UNLIKELY(!decoder))
+		return UVC_ERROR_NO_MEM;
+	uvc_error_t result = uvc_mjpeg_decode_yuyv(decoder, in, out);
+	uvc_mjpeg_decoder_destroy(decoder);
+	return result;
+}
+
+/** @brief Convert an MJPEG frame to planar I420 in one pass
+ * creates a decompressor for this frame only, use uvc_mjpeg_decode_i420 for streams
+ * @ingroup frame
+ *
+ * @param in MJPEG frame
+ * @param out I420 frame
+ * @return UVC_ERROR_NOT_SUPPORTED if the stream is not YCbCr 4:2:0 / 4:2:2
+ */
+uvc_error_t uvc_mjpeg2i420(uvc_frame_t *in, uvc_frame_t *out) {
+	uvc_mjpeg_decoder_t *decoder = uvc_mjpeg_decoder_create();
+	if (UNLIKELY(!decoder))
+		return UVC_ERROR_NO_MEM;
+	uvc_error_t result = uvc_mjpeg_decode_i420(decoder, in, out);
+	uvc_mjpeg_decoder_destroy(decoder);
+	return result;
+}
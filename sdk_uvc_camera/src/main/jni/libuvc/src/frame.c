@@ -85,15 +85,12 @@ uvc_error_t uvc_ensure_frame_size(uvc_frame_t *frame, size_t need_bytes) {
  */
 uvc_frame_t *uvc_allocate_frame(size_t data_bytes) {
     // FIXME using buffer pool is better performance(5-30%) than directory use malloc everytime.
-    uvc_frame_t *frame = malloc(sizeof(*frame));
+    // XXX cleared on Android too: frames are allocated once per pool miss, and the timestamps,
+    // PTS/SCR and the pipeline refcount must not start with garbage
+    uvc_frame_t *frame = calloc(1, sizeof(*frame));
     if (UNLIKELY(!frame)) {
         return NULL;
     }
-#ifndef __ANDROID__
-    // XXX in many case, it is not neccesary to clear because all fields are set before use
-    // therefore we remove this to improve performace, but be care not to forget to set fields before use
-    memset(frame, 0, sizeof(*frame));    // bzero(frame, sizeof(*frame)); // bzero is deprecated
-#endif
     //frame->library_owns_data = 1;
     if (LIKELY(data_bytes > 0)) {
         frame->library_owns_data = 1;
@@ -142,8 +139,7 @@ uvc_error_t uvc_duplicate_frame(uvc_frame_t *in, uvc_frame_t *out) {
     if (out->library_owns_data) {
         out->step = in->step;
     }
-    out->sequence = in->sequence;
-    out->capture_time = in->capture_time;
+    _uvc_copy_frame_time(in, out);
     out->source = in->source;
     out->actual_bytes = in->actual_bytes;
 
@@ -180,6 +176,51 @@ uvc_error_t uvc_duplicate_frame(uvc_frame_t *in, uvc_frame_t *out) {
     return UVC_SUCCESS;
 }
 
+/**
+ * @brief Move the image data of a frame into another frame without copying
+ * @ingroup frame
+ *
+ * The data buffers of both frames are exchanged, so the buffer that @p out had
+ * is handed back to @p in. When @p in came from a stream started with
+ * UVC_STREAM_FLAG_ZERO_COPY, that buffer becomes the next receive buffer of the stream,
+ * therefore it is grown to at least in->data_bytes before exchanging.
+ * Both frames must own their data buffer.
+ *
+ * @param in Original frame, receives the data buffer of out
+ * @param out Frame that takes over the image data
+ */
+uvc_error_t uvc_swap_frame(uvc_frame_t *in, uvc_frame_t *out) {
+    if (UNLIKELY(!in->library_owns_data || !out->library_owns_data)) {
+        return UVC_ERROR_INVALID_PARAM;
+    }
+    if (UNLIKELY(!out->data || out->data_bytes < in->data_bytes)) {
+        void *data = realloc(out->data, in->data_bytes);
+        if (UNLIKELY(!data)) {
+            return UVC_ERROR_NO_MEM;
+        }
+        out->data = data;
+        out->data_bytes = in->data_bytes;
+    }
+
+    void *data = out->data;
+    const size_t data_bytes = out->data_bytes;
+    out->data = in->data;
+    out->data_bytes = in->data_bytes;
+    in->data = data;
+    in->data_bytes = data_bytes;
+
+    out->width = in->width;
+    out->height = in->height;
+    out->frame_format = in->frame_format;
+    out->step = in->step;
+    _uvc_copy_frame_time(in, out);
+    out->source = in->source;
+    out->actual_bytes = in->actual_bytes;
+    in->actual_bytes = 0;
+
+    return UVC_SUCCESS;
+}
+
 #define PIXEL_RGB565        2
 #define PIXEL_UYVY            2
 #define PIXEL_YUYV            2
@@ -259,8 +300,7 @@ uvc_error_t uvc_rgb2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
     if (out->library_owns_data) {
         out->step = in->width * PIXEL_RGBX;
     }
-    out->sequence = in->sequence;
-    out->capture_time = in->capture_time;
+    _uvc_copy_frame_time(in, out);
     out->source = in->source;
 
     uint8_t *prgb = in->data;
@@ -348,8 +388,7 @@ uvc_error_t uvc_rgb2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
     if (out->library_owns_data) {
         out->step = in->width * PIXEL_RGB565;
     }
-    out->sequence = in->sequence;
-    out->capture_time = in->capture_time;
+    _uvc_copy_frame_time(in, out);
     out->source = in->source;
 
     uint8_t *prgb = in->data;
@@ -457,8 +496,7 @@ uvc_error_t uvc_yuyv2rgb(uvc_frame_t *in, uvc_frame_t *out) {
     if (out->library_owns_data) {
         out->step = in->width * PIXEL_RGB;
     }
-    out->sequence = in->sequence;
-    out->capture_time = in->capture_time;
+    _uvc_copy_frame_time(in, out);
     out->source = in->source;
 
     uint8_t *pyuv = in->data;
@@ -502,108 +540,79 @@ uvc_error_t uvc_yuyv2rgb(uvc_frame_t *in, uvc_frame_t *out) {
     return UVC_SUCCESS;
 }
 
-/**
- * @brief Convert a frame from YUYV to RGB565
- * @ingroup frame
- * @param in  YUYV frame
- * @param out RGB565 frame
+// rows converted per pass through the ARGB row buffer, small enough to stay in the cache
+#define YUYV_BAND_ROWS 4
+// ARGB row buffer on the stack: YUYV_BAND_ROWS rows up to 2048 pixels wide, a single row up to 8192
+#define YUYV_BAND_BYTES (32 * 1024)
+
+typedef int (*argb_convert_t)(const uint8_t *src_argb, int src_stride_argb,
+                              uint8_t *dst, int dst_stride, int width, int height);
+
+/*
+ * YUYV -> libyuv ARGB(B,G,R,A in memory) -> format with func, both SIMD kernels of libyuv,
+ * a band of rows at a time so the intermediate ARGB never leaves the cache;
+ * the band lives on the stack, no allocation per frame
  */
-uvc_error_t uvc_yuyv2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
+static uvc_error_t yuyv2argb_band(const uint8_t *src, int src_stride, uint8_t *dst, int dst_stride,
+                                  int width, int height, argb_convert_t func) {
+    uint8_t stack_band[YUYV_BAND_BYTES];
+    uint8_t *band = stack_band;
+    const int band_stride = width * PIXEL_RGBX;
+    int band_rows = YUYV_BAND_BYTES / band_stride;
+    if (band_rows > YUYV_BAND_ROWS) {
+        band_rows = YUYV_BAND_ROWS;
+    } else if (UNLIKELY(!band_rows)) {
+        // wider than any UVC camera so far
+        band = malloc(band_stride);
+        if (UNLIKELY(!band)) {
+            return UVC_ERROR_NO_MEM;
+        }
+        band_rows = 1;
+    }
+    int h;
+    for (h = 0; h < height; h += band_rows) {
+        const int rows = height - h < band_rows ? height - h : band_rows;
+        YUY2ToARGB(src, src_stride, band, band_stride, width, rows);
+        func(band, band_stride, dst, dst_stride, width, rows);
+        src += src_stride * rows;
+        dst += dst_stride * rows;
+    }
+    if (UNLIKELY(band != stack_band)) {
+        free(band);
+    }
+    return UVC_SUCCESS;
+}
+
+static uvc_error_t uvc_yuyv2argb_band(uvc_frame_t *in, uvc_frame_t *out,
+                                      enum uvc_frame_format format, int pixel_bytes, argb_convert_t func) {
     if (UNLIKELY(in->frame_format != UVC_FRAME_FORMAT_YUYV)) {
         return UVC_ERROR_INVALID_PARAM;
     }
-
-    if (UNLIKELY(uvc_ensure_frame_size(out, in->width * in->height * PIXEL_RGB565) < 0)) {
+    const int width = in->width;
+    const int height = in->height;
+    if (UNLIKELY(uvc_ensure_frame_size(out, width * height * pixel_bytes) < 0)) {
         return UVC_ERROR_NO_MEM;
     }
-
-    out->width = in->width;
-    out->height = in->height;
-    out->frame_format = UVC_FRAME_FORMAT_RGB565;
+    out->width = width;
+    out->height = height;
+    out->frame_format = format;
     if (out->library_owns_data) {
-        out->step = in->width * PIXEL_RGB565;
+        out->step = width * pixel_bytes;
     }
-    out->sequence = in->sequence;
-    out->capture_time = in->capture_time;
+    _uvc_copy_frame_time(in, out);
     out->source = in->source;
-
-    uint8_t *pyuv = in->data;
-    const uint8_t *pyuv_end = pyuv + in->data_bytes - PIXEL8_YUYV;
-    uint8_t *prgb565 = out->data;
-    const uint8_t *prgb565_end = prgb565 + out->data_bytes - PIXEL8_RGB565;
-
-    uint8_t tmp[PIXEL8_RGB];    // for temporary rgb888 data(8pixel)
-
-#if USE_STRIDE
-    if (in->step && out->step && (in->step != out->step)) {
-        const int hh = in->height < out->height ? in->height : out->height;
-        const int ww = in->width < out->width ? in->width : out->width;
-        int h, w;
-        for (h = 0; h < hh; h++) {
-            w = 0;
-            pyuv = in->data + in->step * h;
-            prgb565 = out->data + out->step * h;
-            for (; (prgb565 <= prgb565_end) && (pyuv <= pyuv_end) && (w < ww);) {
-                IYUYV2RGB_8(pyuv, tmp, 0, 0);
-                RGB2RGB565_8(tmp, prgb565, 0, 0);
-
-                prgb565 += PIXEL8_YUYV;
-                pyuv += PIXEL8_RGB565;
-                w += 8;
-            }
-        }
-    } else {
-        // compressed format? XXX if only one of the frame in / out has step, this may lead to crash...
-        for (; (prgb565 <= prgb565_end) && (pyuv <= pyuv_end);) {
-            IYUYV2RGB_8(pyuv, tmp, 0, 0);
-            RGB2RGB565_8(tmp, prgb565, 0, 0);
-
-            prgb565 += PIXEL8_YUYV;
-            pyuv += PIXEL8_RGB565;
-        }
-    }
-#else
-    // YUYV => RGB565
-    for (; (prgb565 <= prgb565_end) && (pyuv <= pyuv_end) ;) {
-        IYUYV2RGB_8(pyuv, tmp, 0, 0);
-        RGB2RGB565_8(tmp, prgb565, 0, 0);
-
-        prgb565 += PIXEL8_YUYV;
-        pyuv += PIXEL8_RGB565;
-    }
-#endif
-    return UVC_SUCCESS;
+    return yuyv2argb_band(in->data, width * PIXEL_YUYV, out->data, width * pixel_bytes, width, height, func);
 }
 
-#define IYUYV2RGBX_2(pyuv, prgbx, ax, bx) { \
-        const int d1 = (pyuv)[ax+1]; \
-        const int d3 = (pyuv)[ax+3]; \
-        const int r = (22987 * (d3/*(pyuv)[ax+3]*/ - 128)) >> 14; \
-        const int g = (-5636 * (d1/*(pyuv)[ax+1]*/ - 128) - 11698 * (d3/*(pyuv)[ax+3]*/ - 128)) >> 14; \
-        const int b = (29049 * (d1/*(pyuv)[ax+1]*/ - 128)) >> 14; \
-        const int y0 = (pyuv)[ax+0]; \
-        (prgbx)[bx+0] = sat(y0 + r); \
-        (prgbx)[bx+1] = sat(y0 + g); \
-        (prgbx)[bx+2] = sat(y0 + b); \
-        (prgbx)[bx+3] = 0xff; \
-        const int y2 = (pyuv)[ax+2]; \
-        (prgbx)[bx+4] = sat(y2 + r); \
-        (prgbx)[bx+5] = sat(y2 + g); \
-        (prgbx)[bx+6] = sat(y2 + b); \
-        (prgbx)[bx+7] = 0xff; \
-    }
-
-#define IYUYV2RGBX_16(pyuv, prgbx, ax, bx) \
-    IYUYV2RGBX_8(pyuv, prgbx, ax, bx) \
-    IYUYV2RGBX_8(pyuv, prgbx, ax + PIXEL8_YUYV, bx + PIXEL8_RGBX);
-
-#define IYUYV2RGBX_8(pyuv, prgbx, ax, bx) \
-    IYUYV2RGBX_4(pyuv, prgbx, ax, bx) \
-    IYUYV2RGBX_4(pyuv, prgbx, ax + PIXEL4_YUYV, bx + PIXEL4_RGBX);
-
-#define IYUYV2RGBX_4(pyuv, prgbx, ax, bx) \
-    IYUYV2RGBX_2(pyuv, prgbx, ax, bx) \
-    IYUYV2RGBX_2(pyuv, prgbx, ax + PIXEL2_YUYV, bx + PIXEL2_RGBX);
+/**
+ * @brief Convert a frame from YUYV to RGB565
+ * @ingroup frame
+ * @param in  YUYV frame
+ * @param out RGB565 frame
+ */
+uvc_error_t uvc_yuyv2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
+    return uvc_yuyv2argb_band(in, out, UVC_FRAME_FORMAT_RGB565, PIXEL_RGB565, ARGBToRGB565);
+}
 
 /**
  * @brief Convert a frame from YUYV to RGBX8888
@@ -612,63 +621,8 @@ uvc_error_t uvc_yuyv2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
  * @param out RGBX8888 frame
  */
 uvc_error_t uvc_yuyv2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
-    if (UNLIKELY(in->frame_format != UVC_FRAME_FORMAT_YUYV)) {
-        return UVC_ERROR_INVALID_PARAM;
-    }
-
-    if (UNLIKELY(uvc_ensure_frame_size(out, in->width * in->height * PIXEL_RGBX) < 0)) {
-        return UVC_ERROR_NO_MEM;
-    }
-
-    out->width = in->width;
-    out->height = in->height;
-    out->frame_format = UVC_FRAME_FORMAT_RGBX;
-    if (out->library_owns_data) {
-        out->step = in->width * PIXEL_RGBX;
-    }
-    out->sequence = in->sequence;
-    out->capture_time = in->capture_time;
-    out->source = in->source;
-
-    uint8_t *pyuv = in->data;
-    const uint8_t *pyuv_end = pyuv + in->data_bytes - PIXEL8_YUYV;
-    uint8_t *prgbx = out->data;
-    const uint8_t *prgbx_end = prgbx + out->data_bytes - PIXEL8_RGBX;
-
-    // YUYV => RGBX8888
-#if USE_STRIDE
-    if (in->step && out->step && (in->step != out->step)) {
-        const int hh = in->height < out->height ? in->height : out->height;
-        const int ww = in->width < out->width ? in->width : out->width;
-        int h, w;
-        for (h = 0; h < hh; h++) {
-            w = 0;
-            pyuv = in->data + in->step * h;
-            prgbx = out->data + out->step * h;
-            for (; (prgbx <= prgbx_end) && (pyuv <= pyuv_end) && (w < ww);) {
-                IYUYV2RGBX_8(pyuv, prgbx, 0, 0);
-                prgbx += PIXEL8_RGBX;
-                pyuv += PIXEL8_YUYV;
-                w += 8;
-            }
-        }
-    } else {
-        // compressed format? XXX if only one of the frame in / out has step, this may lead to crash...
-        for (; (prgbx <= prgbx_end) && (pyuv <= pyuv_end);) {
-            IYUYV2RGBX_8(pyuv, prgbx, 0, 0);
-            prgbx += PIXEL8_RGBX;
-            pyuv += PIXEL8_YUYV;
-        }
-    }
-#else
-    for (; (prgbx <= prgbx_end) && (pyuv <= pyuv_end) ;) {
-        IYUYV2RGBX_8(pyuv, prgbx, 0, 0);
-
-        prgbx += PIXEL8_RGBX;
-        pyuv += PIXEL8_YUYV;
-    }
-#endif
-    return UVC_SUCCESS;
+    // libyuv ABGR is R,G,B,A in memory
+    return uvc_yuyv2argb_band(in, out, UVC_FRAME_FORMAT_RGBX, PIXEL_RGBX, ARGBToABGR);
 }
 
 #define IYUYV2BGR_2(pyuv, pbgr, ax, bx) { \
@@ -721,8 +675,7 @@ uvc_error_t uvc_yuyv2bgr(uvc_frame_t *in, uvc_frame_t *out) {
     if (out->library_owns_data) {
         out->step = in->width * PIXEL_BGR;
     }
-    out->sequence = in->sequence;
-    out->capture_time = in->capture_time;
+    _uvc_copy_frame_time(in, out);
     out->source = in->source;
 
     uint8_t *pyuv = in->data;
@@ -815,8 +768,7 @@ uvc_error_t uvc_uyvy2rgb(uvc_frame_t *in, uvc_frame_t *out) {
     if (out->library_owns_data) {
         out->step = in->width * PIXEL_RGB;
     }
-    out->sequence = in->sequence;
-    out->capture_time = in->capture_time;
+    _uvc_copy_frame_time(in, out);
     out->source = in->source;
 
     uint8_t *pyuv = in->data;
@@ -881,8 +833,7 @@ uvc_error_t uvc_uyvy2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
     if (out->library_owns_data) {
         out->step = in->width * PIXEL_RGB565;
     }
-    out->sequence = in->sequence;
-    out->capture_time = in->capture_time;
+    _uvc_copy_frame_time(in, out);
     out->source = in->source;
 
     uint8_t *pyuv = in->data;
@@ -982,8 +933,7 @@ uvc_error_t uvc_uyvy2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
     if (out->library_owns_data) {
         out->step = in->width * PIXEL_RGBX;
     }
-    out->sequence = in->sequence;
-    out->capture_time = in->capture_time;
+    _uvc_copy_frame_time(in, out);
     out->source = in->source;
 
     uint8_t *pyuv = in->data;
@@ -1076,8 +1026,7 @@ uvc_error_t uvc_uyvy2bgr(uvc_frame_t *in, uvc_frame_t *out) {
     if (out->library_owns_data) {
         out->step = in->width * PIXEL_BGR;
     }
-    out->sequence = in->sequence;
-    out->capture_time = in->capture_time;
+    _uvc_copy_frame_time(in, out);
     out->source = in->source;
 
     uint8_t *pyuv = in->data;
@@ -1211,94 +1160,160 @@ int uvc_yuyv2iyuv420P(uvc_frame_t *in, uvc_frame_t *out) {
            int);
 }
 
-uvc_error_t uvc_yuyv2yuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
-    ENTER();
-    if (UNLIKELY(in->frame_format != UVC_FRAME_FORMAT_YUYV)) {
-        RETURN(UVC_ERROR_INVALID_PARAM, uvc_error_t);
-    }
-    if (UNLIKELY(uvc_ensure_frame_size(out, (in->width * in->height * 3) / 2) < 0)) {
-        RETURN(UVC_ERROR_NO_MEM, uvc_error_t);
-    }
+//==================================================================================================
+// I420 frame decoded from MJPEG by uvc_mjpeg2i420, converted with libyuv in one pass
 
-    const uint8_t *src = in->data;
-    uint8_t *dest = out->data;
-    const int32_t width = in->width;
-    const int32_t height = in->height;
-    const int32_t src_width = in->step;
-    const int32_t src_height = in->height;
-    const int32_t dest_width = out->width = out->step = in->width;
-    const int32_t dest_height = out->height = in->height;
+#define I420_PLANES(frame, y, u, v) \
+    const uint8_t *y = (frame)->data; \
+    const uint8_t *u = y + (frame)->width * (frame)->height; \
+    const uint8_t *v = u + ((frame)->width >> 1) * ((frame)->height >> 1);
 
-    const uint32_t hh = src_height < dest_height ? src_height : dest_height;
-    uint8_t *uv = dest + dest_width * dest_height;
-    int h, w;
-    for (h = 0; h < hh - 1; h += 2) {
-        uint8_t *y0 = dest + width * h;
-        uint8_t *y1 = y0 + width;
-        const uint8_t *yuv = src + src_width * h;
-        for (w = 0; w < width; w += 4) {
-            *(y0++) = yuv[0];    // y
-            *(y0++) = yuv[2];    // y'
-            *(y0++) = yuv[4];    // y''
-            *(y0++) = yuv[6];    // y'''
-            *(uv++) = yuv[1];    // u
-            *(uv++) = yuv[3];    // v
-            *(uv++) = yuv[5];    // u
-            *(uv++) = yuv[7];    // v
-            *(y1++) = yuv[src_width + 0];    // y on next low
-            *(y1++) = yuv[src_width + 2];    // y' on next low
-            *(y1++) = yuv[src_width + 4];    // y''  on next low
-            *(y1++) = yuv[src_width + 6];    // y'''  on next low
-            yuv += 8;    // (1pixel=2bytes)x4pixels=8bytes
-        }
-    }
-    RETURN(UVC_SUCCESS, uvc_error_t);
+static inline void i420_copy_params(uvc_frame_t *in, uvc_frame_t *out,
+                                    enum uvc_frame_format format, size_t step) {
+    out->width = in->width;
+    out->height = in->height;
+    out->frame_format = format;
+    if (out->library_owns_data)
+        out->step = step;
+    _uvc_copy_frame_time(in, out);
+    out->source = in->source;
 }
 
-uvc_error_t uvc_yuyv2iyuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
-    ENTER();
-    if (UNLIKELY(in->frame_format != UVC_FRAME_FORMAT_YUYV)) {
-        RETURN(UVC_ERROR_INVALID_PARAM, uvc_error_t);
+static uvc_error_t uvc_i4202rgb565(uvc_frame_t *in, uvc_frame_t *out) {
+    if (UNLIKELY(uvc_ensure_frame_size(out, in->width * in->height * PIXEL_RGB565) < 0))
+        return UVC_ERROR_NO_MEM;
+    i420_copy_params(in, out, UVC_FRAME_FORMAT_RGB565, in->width * PIXEL_RGB565);
+    I420_PLANES(in, y, u, v)
+    I420ToRGB565(y, in->width, u, in->width >> 1, v, in->width >> 1,
+                 out->data, in->width * PIXEL_RGB565, in->width, in->height);
+    return UVC_SUCCESS;
+}
+
+static uvc_error_t uvc_i4202rgbx(uvc_frame_t *in, uvc_frame_t *out) {
+    if (UNLIKELY(uvc_ensure_frame_size(out, in->width * in->height * PIXEL_RGBX) < 0))
+        return UVC_ERROR_NO_MEM;
+    i420_copy_params(in, out, UVC_FRAME_FORMAT_RGBX, in->width * PIXEL_RGBX);
+    I420_PLANES(in, y, u, v)
+    // libyuv ABGR is R,G,B,A in memory
+    I420ToABGR(y, in->width, u, in->width >> 1, v, in->width >> 1,
+               out->data, in->width * PIXEL_RGBX, in->width, in->height);
+    return UVC_SUCCESS;
+}
+
+static uvc_error_t uvc_i4202yuyv(uvc_frame_t *in, uvc_frame_t *out) {
+    if (UNLIKELY(uvc_ensure_frame_size(out, in->width * in->height * PIXEL_YUYV) < 0))
+        return UVC_ERROR_NO_MEM;
+    i420_copy_params(in, out, UVC_FRAME_FORMAT_YUYV, in->width * PIXEL_YUYV);
+    I420_PLANES(in, y, u, v)
+    I420ToYUY2(y, in->width, u, in->width >> 1, v, in->width >> 1,
+               out->data, in->width * PIXEL_YUYV, in->width, in->height);
+    return UVC_SUCCESS;
+}
+
+static uvc_error_t uvc_i4202nv(uvc_frame_t *in, uvc_frame_t *out, int nv21) {
+    if (UNLIKELY(uvc_ensure_frame_size(out, (in->width * in->height * 3) / 2) < 0))
+        return UVC_ERROR_NO_MEM;
+    i420_copy_params(in, out, out->frame_format, in->width);
+    I420_PLANES(in, y, u, v)
+    uint8_t *dst_uv = out->data + in->width * in->height;
+    if (nv21) {
+        I420ToNV21(y, in->width, u, in->width >> 1, v, in->width >> 1,
+                   out->data, in->width, dst_uv, in->width, in->width, in->height);
+    } else {
+        I420ToNV12(y, in->width, u, in->width >> 1, v, in->width >> 1,
+                   out->data, in->width, dst_uv, in->width, in->width, in->height);
     }
+    out->actual_bytes = (in->width * in->height * 3) / 2;
+    return UVC_SUCCESS;
+}
 
-    if (UNLIKELY(uvc_ensure_frame_size(out, (in->width * in->height * 3) / 2) < 0)) {
+static uvc_error_t uvc_i4202i420(uvc_frame_t *in, uvc_frame_t *out) {
+    const size_t bytes = (in->width * in->height * 3) / 2;
+    if (UNLIKELY(uvc_ensure_frame_size(out, bytes) < 0))
+        return UVC_ERROR_NO_MEM;
+    i420_copy_params(in, out, UVC_FRAME_FORMAT_I420, in->width);
+    // pooled frames may be larger than the image, copy only the planes
+    memcpy(out->data, in->data, bytes);
+    out->actual_bytes = bytes;
+    return UVC_SUCCESS;
+}
+
+//==================================================================================================
+// YUYV frame converted with the SIMD kernels of libyuv
+
+/**
+ * @brief Convert a frame from YUYV to yuv420sp(NV12)
+ * @ingroup frame
+ * @param in  YUYV frame
+ * @param out NV12 frame
+ */
+uvc_error_t uvc_yuyv2yuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
+    if (UNLIKELY(in->frame_format != UVC_FRAME_FORMAT_YUYV))
+        return UVC_ERROR_INVALID_PARAM;
+    if (UNLIKELY(uvc_ensure_frame_size(out, (in->width * in->height * 3) / 2) < 0))
         return UVC_ERROR_NO_MEM;
+    i420_copy_params(in, out, out->frame_format, in->width);
+    uint8_t *dst_uv = out->data + in->width * in->height;
+    YUY2ToNV12(in->data, in->width * PIXEL_YUYV, out->data, in->width, dst_uv, in->width,
+               in->width, in->height);
+    out->actual_bytes = (in->width * in->height * 3) / 2;
+    return UVC_SUCCESS;
+}
+
+/**
+ * @brief Convert a frame from YUYV to iyuv420sp(NV21)
+ * @ingroup frame
+ * @param in  YUYV frame
+ * @param out NV21 frame
+ */
+uvc_error_t uvc_yuyv2iyuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
+    const uvc_error_t result = uvc_yuyv2yuv420SP(in, out);
+    if (LIKELY(!result)) {
+        // swap the interleaved chroma in place, NV12 <-> NV21 is the same swap both ways
+        uint8_t *dst_uv = out->data + in->width * in->height;
+        NV21ToNV12(NULL, 0, dst_uv, in->width, NULL, 0, dst_uv, in->width, in->width, in->height);
     }
+    return result;
+}
 
-    const uint8_t *src = in->data;
-    uint8_t *dest = out->data;
-    const int32_t width = in->width;
-    const int32_t height = in->height;
-    const int32_t src_width = in->step;
-    const int32_t src_height = in->height;
-    const int32_t dest_width = out->width = out->step = in->width;
-    const int32_t dest_height = out->height = in->height;
+/**
+ * @brief Convert a frame from YUYV to planar I420
+ * @ingroup frame
+ * @param in  YUYV frame
+ * @param out I420 frame
+ */
+uvc_error_t uvc_yuyv2i420(uvc_frame_t *in, uvc_frame_t *out) {
+    if (UNLIKELY(in->frame_format != UVC_FRAME_FORMAT_YUYV))
+        return UVC_ERROR_INVALID_PARAM;
+    const size_t size = in->width * in->height;
+    if (UNLIKELY(uvc_ensure_frame_size(out, (size * 3) / 2) < 0))
+        return UVC_ERROR_NO_MEM;
+    i420_copy_params(in, out, UVC_FRAME_FORMAT_I420, in->width);
+    uint8_t *dst_u = out->data + size;
+    uint8_t *dst_v = dst_u + size / 4;
+    YUY2ToI420(in->data, in->width * PIXEL_YUYV, out->data, in->width,
+               dst_u, in->width >> 1, dst_v, in->width >> 1, in->width, in->height);
+    out->actual_bytes = (size * 3) / 2;
+    return UVC_SUCCESS;
+}
 
-    const uint32_t hh = src_height < dest_height ? src_height : dest_height;
-    uint8_t *uv = dest + dest_width * dest_height;
-    int h, w;
-    for (h = 0; h < hh - 1; h += 2) {
-        uint8_t *y0 = dest + width * h;
-        uint8_t *y1 = y0 + width;
-        const uint8_t *yuv = src + src_width * h;
-        for (w = 0; w < width; w += 4) {
-            *(y0++) = yuv[0];    // y
-            *(y0++) = yuv[2];    // y'
-            *(y0++) = yuv[4];    // y''
-            *(y0++) = yuv[6];    // y'''
-            *(uv++) = yuv[3];    // v
-            *(uv++) = yuv[1];    // u
-            *(uv++) = yuv[7];    // v
-            *(uv++) = yuv[5];    // u
-            *(y1++) = yuv[src_width + 0];    // y on next low
-            *(y1++) = yuv[src_width + 2];    // y' on next low
-            *(y1++) = yuv[src_width + 4];    // y''  on next low
-            *(y1++) = yuv[src_width + 6];    // y'''  on next low
-            yuv += 8;    // (1pixel=2bytes)x4pixels=8bytes
+#ifdef LIBUVC_HAS_JPEG
+/*
+ * MJPEG -> I420 -> NV12/NV21, the decoder writes planar YUV so there is no YUYV pass in between
+ */
+static uvc_error_t uvc_mjpeg2nv(uvc_frame_t *in, uvc_frame_t *out, int nv21) {
+    uvc_error_t result = UVC_ERROR_NO_MEM;
+    uvc_frame_t *i420 = uvc_allocate_frame((in->width * in->height * 3) / 2);
+    if (LIKELY(i420)) {
+        result = uvc_mjpeg2i420(in, i420);
+        if (LIKELY(!result)) {
+            result = uvc_i4202nv(i420, out, nv21);
         }
+        uvc_free_frame(i420);
     }
-    RETURN(UVC_SUCCESS, uvc_error_t);
+    return result;
 }
+#endif
 
 /**
  * @brief Convert a frame to RGB565
@@ -1321,6 +1336,8 @@ uvc_error_t uvc_any2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
             return uvc_duplicate_frame(in, out);
         case UVC_FRAME_FORMAT_RGB:
             return uvc_rgb2rgb565(in, out);
+        case UVC_FRAME_FORMAT_I420:
+            return uvc_i4202rgb565(in, out);
         default:
             return UVC_ERROR_NOT_SUPPORTED;
     }
@@ -1395,6 +1412,8 @@ uvc_error_t uvc_any2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
             return uvc_duplicate_frame(in, out);
         case UVC_FRAME_FORMAT_RGB:
             return uvc_rgb2rgbx(in, out);
+        case UVC_FRAME_FORMAT_I420:
+            return uvc_i4202rgbx(in, out);
         default:
             return UVC_ERROR_NOT_SUPPORTED;
     }
@@ -1415,6 +1434,8 @@ uvc_error_t uvc_any2yuyv(uvc_frame_t *in, uvc_frame_t *out) {
 #endif
         case UVC_FRAME_FORMAT_YUYV:
             return uvc_duplicate_frame(in, out);
+        case UVC_FRAME_FORMAT_I420:
+            return uvc_i4202yuyv(in, out);
         default:
             return UVC_ERROR_NOT_SUPPORTED;
     }
@@ -1428,16 +1449,18 @@ uvc_error_t uvc_any2yuyv(uvc_frame_t *in, uvc_frame_t *out) {
  * @param out yuv420sp frame
  */
 uvc_error_t uvc_any2yuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
-    uvc_error_t result = UVC_ERROR_NO_MEM;
-    uvc_frame_t *yuv = uvc_allocate_frame((in->width * in->height * 3) / 2);
-    if (yuv) {
-        result = uvc_any2yuyv(in, yuv);
-        if (LIKELY(!result)) {
-            result = uvc_yuyv2yuv420SP(yuv, out);
-        }
-        uvc_free_frame(yuv);
+    switch (in->frame_format) {
+        case UVC_FRAME_FORMAT_YUYV:
+            return uvc_yuyv2yuv420SP(in, out);
+        case UVC_FRAME_FORMAT_I420:
+            return uvc_i4202nv(in, out, 0);
+#ifdef LIBUVC_HAS_JPEG
+        case UVC_FRAME_FORMAT_MJPEG:
+            return uvc_mjpeg2nv(in, out, 0);
+#endif
+        default:
+            return UVC_ERROR_NOT_SUPPORTED;
     }
-    return result;
 }
 
 /**
@@ -1448,16 +1471,93 @@ uvc_error_t uvc_any2yuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
  * @param out iyuv420SP(NV21) frame
  */
 uvc_error_t uvc_any2iyuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
-    uvc_error_t result = UVC_ERROR_NO_MEM;
-    uvc_frame_t *yuv = uvc_allocate_frame((in->width * in->height * 3) / 2);
-    if (yuv) {
-        result = uvc_any2yuyv(in, yuv);
-        if (LIKELY(!result)) {
-            result = uvc_yuyv2iyuv420SP(yuv, out);
+    switch (in->frame_format) {
+        case UVC_FRAME_FORMAT_YUYV:
+            return uvc_yuyv2iyuv420SP(in, out);
+        case UVC_FRAME_FORMAT_I420:
+            return uvc_i4202nv(in, out, 1);
+#ifdef LIBUVC_HAS_JPEG
+        case UVC_FRAME_FORMAT_MJPEG:
+            return uvc_mjpeg2nv(in, out, 1);
+#endif
+        default:
+            return UVC_ERROR_NOT_SUPPORTED;
+    }
+}
+
+/**
+ * @brief Convert a frame to planar I420
+ * @ingroup frame
+ *
+ * @param in  non-I420 frame
+ * @param out I420 frame
+ */
+uvc_error_t uvc_any2i420(uvc_frame_t *in, uvc_frame_t *out) {
+    switch (in->frame_format) {
+#ifdef LIBUVC_HAS_JPEG
+        case UVC_FRAME_FORMAT_MJPEG:
+            return uvc_mjpeg2i420(in, out);
+#endif
+        case UVC_FRAME_FORMAT_YUYV:
+            return uvc_yuyv2i420(in, out);
+        case UVC_FRAME_FORMAT_I420:
+            return uvc_i4202i420(in, out);
+        default:
+            return UVC_ERROR_NOT_SUPPORTED;
+    }
+}
+
+/*
+ * fold flip into rotation so one rotate pass does both
+ * FLIP_V(mirror + upside down) is an extra 180 degree rotation,
+ * FLIP_H after rotating by r is rotating the upside down source by 180 - r
+ * @param vflip set to 1 if the source has to be read upside down
+ * @return rotation to apply
+ */
+static inline int fold_flip(int rotate, int flip, int *vflip) {
+    switch (flip) {
+        case FLIP_V:
+            *vflip = 0;
+            return (rotate + 180) % 360;
+        case FLIP_H:
+            *vflip = 1;
+            return (540 - rotate) % 360;
+        default:
+            *vflip = 0;
+            return rotate;
+    }
+}
+
+/*
+ * grow (never shrink) the scratch frame, or allocate a temporary one when work is NULL
+ */
+static uvc_frame_t *prepare_work(uvc_frame_t *work, size_t need_bytes) {
+    if (!work) {
+        return uvc_allocate_frame(need_bytes);
+    }
+    if (UNLIKELY(work->data_bytes < need_bytes)) {
+        if (UNLIKELY(uvc_ensure_frame_size(work, need_bytes) < 0)) {
+            return NULL;
         }
-        uvc_free_frame(yuv);
     }
-    return result;
+    return work;
+}
+
+static inline void argb_copy_params(uvc_frame_t *in, uvc_frame_t *out, int rotate) {
+    if (rotate == ROTATE_90 || rotate == ROTATE_270) {
+        //旋转rotate->90,270 (宽高发生交换)
+        out->width = in->height;
+        out->height = in->width;
+    } else {
+        //旋转rotate->0,180 (宽高不发生交换)
+        out->width = in->width;
+        out->height = in->height;
+    }
+    out->frame_format = UVC_FRAME_FORMAT_ARGB;
+    if (out->library_owns_data)
+        out->step = out->width * PIXEL_RGBX;
+    _uvc_copy_frame_time(in, out);
+    out->source = in->source;
 }
 
 /**
@@ -1466,8 +1566,10 @@ uvc_error_t uvc_any2iyuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
  * @param out ARGB frame
  * @param rotate YUYV to rotate
  * @param mirror YUYV to flip
+ * @param work scratch frame for two I420 images, kept by the caller between frames,
+ *             or NULL to allocate it for this call only
  */
-uvc_error_t uvc_yuyv2argb(uvc_frame_t *in, uvc_frame_t *out, int rotate, int flip) {
+uvc_error_t uvc_yuyv2argb(uvc_frame_t *in, uvc_frame_t *out, int rotate, int flip, uvc_frame_t *work) {
     //无效参数
     if (UNLIKELY(in->frame_format != UVC_FRAME_FORMAT_YUYV)) {
         return UVC_ERROR_INVALID_PARAM;
@@ -1480,57 +1582,288 @@ uvc_error_t uvc_yuyv2argb(uvc_frame_t *in, uvc_frame_t *out, int rotate, int fli
     if (rotate == ROTATE_0 && flip == FLIP_DEFAULT) {
         return uvc_any2rgbx(in, out);
     }
-    //out->Frame初始数据
-    out->frame_format = UVC_FRAME_FORMAT_ARGB;
-    out->capture_time = in->capture_time;
-    out->sequence = in->sequence;
-    out->source = in->source;
-    if (out->library_owns_data) {
-        out->step = in->width * PIXEL_RGBX;
+    int vflip;
+    const int rot = fold_flip(rotate, flip, &vflip);
+    const size_t size = in->width * in->height;
+    uvc_frame_t *scratch = prepare_work(work, size * 3);
+    if (UNLIKELY(!scratch)) {
+        return UVC_ERROR_NO_MEM;
     }
-    if (rotate == ROTATE_90 || rotate == ROTATE_270) {
-        //旋转rotate->90,270 (宽高发生交换)
-        out->width = in->height;
-        out->height = in->width;
+    //out->Frame初始数据
+    argb_copy_params(in, out, rot);
+    const int in_w_uv = in->width >> 1;
+    const int out_w = out->width;
+    const int out_h = out->height;
+    const int out_w_uv = out_w >> 1;
+
+    //YUYV -> I420, 上下翻转在这里完成
+    uint8_t *y_1 = scratch->data;
+    uint8_t *u_1 = y_1 + size;
+    uint8_t *v_1 = u_1 + size / 4;
+    YUY2ToI420(in->data, in->width * PIXEL_YUYV, y_1, in->width, u_1, in_w_uv, v_1, in_w_uv,
+               in->width, vflip ? -in->height : in->height);
+    if (rot == ROTATE_0) {
+        //I420 -> ARGB
+        I420ToABGR(y_1, out_w, u_1, out_w_uv, v_1, out_w_uv,
+                   out->data, out_w * PIXEL_RGBX, out_w, out_h);
     } else {
-        //旋转rotate->0,180 (宽高不发生交换)
-        out->width = in->width;
-        out->height = in->height;
+        //旋转(含镜像)
+        uint8_t *y_2 = v_1 + size / 4;
+        uint8_t *u_2 = y_2 + size;
+        uint8_t *v_2 = u_2 + size / 4;
+        I420Rotate(y_1, in->width, u_1, in_w_uv, v_1, in_w_uv,
+                   y_2, out_w, u_2, out_w_uv, v_2, out_w_uv, in->width, in->height, rot);
+        //I420 -> ARGB
+        I420ToABGR(y_2, out_w, u_2, out_w_uv, v_2, out_w_uv,
+                   out->data, out_w * PIXEL_RGBX, out_w, out_h);
+    }
+    if (scratch != work) {
+        uvc_free_frame(scratch);
     }
-    //out->Frame
-    int out_w = out->width;
-    int out_h = out->height;
-    int out_w_uv = out_w >> 1;
+    return UVC_SUCCESS;
+}
 
-    //旋转并转换I420
-    size_t size = in->width * in->height;
-    uint8_t *y_1 = out->data;
+/**
+ * i4202rotate2mirror2abgr
+ * @param in  I420 frame(decoded from MJPEG)
+ * @param out ARGB frame
+ * @param rotate I420 to rotate
+ * @param flip I420 to flip
+ * @param work scratch frame for one I420 image, kept by the caller between frames,
+ *             or NULL to allocate it for this call only
+ */
+uvc_error_t uvc_i4202argb(uvc_frame_t *in, uvc_frame_t *out, int rotate, int flip, uvc_frame_t *work) {
+    if (UNLIKELY(in->frame_format != UVC_FRAME_FORMAT_I420)) {
+        return UVC_ERROR_INVALID_PARAM;
+    }
+    if (UNLIKELY(uvc_ensure_frame_size(out, in->width * in->height * PIXEL_RGBX) < 0)) {
+        return UVC_ERROR_NO_MEM;
+    }
+    int vflip;
+    const int rot = fold_flip(rotate, flip, &vflip);
+    //不旋转不镜像
+    if (rot == ROTATE_0 && !vflip) {
+        return uvc_i4202rgbx(in, out);
+    }
+    argb_copy_params(in, out, rot);
+    const size_t size = in->width * in->height;
+    const int in_w_uv = in->width >> 1;
+    const int out_w = out->width;
+    const int out_h = out->height;
+    const int out_w_uv = out_w >> 1;
+    I420_PLANES(in, y_0, u_0, v_0)
+    if (rot == ROTATE_0) {
+        //上下翻转, I420 -> ARGB
+        I420ToABGR(y_0, in->width, u_0, in_w_uv, v_0, in_w_uv,
+                   out->data, out_w * PIXEL_RGBX, out_w, -out_h);
+        return UVC_SUCCESS;
+    }
+    uvc_frame_t *scratch = prepare_work(work, (size * 3) / 2);
+    if (UNLIKELY(!scratch)) {
+        return UVC_ERROR_NO_MEM;
+    }
+    //旋转(含镜像)
+    uint8_t *y_1 = scratch->data;
     uint8_t *u_1 = y_1 + size;
     uint8_t *v_1 = u_1 + size / 4;
-    //内存区
-    uint8_t *y_2 = malloc(sizeof(uint8_t) * size);
-    uint8_t *u_2 = malloc(sizeof(uint8_t) * size / 4);
-    uint8_t *v_2 = malloc(sizeof(uint8_t) * size / 4);
-
-    //先剪裁->再在建在的基础上转格式->再在转格式的基础上旋转
-    ConvertToI420(in->data, size * 2, y_1, out_w, u_1, out_w_uv, v_1, out_w_uv,
-                  0, 0, in->width, in->height, in->width, in->height,
-                  rotate, FOURCC_YUYV);
-    //镜像
-    if (flip == FLIP_DEFAULT) {
-        I420Copy(y_1, out_w, u_1, out_w_uv, v_1, out_w_uv,
-                 y_2, out_w, u_2, out_w_uv, v_2, out_w_uv, out_w, out_h);
-    } else {//FLIP_H=1、FLIP_V=-1
-        I420Mirror(y_1, out_w, u_1, out_w_uv, v_1, out_w_uv,
-                   y_2, out_w, u_2, out_w_uv, v_2, out_w_uv, out_w, flip * out_h);
-    }
+    I420Rotate(y_0, in->width, u_0, in_w_uv, v_0, in_w_uv,
+               y_1, out_w, u_1, out_w_uv, v_1, out_w_uv,
+               in->width, vflip ? -in->height : in->height, rot);
     //I420 -> ARGB
-    I420ToABGR(y_2, out_w, u_2, out_w_uv, v_2, out_w_uv,
-               out->data, out_w * 4, out_w, out_h);
+    I420ToABGR(y_1, out_w, u_1, out_w_uv, v_1, out_w_uv,
+               out->data, out_w * PIXEL_RGBX, out_w, out_h);
+    if (scratch != work) {
+        uvc_free_frame(scratch);
+    }
+    return UVC_SUCCESS;
+}
+
+/**
+ * XXX crop a region of a YUYV/I420 frame and scale it into an I420 frame, ahead of the color conversion
+ * so later conversions only touch the pixels that are delivered
+ * @param in  YUYV frame or I420 frame(decoded from MJPEG)
+ * @param out I420 frame of roi->out_width x roi->out_height
+ * @param roi region of in, a zero sized region is the whole frame, a zero output size keeps the region size
+ * @param work scratch frame for the cropped I420 image when a YUYV region is scaled,
+ *             kept by the caller between frames, or NULL to allocate it for this call only
+ */
+uvc_error_t uvc_roi2i420(uvc_frame_t *in, uvc_frame_t *out, const uvc_roi_t *roi, uvc_frame_t *work) {
+    const int yuyv = in->frame_format == UVC_FRAME_FORMAT_YUYV;
+    if (UNLIKELY(!yuyv && (in->frame_format != UVC_FRAME_FORMAT_I420))) {
+        return UVC_ERROR_NOT_SUPPORTED;
+    }
+    int x = roi->x, y = roi->y, w = roi->width, h = roi->height;
+    if (!w || !h) {
+        x = y = 0;
+        w = in->width;
+        h = in->height;
+    }
+    // chroma is subsampled by 2, the region starts on an even pixel
+    x &= ~1;
+    y &= ~1;
+    if (UNLIKELY((x < 0) || (y < 0) || (w < 2) || (h < 2) || (x + w > in->width) || (y + h > in->height))) {
+        return UVC_ERROR_INVALID_PARAM;
+    }
+    const int out_w = roi->out_width > 0 ? roi->out_width : w;
+    const int out_h = roi->out_height > 0 ? roi->out_height : h;
+    const size_t out_size = out_w * out_h;
+    if (UNLIKELY(uvc_ensure_frame_size(out, (out_size * 3) / 2) < 0)) {
+        return UVC_ERROR_NO_MEM;
+    }
+    out->width = out_w;
+    out->height = out_h;
+    out->frame_format = UVC_FRAME_FORMAT_I420;
+    if (out->library_owns_data)
+        out->step = out_w;
+    _uvc_copy_frame_time(in, out);
+    out->source = in->source;
+    out->actual_bytes = (out_size * 3) / 2;
+    uint8_t *dst_y = out->data;
+    uint8_t *dst_u = dst_y + out_size;
+    uint8_t *dst_v = dst_u + out_size / 4;
+    const int out_w_uv = out_w >> 1;
+    if ((out_w == w) && (out_h == h)) {
+        // crop only, straight into out
+        ConvertToI420(in->data, in->data_bytes, dst_y, out_w, dst_u, out_w_uv, dst_v, out_w_uv,
+                      x, y, in->width, in->height, w, h, kRotate0, yuyv ? FOURCC_YUY2 : FOURCC_I420);
+        return UVC_SUCCESS;
+    }
+    if (!yuyv) {
+        // scale the region of the planes in place
+        I420_PLANES(in, y_0, u_0, v_0)
+        const int in_w_uv = in->width >> 1;
+        I420Scale(y_0 + y * in->width + x, in->width,
+                  u_0 + (y >> 1) * in_w_uv + (x >> 1), in_w_uv,
+                  v_0 + (y >> 1) * in_w_uv + (x >> 1), in_w_uv, w, h,
+                  dst_y, out_w, dst_u, out_w_uv, dst_v, out_w_uv, out_w, out_h, kFilterBilinear);
+        return UVC_SUCCESS;
+    }
+    const size_t size = w * h;
+    uvc_frame_t *scratch = prepare_work(work, (size * 3) / 2);
+    if (UNLIKELY(!scratch)) {
+        return UVC_ERROR_NO_MEM;
+    }
+    const int w_uv = w >> 1;
+    uint8_t *y_1 = scratch->data;
+    uint8_t *u_1 = y_1 + size;
+    uint8_t *v_1 = u_1 + size / 4;
+    ConvertToI420(in->data, in->data_bytes, y_1, w, u_1, w_uv, v_1, w_uv,
+                  x, y, in->width, in->height, w, h, kRotate0, FOURCC_YUY2);
+    I420Scale(y_1, w, u_1, w_uv, v_1, w_uv, w, h,
+              dst_y, out_w, dst_u, out_w_uv, dst_v, out_w_uv, out_w, out_h, kFilterBilinear);
+    if (scratch != work) {
+        uvc_free_frame(scratch);
+    }
+    return UVC_SUCCESS;
+}
 
-    //释放内存
-    SAFE_FREE(y_2)
-    SAFE_FREE(u_2)
-    SAFE_FREE(v_2)
+/**
+ * XXX convert a YUYV/I420 frame with rotation and flip straight into memory the caller locked,
+ * e.g. an ANativeWindow_Buffer, instead of into a frame that is copied there afterwards
+ * @param in     YUYV frame or I420 frame(decoded from MJPEG)
+ * @param dst    first byte of the buffer
+ * @param stride pixels per row of the buffer
+ * @param width  width of the buffer, the rotated image is clipped to it
+ * @param height height of the buffer
+ * @param format UVC_FRAME_FORMAT_RGBX (R,G,B,A in memory), UVC_FRAME_FORMAT_RGB565 or UVC_FRAME_FORMAT_YV12
+ * @param work   scratch frame for up to two I420 images, kept by the caller between frames,
+ *               or NULL to allocate it for this call only
+ */
+uvc_error_t uvc_any2buffer(uvc_frame_t *in, void *dst, int stride, int width, int height,
+                           enum uvc_frame_format format, int rotate, int flip, uvc_frame_t *work) {
+    const int yuyv = in->frame_format == UVC_FRAME_FORMAT_YUYV;
+    if (UNLIKELY(!yuyv && (in->frame_format != UVC_FRAME_FORMAT_I420))) {
+        return UVC_ERROR_NOT_SUPPORTED;
+    }
+    if (UNLIKELY((format != UVC_FRAME_FORMAT_RGBX) && (format != UVC_FRAME_FORMAT_RGB565)
+                 && (format != UVC_FRAME_FORMAT_YV12))) {
+        return UVC_ERROR_NOT_SUPPORTED;
+    }
+    int vflip;
+    const int rot = fold_flip(rotate, flip, &vflip);
+    const int in_w = in->width;
+    const int in_h = in->height;
+    const int out_w = (rot == ROTATE_90) || (rot == ROTATE_270) ? in_h : in_w;
+    const int out_h = (rot == ROTATE_90) || (rot == ROTATE_270) ? in_w : in_h;
+    // the buffer may not have taken the geometry of the stream yet, clip to it
+    const int w = out_w < width ? out_w : width;
+    const int h = out_h < height ? out_h : height;
+    // Android YV12: Y plane, then V and U planes with the chroma stride aligned to 16 bytes
+    const int cstride = ((stride >> 1) + 15) & ~15;
+    uint8_t *dst_y = dst;
+    uint8_t *dst_v = dst_y + stride * height;
+    uint8_t *dst_u = dst_v + cstride * (height >> 1);
+
+    if (yuyv && !rot && !vflip) {
+        // one pass from YUYV, no scratch
+        if (format == UVC_FRAME_FORMAT_YV12) {
+            YUY2ToI420(in->data, in_w * PIXEL_YUYV, dst_y, stride, dst_u, cstride, dst_v, cstride, w, h);
+            return UVC_SUCCESS;
+        }
+        return format == UVC_FRAME_FORMAT_RGBX
+               ? yuyv2argb_band(in->data, in_w * PIXEL_YUYV, dst, stride * PIXEL_RGBX, w, h, ARGBToABGR)
+               : yuyv2argb_band(in->data, in_w * PIXEL_YUYV, dst, stride * PIXEL_RGB565, w, h, ARGBToRGB565);
+    }
+
+    const size_t size = in_w * in_h;
+    const size_t work_bytes = ((yuyv ? 1 : 0) + (rot ? 1 : 0)) * ((size * 3) / 2);
+    uvc_frame_t *scratch = NULL;
+    if (work_bytes) {
+        scratch = prepare_work(work, work_bytes);
+        if (UNLIKELY(!scratch)) {
+            return UVC_ERROR_NO_MEM;
+        }
+    }
+    uint8_t *next = scratch ? scratch->data : NULL;
+    const uint8_t *y, *u, *v;
+    int stride_y = in_w;
+    if (yuyv) {
+        // YUYV -> I420, upside down here if needed
+        uint8_t *y_1 = next;
+        uint8_t *u_1 = y_1 + size;
+        uint8_t *v_1 = u_1 + size / 4;
+        YUY2ToI420(in->data, in_w * PIXEL_YUYV, y_1, in_w, u_1, in_w >> 1, v_1, in_w >> 1,
+                   in_w, vflip ? -in_h : in_h);
+        vflip = 0;
+        y = y_1;
+        u = u_1;
+        v = v_1;
+        next += (size * 3) / 2;
+    } else {
+        I420_PLANES(in, y_0, u_0, v_0)
+        y = y_0;
+        u = u_0;
+        v = v_0;
+    }
+    if (rot) {
+        uint8_t *y_2 = next;
+        uint8_t *u_2 = y_2 + size;
+        uint8_t *v_2 = u_2 + size / 4;
+        I420Rotate(y, in_w, u, in_w >> 1, v, in_w >> 1,
+                   y_2, out_w, u_2, out_w >> 1, v_2, out_w >> 1, in_w, vflip ? -in_h : in_h, rot);
+        vflip = 0;
+        y = y_2;
+        u = u_2;
+        v = v_2;
+        stride_y = out_w;
+    }
+    const int stride_uv = stride_y >> 1;
+    const int hh = vflip ? -h : h;
+    switch (format) {
+        case UVC_FRAME_FORMAT_RGBX:
+            // libyuv ABGR is R,G,B,A in memory
+            I420ToABGR(y, stride_y, u, stride_uv, v, stride_uv, dst, stride * PIXEL_RGBX, w, hh);
+            break;
+        case UVC_FRAME_FORMAT_RGB565:
+            I420ToRGB565(y, stride_y, u, stride_uv, v, stride_uv, dst, stride * PIXEL_RGB565, w, hh);
+            break;
+        default:
+            I420Copy(y, stride_y, u, stride_uv, v, stride_uv,
+                     dst_y, stride, dst_u, cstride, dst_v, cstride, w, hh);
+            break;
+    }
+    if (scratch && (scratch != work)) {
+        uvc_free_frame(scratch);
+    }
     return UVC_SUCCESS;
 }
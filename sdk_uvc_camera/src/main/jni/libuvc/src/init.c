@@ -79,14 +79,46 @@ YUV stream from a UVC device such as a standard webcam.
  * @defgroup init Library initialization/deinitialization
  * @brief Setup routines used to construct UVC access contexts
  */
+// XXX cpu_set_t, CPU_SET and sched_setaffinity of <sched.h>, before the first include
+#ifndef _GNU_SOURCE
+#define _GNU_SOURCE
+#endif
 #include "libuvc/libuvc.h"
 #include "libuvc/libuvc_internal.h"
 #if defined(__ANDROID__)
 #include <unistd.h>
+#include <sched.h>
+#include <sys/syscall.h>
 #include <sys/time.h>
 #include <sys/resource.h>
 #endif	// defined(__ANDROID__)
 
+/* XXX default nice value of the event handler thread */
+#define UVC_HANDLER_NICE -18
+
+/** @internal
+ * @brief XXX apply the affinity and priority of uvc_set_handler_thread to the handler thread
+ */
+static void _uvc_apply_handler_thread(uvc_context_t *ctx, pid_t tid) {
+#if defined(__ANDROID__)
+	if (ctx->handler_cpus) {
+		cpu_set_t cpus;
+		int i;
+		CPU_ZERO(&cpus);
+		for (i = 0; i < 32; i++) {
+			if (ctx->handler_cpus & (1u << i))
+				CPU_SET(i, &cpus);
+		}
+		if (UNLIKELY(sched_setaffinity(tid, sizeof(cpus), &cpus))) {
+			LOGW("could not change thread affinity:cpus=0x%x", ctx->handler_cpus);
+		}
+	}
+	if (UNLIKELY(setpriority(PRIO_PROCESS, tid, ctx->handler_nice))) {
+		LOGW("could not change thread priority");
+	}
+#endif
+}
+
 /** @internal
  * @brief Event handler thread
  * There's one of these per UVC context.
@@ -97,14 +129,16 @@ void *_uvc_handle_events(void *arg) {
 
 #if defined(__ANDROID__)
 	// try to increase thread priority
-	int prio = getpriority(PRIO_PROCESS, 0);
-	nice(-18);
-	if (UNLIKELY(getpriority(PRIO_PROCESS, 0) >= prio)) {
-		LOGW("could not change thread priority");
-	}
+	// publish tid before reading the settings so a concurrent uvc_set_handler_thread is never lost,
+	// open_mutex can not be taken here because uvc_close joins this thread while holding it
+	const pid_t tid = (pid_t) syscall(__NR_gettid);
+	ctx->handler_tid = tid;
+	__sync_synchronize();
+	_uvc_apply_handler_thread(ctx, tid);
 #endif
 	for (; !ctx->kill_handler_thread ;)
 		libusb_handle_events(ctx->usb_ctx);
+	ctx->handler_tid = 0;
 	return NULL;
 }
 
@@ -141,8 +175,11 @@ uvc_error_t uvc_init2(uvc_context_t **pctx, struct libusb_context *usb_ctx, cons
 		ctx->usb_ctx = usb_ctx;
 	}
 
-	if (ctx != NULL)
+	if (ctx != NULL) {
+		pthread_mutex_init(&ctx->open_mutex, NULL);
+		ctx->handler_nice = UVC_HANDLER_NICE;
 		*pctx = ctx;
+	}
 
 	return ret;
 }
@@ -195,9 +232,33 @@ void uvc_exit(uvc_context_t *ctx) {
 	if (ctx->own_usb_ctx)
 		libusb_exit(ctx->usb_ctx);
 
+	pthread_mutex_destroy(&ctx->open_mutex);
 	free(ctx);
 }
 
+/** @brief XXX Place the USB event thread, which runs all transfer completions of the devices
+ * opened in this context. Applied at once if the thread is running, otherwise when it starts.
+ * @ingroup init
+ *
+ * @param ctx UVC context
+ * @param cpu_mask bit n allows cpu n, 0 leaves the affinity alone
+ * @param nice -20 ~ 19, the default is -18
+ */
+uvc_error_t uvc_set_handler_thread(uvc_context_t *ctx, uint32_t cpu_mask, int nice) {
+	if (UNLIKELY(!ctx || (nice < -20) || (nice > 19)))
+		return UVC_ERROR_INVALID_PARAM;
+	pthread_mutex_lock(&ctx->open_mutex);
+	{
+		ctx->handler_cpus = cpu_mask;
+		ctx->handler_nice = nice;
+		__sync_synchronize();
+		if (ctx->handler_tid)
+			_uvc_apply_handler_thread(ctx, ctx->handler_tid);
+	}
+	pthread_mutex_unlock(&ctx->open_mutex);
+	return UVC_SUCCESS;
+}
+
 /**
  * @internal
  * @brief Spawns a handler thread for the context
@@ -208,6 +269,7 @@ void uvc_exit(uvc_context_t *ctx) {
  */
 void uvc_start_handler_thread(uvc_context_t *ctx) {
 	if (ctx->own_usb_ctx) {
+		ctx->kill_handler_thread = 0;	// XXX the context may be reused after its last device was closed
 		pthread_create(&ctx->handler_thread, NULL, _uvc_handle_events, (void*) ctx);
 	}
 }
@@ -0,0 +1,359 @@
+/*********************************************************************
+ * XXX added
+ * raw stream recorder: keeps a copy of every frame published by _uvc_swap_buffers
+ * (payload bytes, pts, scr, sequence, error bits) in the file format read by the replay frame source.
+ * the USB thread only copies the frame into a preallocated slot, file writes happen on an I/O thread;
+ * when no slot is free the frame is dropped from the recording, never from the stream.
+ *********************************************************************/
+/**
+ * @defgroup record Stream recording
+ * @brief Record the raw frames of a stream for replay
+ */
+#include "libuvc/libuvc.h"
+#include "libuvc/libuvc_internal.h"
+#include <stdio.h>
+#include <string.h>
+#include <errno.h>
+#include <time.h>
+#include <unistd.h>
+#include <semaphore.h>
+
+uvc_frame_desc_t *uvc_find_frame_desc(uvc_device_handle_t *devh,
+		uint16_t format_id, uint16_t frame_id);
+
+// frames in flight between the USB thread and the I/O thread
+#define UVC_RECORD_SLOTS		8
+#define UVC_RECORD_FILE_BUFFER	(1024 * 1024)
+
+typedef struct uvc_record_slot {
+	uvc_record_frame_t rec;
+	uint8_t *data;
+	size_t capacity;
+	/** 0 if data was too small for the frame, the I/O thread grows it */
+	int valid;
+	/** receive buffer size of the stream, no frame is larger */
+	size_t size_buf;
+	enum uvc_frame_format frame_format;
+	uint8_t format_index, frame_index;
+	uint32_t frame_interval;
+} uvc_record_slot_t;
+
+/* single producer single consumer ring of slot pointers */
+typedef struct uvc_record_ring {
+	uvc_record_slot_t *slots[UVC_RECORD_SLOTS];
+	volatile uint32_t head, tail;
+} uvc_record_ring_t;
+
+struct uvc_recorder {
+	uvc_device_handle_t *devh;
+	FILE *fp;
+	char *file_buffer;
+	pthread_t thread;
+	volatile int running;
+	sem_t sem;
+	uvc_record_slot_t slots[UVC_RECORD_SLOTS];
+	uvc_record_ring_t free_ring;	// I/O thread -> USB thread
+	uvc_record_ring_t full_ring;	// USB thread -> I/O thread
+	uint64_t start_time;
+	/* I/O thread only */
+	size_t slot_bytes;
+	int header_written;
+	uvc_record_header_t header;
+	uint8_t format_index, frame_index;
+	uint64_t offset;
+	uvc_record_index_t *index;
+	uint32_t index_capacity;
+	/* statistics */
+	volatile uint32_t frames;
+	volatile uint32_t dropped;
+	volatile uint64_t bytes;
+	int write_error;
+};
+
+static inline int _ring_put(uvc_record_ring_t *ring, uvc_record_slot_t *slot) {
+	const uint32_t head = ring->head;
+	if (UNLIKELY(head - __atomic_load_n(&ring->tail, __ATOMIC_ACQUIRE) >= UVC_RECORD_SLOTS)) {
+		return 0;
+	}
+	ring->slots[head % UVC_RECORD_SLOTS] = slot;
+	__atomic_store_n(&ring->head, head + 1, __ATOMIC_RELEASE);
+	return 1;
+}
+
+static inline uvc_record_slot_t *_ring_get(uvc_record_ring_t *ring) {
+	const uint32_t tail = ring->tail;
+	if (tail == __atomic_load_n(&ring->head, __ATOMIC_ACQUIRE)) {
+		return NULL;
+	}
+	uvc_record_slot_t *slot = ring->slots[tail % UVC_RECORD_SLOTS];
+	__atomic_store_n(&ring->tail, tail + 1, __ATOMIC_RELEASE);
+	return slot;
+}
+
+static int _slot_reserve(uvc_record_slot_t *slot, size_t bytes) {
+	if (slot->capacity < bytes) {
+		uint8_t *data = realloc(slot->data, bytes);
+		if (UNLIKELY(!data)) {
+			return 0;
+		}
+		slot->data = data;
+		slot->capacity = bytes;
+	}
+	return 1;
+}
+
+/** @internal
+ * @brief Hand the frame being published to the recorder, called on the USB thread
+ * from _uvc_swap_buffers while outbuf still belongs to it, never blocks
+ */
+void _uvc_record_frame(uvc_stream_handle_t *strmh) {
+	uvc_device_handle_t *devh = strmh->devh;
+	__atomic_add_fetch(&devh->recorder_users, 1, __ATOMIC_SEQ_CST);
+	struct uvc_recorder *recorder = __atomic_load_n(&devh->recorder, __ATOMIC_SEQ_CST);
+	if (LIKELY(recorder)) {
+		uvc_record_slot_t *slot = _ring_get(&recorder->free_ring);
+		if (LIKELY(slot)) {
+			const size_t bytes = strmh->got_bytes;
+			slot->valid = slot->capacity >= bytes;
+			slot->size_buf = strmh->size_buf;
+			slot->rec.magic = UVC_RECORD_FRAME_MAGIC;
+			slot->rec.bytes = bytes;
+			slot->rec.time = _uvc_now_ns() - recorder->start_time;
+			slot->rec.pts = strmh->pts;
+			slot->rec.scr = strmh->last_scr;
+			slot->rec.seq = strmh->seq;
+			slot->rec.flags = strmh->bfh_err;
+			slot->frame_format = strmh->frame_format;
+			slot->format_index = strmh->cur_ctrl.bFormatIndex;
+			slot->frame_index = strmh->cur_ctrl.bFrameIndex;
+			slot->frame_interval = strmh->cur_ctrl.dwFrameInterval;
+			if (LIKELY(slot->valid)) {
+				memcpy(slot->data, strmh->outbuf, bytes);
+			}
+			// can not fail, there are only UVC_RECORD_SLOTS slots
+			_ring_put(&recorder->full_ring, slot);
+			sem_post(&recorder->sem);
+		} else {
+			__atomic_add_fetch(&recorder->dropped, 1, __ATOMIC_RELAXED);
+		}
+	}
+	__atomic_sub_fetch(&devh->recorder_users, 1, __ATOMIC_SEQ_CST);
+}
+
+static int _recorder_write(struct uvc_recorder *recorder, const void *data, size_t bytes) {
+	if (UNLIKELY(bytes && fwrite(data, bytes, 1, recorder->fp) != 1)) {
+		if (!recorder->write_error) {
+			LOGE("recording write failed:errno=%d", errno);
+		}
+		recorder->write_error = 1;
+		return 0;
+	}
+	recorder->offset += bytes;
+	return 1;
+}
+
+static void _recorder_write_slot(struct uvc_recorder *recorder, uvc_record_slot_t *slot) {
+	if (UNLIKELY(!recorder->header_written)) {
+		uvc_frame_desc_t *frame_desc = uvc_find_frame_desc(recorder->devh,
+			slot->format_index, slot->frame_index);
+		uvc_record_header_t *header = &recorder->header;
+		header->magic = UVC_RECORD_MAGIC;
+		header->version = UVC_RECORD_VERSION;
+		header->header_bytes = sizeof(uvc_record_header_t);
+		header->frame_format = slot->frame_format;
+		header->width = frame_desc ? frame_desc->wWidth : 0;
+		header->height = frame_desc ? frame_desc->wHeight : 0;
+		header->frame_interval = slot->frame_interval;
+		header->start_time = recorder->start_time;
+		recorder->format_index = slot->format_index;
+		recorder->frame_index = slot->frame_index;
+		recorder->header_written = _recorder_write(recorder, header, sizeof(*header));
+		if (UNLIKELY(!recorder->header_written)) return;
+	} else if (UNLIKELY(slot->format_index != recorder->format_index
+			|| slot->frame_index != recorder->frame_index)) {
+		// one recording holds one format and size
+		__atomic_add_fetch(&recorder->dropped, 1, __ATOMIC_RELAXED);
+		return;
+	}
+	if (UNLIKELY(recorder->frames >= recorder->index_capacity)) {
+		const uint32_t capacity = recorder->index_capacity ? recorder->index_capacity * 2 : 1024;
+		uvc_record_index_t *index = realloc(recorder->index, capacity * sizeof(uvc_record_index_t));
+		if (UNLIKELY(!index)) {
+			__atomic_add_fetch(&recorder->dropped, 1, __ATOMIC_RELAXED);
+			return;
+		}
+		recorder->index = index;
+		recorder->index_capacity = capacity;
+	}
+	const uint64_t offset = recorder->offset;
+	if (LIKELY(_recorder_write(recorder, &slot->rec, sizeof(slot->rec))
+			&& _recorder_write(recorder, slot->data, slot->rec.bytes))) {
+		recorder->index[recorder->frames].offset = offset;
+		recorder->index[recorder->frames].time = slot->rec.time;
+		recorder->bytes += sizeof(slot->rec) + slot->rec.bytes;
+		recorder->frames++;
+	} else {
+		__atomic_add_fetch(&recorder->dropped, 1, __ATOMIC_RELAXED);
+	}
+}
+
+static void *_recorder_thread(void *arg) {
+	struct uvc_recorder *recorder = (struct uvc_recorder *) arg;
+	for ( ; ; ) {
+		while (sem_wait(&recorder->sem) && errno == EINTR) {}
+		uvc_record_slot_t *slot;
+		while ((slot = _ring_get(&recorder->full_ring))) {
+			if (LIKELY(slot->valid)) {
+				if (LIKELY(!recorder->write_error)) {
+					_recorder_write_slot(recorder, slot);
+				} else {
+					__atomic_add_fetch(&recorder->dropped, 1, __ATOMIC_RELAXED);
+				}
+			} else {
+				// frame was larger than the slots, grow them all to the receive buffer size as they come back
+				__atomic_add_fetch(&recorder->dropped, 1, __ATOMIC_RELAXED);
+				const size_t need = slot->size_buf > slot->rec.bytes ? slot->size_buf : slot->rec.bytes;
+				if (need > recorder->slot_bytes) {
+					recorder->slot_bytes = need;
+				}
+			}
+			_slot_reserve(slot, recorder->slot_bytes);
+			_ring_put(&recorder->free_ring, slot);
+		}
+		if (UNLIKELY(!recorder->running)) break;
+	}
+	return NULL;
+}
+
+static void _recorder_free(struct uvc_recorder *recorder) {
+	int i;
+	for (i = 0; i < UVC_RECORD_SLOTS; i++) {
+		free(recorder->slots[i].data);
+	}
+	free(recorder->index);
+	if (recorder->fp) {
+		fclose(recorder->fp);
+	}
+	free(recorder->file_buffer);
+	sem_destroy(&recorder->sem);
+	free(recorder);
+}
+
+/** @brief Start recording the raw frames of the streams of a device
+ * @ingroup record
+ *
+ * Can be called before or while streaming, frames are appended to path until
+ * uvc_stop_recording or uvc_close.
+ *
+ * @param devh UVC device
+ * @param path file to create
+ * @param frame_bytes expected frame size to preallocate, slots grow if frames are larger
+ */
+uvc_error_t uvc_start_recording(uvc_device_handle_t *devh, const char *path, size_t frame_bytes) {
+	int i;
+	if (UNLIKELY(!devh || !path)) {
+		return UVC_ERROR_INVALID_PARAM;
+	}
+	if (UNLIKELY(devh->recorder)) {
+		return UVC_ERROR_BUSY;
+	}
+	struct uvc_recorder *recorder = calloc(1, sizeof(*recorder));
+	if (UNLIKELY(!recorder)) {
+		return UVC_ERROR_NO_MEM;
+	}
+	recorder->devh = devh;
+	sem_init(&recorder->sem, 0, 0);
+	if (!frame_bytes && devh->streams && devh->streams->running) {
+		frame_bytes = devh->streams->size_buf;
+	}
+	recorder->slot_bytes = frame_bytes;
+	for (i = 0; i < UVC_RECORD_SLOTS; i++) {
+		if (UNLIKELY(!_slot_reserve(&recorder->slots[i], frame_bytes))) {
+			_recorder_free(recorder);
+			return UVC_ERROR_NO_MEM;
+		}
+		_ring_put(&recorder->free_ring, &recorder->slots[i]);
+	}
+	recorder->fp = fopen(path, "wb");
+	if (UNLIKELY(!recorder->fp)) {
+		LOGE("could not create %s:errno=%d", path, errno);
+		_recorder_free(recorder);
+		return UVC_ERROR_ACCESS;
+	}
+	recorder->file_buffer = malloc(UVC_RECORD_FILE_BUFFER);
+	if (LIKELY(recorder->file_buffer)) {
+		setvbuf(recorder->fp, recorder->file_buffer, _IOFBF, UVC_RECORD_FILE_BUFFER);
+	}
+	recorder->start_time = _uvc_now_ns();
+	recorder->running = 1;
+	if (UNLIKELY(pthread_create(&recorder->thread, NULL, _recorder_thread, (void *) recorder))) {
+		_recorder_free(recorder);
+		return UVC_ERROR_OTHER;
+	}
+	__atomic_store_n(&devh->recorder, recorder, __ATOMIC_SEQ_CST);
+	return UVC_SUCCESS;
+}
+
+/** @brief Stop recording, write the index and close the file
+ * @ingroup record
+ *
+ * @param devh UVC device
+ */
+uvc_error_t uvc_stop_recording(uvc_device_handle_t *devh) {
+	if (UNLIKELY(!devh)) {
+		return UVC_ERROR_INVALID_PARAM;
+	}
+	struct uvc_recorder *recorder = __atomic_exchange_n(&devh->recorder, NULL, __ATOMIC_SEQ_CST);
+	if (UNLIKELY(!recorder)) {
+		return UVC_ERROR_INVALID_PARAM;
+	}
+	// wait for a USB thread that picked up the recorder before it was detached
+	while (__atomic_load_n(&devh->recorder_users, __ATOMIC_SEQ_CST)) {
+		usleep(100);
+	}
+	recorder->running = 0;
+	sem_post(&recorder->sem);
+	pthread_join(recorder->thread, NULL);
+
+	uvc_error_t ret = UVC_SUCCESS;
+	if (recorder->header_written && !recorder->write_error) {
+		uvc_record_trailer_t trailer;
+		trailer.magic = UVC_RECORD_INDEX_MAGIC;
+		trailer.frames = recorder->frames;
+		trailer.index_offset = recorder->offset;
+		if (UNLIKELY(!_recorder_write(recorder, recorder->index, recorder->frames * sizeof(uvc_record_index_t))
+				|| !_recorder_write(recorder, &trailer, sizeof(trailer)))) {
+			ret = UVC_ERROR_IO;
+		}
+	}
+	if (UNLIKELY(fclose(recorder->fp) || recorder->write_error)) {
+		ret = UVC_ERROR_IO;
+	}
+	recorder->fp = NULL;
+	LOGI("recorded %u frames, %u dropped", recorder->frames, recorder->dropped);
+	_recorder_free(recorder);
+	return ret;
+}
+
+/** @brief Counters of the running recording
+ * @ingroup record
+ *
+ * @param devh UVC device
+ * @param[out] frames frames written
+ * @param[out] dropped frames not recorded because the I/O thread fell behind, or failed to write
+ * @param[out] bytes bytes written
+ */
+uvc_error_t uvc_get_recording_stats(uvc_device_handle_t *devh,
+		uint32_t *frames, uint32_t *dropped, uint64_t *bytes) {
+	uvc_error_t ret = UVC_ERROR_INVALID_PARAM;
+	__atomic_add_fetch(&devh->recorder_users, 1, __ATOMIC_SEQ_CST);
+	struct uvc_recorder *recorder = __atomic_load_n(&devh->recorder, __ATOMIC_SEQ_CST);
+	if (LIKELY(recorder)) {
+		if (frames) *frames = recorder->frames;
+		if (dropped) *dropped = recorder->dropped;
+		if (bytes) *bytes = recorder->bytes;
+		ret = UVC_SUCCESS;
+	}
+	__atomic_sub_fetch(&devh->recorder_users, 1, __ATOMIC_SEQ_CST);
+	return ret;
+}
@@ -0,0 +1,520 @@
+/*********************************************************************
+ * XXX added
+ * frame sources that call a uvc_frame_callback_t like uvc_start_streaming_bandwidth does,
+ * but without a device: a pattern generator (YUYV / MJPEG) and a replayer of raw stream recordings.
+ * they let the preview / conversion / capture path run without a camera on the bus.
+ *********************************************************************/
+/**
+ * @defgroup source Frame sources
+ * @brief Feed frame callbacks without a device
+ */
+#include "libuvc/libuvc.h"
+#include "libuvc/libuvc_internal.h"
+#include <stdio.h>
+#include <string.h>
+#include <errno.h>
+#include <time.h>
+#include <sys/time.h>
+#include <setjmp.h>
+#include <jpeglib.h>
+
+#define SOURCE_SYNTHETIC	0
+#define SOURCE_REPLAY		1
+// MJPEG frames encoded once and cycled by the synthetic source
+#define SYNTHETIC_MJPEG_FRAMES	8
+// rows at the top of a synthetic frame carrying the frame number as 32 black/white blocks
+#define SYNTHETIC_COUNTER_ROWS	16
+#define SYNTHETIC_JPEG_QUALITY	80
+#define NSEC_PER_SEC			1000000000LL
+
+struct uvc_frame_source {
+	int type;
+	enum uvc_frame_format format;
+	int width, height;
+	/** ns between frames, 0 delivers as fast as the callback returns */
+	uint64_t interval_ns;
+	uvc_frame_callback_t *cb;
+	void *user_ptr;
+	uint8_t flags;
+	pthread_t thread;
+	volatile int running;
+	uvc_frame_t frame;
+	size_t size_buf;
+	uint32_t seq;
+	/* synthetic */
+	uint8_t *jpeg[SYNTHETIC_MJPEG_FRAMES];
+	unsigned long jpeg_bytes[SYNTHETIC_MJPEG_FRAMES];
+	/* replay */
+	FILE *fp;
+	uvc_record_index_t *index;
+	int frames;
+	volatile int position;
+	int realtime, loop;
+};
+
+/* 75% color bars, Y U V */
+static const uint8_t bars[8][3] = {
+	{180, 128, 128}, {162, 44, 142}, {131, 156, 44}, {112, 72, 58},
+	{84, 184, 198}, {65, 100, 212}, {35, 212, 114}, {16, 128, 128},
+};
+
+static void _sleep_until(uint64_t deadline_ns) {
+	struct timespec ts;
+	ts.tv_sec = deadline_ns / NSEC_PER_SEC;
+	ts.tv_nsec = deadline_ns % NSEC_PER_SEC;
+	while (clock_nanosleep(CLOCK_MONOTONIC, TIMER_ABSTIME, &ts, NULL) == EINTR) {}
+}
+
+/* make sure frame holds bytes, the buffer never shrinks below size_buf so frame pools keyed by size keep working */
+static uvc_error_t _source_reserve(uvc_frame_source_t *source, size_t bytes) {
+	uvc_frame_t *frame = &source->frame;
+	const size_t need = bytes > source->size_buf ? bytes : source->size_buf;
+	if (UNLIKELY(!frame->data || frame->data_bytes < need)) {
+		void *data = realloc(frame->data, need);
+		if (UNLIKELY(!data)) {
+			return UVC_ERROR_NO_MEM;
+		}
+		frame->data = data;
+		frame->data_bytes = need;
+	}
+	frame->actual_bytes = bytes;
+	return UVC_SUCCESS;
+}
+
+static uvc_frame_source_t *_source_alloc(int type) {
+	uvc_frame_source_t *source = calloc(1, sizeof(*source));
+	if (LIKELY(source)) {
+		source->type = type;
+		source->frame.library_owns_data = 1;
+	}
+	return source;
+}
+
+/*********************************************************************
+ * synthetic
+ *********************************************************************/
+
+/**
+ * color bars scrolled by the frame number with the frame number as binary blocks on top
+ */
+static void _synthetic_fill_yuyv(uint8_t *dst, int width, int height, uint32_t n) {
+	const int step = width * 2;
+	const int shift = (n * 4) % width;
+	const int block = width / 32 > 0 ? width / 32 : 1;
+	int x, y;
+	// counter rows
+	for (x = 0; x < width; x += 2) {
+		const int bit = x / block;
+		const uint8_t luma = (bit < 32) && ((n >> (31 - bit)) & 1) ? 235 : 16;
+		dst[x * 2] = dst[x * 2 + 2] = luma;
+		dst[x * 2 + 1] = dst[x * 2 + 3] = 128;
+	}
+	const int counter_rows = height < SYNTHETIC_COUNTER_ROWS ? height : SYNTHETIC_COUNTER_ROWS;
+	for (y = 1; y < counter_rows; y++) {
+		memcpy(dst + y * step, dst, step);
+	}
+	if (counter_rows >= height) return;
+	// bars
+	uint8_t *row = dst + counter_rows * step;
+	for (x = 0; x < width; x += 2) {
+		const uint8_t *bar = bars[(((x + shift) % width) * 8) / width];
+		row[x * 2] = row[x * 2 + 2] = bar[0];
+		row[x * 2 + 1] = bar[1];
+		row[x * 2 + 3] = bar[2];
+	}
+	for (y = counter_rows + 1; y < height; y++) {
+		memcpy(dst + y * step, row, step);
+	}
+}
+
+struct _source_jpeg_error {
+	struct jpeg_error_mgr super;
+	jmp_buf jmp;
+};
+
+static void _source_jpeg_error_exit(j_common_ptr cinfo) {
+	struct _source_jpeg_error *err = (struct _source_jpeg_error *) cinfo->err;
+	longjmp(err->jmp, 1);
+}
+
+/**
+ * encode a synthetic YUYV image as 4:2:2 baseline JPEG like most UVC cameras send
+ */
+static uvc_error_t _synthetic_encode(const uint8_t *yuyv, int width, int height,
+		uint8_t **jpeg, unsigned long *jpeg_bytes) {
+	struct jpeg_compress_struct cinfo;
+	struct _source_jpeg_error jerr;
+	uint8_t *line = malloc(width * 3);
+	if (UNLIKELY(!line)) {
+		return UVC_ERROR_NO_MEM;
+	}
+	*jpeg = NULL;
+	*jpeg_bytes = 0;
+	cinfo.err = jpeg_std_error(&jerr.super);
+	jerr.super.error_exit = _source_jpeg_error_exit;
+	if (setjmp(jerr.jmp)) {
+		jpeg_destroy_compress(&cinfo);
+		free(line);
+		free(*jpeg);
+		*jpeg = NULL;
+		return UVC_ERROR_OTHER;
+	}
+	jpeg_create_compress(&cinfo);
+	jpeg_mem_dest(&cinfo, jpeg, jpeg_bytes);
+	cinfo.image_width = width;
+	cinfo.image_height = height;
+	cinfo.input_components = 3;
+	cinfo.in_color_space = JCS_YCbCr;
+	jpeg_set_defaults(&cinfo);
+	jpeg_set_quality(&cinfo, SYNTHETIC_JPEG_QUALITY, TRUE);
+	cinfo.comp_info[0].h_samp_factor = 2;
+	cinfo.comp_info[0].v_samp_factor = 1;
+	jpeg_start_compress(&cinfo, TRUE);
+	while (cinfo.next_scanline < cinfo.image_height) {
+		const uint8_t *src = yuyv + cinfo.next_scanline * width * 2;
+		int x;
+		for (x = 0; x < width; x += 2, src += 4) {
+			line[x * 3] = src[0];
+			line[x * 3 + 1] = line[x * 3 + 4] = src[1];
+			line[x * 3 + 2] = line[x * 3 + 5] = src[3];
+			line[x * 3 + 3] = src[2];
+		}
+		JSAMPROW row = line;
+		jpeg_write_scanlines(&cinfo, &row, 1);
+	}
+	jpeg_finish_compress(&cinfo);
+	jpeg_destroy_compress(&cinfo);
+	free(line);
+	return UVC_SUCCESS;
+}
+
+static uvc_error_t _synthetic_next(uvc_frame_source_t *source) {
+	uvc_error_t ret;
+	if (source->format == UVC_FRAME_FORMAT_MJPEG) {
+		const int ix = source->seq % SYNTHETIC_MJPEG_FRAMES;
+		ret = _source_reserve(source, source->jpeg_bytes[ix]);
+		if (LIKELY(!ret)) {
+			memcpy(source->frame.data, source->jpeg[ix], source->jpeg_bytes[ix]);
+		}
+	} else {
+		ret = _source_reserve(source, source->width * source->height * 2);
+		if (LIKELY(!ret)) {
+			_synthetic_fill_yuyv(source->frame.data, source->width, source->height, source->seq);
+		}
+	}
+	return ret;
+}
+
+/** @brief Create a source generating a test pattern
+ * @ingroup source
+ *
+ * YUYV frames carry the frame number in the top rows, MJPEG frames cycle
+ * SYNTHETIC_MJPEG_FRAMES pre-encoded images carrying frame number modulo that count.
+ *
+ * @param[out] source new source
+ * @param format UVC_FRAME_FORMAT_YUYV or UVC_FRAME_FORMAT_MJPEG
+ * @param width even width
+ * @param height height
+ * @param fps frames per second, 0 to deliver as fast as the callback returns
+ */
+uvc_error_t uvc_source_create_synthetic(uvc_frame_source_t **source,
+		enum uvc_frame_format format, int width, int height, int fps) {
+	uvc_error_t ret = UVC_SUCCESS;
+	int i;
+	if (UNLIKELY(!source || width < 2 || (width & 1) || height < 1 || fps < 0
+			|| (format != UVC_FRAME_FORMAT_YUYV && format != UVC_FRAME_FORMAT_MJPEG))) {
+		return UVC_ERROR_INVALID_PARAM;
+	}
+	uvc_frame_source_t *src = _source_alloc(SOURCE_SYNTHETIC);
+	if (UNLIKELY(!src)) {
+		return UVC_ERROR_NO_MEM;
+	}
+	src->format = format;
+	src->width = width;
+	src->height = height;
+	src->interval_ns = fps ? NSEC_PER_SEC / fps : 0;
+	src->size_buf = width * height * 2;
+	if (format == UVC_FRAME_FORMAT_MJPEG) {
+		uint8_t *yuyv = malloc(src->size_buf);
+		if (UNLIKELY(!yuyv)) {
+			ret = UVC_ERROR_NO_MEM;
+		}
+		for (i = 0; !ret && i < SYNTHETIC_MJPEG_FRAMES; i++) {
+			_synthetic_fill_yuyv(yuyv, width, height, i);
+			ret = _synthetic_encode(yuyv, width, height, &src->jpeg[i], &src->jpeg_bytes[i]);
+		}
+		free(yuyv);
+	}
+	if (UNLIKELY(ret)) {
+		uvc_source_destroy(src);
+		src = NULL;
+	}
+	*source = src;
+	return ret;
+}
+
+/*********************************************************************
+ * replay
+ *********************************************************************/
+
+/* rebuild the index of a recording that was not closed properly */
+static uvc_error_t _replay_scan(uvc_frame_source_t *source, uint64_t offset) {
+	uvc_record_frame_t rec;
+	int capacity = 0;
+	source->frames = 0;
+	for ( ; ; ) {
+		if (fseeko(source->fp, (off_t) offset, SEEK_SET)
+			|| fread(&rec, sizeof(rec), 1, source->fp) != 1
+			|| rec.magic != UVC_RECORD_FRAME_MAGIC) {
+			break;
+		}
+		if (source->frames >= capacity) {
+			capacity = capacity ? capacity * 2 : 256;
+			uvc_record_index_t *index = realloc(source->index, capacity * sizeof(uvc_record_index_t));
+			if (UNLIKELY(!index)) {
+				return UVC_ERROR_NO_MEM;
+			}
+			source->index = index;
+		}
+		source->index[source->frames].offset = offset;
+		source->index[source->frames].time = rec.time;
+		source->frames++;
+		offset += sizeof(rec) + rec.bytes;
+	}
+	return UVC_SUCCESS;
+}
+
+static uvc_error_t _replay_open(uvc_frame_source_t *source, const char *path) {
+	uvc_record_header_t header;
+	uvc_record_trailer_t trailer;
+	source->fp = fopen(path, "rb");
+	if (UNLIKELY(!source->fp)) {
+		LOGE("could not open %s", path);
+		return UVC_ERROR_NOT_FOUND;
+	}
+	if (UNLIKELY(fread(&header, sizeof(header), 1, source->fp) != 1
+			|| header.magic != UVC_RECORD_MAGIC
+			|| header.version > UVC_RECORD_VERSION
+			|| header.header_bytes < sizeof(header))) {
+		LOGE("not a stream recording:%s", path);
+		return UVC_ERROR_INVALID_PARAM;
+	}
+	source->format = header.frame_format;
+	source->width = header.width;
+	source->height = header.height;
+	source->interval_ns = (uint64_t) header.frame_interval * 100;
+	source->size_buf = header.width * header.height * 2;
+	// index written when the recording was closed
+	if (!fseeko(source->fp, -(off_t) sizeof(trailer), SEEK_END)
+		&& fread(&trailer, sizeof(trailer), 1, source->fp) == 1
+		&& trailer.magic == UVC_RECORD_INDEX_MAGIC && trailer.frames > 0) {
+		source->index = malloc(trailer.frames * sizeof(uvc_record_index_t));
+		if (UNLIKELY(!source->index)) {
+			return UVC_ERROR_NO_MEM;
+		}
+		if (!fseeko(source->fp, (off_t) trailer.index_offset, SEEK_SET)
+			&& fread(source->index, sizeof(uvc_record_index_t), trailer.frames, source->fp) == trailer.frames) {
+			source->frames = trailer.frames;
+			return UVC_SUCCESS;
+		}
+	}
+	return _replay_scan(source, header.header_bytes);
+}
+
+static uvc_error_t _replay_next(uvc_frame_source_t *source, uint64_t *time) {
+	uvc_record_frame_t rec;
+	int position;
+	for ( ; ; ) {
+		position = source->position;
+		if (position >= source->frames) {
+			return UVC_ERROR_NOT_FOUND;
+		}
+		if (UNLIKELY(fseeko(source->fp, (off_t) source->index[position].offset, SEEK_SET)
+				|| fread(&rec, sizeof(rec), 1, source->fp) != 1
+				|| rec.magic != UVC_RECORD_FRAME_MAGIC)) {
+			return UVC_ERROR_IO;
+		}
+		if (LIKELY(!rec.flags)) break;
+		// frames received with error bits are not delivered by the stream either
+		__sync_bool_compare_and_swap(&source->position, position, position + 1);
+	}
+	uvc_error_t ret = _source_reserve(source, rec.bytes);
+	if (LIKELY(!ret)) {
+		if (UNLIKELY(fread(source->frame.data, 1, rec.bytes, source->fp) != rec.bytes)) {
+			ret = UVC_ERROR_IO;
+		}
+	}
+	__sync_bool_compare_and_swap(&source->position, position, position + 1);
+	*time = rec.time;
+	// the recorded device clock, there is no live clock fit to map it
+	source->frame.pts = rec.pts;
+	source->frame.scr = rec.scr;
+	return ret;
+}
+
+/** @brief Create a source replaying a raw stream recording
+ * @ingroup source
+ *
+ * @param[out] source new source
+ * @param path recording
+ * @param realtime 1 to keep the recorded frame timing, 0 to deliver as fast as the callback returns
+ * @param loop 1 to start over at the end of the recording
+ */
+uvc_error_t uvc_source_create_replay(uvc_frame_source_t **source,
+		const char *path, int realtime, int loop) {
+	if (UNLIKELY(!source || !path)) {
+		return UVC_ERROR_INVALID_PARAM;
+	}
+	uvc_frame_source_t *src = _source_alloc(SOURCE_REPLAY);
+	if (UNLIKELY(!src)) {
+		return UVC_ERROR_NO_MEM;
+	}
+	src->realtime = realtime;
+	src->loop = loop;
+	uvc_error_t ret = _replay_open(src, path);
+	if (UNLIKELY(ret)) {
+		uvc_source_destroy(src);
+		src = NULL;
+	}
+	*source = src;
+	return ret;
+}
+
+/*********************************************************************
+ * common
+ *********************************************************************/
+
+static void *_source_thread(void *arg) {
+	uvc_frame_source_t *source = (uvc_frame_source_t *) arg;
+	uvc_frame_t *frame = &source->frame;
+	uint64_t base = _uvc_now_ns();
+	uint64_t first = 0, time = 0, deadline = base;
+	int started = 0;
+	for ( ; LIKELY(source->running) ; ) {
+		uvc_error_t ret;
+		if (source->type == SOURCE_REPLAY) {
+			ret = _replay_next(source, &time);
+			if (ret == UVC_ERROR_NOT_FOUND && source->loop && source->frames) {
+				source->position = 0;
+				started = 0;
+				continue;
+			}
+		} else {
+			ret = _synthetic_next(source);
+		}
+		if (UNLIKELY(ret)) {
+			if (ret != UVC_ERROR_NOT_FOUND) {
+				LOGE("frame source failed:err=%d", ret);
+			}
+			break;
+		}
+		// pace like the device would
+		const uint64_t now = _uvc_now_ns();
+		if (source->type == SOURCE_REPLAY && source->realtime) {
+			if (!started) {
+				base = now;
+				first = time;
+				started = 1;
+			}
+			deadline = base + (time - first);
+		} else if (source->type == SOURCE_SYNTHETIC && source->interval_ns) {
+			deadline += source->interval_ns;
+			if (deadline + source->interval_ns < now) {
+				// the callback fell behind, do not burst to catch up
+				deadline = now;
+			}
+		} else {
+			deadline = now;
+		}
+		if (deadline > now) {
+			_sleep_until(deadline);
+		}
+		frame->frame_format = source->format;
+		frame->width = source->width;
+		frame->height = source->height;
+		frame->step = source->format == UVC_FRAME_FORMAT_YUYV ? source->width * 2 : 0;
+		frame->sequence = source->seq++;
+		frame->source = NULL;
+		gettimeofday(&frame->capture_time, NULL);
+		frame->first_payload_ns = frame->complete_ns = _uvc_now_ns();
+		frame->capture_ns = 0;
+		source->cb(frame, source->user_ptr);
+	}
+	return NULL;
+}
+
+/** @brief Start calling cb with frames from the source on a new thread
+ * @ingroup source
+ *
+ * @param flags UVC_STREAM_FLAG_ZERO_COPY is accepted, the callback may take the buffer with uvc_swap_frame
+ */
+uvc_error_t uvc_source_start(uvc_frame_source_t *source,
+		uvc_frame_callback_t *cb, void *user_ptr, uint8_t flags) {
+	if (UNLIKELY(!source || !cb)) {
+		return UVC_ERROR_INVALID_PARAM;
+	}
+	if (UNLIKELY(source->running)) {
+		return UVC_ERROR_BUSY;
+	}
+	source->cb = cb;
+	source->user_ptr = user_ptr;
+	source->flags = flags;
+	source->seq = 0;
+	source->running = 1;
+	if (UNLIKELY(pthread_create(&source->thread, NULL, _source_thread, (void *) source))) {
+		source->running = 0;
+		return UVC_ERROR_OTHER;
+	}
+	return UVC_SUCCESS;
+}
+
+/** @brief Stop the source thread, cb is not called any more when this returns
+ * @ingroup source
+ */
+void uvc_source_stop(uvc_frame_source_t *source) {
+	if (LIKELY(source && source->running)) {
+		source->running = 0;
+		pthread_join(source->thread, NULL);
+	}
+}
+
+void uvc_source_get_format(uvc_frame_source_t *source,
+		enum uvc_frame_format *format, int *width, int *height) {
+	if (format) *format = source->format;
+	if (width) *width = source->width;
+	if (height) *height = source->height;
+}
+
+/** @return frames in a recording, 0 for a synthetic source */
+int uvc_source_get_frames(uvc_frame_source_t *source) {
+	return source->type == SOURCE_REPLAY ? source->frames : 0;
+}
+
+/** @brief Continue a replay at frame, also while running
+ * @ingroup source
+ */
+uvc_error_t uvc_source_seek(uvc_frame_source_t *source, int frame) {
+	if (UNLIKELY(source->type != SOURCE_REPLAY)) {
+		return UVC_ERROR_NOT_SUPPORTED;
+	}
+	if (UNLIKELY(frame < 0 || frame >= source->frames)) {
+		return UVC_ERROR_INVALID_PARAM;
+	}
+	source->position = frame;
+	return UVC_SUCCESS;
+}
+
+void uvc_source_destroy(uvc_frame_source_t *source) {
+	int i;
+	if (UNLIKELY(!source)) return;
+	uvc_source_stop(source);
+	for (i = 0; i < SYNTHETIC_MJPEG_FRAMES; i++) {
+		free(source->jpeg[i]);
+	}
+	if (source->fp) {
+		fclose(source->fp);
+	}
+	free(source->index);
+	free(source->frame.data);
+	free(source);
+}
@@ -603,6 +603,10 @@ uvc_error_t uvc_probe_stream_ctrl(uvc_device_handle_t *devh,
 static void _uvc_swap_buffers(uvc_stream_handle_t *strmh) {
 	uint8_t *tmp_buf;
 
+	// XXX hand a copy to the recorder while outbuf still belongs to this thread
+	if (UNLIKELY(strmh->devh->recorder))
+		_uvc_record_frame(strmh);
+
 	pthread_mutex_lock(&strmh->cb_mutex);
 	{
 		/* swap the buffers */
@@ -614,6 +618,10 @@ static void _uvc_swap_buffers(uvc_stream_handle_t *strmh) {
 		strmh->hold_last_scr = strmh->last_scr;
 		strmh->hold_pts = strmh->pts;
 		strmh->hold_seq = strmh->seq;
+		strmh->hold_start_ns = strmh->start_ns;
+		strmh->hold_complete_ns = _uvc_now_ns();
+		strmh->hold_first_scr = strmh->first_scr;
+		strmh->hold_scr_ns = strmh->scr_ns;
 
 		pthread_cond_broadcast(&strmh->cb_cond);
 	}
@@ -622,6 +630,7 @@ static void _uvc_swap_buffers(uvc_stream_handle_t *strmh) {
 	strmh->seq++;
 	strmh->got_bytes = 0;
 	strmh->last_scr = 0;
+	strmh->scr_ns = 0;
 	strmh->pts = 0;
 	strmh->bfh_err = 0;	// XXX
 }
@@ -637,7 +646,7 @@ static void _uvc_delete_transfer(struct libusb_transfer *transfer) {
 	pthread_mutex_lock(&strmh->cb_mutex);	// XXX crash while calling uvc_stop_streaming
 	{
 		// Mark transfer as deleted.
-		for (i = 0; i < LIBUVC_NUM_TRANSFER_BUFS; i++) {
+		for (i = 0; i < strmh->num_transfers; i++) {
 			if (strmh->transfers[i] == transfer) {
 				libusb_cancel_transfer(strmh->transfers[i]);	// XXX 20141112追加
 				UVC_DEBUG("Freeing transfer %d (%p)", i, transfer);
@@ -647,7 +656,7 @@ static void _uvc_delete_transfer(struct libusb_transfer *transfer) {
 				break;
 			}
 		}
-		if (UNLIKELY(i == LIBUVC_NUM_TRANSFER_BUFS)) {
+		if (UNLIKELY(i == strmh->num_transfers)) {
 			UVC_DEBUG("transfer %p not found; not freeing!", transfer);
 		}
 
@@ -759,6 +768,10 @@ static void _uvc_process_payload(uvc_stream_handle_t *strmh, const uint8_t *payl
 			if (LIKELY(variable_offset + 4 <= header_len)) {
 				strmh->last_scr = DW_TO_INT(payload + variable_offset);
 				variable_offset += 4;
+				if (!strmh->scr_ns) {	// XXX sample for the clock fit
+					strmh->first_scr = strmh->last_scr;
+					strmh->scr_ns = _uvc_now_ns();
+				}
 			} else {
 				MARK("bogus packet: header info has UVC_STREAM_SCR, but no data");
 				strmh->last_scr = 0;
@@ -767,6 +780,9 @@ static void _uvc_process_payload(uvc_stream_handle_t *strmh, const uint8_t *payl
 	}
 
 	if (LIKELY(data_len > 0)) {
+		if (!strmh->got_bytes) {
+			strmh->start_ns = _uvc_now_ns();	// XXX
+		}
 		if (LIKELY(strmh->got_bytes + data_len < strmh->size_buf)) {
 			memcpy(strmh->outbuf + strmh->got_bytes, payload + header_len, data_len);
 			strmh->got_bytes += data_len;
@@ -818,6 +834,9 @@ static inline void _uvc_process_payload_iso(uvc_stream_handle_t *strmh, struct l
 	int packet_id;
 	uvc_vc_error_code_control_t vc_error_code;
 	uvc_vs_error_code_control_t vs_error_code;
+	// XXX counters for uvc_transfer_stats_t and the adaptive altsetting policy
+	uint32_t errors = 0, shorts = 0;
+	size_t max_len = 0;
 
 	for (packet_id = 0; packet_id < transfer->num_iso_packets; ++packet_id) {
 		check_header = 1;
@@ -826,12 +845,17 @@ static inline void _uvc_process_payload_iso(uvc_stream_handle_t *strmh, struct l
 
 		if (UNLIKELY(pkt->status != 0)) {
 			MARK("bad packet:status=%d,actual_length=%d", pkt->status, pkt->actual_length);
+			errors++;
 			strmh->bfh_err |= UVC_STREAM_ERR;
 			libusb_clear_halt(strmh->devh->usb_devh, strmh->stream_if->bEndpointAddress);
 //			uvc_vc_get_error_code(strmh->devh, &vc_error_code, UVC_GET_CUR);
 //			uvc_vs_get_error_code(strmh->devh, &vs_error_code, UVC_GET_CUR);
 			continue;
 		}
+		if (pkt->actual_length <= strmh->short_bytes)
+			shorts++;
+		if (pkt->actual_length > max_len)
+			max_len = pkt->actual_length;
 
 		if (UNLIKELY(!pkt->actual_length)) {	// why transfered byte is zero...
 //			MARK("zero packet (transfer):");
@@ -867,6 +891,7 @@ static inline void _uvc_process_payload_iso(uvc_stream_handle_t *strmh, struct l
 				if (UNLIKELY(header_info & UVC_STREAM_ERR)) {
 //					strmh->bfh_err |= UVC_STREAM_ERR;
 					MARK("bad packet:status=0x%2x", header_info);
+					errors++;
 					libusb_clear_halt(strmh->devh->usb_devh, strmh->stream_if->bEndpointAddress);
 //					uvc_vc_get_error_code(strmh->devh, &vc_error_code, UVC_GET_CUR);
 					uvc_vs_get_error_code(strmh->devh, &vs_error_code, UVC_GET_CUR);
@@ -900,6 +925,10 @@ static inline void _uvc_process_payload_iso(uvc_stream_handle_t *strmh, struct l
 					// XXX saki some camera may send broken packet or failed to receive all data
 					if (LIKELY(header_len >= 10)) {
 						strmh->last_scr = DW_TO_INT(pktbuf + 6);
+						if (!strmh->scr_ns) {	// XXX sample for the clock fit
+							strmh->first_scr = strmh->last_scr;
+							strmh->scr_ns = _uvc_now_ns();
+						}
 					} else {
 						MARK("bogus packet: header info has UVC_STREAM_SCR, but no data");
 						strmh->last_scr = 0;
@@ -920,6 +949,7 @@ static inline void _uvc_process_payload_iso(uvc_stream_handle_t *strmh, struct l
 			if (UNLIKELY(pkt->actual_length < header_len)) {
 				/* Bogus packet received */
 				strmh->bfh_err |= UVC_STREAM_ERR;
+				errors++;
 				MARK("bogus packet: actual_len=%d, header_len=%zd", pkt->actual_length, header_len);
 				continue;
 			}
@@ -930,11 +960,19 @@ static inline void _uvc_process_payload_iso(uvc_stream_handle_t *strmh, struct l
 			// from "if (pkt->actual_length - header_len > 0)"
 			if (LIKELY(pkt->actual_length > header_len)) {
 				const size_t odd_bytes = pkt->actual_length - header_len;
-				assert(strmh->got_bytes + odd_bytes < strmh->size_buf);
 				assert(strmh->outbuf);
-				assert(pktbuf);
-				memcpy(strmh->outbuf + strmh->got_bytes, pktbuf + header_len, odd_bytes);
-				strmh->got_bytes += odd_bytes;
+				if (!strmh->got_bytes) {
+					strmh->start_ns = _uvc_now_ns();	// XXX
+				}
+				// XXX outbuf only has frame size + slack since zero-copy, a missed EOF/FID toggle
+				// or a payload above dwMaxVideoFrameSize must drop the frame instead of overrunning it
+				if (LIKELY(strmh->got_bytes + odd_bytes < strmh->size_buf)) {
+					memcpy(strmh->outbuf + strmh->got_bytes, pktbuf + header_len, odd_bytes);
+					strmh->got_bytes += odd_bytes;
+				} else {
+					strmh->bfh_err |= UVC_STREAM_ERR;
+					MARK("frame overflow: got_bytes=%zd, odd_bytes=%zd", strmh->got_bytes, odd_bytes);
+				}
 			}
 #ifdef USE_EOF
 			if ((pktbuf[1] & UVC_STREAM_EOF) && strmh->got_bytes != 0) {
@@ -944,13 +982,72 @@ static inline void _uvc_process_payload_iso(uvc_stream_handle_t *strmh, struct l
 #endif
 		} else {	// if (LIKELY(pktbuf))
 			strmh->bfh_err |= UVC_STREAM_ERR;
+			errors++;
 			MARK("libusb_get_iso_packet_buffer_simple returned null");
 			continue;
 		}
 	}	// for
+
+	uvc_transfer_stats_t *stats = &strmh->devh->transfer_stats;
+	stats->packets += transfer->num_iso_packets;
+	stats->error_packets += errors;
+	stats->short_packets += shorts;
+	strmh->win_packets += transfer->num_iso_packets;
+	strmh->win_errors += errors;
+	strmh->win_short += shorts;
+	if (max_len > strmh->win_max_len)
+		strmh->win_max_len = max_len;
 }
 #endif
 
+/** @internal
+ * @brief XXX UVC_ALT_ADAPTIVE: decide on the altsetting once per window of packets.
+ * Packet errors step up to the next usable altsetting and keep the stream from coming back below it,
+ * an error free window whose packets all fit a smaller altsetting steps down to the smallest one
+ * that still leaves 25% headroom over the largest packet seen.
+ * The switch itself needs the transfers cancelled, so it is handed to _uvc_user_caller.
+ * Called on the USB thread.
+ */
+static void _uvc_adapt_check(uvc_stream_handle_t *strmh) {
+	int alt, i;
+
+	// the switch needs the callback thread, polling streams (no uvc_frame_callback_t) keep their altsetting
+	if (strmh->win_packets < LIBUVC_ADAPT_WINDOW_PACKETS
+		|| strmh->adapt_alt >= 0 || strmh->switching || !strmh->user_cb)
+		return;
+
+	alt = strmh->cur_alt;
+	if (strmh->win_errors * 1000ULL > (uint64_t)strmh->win_packets * strmh->plan.error_permille) {
+		for (i = strmh->cur_alt + 1; i < strmh->num_alt; i++) {
+			if (strmh->alt_bytes[i] > strmh->alt_bytes[strmh->cur_alt]) {
+				alt = strmh->adapt_floor = i;
+				break;
+			}
+		}
+	} else if (!strmh->win_errors && (strmh->win_short == strmh->win_packets)) {
+		const size_t need_bytes = strmh->win_max_len + strmh->win_max_len / 4;
+		for (i = strmh->adapt_floor; i < strmh->cur_alt; i++) {
+			if (strmh->alt_bytes[i] && (strmh->alt_bytes[i] >= need_bytes)
+				&& (strmh->alt_bytes[i] < strmh->alt_bytes[strmh->cur_alt])) {
+				alt = i;
+				break;
+			}
+		}
+	}
+	strmh->win_packets = strmh->win_errors = strmh->win_short = 0;
+	strmh->win_max_len = 0;
+
+	if (alt != strmh->cur_alt) {
+		MARK("adaptive altsetting %d -> %d", strmh->cur_alt, alt);
+		pthread_mutex_lock(&strmh->cb_mutex);
+		{
+			strmh->adapt_alt = alt;
+			pthread_cond_broadcast(&strmh->cb_cond);
+		}
+		pthread_mutex_unlock(&strmh->cb_mutex);
+	}
+}
+
 /** @internal
  * @brief Isochronous transfer callback
  * 
@@ -980,6 +1077,8 @@ static void _uvc_stream_callback(struct libusb_transfer *transfer) {
 		} else {
 			/* This is an isochronous mode transfer, so each packet has a payload transfer */
 			_uvc_process_payload_iso(strmh, transfer);
+			if (strmh->plan.alt_policy == UVC_ALT_ADAPTIVE)
+				_uvc_adapt_check(strmh);
 		}
 	    break;
 	case LIBUSB_TRANSFER_NO_DEVICE:
@@ -1000,7 +1099,7 @@ static void _uvc_stream_callback(struct libusb_transfer *transfer) {
 		break;
 	}
 
-	if (LIKELY(strmh->running && resubmit)) {
+	if (LIKELY(strmh->running && !strmh->switching && resubmit)) {
 		libusb_submit_transfer(transfer);
 	} else {
 		// XXX delete non-reusing transfer
@@ -1152,11 +1251,15 @@ static void _uvc_iso_callback(struct libusb_transfer *transfer) {
 				// from "if (pkt->actual_length - header_len > 0)"
 				if (LIKELY(pkt->actual_length > header_len)) {
 					const size_t odd_bytes = pkt->actual_length - header_len;
-					assert(strmh->got_bytes + odd_bytes < strmh->size_buf);
 					assert(strmh->outbuf);
-					assert(pktbuf);
-					memcpy(strmh->outbuf + strmh->got_bytes, pktbuf + header_len, odd_bytes);
-					strmh->got_bytes += odd_bytes;
+					// XXX drop the frame instead of overrunning outbuf, see _uvc_process_payload_iso
+					if (LIKELY(strmh->got_bytes + odd_bytes < strmh->size_buf)) {
+						memcpy(strmh->outbuf + strmh->got_bytes, pktbuf + header_len, odd_bytes);
+						strmh->got_bytes += odd_bytes;
+					} else {
+						strmh->bfh_err |= UVC_STREAM_ERR;
+						MARK("frame overflow: got_bytes=%zd, odd_bytes=%zd", strmh->got_bytes, odd_bytes);
+					}
 				}
 #ifdef USE_EOF
 				if ((pktbuf[1] & STREAM_HEADER_BFH_EOF) && strmh->got_bytes != 0) {
@@ -1356,6 +1459,312 @@ fail:
 	return ret;
 }
 
+/** XXX Set the transfer plan used by the following uvc_start_streaming* / uvc_stream_start*
+ * of this device, streams that are already running keep their plan.
+ * @ingroup streaming
+ *
+ * @param devh UVC device
+ * @param plan NULL restores the defaults
+ */
+uvc_error_t uvc_set_transfer_plan(uvc_device_handle_t *devh, const uvc_transfer_plan_t *plan) {
+	if (UNLIKELY(!devh))
+		return UVC_ERROR_INVALID_PARAM;
+	if (!plan) {
+		memset(&devh->transfer_plan, 0, sizeof(devh->transfer_plan));
+		return UVC_SUCCESS;
+	}
+	if (UNLIKELY((plan->transfers < 0) || (plan->transfers > LIBUVC_MAX_TRANSFER_BUFS)
+		|| (plan->packets < 0) || (plan->packets > LIBUVC_MAX_ISO_PACKETS)
+		|| (plan->alt_policy < UVC_ALT_FIT) || (plan->alt_policy > UVC_ALT_ADAPTIVE)
+		|| (plan->error_permille < 0) || (plan->error_permille > 1000))) {
+		return UVC_ERROR_INVALID_PARAM;
+	}
+	devh->transfer_plan = *plan;
+	return UVC_SUCCESS;
+}
+
+/** XXX Get the transfer counters of the stream currently running on this device.
+ * @ingroup streaming
+ *
+ * @param devh UVC device
+ * @param stats filled with the counters since the stream started, not atomic across fields
+ */
+uvc_error_t uvc_get_transfer_stats(uvc_device_handle_t *devh, uvc_transfer_stats_t *stats) {
+	if (UNLIKELY(!devh || !stats))
+		return UVC_ERROR_INVALID_PARAM;
+	*stats = devh->transfer_stats;
+	return UVC_SUCCESS;
+}
+
+/** XXX Get the device clock fit of the stream currently running on this device.
+ * @ingroup streaming
+ *
+ * @param devh UVC device
+ * @param estimate filled with the fit as of the last frame, zero until a frame with SCR arrived
+ */
+uvc_error_t uvc_get_clock_estimate(uvc_device_handle_t *devh, uvc_clock_estimate_t *estimate) {
+	if (UNLIKELY(!devh || !estimate))
+		return UVC_ERROR_INVALID_PARAM;
+	*estimate = devh->clock_estimate;
+	return UVC_SUCCESS;
+}
+
+/** @internal
+ * @brief XXX copy the transfer plan of the device into the stream and fill in the defaults
+ */
+static void _uvc_resolve_transfer_plan(uvc_stream_handle_t *strmh) {
+	uvc_transfer_plan_t *plan = &strmh->plan;
+
+	*plan = strmh->devh->transfer_plan;
+	if (!plan->transfers)
+		plan->transfers = LIBUVC_NUM_TRANSFER_BUFS;
+	if (!plan->packets)
+		plan->packets = LIBUVC_NUM_ISO_PACKETS;
+	if (!plan->error_permille)
+		plan->error_permille = LIBUVC_ADAPT_ERROR_PERMILLE;
+	strmh->num_transfers = plan->transfers;
+
+	strmh->cur_alt = 0;
+	strmh->short_bytes = 0;
+	strmh->adapt_alt = -1;
+	strmh->adapt_floor = 0;
+	strmh->switching = 0;
+	strmh->win_packets = strmh->win_errors = strmh->win_short = 0;
+	strmh->win_max_len = 0;
+	memset(&strmh->devh->transfer_stats, 0, sizeof(strmh->devh->transfer_stats));
+}
+
+/** @internal
+ * @brief XXX fill strmh->alt_bytes with the packet size of the streaming endpoint in each altsetting
+ */
+static void _uvc_scan_altsettings(uvc_stream_handle_t *strmh,
+		const struct libusb_interface *interface, uint8_t endpoint_address) {
+	const struct libusb_interface_descriptor *altsetting;
+	const struct libusb_endpoint_descriptor *endpoint;
+	size_t endpoint_bytes_per_packet;
+	int alt_idx, ep_idx;
+
+	strmh->num_alt = interface->num_altsetting < LIBUVC_MAX_ALTSETTINGS
+		? interface->num_altsetting : LIBUVC_MAX_ALTSETTINGS;
+	for (alt_idx = 0; alt_idx < strmh->num_alt; alt_idx++) {
+		altsetting = interface->altsetting + alt_idx;
+		endpoint_bytes_per_packet = 0;
+
+		/* Find the endpoint with the number specified in the VS header */
+		for (ep_idx = 0; ep_idx < altsetting->bNumEndpoints; ep_idx++) {
+			endpoint = altsetting->endpoint + ep_idx;
+			if (endpoint->bEndpointAddress == endpoint_address) {
+				endpoint_bytes_per_packet = endpoint->wMaxPacketSize;
+				// wMaxPacketSize: [unused:2 (multiplier-1):3 size:11]
+				// bit10…0:		maximum packet size
+				// bit12…11:	the number of additional transaction opportunities per microframe for high-speed
+				//				00 = None (1 transaction per microframe)
+				//				01 = 1 additional (2 per microframe)
+				//				10 = 2 additional (3 per microframe)
+				//				11 = Reserved
+				endpoint_bytes_per_packet
+					= (endpoint_bytes_per_packet & 0x07ff)
+						* (((endpoint_bytes_per_packet >> 11) & 3) + 1);
+				break;
+			}
+		}
+		strmh->alt_bytes[alt_idx] = endpoint_bytes_per_packet;
+	}
+}
+
+/** @internal
+ * @brief XXX choose the altsetting to start with according to strmh->plan.alt_policy
+ * @return index of the altsetting, -1 if no altsetting has the streaming endpoint
+ */
+static int _uvc_select_altsetting(uvc_stream_handle_t *strmh, size_t config_bytes_per_packet) {
+	int alt_idx, last_idx = -1, max_idx = -1;
+
+	for (alt_idx = 0; alt_idx < strmh->num_alt; alt_idx++) {
+		// XXX config_bytes_per_packet should not be zero otherwise zero divided exception occur
+		if (UNLIKELY(!strmh->alt_bytes[alt_idx]))
+			continue;
+		last_idx = alt_idx;
+		if ((max_idx < 0) || (strmh->alt_bytes[alt_idx] > strmh->alt_bytes[max_idx]))
+			max_idx = alt_idx;
+	}
+	if (strmh->plan.alt_policy == UVC_ALT_MAX)
+		return max_idx;
+
+	/* Go through the altsettings and find one whose packets are at least
+	 * as big as our format's maximum per-packet usage. Assume that the
+	 * packet sizes are increasing. */
+	for (alt_idx = 0; alt_idx < strmh->num_alt; alt_idx++) {
+		if (strmh->alt_bytes[alt_idx] >= config_bytes_per_packet)
+			return alt_idx;
+	}
+	return last_idx;	// XXX always match to last altsetting for buggy device
+}
+
+/** @internal
+ * @brief XXX allocate strmh->num_transfers isochronous transfers for the altsetting,
+ * the altsetting must already be selected on the device
+ */
+static uvc_error_t _uvc_alloc_iso_transfers(uvc_stream_handle_t *strmh, int alt_idx) {
+	const size_t endpoint_bytes_per_packet = strmh->alt_bytes[alt_idx];
+	/* Number of packets per transfer */
+	size_t packets_per_transfer;
+	/* Total amount of data per transfer */
+	size_t total_transfer_size;
+	struct libusb_transfer *transfer;
+	int transfer_id, i;
+
+	/* Transfers will be at most one frame long: Divide the maximum frame size
+	 * by the size of the endpoint and round up */
+	packets_per_transfer = (strmh->max_frame_bytes
+			+ endpoint_bytes_per_packet - 1)
+			/ endpoint_bytes_per_packet;
+
+	/* But keep a reasonable limit: Otherwise we start dropping data */
+	if (packets_per_transfer > (size_t)strmh->plan.packets)
+		packets_per_transfer = strmh->plan.packets;
+	if (UNLIKELY(!packets_per_transfer))
+		packets_per_transfer = 1;
+
+	total_transfer_size = packets_per_transfer * endpoint_bytes_per_packet;
+
+	for (transfer_id = 0; transfer_id < strmh->num_transfers; ++transfer_id) {
+		transfer = libusb_alloc_transfer(packets_per_transfer);
+		strmh->transfer_bufs[transfer_id] = transfer ? malloc(total_transfer_size) : NULL;
+		if (UNLIKELY(!strmh->transfer_bufs[transfer_id])) {
+			LOGE("failed to allocate transfer");
+			if (transfer)
+				libusb_free_transfer(transfer);
+			for (i = 0; i < transfer_id; i++) {
+				free(strmh->transfer_bufs[i]);
+				libusb_free_transfer(strmh->transfers[i]);
+				strmh->transfers[i] = NULL;
+			}
+			return UVC_ERROR_NO_MEM;
+		}
+		strmh->transfers[transfer_id] = transfer;
+
+		libusb_fill_iso_transfer(transfer, strmh->devh->usb_devh,
+			strmh->stream_if->bEndpointAddress,
+			strmh->transfer_bufs[transfer_id], total_transfer_size,
+			packets_per_transfer, _uvc_stream_callback,
+			(void*) strmh, 5000);
+
+		libusb_set_iso_packet_lengths(transfer, endpoint_bytes_per_packet);
+	}
+
+	/* packets that fit into the next smaller altsetting count as short */
+	strmh->short_bytes = 0;
+	for (i = 0; i < strmh->num_alt; i++) {
+		if ((strmh->alt_bytes[i] < endpoint_bytes_per_packet)
+			&& (strmh->alt_bytes[i] > strmh->short_bytes))
+			strmh->short_bytes = strmh->alt_bytes[i];
+	}
+	strmh->cur_alt = alt_idx;
+
+	uvc_transfer_stats_t *stats = &strmh->devh->transfer_stats;
+	stats->altsetting = strmh->devh->info->config->interface[strmh->stream_if->bInterfaceNumber]
+		.altsetting[alt_idx].bAlternateSetting;
+	stats->packet_bytes = endpoint_bytes_per_packet;
+	stats->transfers = strmh->num_transfers;
+	stats->packets_per_transfer = packets_per_transfer;
+
+	return UVC_SUCCESS;
+}
+
+/** @internal
+ * @brief XXX UVC_ALT_ADAPTIVE: move the running stream to another altsetting.
+ * Cancels and frees all transfers, selects the altsetting and submits new transfers
+ * sized for it. The frame being received is lost. Runs on the callback thread,
+ * uvc_stream_stop may run at the same time.
+ */
+static void _uvc_stream_switch_altsetting(uvc_stream_handle_t *strmh, int alt_idx) {
+	const struct libusb_interface_descriptor *altsetting
+		= strmh->devh->info->config->interface[strmh->stream_if->bInterfaceNumber].altsetting;
+	int i, ret;
+
+	pthread_mutex_lock(&strmh->cb_mutex);
+	{
+		strmh->switching = 1;
+		for (i = 0; i < strmh->num_transfers; i++) {
+			if (strmh->transfers[i])
+				libusb_cancel_transfer(strmh->transfers[i]);
+		}
+		/* Wait for transfers to complete/cancel, _uvc_stream_callback frees them while switching */
+		for (; 1 ;) {
+			for (i = 0; i < strmh->num_transfers; i++) {
+				if (strmh->transfers[i] != NULL)
+					break;
+			}
+			if (i == strmh->num_transfers)
+				break;
+			pthread_cond_wait(&strmh->cb_cond, &strmh->cb_mutex);
+		}
+		strmh->adapt_alt = -1;
+	}
+	pthread_mutex_unlock(&strmh->cb_mutex);
+	if (UNLIKELY(!strmh->running))
+		return;
+
+	// no transfer is in flight, so the USB thread does not touch these now
+	strmh->got_bytes = 0;
+	strmh->bfh_err = 0;
+	strmh->win_packets = strmh->win_errors = strmh->win_short = 0;
+	strmh->win_max_len = 0;
+
+	ret = libusb_set_interface_alt_setting(strmh->devh->usb_devh,
+			altsetting->bInterfaceNumber, altsetting[alt_idx].bAlternateSetting);
+	if (UNLIKELY(ret && (alt_idx != strmh->cur_alt))) {
+		LOGE("libusb_set_interface_alt_setting failed:%d", ret);
+		// never try this one again and fall back to the altsetting that was working
+		strmh->alt_bytes[alt_idx] = 0;
+		alt_idx = strmh->cur_alt;
+		ret = libusb_set_interface_alt_setting(strmh->devh->usb_devh,
+				altsetting->bInterfaceNumber, altsetting[alt_idx].bAlternateSetting);
+	}
+	if (UNLIKELY(ret)) {
+		LOGE("libusb_set_interface_alt_setting failed:%d", ret);
+	}
+
+	pthread_mutex_lock(&strmh->cb_mutex);
+	if (LIKELY(strmh->running)) {
+		ret = _uvc_alloc_iso_transfers(strmh, alt_idx);
+		if (UNLIKELY(ret && (alt_idx != strmh->cur_alt))) {
+			LOGE("failed to allocate transfers for altsetting %d:%d", alt_idx, ret);
+			// the larger transfers did not fit, go back to the altsetting that was working
+			alt_idx = strmh->cur_alt;
+			ret = libusb_set_interface_alt_setting(strmh->devh->usb_devh,
+					altsetting->bInterfaceNumber, altsetting[alt_idx].bAlternateSetting);
+			if (LIKELY(!ret))
+				ret = _uvc_alloc_iso_transfers(strmh, alt_idx);
+		}
+		strmh->switching = 0;
+		int submitted = 0;
+		if (LIKELY(!ret)) {
+			for (i = 0; i < strmh->num_transfers; i++) {
+				ret = libusb_submit_transfer(strmh->transfers[i]);
+				if (UNLIKELY(ret)) {
+					// never submitted transfers would not come back through _uvc_stream_callback
+					LOGE("libusb_submit_transfer failed:%d", ret);
+					free(strmh->transfer_bufs[i]);
+					libusb_free_transfer(strmh->transfers[i]);
+					strmh->transfers[i] = NULL;
+				} else {
+					submitted++;
+				}
+			}
+			strmh->devh->transfer_stats.renegotiations++;
+		}
+		if (UNLIKELY(!submitted)) {
+			// nothing is in flight anymore, end the stream as for an unplugged device
+			// instead of leaving it running without frames
+			LOGE("stream stopped, no transfer after switching altsetting");
+			strmh->running = 0;
+			pthread_cond_broadcast(&strmh->cb_cond);
+		}
+	}
+	pthread_mutex_unlock(&strmh->cb_mutex);
+}
+
 /** Begin streaming video from the stream into the callback function.
  * @ingroup streaming
  *
@@ -1388,8 +1797,6 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 	uvc_format_desc_t *format_desc;
 	uvc_stream_ctrl_t *ctrl;
 	uvc_error_t ret;
-	/* Total amount of data per transfer */
-	size_t total_transfer_size;
 	struct libusb_transfer *transfer;
 	int transfer_id;
 
@@ -1407,7 +1814,11 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 	strmh->fid = 0;
 	strmh->pts = 0;
 	strmh->last_scr = 0;
+	strmh->scr_ns = 0;
 	strmh->bfh_err = 0;	// XXX
+	_uvc_clock_reset(&strmh->clock, ctrl->dwClockFrequency);	// XXX
+	memset(&strmh->devh->clock_estimate, 0, sizeof(strmh->devh->clock_estimate));
+	_uvc_resolve_transfer_plan(strmh);
 
 	frame_desc = uvc_find_frame_desc_stream(strmh, ctrl->bFormatIndex, ctrl->bFrameIndex);
 	if (UNLIKELY(!frame_desc)) {
@@ -1426,6 +1837,25 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 	const uint32_t dwMaxVideoFrameSize = ctrl->dwMaxVideoFrameSize <= frame_desc->dwMaxVideoFrameBufferSize
 		? ctrl->dwMaxVideoFrameSize : frame_desc->dwMaxVideoFrameBufferSize;
 
+	strmh->zero_copy = (flags & UVC_STREAM_FLAG_ZERO_COPY) ? 1 : 0;
+	if (strmh->zero_copy) {
+		// XXX the receive buffers travel to the user with each frame when zero copy is enabled,
+		// so shrink them from LIBUVC_XFER_BUF_SIZE to what this frame size actually needs
+		size_t need_bytes = frame_desc->wWidth * frame_desc->wHeight * 2;
+		if (need_bytes < dwMaxVideoFrameSize)
+			need_bytes = dwMaxVideoFrameSize;
+		need_bytes += LIBUVC_XFER_BUF_MARGIN;
+		if (need_bytes < strmh->size_buf) {
+			uint8_t *buf = realloc(strmh->outbuf, need_bytes);
+			if (LIKELY(buf))
+				strmh->outbuf = buf;
+			buf = realloc(strmh->holdbuf, need_bytes);
+			if (LIKELY(buf))
+				strmh->holdbuf = buf;
+			strmh->size_buf = need_bytes;
+		}
+	}
+
 	// Get the interface that provides the chosen format and frame configuration
 	interface_id = strmh->stream_if->bInterfaceNumber;
 	interface = &strmh->devh->info->config->interface[interface_id];
@@ -1438,23 +1868,12 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 		MARK("isochronous transfer mode:num_altsetting=%d", interface->num_altsetting);
 		/* For isochronous streaming, we choose an appropriate altsetting for the endpoint
 		 * and set up several transfers */
-		const struct libusb_interface_descriptor *altsetting;
-		const struct libusb_endpoint_descriptor *endpoint;
 		/* The greatest number of bytes that the device might provide, per packet, in this
 		 * configuration */
 		size_t config_bytes_per_packet;
-		/* Number of packets per transfer */
-		size_t packets_per_transfer;
-		/* Total amount of data per transfer */
-		size_t total_transfer_size;
-		/* Size of packet transferable from the chosen endpoint */
-		size_t endpoint_bytes_per_packet;
 		/* Index of the altsetting */
-		int alt_idx, ep_idx;
+		int alt_idx;
 
-		struct libusb_transfer *transfer;
-		int transfer_id;
-		
 		if ((bandwidth_factor > 0) && (bandwidth_factor < 1.0f)) {
 			config_bytes_per_packet = (size_t)(strmh->cur_ctrl.dwMaxPayloadTransferSize * bandwidth_factor);
 			if (!config_bytes_per_packet) {
@@ -1474,73 +1893,20 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 			goto fail;
 		}
 
-		/* Go through the altsettings and find one whose packets are at least
-		 * as big as our format's maximum per-packet usage. Assume that the
-		 * packet sizes are increasing. */
-		const int num_alt = interface->num_altsetting - 1;
-		for (alt_idx = 0; alt_idx <= num_alt ; alt_idx++) {
-			altsetting = interface->altsetting + alt_idx;
-			endpoint_bytes_per_packet = 0;
-
-			/* Find the endpoint with the number specified in the VS header */
-			for (ep_idx = 0; ep_idx < altsetting->bNumEndpoints; ep_idx++) {
-				endpoint = altsetting->endpoint + ep_idx;
-				if (endpoint->bEndpointAddress == format_desc->parent->bEndpointAddress) {
-					endpoint_bytes_per_packet = endpoint->wMaxPacketSize;
-					// wMaxPacketSize: [unused:2 (multiplier-1):3 size:11]
-					// bit10…0:		maximum packet size
-					// bit12…11:	the number of additional transaction opportunities per microframe for high-speed
-					//				00 = None (1 transaction per microframe)
-					//				01 = 1 additional (2 per microframe)
-					//				10 = 2 additional (3 per microframe)
-					//				11 = Reserved
-					endpoint_bytes_per_packet
-						= (endpoint_bytes_per_packet & 0x07ff)
-							* (((endpoint_bytes_per_packet >> 11) & 3) + 1);
-					break;
-				}
-			}
-			// XXX config_bytes_per_packet should not be zero otherwise zero divided exception occur
-			if (LIKELY(endpoint_bytes_per_packet)) {
-				if ( (endpoint_bytes_per_packet >= config_bytes_per_packet)
-					|| (alt_idx == num_alt) ) {	// XXX always match to last altsetting for buggy device
-					/* Transfers will be at most one frame long: Divide the maximum frame size
-					 * by the size of the endpoint and round up */
-					packets_per_transfer = (dwMaxVideoFrameSize
-							+ endpoint_bytes_per_packet - 1)
-							/ endpoint_bytes_per_packet;		// XXX cashed by zero divided exception occured
-
-					/* But keep a reasonable limit: Otherwise we start dropping data */
-					if (packets_per_transfer > 32)
-						packets_per_transfer = 32;
-
-					total_transfer_size = packets_per_transfer * endpoint_bytes_per_packet;
-					break;
-				}
-			}
-		}
-		if (UNLIKELY(!endpoint_bytes_per_packet)) {
+		_uvc_scan_altsettings(strmh, interface, format_desc->parent->bEndpointAddress);
+		alt_idx = _uvc_select_altsetting(strmh, config_bytes_per_packet);
+		if (UNLIKELY(alt_idx < 0)) {
 			LOGE("endpoint_bytes_per_packet is zero");
 			ret = UVC_ERROR_INVALID_MODE;
 			goto fail;
 		}
-		if (UNLIKELY(!total_transfer_size)) {
-			LOGE("total_transfer_size is zero");
-			ret = UVC_ERROR_INVALID_MODE;
-			goto fail;
-		}
-
-		/* If we searched through all the altsettings and found nothing usable */
-/*		if (UNLIKELY(alt_idx == interface->num_altsetting)) {	// XXX never hit this condition
-			UVC_DEBUG("libusb_set_interface_alt_setting failed");
-			ret = UVC_ERROR_INVALID_MODE;
-			goto fail;
-		} */
+		strmh->max_frame_bytes = dwMaxVideoFrameSize;
 
 		/* Select the altsetting */
 		MARK("Select the altsetting");
 		ret = libusb_set_interface_alt_setting(strmh->devh->usb_devh,
-				altsetting->bInterfaceNumber, altsetting->bAlternateSetting);
+				interface->altsetting[alt_idx].bInterfaceNumber,
+				interface->altsetting[alt_idx].bAlternateSetting);
 		if (UNLIKELY(ret != UVC_SUCCESS)) {
 			UVC_DEBUG("libusb_set_interface_alt_setting failed");
 			goto fail;
@@ -1548,23 +1914,14 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 
 		/* Set up the transfers */
 		MARK("Set up the transfers");
-		for (transfer_id = 0; transfer_id < LIBUVC_NUM_TRANSFER_BUFS; ++transfer_id) {
-			transfer = libusb_alloc_transfer(packets_per_transfer);
-			strmh->transfers[transfer_id] = transfer;
-			strmh->transfer_bufs[transfer_id] = malloc(total_transfer_size);
-
-			libusb_fill_iso_transfer(transfer, strmh->devh->usb_devh,
-				format_desc->parent->bEndpointAddress,
-				strmh->transfer_bufs[transfer_id], total_transfer_size,
-				packets_per_transfer, _uvc_stream_callback,
-				(void*) strmh, 5000);
-
-			libusb_set_iso_packet_lengths(transfer, endpoint_bytes_per_packet);
+		ret = _uvc_alloc_iso_transfers(strmh, alt_idx);
+		if (UNLIKELY(ret != UVC_SUCCESS)) {
+			goto fail;
 		}
 	} else {
 		MARK("bulk transfer mode");
 		/** prepare for bulk transfer */
-		for (transfer_id = 0; transfer_id < LIBUVC_NUM_TRANSFER_BUFS; ++transfer_id) {
+		for (transfer_id = 0; transfer_id < strmh->num_transfers; ++transfer_id) {
 			transfer = libusb_alloc_transfer(0);
 			strmh->transfers[transfer_id] = transfer;
 			strmh->transfer_bufs[transfer_id] = malloc(strmh->cur_ctrl.dwMaxPayloadTransferSize);
@@ -1574,6 +1931,8 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 				strmh->cur_ctrl.dwMaxPayloadTransferSize, _uvc_stream_callback,
 				(void *)strmh, 5000);
 		}
+		strmh->devh->transfer_stats.packet_bytes = strmh->cur_ctrl.dwMaxPayloadTransferSize;
+		strmh->devh->transfer_stats.transfers = strmh->num_transfers;
 	}
 
 	strmh->user_cb = cb;
@@ -1587,7 +1946,7 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 		pthread_create(&strmh->cb_thread, NULL, _uvc_user_caller, (void*) strmh);
 	}
 	MARK("submit transfers");
-	for (transfer_id = 0; transfer_id < LIBUVC_NUM_TRANSFER_BUFS; transfer_id++) {
+	for (transfer_id = 0; transfer_id < strmh->num_transfers; transfer_id++) {
 		ret = libusb_submit_transfer(strmh->transfers[transfer_id]);
 		if (UNLIKELY(ret != UVC_SUCCESS)) {
 			UVC_DEBUG("libusb_submit_transfer failed");
@@ -1638,7 +1997,7 @@ static void *_uvc_user_caller(void *arg) {
 	for (; 1 ;) {
 		pthread_mutex_lock(&strmh->cb_mutex);
 		{
-			for (; strmh->running && (last_seq == strmh->hold_seq) ;) {
+			for (; strmh->running && (last_seq == strmh->hold_seq) && (strmh->adapt_alt < 0) ;) {
 				pthread_cond_wait(&strmh->cb_cond, &strmh->cb_mutex);
 			}
 
@@ -1646,6 +2005,12 @@ static void *_uvc_user_caller(void *arg) {
 				pthread_mutex_unlock(&strmh->cb_mutex);
 				break;
 			}
+			if (UNLIKELY(strmh->adapt_alt >= 0)) {	// XXX requested by _uvc_adapt_check
+				const int alt_idx = strmh->adapt_alt;
+				pthread_mutex_unlock(&strmh->cb_mutex);
+				_uvc_stream_switch_altsetting(strmh, alt_idx);
+				continue;
+			}
 
 			last_seq = strmh->hold_seq;
 			if (LIKELY(!strmh->hold_bfh_err))	// XXX
@@ -1683,6 +2048,28 @@ void _uvc_populate_frame(uvc_stream_handle_t *strmh) {
 	frame->height = frame_desc->wHeight;
 	// XXX set actual_bytes to zero when erro bits is on
 	frame->actual_bytes = LIKELY(!strmh->hold_bfh_err) ? strmh->hold_bytes : 0;
+	frame->first_payload_ns = strmh->hold_start_ns;
+	frame->complete_ns = strmh->hold_complete_ns;
+	// XXX frame time, PTS through the device clock fit
+	frame->sequence = strmh->hold_seq;
+	frame->pts = strmh->hold_pts;
+	frame->scr = strmh->hold_last_scr;
+	if (strmh->hold_scr_ns) {
+		_uvc_clock_update(&strmh->clock, strmh->hold_first_scr, strmh->hold_scr_ns);
+		_uvc_clock_estimate(&strmh->clock, &strmh->devh->clock_estimate);
+	}
+	frame->capture_ns = frame->pts ? _uvc_clock_to_host(&strmh->clock, frame->pts) : 0;
+	if (frame->capture_ns) {
+		// system time of the capture, CLOCK_REALTIME now minus the age of the frame
+		struct timeval now;
+		gettimeofday(&now, NULL);
+		const int64_t capture_us = (int64_t) now.tv_sec * 1000000LL + now.tv_usec
+			- (int64_t) (_uvc_now_ns() - frame->capture_ns) / 1000;
+		frame->capture_time.tv_sec = capture_us / 1000000;
+		frame->capture_time.tv_usec = capture_us % 1000000;
+	} else {
+		gettimeofday(&frame->capture_time, NULL);
+	}
 
 	switch (frame->frame_format) {
 	case UVC_FRAME_FORMAT_YUYV:
@@ -1696,14 +2083,30 @@ void _uvc_populate_frame(uvc_stream_handle_t *strmh) {
 		break;
 	}
 
-	/* copy the image data from the hold buffer to the frame (unnecessary extra buf?) */
-	if (UNLIKELY(frame->data_bytes < strmh->hold_bytes)) {
-		frame->data = realloc(frame->data, strmh->hold_bytes);	// TODO add error handling when failed realloc
-		frame->data_bytes = strmh->hold_bytes;
+	if (strmh->zero_copy) {
+		/* hand the hold buffer over to the frame instead of copying it,
+		 * the buffer the frame had (possibly exchanged by user code with uvc_swap_frame)
+		 * becomes the next hold buffer, so it must be as large as the receive buffers */
+		if (UNLIKELY(!frame->data || frame->data_bytes < strmh->size_buf)) {
+			void *buf = realloc(frame->data, strmh->size_buf);
+			if (UNLIKELY(!buf)) {
+				frame->actual_bytes = 0;
+				return;
+			}
+			frame->data = buf;
+		}
+		uint8_t *tmp_buf = frame->data;
+		frame->data = strmh->holdbuf;
+		frame->data_bytes = strmh->size_buf;
+		strmh->holdbuf = tmp_buf;
+	} else {
+		/* copy the image data from the hold buffer to the frame (unnecessary extra buf?) */
+		if (UNLIKELY(frame->data_bytes < strmh->hold_bytes)) {
+			frame->data = realloc(frame->data, strmh->hold_bytes);	// TODO add error handling when failed realloc
+			frame->data_bytes = strmh->hold_bytes;
+		}
+		memcpy(frame->data, strmh->holdbuf, strmh->hold_bytes/*frame->data_bytes*/);	// XXX
 	}
-	memcpy(frame->data, strmh->holdbuf, strmh->hold_bytes/*frame->data_bytes*/);	// XXX
-
-	/** @todo set the frame time */
 }
 
 /** Poll for a frame
@@ -1812,7 +2215,7 @@ uvc_error_t uvc_stream_stop(uvc_stream_handle_t *strmh) {
 
 	pthread_mutex_lock(&strmh->cb_mutex);
 	{
-		for (i = 0; i < LIBUVC_NUM_TRANSFER_BUFS; i++) {
+		for (i = 0; i < strmh->num_transfers; i++) {
 			if (strmh->transfers[i]) {
 				int res = libusb_cancel_transfer(strmh->transfers[i]);
 				if ((res < 0) && (res != LIBUSB_ERROR_NOT_FOUND)) {
@@ -1830,11 +2233,11 @@ uvc_error_t uvc_stream_stop(uvc_stream_handle_t *strmh) {
 
 		/* Wait for transfers to complete/cancel */
 		for (; 1 ;) {
-			for (i = 0; i < LIBUVC_NUM_TRANSFER_BUFS; i++) {
+			for (i = 0; i < strmh->num_transfers; i++) {
 				if (strmh->transfers[i] != NULL)
 					break;
 			}
-			if (i == LIBUVC_NUM_TRANSFER_BUFS)
+			if (i == strmh->num_transfers)
 				break;
 			pthread_cond_wait(&strmh->cb_cond, &strmh->cb_mutex);
 		}
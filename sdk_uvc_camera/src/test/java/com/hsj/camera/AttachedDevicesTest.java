@@ -0,0 +1,111 @@
+package com.hsj.camera;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * The attach/detach broadcasts and the device poll of {@link USBMonitor} must report every change once.
+ */
+public class AttachedDevicesTest {
+    private final AttachedDevices<String> mDevices = new AttachedDevices<>();
+    private final List<String> mAttached = new ArrayList<>();
+    private final List<String> mDetached = new ArrayList<>();
+    private final List<String> mKept = new ArrayList<>();
+
+    private void poll(final long nanos, final String... devices) {
+        mAttached.clear();
+        mDetached.clear();
+        mKept.clear();
+        final Map<Integer, String> current = new LinkedHashMap<>();
+        for (final String device : devices) {
+            current.put(Integer.parseInt(device.substring(1)), device);
+        }
+        mDevices.update(current, nanos, mAttached, mDetached, mKept);
+    }
+
+    @Test
+    public void poll_reportsNewDevicesInOrder() {
+        poll(10, "d2", "d1");
+        assertEquals(2, mAttached.size());
+        assertEquals("d2", mAttached.get(0));
+        assertEquals("d1", mAttached.get(1));
+        assertTrue(mDetached.isEmpty());
+        assertTrue(mKept.isEmpty());
+
+        poll(20, "d2", "d1", "d3");
+        assertEquals(1, mAttached.size());
+        assertEquals("d3", mAttached.get(0));
+        assertEquals(2, mKept.size());
+    }
+
+    @Test
+    public void broadcastAttach_notReportedAgainByPoll() {
+        assertTrue(mDevices.attach(1, "d1", 10));
+        assertFalse(mDevices.attach(1, "d1", 20));
+        poll(30, "d1");
+        assertTrue(mAttached.isEmpty());
+        assertEquals(1, mKept.size());
+        assertEquals(10, mDevices.takeAttachNanos(1));
+    }
+
+    @Test
+    public void pollAttach_notReportedAgainByBroadcast() {
+        poll(10, "d1");
+        assertEquals(1, mAttached.size());
+        assertFalse(mDevices.attach(1, "d1", 20));
+    }
+
+    @Test
+    public void pollDetach_notReportedAgainByBroadcast() {
+        assertTrue(mDevices.attach(1, "d1", 10));
+        poll(20);
+        assertEquals(1, mDetached.size());
+        assertEquals("d1", mDetached.get(0));
+        assertFalse(mDevices.detach(1));
+    }
+
+    @Test
+    public void broadcastDetach_notReportedAgainByPoll() {
+        poll(10, "d1", "d2");
+        assertTrue(mDevices.detach(1));
+        assertFalse(mDevices.detach(1));
+        poll(20, "d2");
+        assertTrue(mDetached.isEmpty());
+        assertTrue(mAttached.isEmpty());
+    }
+
+    @Test
+    public void reattach_withNewId_isNewDevice() {
+        poll(10, "d1");
+        poll(20, "d4");
+        assertEquals(1, mDetached.size());
+        assertEquals(1, mAttached.size());
+        assertEquals(20, mDevices.takeAttachNanos(4));
+        assertEquals(-1, mDevices.takeAttachNanos(1));
+    }
+
+    @Test
+    public void attachNanos_takenOnce() {
+        assertTrue(mDevices.attach(1, "d1", 10));
+        assertEquals(10, mDevices.takeAttachNanos(1));
+        assertEquals(-1, mDevices.takeAttachNanos(1));
+        // still tracked, only the latency was taken
+        assertFalse(mDevices.attach(1, "d1", 20));
+    }
+
+    @Test
+    public void clear_forgetsEverything() {
+        assertTrue(mDevices.attach(1, "d1", 10));
+        mDevices.clear();
+        assertEquals(-1, mDevices.takeAttachNanos(1));
+        assertFalse(mDevices.detach(1));
+        poll(20, "d1");
+        assertEquals(1, mAttached.size());
+    }
+}
@@ -0,0 +1,89 @@
+package com.hsj.camera;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link SizeFormats#parse} against arrays laid out like UVCDiags#getFormats.
+ */
+public class SizeFormatsTest {
+    private static final int[] FORMATS = {
+            SizeFormats.VERSION, 2,
+            // uncompressed, 2 frames, no still
+            4, 1, 1, 16, 2,
+            1, 0, 640, 480, 333333, 2, 333333, 666666,
+            2, 0, 320, 240, 333333, 1, 333333,
+            0,
+            0,
+            // MJPEG, 1 continuous frame, 2 stills with 1 compression
+            6, 2, 1, 0, 1,
+            1, 0, 1280, 720, 333333, 0, 333333, 1000000, 333333,
+            2, 1920, 1080, 1280, 720,
+            1, 5,
+    };
+
+    @Test
+    public void parse_uncompressedSizes() {
+        final List<Size> sizes = new ArrayList<>();
+        final List<Size> stills = new ArrayList<>();
+        SizeFormats.parse(4, FORMATS, sizes, stills);
+        assertEquals(2, sizes.size());
+        assertTrue(stills.isEmpty());
+        final Size size = sizes.get(0);
+        assertEquals(4, size.type);
+        assertEquals(0, size.index);
+        assertEquals(640, size.width);
+        assertEquals(480, size.height);
+        assertEquals(2, size.frameIntervalType);
+        assertArrayEquals(new int[]{333333, 666666}, size.intervals);
+        assertEquals(1, sizes.get(1).index);
+        assertEquals(320, sizes.get(1).width);
+        assertEquals(1, sizes.get(1).frameIntervalType);
+    }
+
+    @Test
+    public void parse_continuousSizeAndStills() {
+        final List<Size> sizes = new ArrayList<>();
+        final List<Size> stills = new ArrayList<>();
+        SizeFormats.parse(6, FORMATS, sizes, stills);
+        assertEquals(1, sizes.size());
+        final Size size = sizes.get(0);
+        assertEquals(6, size.type);
+        assertEquals(1280, size.width);
+        assertEquals(0, size.frameIntervalType);
+        assertArrayEquals(new int[]{333333, 1000000, 333333}, size.intervals);
+        assertEquals(2, stills.size());
+        assertEquals(UVCCamera.SIZE_TYPE_STILL_IMAGE, stills.get(0).type);
+        assertEquals(6, stills.get(0).frame_type);
+        assertEquals(1920, stills.get(0).width);
+        assertEquals(1080, stills.get(0).height);
+        assertEquals(1, stills.get(1).index);
+        assertEquals(720, stills.get(1).height);
+    }
+
+    @Test
+    public void parse_allTypes() {
+        final List<Size> sizes = new ArrayList<>();
+        SizeFormats.parse(-1, FORMATS, sizes, null);
+        assertEquals(3, sizes.size());
+        assertEquals(4, sizes.get(0).type);
+        assertEquals(6, sizes.get(2).type);
+    }
+
+    @Test
+    public void parse_unknownTypeOrLayout() {
+        final List<Size> sizes = new ArrayList<>();
+        SizeFormats.parse(7, FORMATS, sizes, null);
+        assertTrue(sizes.isEmpty());
+        final int[] other = FORMATS.clone();
+        other[0] = SizeFormats.VERSION + 1;
+        SizeFormats.parse(-1, other, sizes, null);
+        assertTrue(sizes.isEmpty());
+        SizeFormats.parse(-1, null, sizes, null);
+        assertTrue(sizes.isEmpty());
+    }
+}
@@ -0,0 +1,98 @@
+package com.hsj.camera;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * frame rates {@link Size#updateFrameRate} derives from the frame intervals, in 100ns
+ */
+public class SizeTest {
+    private static final float DELTA = 0.01f;
+
+    @Test
+    public void discreteIntervals() {
+        final Size size = new Size(4, 0, 0, 640, 480, new int[]{333333, 666666, 1000000});
+        assertEquals(3, size.fps.length);
+        assertEquals(30.0f, size.fps[0], DELTA);
+        assertEquals(15.0f, size.fps[1], DELTA);
+        assertEquals(10.0f, size.fps[2], DELTA);
+        assertEquals(30.0f, size.getCurrentFrameRate(), DELTA);
+    }
+
+    @Test
+    public void continuousIntervals_everyStep() {
+        final Size size = new Size(6, 0, 0, 1280, 720, 333333, 1000000, 333333);
+        assertEquals(3, size.fps.length);
+        assertEquals(30.0f, size.fps[0], DELTA);
+        assertEquals(15.0f, size.fps[1], DELTA);
+        assertEquals(10.0f, size.fps[2], DELTA);
+    }
+
+    @Test
+    public void continuousIntervals_fineStep_everyFps() {
+        // 30fps..1fps in steps of 100ns, listed every 1fps
+        final Size size = new Size(6, 0, 0, 1280, 720, 333333, 10000000, 1);
+        assertEquals(30, size.fps.length);
+        assertEquals(30.0f, size.fps[0], DELTA);
+        assertEquals(1.0f, size.fps[29], DELTA);
+    }
+
+    @Test
+    public void continuousIntervals_bounded() {
+        // 1000fps..1fps would list 1000 rates
+        final Size size = new Size(6, 0, 0, 320, 240, 10000, 10000000, 1);
+        final float[] fps = size.fps;
+        assertTrue(fps.length <= 64);
+        assertTrue(fps.length >= 48);
+        assertEquals(1000.0f, fps[0], DELTA);
+        assertEquals(1.0f, fps[fps.length - 1], DELTA);
+        for (int i = 1; i < fps.length; i++) {
+            assertTrue(fps[i] < fps[i - 1]);
+        }
+        // spread over the whole range, including the rates apps ask for
+        for (final float rate : new float[]{240, 120, 60, 50, 30, 25, 24, 20, 15, 10, 5}) {
+            assertTrue("missing " + rate, contains(fps, rate));
+        }
+        size.setCurrentFrameRate(30.0f);
+        assertEquals(30.0f, size.getCurrentFrameRate(), DELTA);
+    }
+
+    @Test
+    public void continuousIntervals_bounded_keepsEnds() {
+        // 120.0005fps..0.1fps, a common rate next to an end is not listed twice
+        final Size size = new Size(6, 0, 0, 1280, 720, 83333, 100000000, 1);
+        final float[] fps = size.fps;
+        assertTrue(fps.length <= 64);
+        assertEquals(120.0f, fps[0], DELTA);
+        assertEquals(0.1f, fps[fps.length - 1], DELTA);
+        assertTrue(fps[1] < 119.5f);
+        for (int i = 1; i < fps.length; i++) {
+            assertTrue(fps[i] < fps[i - 1]);
+        }
+        assertTrue(contains(fps, 60));
+        assertTrue(contains(fps, 30));
+        assertTrue(contains(fps, 5));
+    }
+
+    private static boolean contains(final float[] fps, final float rate) {
+        for (final float f : fps) {
+            if (Math.abs(f - rate) < DELTA) return true;
+        }
+        return false;
+    }
+
+    @Test
+    public void continuousIntervals_zeroStep() {
+        final Size size = new Size(6, 0, 0, 320, 240, 333333, 666666, 0);
+        assertEquals(16, size.fps.length);
+        assertEquals(30.0f, size.fps[0], DELTA);
+    }
+
+    @Test
+    public void noIntervals() {
+        final Size size = new Size(UVCCamera.SIZE_TYPE_STILL_IMAGE, 6, 0, 1920, 1080);
+        assertNull(size.fps);
+        assertEquals(-1, size.frameIntervalType);
+    }
+}